@@ -0,0 +1,256 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.os.Debug;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import periodictable.common.rendering.GlWorkScheduler;
+import periodictable.common.rendering.TextureResidencyManager;
+
+/**
+ * Counts the objects allocated on the OpenGL thread while drawing frames of tracked cards, which
+ * must be none: their collection pauses show as jank. Each frame looks the cards up in the {@link
+ * CardTextureCache} and {@link CardAtlas}, as the activity does, and ends with the {@link
+ * TextureResidencyManager}. Runs on a device, on an offscreen surface, since drawing needs an
+ * OpenGL context, with the app's own card assets. ARCore's own per-frame allocations, of the
+ * tracked images and their poses, are outside the renderers and not counted.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CardDrawAllocationTest {
+  private static final int CARD_COUNT = 12;
+  private static final int CARDS_PER_ROW = 4;
+  private static final float CARD_SIZE = 0.06f;
+  private static final int WARM_UP_FRAMES = 3;
+  private static final int COUNTED_FRAMES = 60;
+  private static final int SURFACE_SIZE = 256;
+  // Enough to keep every loaded card resident, so the frames only touch textures.
+  private static final long TEXTURE_BUDGET_BYTES = 64L * 1024 * 1024;
+  private static final long UPLOAD_BUDGET_NANOS = 4_000_000L;
+  private static final long LOAD_TIMEOUT_NANOS = 20_000_000_000L;
+  private static final long LOAD_POLL_MILLIS = 10;
+
+  private EGLDisplay display;
+  private EGLContext context;
+  private EGLSurface surface;
+
+  private final AugmentedImageRenderer renderer = new AugmentedImageRenderer();
+  private final float[] viewMatrix = new float[16];
+  private final float[] projectionMatrix = new float[16];
+  private final float[] colorCorrectionRgba = {1f, 1f, 1f, 0.5f};
+  private final float[][] cardPoses = new float[CARD_COUNT][16];
+  private final float[] visibleTexCoords = new float[4];
+  // The first images with a picture, and where it is in the atlas.
+  private final int[] imageIndices = new int[CARD_COUNT];
+  private final String[] imageNames = new String[CARD_COUNT];
+  private final CardAtlas.Region[] regions = new CardAtlas.Region[CARD_COUNT];
+  private final TextureResidencyManager residencyManager =
+      new TextureResidencyManager(TEXTURE_BUDGET_BYTES);
+  // Uploads in the frame, without an upload thread.
+  private final GlWorkScheduler scheduler =
+      new GlWorkScheduler(UPLOAD_BUDGET_NANOS, /*uploadThread=*/ null);
+  private CardBitmapLoader loader;
+  private CardTextureCache textureCache;
+  private CardAtlas atlas;
+
+  @Before
+  public void setUp() throws IOException, InterruptedException {
+    display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+    int[] version = new int[2];
+    assertTrue(EGL14.eglInitialize(display, version, 0, version, 1));
+    int[] configAttributes = {
+      EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+      EGL14.EGL_SURFACE_TYPE, EGL14.EGL_PBUFFER_BIT,
+      EGL14.EGL_RED_SIZE, 8,
+      EGL14.EGL_GREEN_SIZE, 8,
+      EGL14.EGL_BLUE_SIZE, 8,
+      EGL14.EGL_ALPHA_SIZE, 8,
+      EGL14.EGL_DEPTH_SIZE, 16,
+      EGL14.EGL_NONE
+    };
+    EGLConfig[] configs = new EGLConfig[1];
+    int[] configCount = new int[1];
+    assertTrue(
+        EGL14.eglChooseConfig(display, configAttributes, 0, configs, 0, 1, configCount, 0));
+    assertNotEquals(0, configCount[0]);
+    int[] contextAttributes = {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE};
+    context =
+        EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT, contextAttributes, 0);
+    int[] surfaceAttributes = {
+      EGL14.EGL_WIDTH, SURFACE_SIZE, EGL14.EGL_HEIGHT, SURFACE_SIZE, EGL14.EGL_NONE
+    };
+    surface = EGL14.eglCreatePbufferSurface(display, configs[0], surfaceAttributes, 0);
+    assertTrue(EGL14.eglMakeCurrent(display, surface, surface, context));
+
+    Context appContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    renderer.createOnGlThread(appContext, /*useVirtualTexture=*/ false);
+    AssetManager assets = appContext.getAssets();
+    CardContentPack pack = CardContentPack.open(assets);
+    loader = new CardBitmapLoader(assets, pack, /*diskCache=*/ null);
+    loader.setTextureFormat(CardTextureFormat.selectOnGlThread());
+    textureCache = new CardTextureCache(pack, loader, residencyManager, scheduler);
+    ElementIndex elementIndex = ElementIndex.load(assets);
+    atlas =
+        CardAtlas.load(assets, residencyManager, scheduler, /*diskCache=*/ null, elementIndex);
+    for (int imageIndex = 0, i = 0; i < CARD_COUNT; imageIndex++) {
+      CardAtlas.Region region = atlas.getRegion(imageIndex, CardContent.PICTURE);
+      if (region != null) {
+        imageIndices[i] = imageIndex;
+        imageNames[i] = elementIndex.getImageName(imageIndex);
+        regions[i] = region;
+        i++;
+      }
+    }
+    loadCards();
+
+    // The cards lie on a table half a meter below and in front of the camera.
+    Matrix.setLookAtM(viewMatrix, 0, 0f, 0.5f, 0.3f, 0f, 0f, 0f, 0f, 1f, 0f);
+    Matrix.perspectiveM(projectionMatrix, 0, 60f, 1f, 0.1f, 100f);
+    for (int i = 0; i < CARD_COUNT; i++) {
+      Matrix.setIdentityM(cardPoses[i], 0);
+      Matrix.translateM(
+          cardPoses[i],
+          0,
+          (i % CARDS_PER_ROW - (CARDS_PER_ROW - 1) / 2f) * CARD_SIZE,
+          0f,
+          (i / CARDS_PER_ROW - 1) * CARD_SIZE);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    loader.shutdown();
+    atlas.shutdown();
+    EGL14.eglMakeCurrent(
+        display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+    EGL14.eglDestroySurface(display, surface);
+    EGL14.eglDestroyContext(display, context);
+    EGL14.eglTerminate(display);
+  }
+
+  @Test
+  @SuppressWarnings("deprecation") // The allocation counters are still the per-thread count.
+  public void drawingCardsDoesNotAllocate() {
+    // Loads classes and lets the driver set up the program before counting.
+    for (int frame = 0; frame < WARM_UP_FRAMES; frame++) {
+      drawFrame();
+    }
+
+    Debug.resetThreadAllocCount();
+    Debug.startAllocCounting();
+    for (int frame = 0; frame < COUNTED_FRAMES; frame++) {
+      drawFrame();
+    }
+    Debug.stopAllocCounting();
+    int allocations = Debug.getThreadAllocCount();
+
+    assertEquals(
+        "Objects allocated drawing " + COUNTED_FRAMES + " frames of " + CARD_COUNT + " cards",
+        0,
+        allocations);
+  }
+
+  /**
+   * Loads the texture and atlas page of every card, as the first frames they are seen in do, so
+   * the counted frames find them resident.
+   */
+  private void loadCards() throws InterruptedException {
+    for (int i = 0; i < CARD_COUNT; i++) {
+      textureCache.getTexture(
+          imageIndices[i],
+          imageNames[i],
+          CardContent.PICTURE,
+          /*tapTimeNanos=*/ 0,
+          /*screenSize=*/ 1f);
+      atlas.prefetchPage(regions[i].page, Integer.MAX_VALUE);
+    }
+    long deadline = System.nanoTime() + LOAD_TIMEOUT_NANOS;
+    while (!cardsLoaded()) {
+      assertTrue("Cards did not load in time", System.nanoTime() < deadline);
+      Thread.sleep(LOAD_POLL_MILLIS);
+      textureCache.uploadPendingOnGlThread();
+      atlas.uploadPendingOnGlThread();
+      scheduler.runPendingOnGlThread();
+    }
+  }
+
+  private boolean cardsLoaded() {
+    for (int i = 0; i < CARD_COUNT; i++) {
+      if (!textureCache.isCached(imageIndices[i], CardContent.PICTURE)
+          || atlas.getPageTexture(regions[i].page) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Draws every card as the activity does, from its own texture or its atlas region, with culling,
+   * then ends the frame.
+   */
+  private void drawFrame() {
+    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+    for (int i = 0; i < CARD_COUNT; i++) {
+      renderer.findVisibleRegion(
+          viewMatrix, projectionMatrix, SURFACE_SIZE, cardPoses[i], CARD_SIZE, visibleTexCoords);
+      if (i % 2 == 0) {
+        renderer.draw(
+            viewMatrix,
+            projectionMatrix,
+            cardPoses[i],
+            CARD_SIZE,
+            /*imageIndex=*/ i,
+            colorCorrectionRgba,
+            textureCache.getTexture(
+                imageIndices[i],
+                imageNames[i],
+                CardContent.PICTURE,
+                /*tapTimeNanos=*/ 0,
+                /*screenSize=*/ 1f));
+      } else {
+        renderer.draw(
+            viewMatrix,
+            projectionMatrix,
+            cardPoses[i],
+            CARD_SIZE,
+            /*imageIndex=*/ i,
+            colorCorrectionRgba,
+            atlas.getPageTexture(regions[i].page),
+            regions[i].texCoordTransform);
+      }
+    }
+    GLES20.glFinish();
+    residencyManager.endFrame();
+  }
+}
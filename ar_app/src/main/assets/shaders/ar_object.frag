@@ -28,9 +28,23 @@ uniform mat3 u_DepthUvTransform;
 uniform float u_DepthAspectRatio;
 #endif // USE_DEPTH_FOR_OCCLUSION
 
+#if USE_VIRTUAL_TEXTURE
+// u_Texture is the tile cache, and u_PageTable has one texel per finest tile of the card, telling
+// which cache slot (r, g) holds the tile of which level (b) that covers it.
+uniform sampler2D u_PageTable;
+// Tiles per side of the finest level, then the size of a cache slot, of a tile's border and of a
+// tile's content, in cache texture coordinates.
+uniform vec4 u_VirtualTextureParameters;
+#endif // USE_VIRTUAL_TEXTURE
+
 varying vec3 v_ViewPosition;
 varying vec3 v_ViewNormal;
+#if USE_VIRTUAL_TEXTURE && defined(GL_FRAGMENT_PRECISION_HIGH)
+// Addressing texels of a large virtual texture needs more than mediump.
+varying highp vec2 v_TexCoord;
+#else
 varying vec2 v_TexCoord;
+#endif
 varying vec3 v_ScreenSpacePosition;
 uniform vec4 u_ObjColor;
 
@@ -134,6 +148,27 @@ float DepthGetBlurredVisibilityAroundUV(in sampler2D depth_texture, in vec2 uv,
 
 #endif // USE_DEPTH_FOR_OCCLUSION
 
+#if USE_VIRTUAL_TEXTURE
+
+#ifdef GL_FRAGMENT_PRECISION_HIGH
+#define VIRTUAL_TEXTURE_PRECISION highp
+#else
+#define VIRTUAL_TEXTURE_PRECISION mediump
+#endif
+
+// Samples the card at uv, from the top-left, through its page table.
+vec4 VirtualTextureSample(in VIRTUAL_TEXTURE_PRECISION vec2 uv) {
+  vec4 page = floor(texture2D(u_PageTable, uv) * 255.0 + 0.5);
+  VIRTUAL_TEXTURE_PRECISION float tilesPerSide = u_VirtualTextureParameters.x / exp2(page.b);
+  VIRTUAL_TEXTURE_PRECISION vec2 tile = min(floor(uv * tilesPerSide), tilesPerSide - 1.0);
+  VIRTUAL_TEXTURE_PRECISION vec2 inTile = uv * tilesPerSide - tile;
+  VIRTUAL_TEXTURE_PRECISION vec2 cacheUv = page.rg * u_VirtualTextureParameters.y
+      + u_VirtualTextureParameters.z + inTile * u_VirtualTextureParameters.w;
+  return texture2D(u_Texture, cacheUv);
+}
+
+#endif // USE_VIRTUAL_TEXTURE
+
 void main() {
     // We support approximate sRGB gamma.
     const float kGamma = 0.4545454;
@@ -155,7 +190,11 @@ void main() {
     vec3 viewNormal = normalize(v_ViewNormal);
 
     // Flip the y-texture coordinate to address the texture from top-left.
+#if USE_VIRTUAL_TEXTURE
+    vec4 objectColor = VirtualTextureSample(vec2(v_TexCoord.x, 1.0 - v_TexCoord.y));
+#else
     vec4 objectColor = texture2D(u_Texture, vec2(v_TexCoord.x, 1.0 - v_TexCoord.y));
+#endif // USE_VIRTUAL_TEXTURE
 
     // Apply color to grayscale image only if the alpha of u_ObjColor is
     // greater and equal to 255.0.
@@ -16,6 +16,8 @@
 
 uniform mat4 u_ModelView;
 uniform mat4 u_ModelViewProjection;
+// Offset (xy) and scale (zw) applied to the texture coordinates, e.g. to address an atlas region.
+uniform vec4 u_TexCoordTransform;
 
 attribute vec4 a_Position;
 attribute vec3 a_Normal;
@@ -29,7 +31,7 @@ varying vec3 v_ScreenSpacePosition;
 void main() {
     v_ViewPosition = (u_ModelView * a_Position).xyz;
     v_ViewNormal = normalize((u_ModelView * vec4(a_Normal, 0.0)).xyz);
-    v_TexCoord = a_TexCoord;
+    v_TexCoord = u_TexCoordTransform.xy + a_TexCoord * u_TexCoordTransform.zw;
     gl_Position = u_ModelViewProjection * a_Position;
     v_ScreenSpacePosition = gl_Position.xyz / gl_Position.w;
 }
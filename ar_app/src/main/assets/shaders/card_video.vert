@@ -0,0 +1,29 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+uniform mat4 u_ModelViewProjection;
+// Maps the quad's texture coordinates into the latest video frame, see SurfaceTexture.
+uniform mat4 u_TexTransform;
+
+attribute vec4 a_Position;
+attribute vec2 a_TexCoord;
+
+varying vec2 v_TexCoord;
+
+void main() {
+   gl_Position = u_ModelViewProjection * a_Position;
+   v_TexCoord = (u_TexTransform * vec4(a_TexCoord, 0.0, 1.0)).xy;
+}
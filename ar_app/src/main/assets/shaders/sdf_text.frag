@@ -0,0 +1,49 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#ifdef GL_OES_standard_derivatives
+#extension GL_OES_standard_derivatives : enable
+#endif
+
+precision mediump float;
+
+// The font's distance field: 0.5 on glyph outlines, rising inside.
+uniform sampler2D u_Texture;
+uniform vec4 u_Color;
+uniform vec4 u_ColorCorrectionParameters;
+
+varying vec2 v_TexCoord;
+
+void main() {
+    const float kMiddleGrayGamma = 0.466;
+
+    float distance = texture2D(u_Texture, v_TexCoord).r;
+#ifdef GL_OES_standard_derivatives
+    // Half a pixel's worth of the field either side of the outline, so edges stay one pixel soft
+    // at any size on screen.
+    float smoothing = 0.7 * fwidth(distance);
+#else
+    const float smoothing = 0.05;
+#endif
+    float coverage = smoothstep(0.5 - smoothing, 0.5 + smoothing, distance);
+
+    vec3 colorShift = u_ColorCorrectionParameters.rgb;
+    float averagePixelIntensity = u_ColorCorrectionParameters.a;
+    vec3 color = u_Color.rgb * colorShift * (averagePixelIntensity / kMiddleGrayGamma);
+
+    // Premultiplied, blended with GL_ONE, GL_ONE_MINUS_SRC_ALPHA.
+    float alpha = u_Color.a * coverage;
+    gl_FragColor = vec4(color * alpha, alpha);
+}
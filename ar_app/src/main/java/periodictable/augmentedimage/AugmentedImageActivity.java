@@ -16,6 +16,8 @@
 
 package periodictable.augmentedimage;
 
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
@@ -24,8 +26,11 @@ import android.opengl.GLSurfaceView;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
 import android.os.Bundle;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseArray;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
@@ -34,6 +39,7 @@ import android.widget.ImageView;
 import android.widget.TextView;
 import android.widget.Toast;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.pm.PackageInfoCompat;
 import com.bumptech.glide.Glide;
 import com.bumptech.glide.RequestManager;
 import com.google.ar.core.Anchor;
@@ -46,25 +52,49 @@ import com.google.ar.core.Frame;
 import com.google.ar.core.Pose;
 import com.google.ar.core.Session;
 import periodictable.augmentedimage.rendering.AugmentedImageRenderer;
+import periodictable.augmentedimage.rendering.CardAtlas;
+import periodictable.augmentedimage.rendering.CardBitmapLoader;
+import periodictable.augmentedimage.rendering.CardContentPack;
+import periodictable.augmentedimage.rendering.CardContent;
+import periodictable.augmentedimage.rendering.CardPrefetcher;
+import periodictable.augmentedimage.rendering.CardTextLayouts;
+import periodictable.augmentedimage.rendering.CardTextureCache;
+import periodictable.augmentedimage.rendering.CardTextureDiskCache;
+import periodictable.augmentedimage.rendering.CardTextureFormat;
+import periodictable.augmentedimage.rendering.CardThumbnails;
+import periodictable.augmentedimage.rendering.CardTilePack;
+import periodictable.augmentedimage.rendering.CardVideoPlayers;
+import periodictable.augmentedimage.rendering.CardVideoRenderer;
+import periodictable.augmentedimage.rendering.CardVirtualTextures;
+import periodictable.augmentedimage.rendering.ElementData;
+import periodictable.augmentedimage.rendering.ElementIndex;
+import periodictable.augmentedimage.rendering.PeriodicTableGrid;
 import periodictable.common.helpers.CameraPermissionHelper;
 import periodictable.common.helpers.DisplayRotationHelper;
 import periodictable.common.helpers.FullScreenHelper;
 import periodictable.common.helpers.SnackbarHelper;
 import periodictable.common.helpers.TrackingStateHelper;
 import periodictable.common.rendering.BackgroundRenderer;
+import periodictable.common.rendering.GlWorkScheduler;
+import periodictable.common.rendering.SdfFont;
+import periodictable.common.rendering.SdfTextRenderer;
+import periodictable.common.rendering.SharedEglContextFactory;
+import periodictable.common.rendering.TextureResidencyManager;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
 import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -81,6 +111,33 @@ import javax.microedition.khronos.opengles.GL10;
  */
 public class AugmentedImageActivity extends AppCompatActivity implements GLSurfaceView.Renderer {
   private static final String TAG = AugmentedImageActivity.class.getSimpleName();
+
+  // Stored uncompressed in the APK (see noCompress in build.gradle), so it can be memory-mapped.
+  private static final String IMAGE_DATABASE_PATH =
+      "NewCellDatabase/Photoshopped/NewCellDatabase.imgdb";
+  // Shards of the image database by table block, built by ImageDatabaseSharder if at all.
+  private static final String IMAGE_SHARD_DIRECTORY = "image_shards";
+  private static final String WHOLE_DATABASE_NAME = "all";
+  // The image database built on this device, with physical widths, kept across launches.
+  private static final String BUILT_IMAGE_DATABASE_DIRECTORY = "image_database";
+  // Databases built on the device are only read by the ARCore version that serialized them.
+  private static final String ARCORE_PACKAGE = "com.google.ar.core";
+  // Width of a printed cell, in meters. An image list line may give its own as a third field.
+  private static final float PRINTED_CELL_WIDTH_METERS = 0.06f;
+
+  // GPU memory for card textures and atlas pages. The cards in view are kept regardless.
+  private static final long CARD_TEXTURE_BUDGET_BYTES = 64L * 1024 * 1024;
+  // Cards decoded on this device, kept across launches in the cache directory.
+  private static final String CARD_TEXTURE_CACHE_DIRECTORY = "card_textures";
+  private static final long CARD_TEXTURE_CACHE_BYTES = 128L * 1024 * 1024;
+  // Time per frame for texture uploads, well within a 30 fps camera frame.
+  private static final long GL_WORK_BUDGET_NANOS = 4_000_000L;
+  // Tile cache of the high-resolution cards: 256 tiles in 8 MB of RGB 565.
+  private static final int CARD_TILE_CACHE_SIZE = 2048;
+  // Card clips decoding at once, each holding a hardware decoder.
+  private static final int MAX_ACTIVE_CARD_VIDEOS = 2;
+  // Detection measurements of all sessions, in the files directory; see DetectionTelemetry.
+  private static final String DETECTION_TELEMETRY_FILE = "detection_telemetry.bin";
   // Rendering. The Renderers are created here, and initialized when the GL surface is created.
   private GLSurfaceView surfaceView;
   private ImageView fitToScanView;
@@ -97,8 +154,74 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
 
   private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
   private final AugmentedImageRenderer augmentedImageRenderer = new AugmentedImageRenderer();
+  private final CardVideoRenderer cardVideoRenderer = new CardVideoRenderer();
+  // Plays the clips of the cards in view that have one, while they show their picture.
+  private CardVideoPlayers cardVideoPlayers;
+  // Decodes card content in the background, for the lifetime of the activity.
+  private CardContentPack cardContentPack;
+  private CardTextureDiskCache cardTextureDiskCache;
+  private CardBitmapLoader cardBitmapLoader;
+  // Created with the GL surface, since its texture ids belong to the surface's EGL context.
+  private CardTextureCache cardTextureCache;
+  // Spreads texture uploads over frames. Recreated with the GL surface, dropping the uploads for
+  // the previous EGL context.
+  private GlWorkScheduler glWorkScheduler;
+  private final SharedEglContextFactory eglContextFactory = new SharedEglContextFactory();
+  private CardAtlas cardAtlas;
+  // Shown while a card's full-resolution texture loads, or null if they are not packed.
+  private CardThumbnails cardThumbnails;
+  // The images of the whole database by index, or null if the index could not be read.
+  private ElementIndex elementIndex;
+  // Whole-database index of the images of the configured database by their own index, or -1 if
+  // not resolved yet. Shards and databases built on the device number their images differently.
+  // Used on the GL thread only.
+  private int[] imageIndexByDatabaseIndex = new int[0];
+  // The image each entry of imageIndexByDatabaseIndex was resolved for. Used on the GL thread only.
+  private AugmentedImage[] resolvedImageByDatabaseIndex = new AugmentedImage[0];
+  // Where each image is on the periodic table, or null without an element index.
+  private PeriodicTableGrid periodicTableGrid;
+  // Loads the cards next to newly detected ones, or null without a periodic table grid.
+  private CardPrefetcher cardPrefetcher;
+  // Time to track of each element, or null without an element index.
+  private DetectionTelemetry detectionTelemetry;
+  // High-resolution card tiles, or null if none are packed.
+  private CardTilePack cardTilePack;
+  // Streams the tiles of cards seen up close. Created with the GL surface, or null without tiles.
+  private CardVirtualTextures cardVirtualTextures;
+  // Per-frame camera matrices and light estimate, reused so that drawing a frame does not
+  // allocate. Used on the GL thread only.
+  private final float[] projmtx = new float[16];
+  private final float[] viewmtx = new float[16];
+  private final float[] colorCorrectionRgba = new float[4];
+  // Center pose of the card being drawn.
+  private final float[] cardPose = new float[16];
+  private final float[] visibleTexCoords = new float[4];
+  private final float[] virtualTextureParameters = new float[4];
+  // Scratch for the tap hit test, which runs on the GL thread too.
+  private final float[] tapViewProjectionMatrix = new float[16];
+  private final float[] tapCardCenter = new float[4];
+  private final float[] tapClipCenter = new float[4];
+  // Element facts and the font to draw info cards with, or null if either is not available.
+  private ElementData elementData;
+  private SdfFont cardFont;
+  private final SdfTextRenderer sdfTextRenderer = new SdfTextRenderer();
+  // Lays out the text of info cards. Created with the GL surface, or null without data or font.
+  private CardTextLayouts cardTextLayouts;
+  // Evicts the card textures that have not been drawn for the longest time.
+  private final TextureResidencyManager textureResidencyManager =
+      new TextureResidencyManager(CARD_TEXTURE_BUDGET_BYTES);
 
   private boolean shouldConfigureSession = false;
+  // Deserializes the image database in the background, or null when using a single image.
+  private ImageDatabaseLoader imageDatabaseLoader;
+  // Whether the loading message is shown, having left the start page before the database loaded.
+  private boolean showingLoadingMessage;
+  // Whether an image was detected since the process started. Only used on the GL thread.
+  private boolean firstDetectionLogged;
+  // Picks the database shard to detect with, or null until the shards are loaded. Set on the UI
+  // thread and used on the GL thread.
+  private volatile ImageDatabaseShardPolicy imageDatabaseShardPolicy;
+  private final ImageDatabaseStats imageDatabaseStats = new ImageDatabaseStats();
 
   int viewWidth = 0;
   int viewHeight = 0;
@@ -106,11 +229,26 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
   // Augmented image configuration and rendering.
   // Load a single image (true) or a pre-generated image database (false).
   private final boolean useSingleImage = false;
+  // Builds the image database on the device from the shipped images, given their printed width.
+  private final boolean useBuiltImageDatabase = true;
+  // Show cards from the atlas pages packed at build time while their own textures load (true), or
+  // only their thumbnails (false).
+  private final boolean useCardAtlas = true;
+  // Draw info cards as text from the element data over the template (true) or from their
+  // pre-rendered images (false). Their images are only packed into builds that draw them, see
+  // preRenderedCardInfo in build.gradle.
+  private final boolean useGeneratedCardInfo = BuildConfig.GENERATED_CARD_INFO;
   // Augmented image and its associated center pose anchor, keyed by index of the augmented image in
   // the
-  // database.
-  private final Map<Integer, Pair<AugmentedImage, Anchor>> augmentedImageMap = new HashMap<>();
-  private Map<Integer, String> augmentedImageTextures = new HashMap<>();
+  // database. A SparseArray, so that drawing the cards looks them up and iterates over them without
+  // allocating.
+  private final SparseArray<Pair<AugmentedImage, Anchor>> augmentedImageMap = new SparseArray<>();
+  // Content shown on each card. Toggled from the UI thread, read on the GL thread.
+  private final Map<Integer, CardContent> augmentedImageTextures = new ConcurrentHashMap<>();
+  // When each card was last tapped, used to decode the content the user asked for first.
+  private final Map<Integer, Long> cardTapTimes = new ConcurrentHashMap<>();
+  // Posted for every fully tracked image update, so created once.
+  private final Runnable hideFitToScanView = () -> fitToScanView.setVisibility(View.GONE);
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -118,16 +256,102 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
     setContentView(R.layout.activity_main);
     surfaceView = findViewById(R.id.surfaceview);
     displayRotationHelper = new DisplayRotationHelper(/*context=*/ this);
+    try {
+      cardContentPack = CardContentPack.open(getAssets());
+    } catch (IOException e) {
+      Log.e(TAG, "Card content pack not available, cards will show the template", e);
+    }
+    cardTextureDiskCache =
+        new CardTextureDiskCache(
+            new File(getCacheDir(), CARD_TEXTURE_CACHE_DIRECTORY), CARD_TEXTURE_CACHE_BYTES);
+    cardBitmapLoader =
+        new CardBitmapLoader(getAssets(), cardContentPack, cardTextureDiskCache);
+    try {
+      elementIndex = ElementIndex.load(getAssets());
+      periodicTableGrid = new PeriodicTableGrid(elementIndex);
+      imageIndexByDatabaseIndex = new int[elementIndex.getImageCount()];
+      Arrays.fill(imageIndexByDatabaseIndex, -1);
+      resolvedImageByDatabaseIndex = new AugmentedImage[elementIndex.getImageCount()];
+      detectionTelemetry =
+          new DetectionTelemetry(new File(getFilesDir(), DETECTION_TELEMETRY_FILE), elementIndex);
+    } catch (IOException e) {
+      Log.w(TAG, "Element index not available, cards will not be prefetched", e);
+    }
+    cardVideoPlayers = new CardVideoPlayers(getAssets(), elementIndex, MAX_ACTIVE_CARD_VIDEOS);
+    if (!useSingleImage) {
+      ImageDatabaseBuilder imageDatabaseBuilder = null;
+      if (useBuiltImageDatabase) {
+        try {
+          imageDatabaseBuilder =
+              ImageDatabaseBuilder.fromImageList(
+                  getAssets(), ElementIndex.IMAGE_LIST_PATH, PRINTED_CELL_WIDTH_METERS);
+        } catch (IOException e) {
+          Log.e(TAG, "Image list not available, using the shipped image database", e);
+        }
+      }
+      imageDatabaseLoader =
+          new ImageDatabaseLoader(
+              getAssets(),
+              IMAGE_DATABASE_PATH,
+              IMAGE_SHARD_DIRECTORY,
+              imageDatabaseBuilder,
+              getArCoreVersion(),
+              new File(getFilesDir(), BUILT_IMAGE_DATABASE_DIRECTORY),
+              new ImageDatabaseLoader.Listener() {
+                @Override
+                public void onImageDatabaseLoaded(AugmentedImageDatabase database) {
+                  onImageDatabaseReady(database);
+                }
+
+                @Override
+                public void onImageDatabaseFailed(IOException e) {
+                  Log.e(TAG, "IO exception loading augmented image database.", e);
+                  findViewById(R.id.image_database_loading).setVisibility(View.GONE);
+                  messageSnackbarHelper.showError(
+                      AugmentedImageActivity.this, "Could not setup augmented image database");
+                }
+
+                @Override
+                public void onImageDatabaseShardsLoaded(Map<String, String> homeShards) {
+                  // Cards are kept by their index in the whole database, found by name.
+                  if (elementIndex != null) {
+                    imageDatabaseShardPolicy = new ImageDatabaseShardPolicy(homeShards);
+                  }
+                }
+              });
+    } else {
+      findViewById(R.id.image_database_loading).setVisibility(View.GONE);
+    }
+    // Only packed when the build has high-resolution card art.
+    try {
+      cardTilePack = CardTilePack.open(getAssets());
+      if (!cardTilePack.hasPyramids()) {
+        cardTilePack = null;
+      }
+    } catch (IOException e) {
+      cardTilePack = null;
+    }
+    if (cardTilePack == null) {
+      Log.i(TAG, "No card tile pyramids, cards are drawn at their regular resolution");
+    }
+    if (useGeneratedCardInfo) {
+      try {
+        elementData = ElementData.load(getAssets());
+        cardFont = SdfFont.load(getAssets(), CardTextLayouts.FONT_PATH);
+      } catch (IOException e) {
+        elementData = null;
+        Log.w(TAG, "Element data or card font not available, info cards show the template", e);
+      }
+    }
 
     // Set up tap listener.
     mGestureDetector = new GestureDetector(this, new GestureDetector.SimpleOnGestureListener() {
       @Override
       public boolean onSingleTapUp(MotionEvent e) {
-        try {
-          onSingleTap(e);
-        } catch (CameraNotAvailableException | IOException exception) {
-          exception.printStackTrace();
-        }
+        // Hit tested on the GL thread, against the cards and camera of the last frame drawn.
+        float x = e.getX();
+        float y = e.getY();
+        surfaceView.queueEvent(() -> onSingleTap(x, y));
         return true;
       }
 
@@ -147,6 +371,8 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
     // Set up renderer.
     surfaceView.setPreserveEGLContextOnPause(true);
     surfaceView.setEGLContextClientVersion(2);
+    // Also starts a thread that uploads card textures on a context shared with the renderer.
+    surfaceView.setEGLContextFactory(eglContextFactory);
     surfaceView.setEGLConfigChooser(8, 8, 8, 8, 16, 0); // Alpha used for plane blending.
     surfaceView.setRenderer(this);
     surfaceView.setRenderMode(GLSurfaceView.RENDERMODE_CONTINUOUSLY);
@@ -165,74 +391,52 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
     button.setOnClickListener(new View.OnClickListener() {
       public void onClick(View v) {
         findViewById(R.id.start_page).setVisibility(View.GONE);
+        // Still loading: say so, as the camera shows but nothing can be detected yet.
+        if (imageDatabaseLoader != null && imageDatabaseLoader.getDatabase() == null) {
+          messageSnackbarHelper.showMessage(
+              AugmentedImageActivity.this, "Loading element cards...");
+          showingLoadingMessage = true;
+        }
       }
     });
   }
 
-  private void onSingleTap(MotionEvent e) throws CameraNotAvailableException, IOException {
-    boolean isHit = false;
-    Camera camera = null;
-
-    // Get current session and frame
-    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-    if (session == null) {
-      return;
-    }
-    displayRotationHelper.updateSessionIfNeeded(session);
-    try {
-      session.setCameraTextureName(backgroundRenderer.getTextureId());
-      camera = frame.getCamera();
-    }
-    catch (Throwable t) {
-      // Avoid crashing the application due to unhandled exceptions.
-      Log.e(TAG, "Exception on tap event", t);
-    }
-
-    for (Map.Entry<Integer, Pair<AugmentedImage, Anchor>> augImageEntry : augmentedImageMap.entrySet()){
-      AugmentedImage augImage = (AugmentedImage) augImageEntry.getValue().first;
+  /** Flips the card under the tap, if any. Must be called on the GL thread. */
+  private void onSingleTap(float x, float y) {
+    Matrix.multiplyMM(tapViewProjectionMatrix, 0, projmtx, 0, viewmtx, 0);
+    for (int i = 0; i < augmentedImageMap.size(); i++) {
+      int imageIndex = augmentedImageMap.keyAt(i);
+      AugmentedImage augImage = augmentedImageMap.valueAt(i).first;
       Pose center = augImage.getCenterPose();
-
-      float[] mAnchorMatrix = new float[100];
-      float[] centerVertexOf3dObject = {0f, 0f, 0f, 1};
-      float[] vertexResult = new float[4];
-      float[] projmtx = new float[16];
-      float[] viewmtx = new float[16];
-      final float[] colorCorrectionRgba = new float[4];
-
-      // Get projection matrix.
-      camera.getProjectionMatrix(projmtx, 0, 0.1f, 100.0f);
-      // Get camera matrix and draw
-      camera.getViewMatrix(viewmtx, 0);
-      // Compute lighting from average intensity of the image.
-      frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
-
-      center.toMatrix(mAnchorMatrix, 0);
-      augmentedImageRenderer.cardObject.updateModelMatrix(mAnchorMatrix, 1);
-      augmentedImageRenderer.cardObject.draw(viewmtx, projmtx, colorCorrectionRgba);
-
-      Matrix.multiplyMV(vertexResult, 0,
-              augmentedImageRenderer.cardObject.getModelViewProjectionMatrix(), 0,
-              centerVertexOf3dObject, 0);
+      tapCardCenter[0] = center.tx();
+      tapCardCenter[1] = center.ty();
+      tapCardCenter[2] = center.tz();
+      tapCardCenter[3] = 1f;
+      Matrix.multiplyMV(tapClipCenter, 0, tapViewProjectionMatrix, 0, tapCardCenter, 0);
+      if (tapClipCenter[3] <= 0f) {
+        // Behind the camera.
+        continue;
+      }
 
       //Math to check tap hit on object
       float cardHitAreaRadius = augImage.getExtentX();
-      float radius = (viewWidth / 2) * (cardHitAreaRadius / vertexResult[3]);
-      float dx = e.getX() - (viewWidth / 2) * (1 + vertexResult[0] / vertexResult[3]);
-      float dy = e.getY() - (viewHeight / 2) * (1 - vertexResult[1] / vertexResult[3]);
+      float radius = (viewWidth / 2) * (cardHitAreaRadius / tapClipCenter[3]);
+      float dx = x - (viewWidth / 2) * (1 + tapClipCenter[0] / tapClipCenter[3]);
+      float dy = y - (viewHeight / 2) * (1 - tapClipCenter[1] / tapClipCenter[3]);
       double distance = Math.sqrt(dx * dx + dy * dy);
-      isHit = distance < radius;
-
-      if (isHit) {
+      if (distance < radius) {
         Log.i(TAG, "Tap hit on " + augImage.getName());
-        change_texture(augImage, augmentedImageTextures.get(augImage.getIndex()));
+        change_texture(augImage, imageIndex, augmentedImageTextures.get(imageIndex));
       }
     }
-
-    //messageSnackbarHelper.showMessage(this, "hit?" + isHit);
   }
 
   @Override
   protected void onDestroy() {
+    if (imageDatabaseLoader != null) {
+      // Before the session is closed, as a load in progress uses it.
+      imageDatabaseLoader.shutdown();
+    }
     if (session != null) {
       // Explicitly close ARCore Session to release native resources.
       // Review the API reference for important considerations before calling close() in apps with
@@ -241,6 +445,17 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
       session.close();
       session = null;
     }
+    cardBitmapLoader.shutdown();
+    if (cardAtlas != null) {
+      cardAtlas.shutdown();
+    }
+    if (cardVirtualTextures != null) {
+      cardVirtualTextures.shutdown();
+    }
+    cardVideoPlayers.shutdown();
+    if (detectionTelemetry != null) {
+      detectionTelemetry.shutdown();
+    }
 
     super.onDestroy();
   }
@@ -293,6 +508,10 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
       shouldConfigureSession = true;
     }
 
+    // Loads in the background while the start page shows, then configures the session again.
+    if (imageDatabaseLoader != null) {
+      imageDatabaseLoader.load(session);
+    }
     if (shouldConfigureSession) {
       configureSession();
       shouldConfigureSession = false;
@@ -323,6 +542,10 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
       surfaceView.onPause();
       session.pause();
     }
+    cardVideoPlayers.pauseAll();
+    if (detectionTelemetry != null) {
+      detectionTelemetry.flush();
+    }
   }
 
   @Override
@@ -346,18 +569,98 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
     FullScreenHelper.setFullScreenOnWindowFocusChanged(this, hasFocus);
   }
 
+  @Override
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    // Applied on the GL thread at the end of the next frame.
+    textureResidencyManager.onTrimMemory(level);
+    cardBitmapLoader.getBitmapPool().clear();
+  }
+
   @Override
   public void onSurfaceCreated(GL10 gl, EGLConfig config) {
     GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
+    glWorkScheduler =
+        new GlWorkScheduler(GL_WORK_BUDGET_NANOS, eglContextFactory.getUploadThread());
+    Log.i(
+        TAG,
+        eglContextFactory.getUploadThread() == null
+            ? "Uploading card textures on the render thread"
+            : "Uploading card textures on a shared context");
 
     // Prepare the rendering objects. This involves reading shaders, so may throw an IOException.
     try {
       // Create the texture and pass it to ARCore session to be filled during update().
       backgroundRenderer.createOnGlThread(/*context=*/ this);
-      augmentedImageRenderer.createOnGlThread(/*context=*/ this, "models/textures/template.png");
+      augmentedImageRenderer.createOnGlThread(/*context=*/ this, cardTilePack != null);
+      cardVideoRenderer.createOnGlThread(/*context=*/ this);
+      // The clips' textures went away with the previous EGL context.
+      cardVideoPlayers.onSurfaceCreated();
+      if (elementData != null && elementIndex != null) {
+        sdfTextRenderer.createOnGlThread(/*context=*/ this, cardFont);
+        cardTextLayouts = new CardTextLayouts(elementData, elementIndex, sdfTextRenderer);
+      }
+      // Textures of the previous surface went away with its EGL context.
+      textureResidencyManager.reset();
+      cardTextureCache =
+          new CardTextureCache(
+              cardContentPack, cardBitmapLoader, textureResidencyManager, glWorkScheduler);
     } catch (IOException e) {
       Log.e(TAG, "Failed to read an asset file", e);
     }
+
+    // Read card textures in the best compressed format this GPU supports.
+    CardTextureFormat textureFormat = CardTextureFormat.selectOnGlThread();
+    Log.i(TAG, "Card texture format: " + (textureFormat == null ? "uncompressed" : textureFormat));
+    cardBitmapLoader.setTextureFormat(textureFormat);
+
+    // Both are looked up by image index, so they need the element index.
+    cardThumbnails = null;
+    if (elementIndex != null) {
+      try {
+        cardThumbnails =
+            CardThumbnails.loadOnGlThread(
+                getAssets(), textureFormat, cardTextureDiskCache, elementIndex);
+      } catch (IOException e) {
+        Log.w(TAG, "Card thumbnails not available, showing the template while cards load", e);
+      }
+    }
+
+    if (cardAtlas != null) {
+      cardAtlas.shutdown();
+      cardAtlas = null;
+    }
+    if (useCardAtlas && elementIndex != null) {
+      try {
+        cardAtlas =
+            CardAtlas.load(
+                getAssets(),
+                textureResidencyManager,
+                glWorkScheduler,
+                cardTextureDiskCache,
+                elementIndex);
+      } catch (IOException e) {
+        Log.w(TAG, "Card atlas not available, showing thumbnails while cards load", e);
+      }
+    }
+    cardPrefetcher =
+        periodicTableGrid == null
+            ? null
+            : new CardPrefetcher(
+                periodicTableGrid, elementIndex, cardTextureCache, cardAtlas, cardTextLayouts);
+
+    if (cardVirtualTextures != null) {
+      cardVirtualTextures.shutdown();
+    }
+    cardVirtualTextures =
+        cardTilePack == null
+            ? null
+            : new CardVirtualTextures(
+                cardTilePack,
+                cardContentPack,
+                textureResidencyManager,
+                glWorkScheduler,
+                CARD_TILE_CACHE_SIZE);
   }
 
   @Override
@@ -386,7 +689,9 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
       // Obtain the current frame from ARSession. When the configuration is set to
       // UpdateMode.BLOCKING (it is by default), this will throttle the rendering to the
       // camera framerate.
+      long updateStartNanos = SystemClock.elapsedRealtimeNanos();
       frame = session.update();
+      imageDatabaseStats.onFrame(SystemClock.elapsedRealtimeNanos() - updateStartNanos);
       Camera camera = frame.getCamera();
 
       // Keep the screen unlocked while tracking, but allow it to lock when tracking stops.
@@ -396,15 +701,12 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
       backgroundRenderer.draw(frame);
 
       // Get projection matrix.
-      float[] projmtx = new float[16];
       camera.getProjectionMatrix(projmtx, 0, 0.1f, 100.0f);
 
       // Get camera matrix and draw.
-      float[] viewmtx = new float[16];
       camera.getViewMatrix(viewmtx, 0);
 
       // Compute lighting from average intensity of the image.
-      final float[] colorCorrectionRgba = new float[4];
       frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
 
       // Visualize augmented images.
@@ -422,6 +724,95 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
       messageSnackbarHelper.showError(this, "Could not setup augmented image database");
     }
     session.configure(config);
+    AugmentedImageDatabase database = config.getAugmentedImageDatabase();
+    if (database != null) {
+      String shard = getActiveImageShard();
+      imageDatabaseStats.onConfigured(
+          shard == null ? WHOLE_DATABASE_NAME : shard, database.getNumImages());
+    }
+  }
+
+  /** Returns the version of the installed ARCore, or "unknown" if it is not installed yet. */
+  private String getArCoreVersion() {
+    try {
+      PackageInfo info = getPackageManager().getPackageInfo(ARCORE_PACKAGE, 0);
+      return info.versionName + "/" + PackageInfoCompat.getLongVersionCode(info);
+    } catch (PackageManager.NameNotFoundException e) {
+      return "unknown";
+    }
+  }
+
+  /** Returns the database shard the session detects with, or null for the whole database. */
+  private String getActiveImageShard() {
+    ImageDatabaseShardPolicy policy = imageDatabaseShardPolicy;
+    String shard = policy == null ? null : policy.getActiveShard();
+    return shard != null && imageDatabaseLoader.getShard(shard) != null ? shard : null;
+  }
+
+  /**
+   * Swaps the session to the shard the policy picked, from the GL thread. Cards already found stay
+   * until their image in the previous database stops tracking, and are then found again.
+   */
+  private void onImageShardChanged() {
+    runOnUiThread(
+        () -> {
+          if (session != null) {
+            Log.i(TAG, "Detecting with image database " + getActiveImageShard());
+            configureSession();
+          }
+        });
+  }
+
+  /**
+   * Returns the index of an image in the whole database. Images of a shard have their own indices,
+   * so they are found by name the first time they are updated. From then on the image the index
+   * was resolved for confirms it without asking ARCore for the name, which allocates. Only while
+   * images of the previous database still track after a shard change, two images may share a
+   * database index and are found by name again.
+   */
+  private int imageIndexOf(AugmentedImage augmentedImage) {
+    int databaseIndex = augmentedImage.getIndex();
+    if (databaseIndex < 0 || databaseIndex >= imageIndexByDatabaseIndex.length) {
+      return databaseIndex;
+    }
+    // The session may have moved to another database since the index was resolved.
+    if (augmentedImage.equals(resolvedImageByDatabaseIndex[databaseIndex])) {
+      return imageIndexByDatabaseIndex[databaseIndex];
+    }
+    int imageIndex = elementIndex.getImageIndex(augmentedImage.getName());
+    if (imageIndex < 0) {
+      imageIndex = databaseIndex;
+    }
+    imageIndexByDatabaseIndex[databaseIndex] = imageIndex;
+    resolvedImageByDatabaseIndex[databaseIndex] = augmentedImage;
+    return imageIndex;
+  }
+
+  /** Returns the name of an image by its index in the whole database. */
+  private String imageNameOf(int imageIndex, AugmentedImage augmentedImage) {
+    return elementIndex == null ? augmentedImage.getName() : elementIndex.getImageName(imageIndex);
+  }
+
+  /** Returns the asset path of a card's content by the image's index in the whole database. */
+  private String assetPathOf(int imageIndex, CardContent content, AugmentedImage augmentedImage) {
+    return elementIndex == null
+        ? content.getAssetPath(augmentedImage.getName())
+        : elementIndex.getAssetPath(imageIndex, content);
+  }
+
+  /** Drops the card of an image that is no longer tracked, unless another image replaced it. */
+  private void removeCard(int imageIndex, AugmentedImage augmentedImage) {
+    Pair<AugmentedImage, Anchor> card = augmentedImageMap.get(imageIndex);
+    if (card == null || !card.first.equals(augmentedImage)) {
+      return;
+    }
+    augmentedImageMap.remove(imageIndex);
+    augmentedImageTextures.remove(imageIndex);
+    cardTextureCache.cancelPending(imageIndex);
+    if (cardVirtualTextures != null) {
+      cardVirtualTextures.release(imageIndex);
+    }
+    cardVideoPlayers.release(imageIndex);
   }
 
   private void drawAugmentedImages(
@@ -429,8 +820,33 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
     Collection<AugmentedImage> updatedAugmentedImages =
         frame.getUpdatedTrackables(AugmentedImage.class);
 
+    // Decode cards at the size they are shown. The projection's y scale times half the view height
+    // is the focal length in pixels.
+    cardBitmapLoader.setPixelsPerScreenSize(projmtx[5] * viewHeight / 2f);
+
+    // Upload the card content decoded in the background since the last frame.
+    cardTextureCache.uploadPendingOnGlThread();
+    if (cardAtlas != null) {
+      cardAtlas.uploadPendingOnGlThread();
+    }
+    if (cardVirtualTextures != null) {
+      cardVirtualTextures.uploadPendingOnGlThread();
+    }
+    // Do as much of the upload work as fits this frame, before the cards are drawn.
+    glWorkScheduler.runPendingOnGlThread();
+
     // Iterate to update augmentedImageMap, remove elements we cannot draw.
+    ImageDatabaseShardPolicy shardPolicy = imageDatabaseShardPolicy;
+    long nowMillis = SystemClock.elapsedRealtime();
     for (AugmentedImage augmentedImage : updatedAugmentedImages) {
+      int imageIndex = imageIndexOf(augmentedImage);
+      if (detectionTelemetry != null) {
+        detectionTelemetry.onUpdate(
+            imageIndex,
+            augmentedImage.getTrackingState(),
+            augmentedImage.getTrackingMethod(),
+            nowMillis);
+      }
       switch (augmentedImage.getTrackingState()) {
         case PAUSED:
           // When an image is in PAUSED state, but the camera is not PAUSED, it has been detected,
@@ -444,32 +860,48 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
             // messageSnackbarHelper.showMessage(this, "Full tracking");
 
             // Have to switch to UI Thread to update View.
-            this.runOnUiThread(
-                    new Runnable() {
-                      @Override
-                      public void run() {
-                        fitToScanView.setVisibility(View.GONE);
-                      }
-                    });
-
-            // Create a new anchor for newly found images.
-            if (!augmentedImageMap.containsKey(augmentedImage.getIndex())) {
-              Anchor centerPoseAnchor = augmentedImage.createAnchor(augmentedImage.getCenterPose());
+            this.runOnUiThread(hideFitToScanView);
+
+            // Create a new anchor for newly found images, and for cards found again in another
+            // shard of the image database, whose content is kept.
+            Pair<AugmentedImage, Anchor> card = augmentedImageMap.get(imageIndex);
+            if (card != null && !card.first.equals(augmentedImage)) {
+              card.second.detach();
               augmentedImageMap.put(
-                      augmentedImage.getIndex(), Pair.create(augmentedImage, centerPoseAnchor));
-              augmentedImageTextures.put(augmentedImage.getIndex(), "info");
+                  imageIndex,
+                  Pair.create(
+                      augmentedImage, augmentedImage.createAnchor(augmentedImage.getCenterPose())));
+            } else if (card == null) {
+              imageDatabaseStats.onDetection();
+              if (shardPolicy != null
+                  && shardPolicy.onFullTracking(
+                      imageNameOf(imageIndex, augmentedImage), nowMillis)) {
+                onImageShardChanged();
+              }
+              if (!firstDetectionLogged) {
+                firstDetectionLogged = true;
+                Log.i(
+                    TAG,
+                    "First image detected "
+                        + (SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime())
+                        + " ms after process start");
+              }
+              Anchor centerPoseAnchor = augmentedImage.createAnchor(augmentedImage.getCenterPose());
+              augmentedImageMap.put(imageIndex, Pair.create(augmentedImage, centerPoseAnchor));
+              augmentedImageTextures.put(imageIndex, CardContent.INFO);
+              if (cardPrefetcher != null) {
+                cardPrefetcher.onFullTracking(imageIndex);
+              }
             }
           }
           else{
             // messageSnackbarHelper.showMessage(this, "Not full tracking");
-            augmentedImageMap.remove(augmentedImage.getIndex());
-            augmentedImageTextures.remove(augmentedImage.getIndex());
+            removeCard(imageIndex, augmentedImage);
           }
           break;
 
         case STOPPED:
-          augmentedImageMap.remove(augmentedImage.getIndex());
-          augmentedImageTextures.remove(augmentedImage.getIndex());
+          removeCard(imageIndex, augmentedImage);
           break;
 
         default:
@@ -478,76 +910,208 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
     }
 
     // Draw all images in augmentedImageMap
-    for (Pair<AugmentedImage, Anchor> pair : augmentedImageMap.values()) {
-      AugmentedImage augmentedImage = pair.first;
-      Anchor centerAnchor = augmentedImageMap.get(augmentedImage.getIndex()).second;
+    boolean anyFullTracking = false;
+    for (int i = 0; i < augmentedImageMap.size(); i++) {
+      int imageIndex = augmentedImageMap.keyAt(i);
+      Pair<AugmentedImage, Anchor> card = augmentedImageMap.valueAt(i);
+      AugmentedImage augmentedImage = card.first;
+      Anchor centerAnchor = card.second;
       switch (augmentedImage.getTrackingState()) {
         case TRACKING:
           if(augmentedImage.getTrackingMethod()==AugmentedImage.TrackingMethod.FULL_TRACKING) {
+            anyFullTracking = true;
+            // ARCore allocates a Pose every time it is asked for one, so the card's is read once.
+            centerAnchor.getPose().toMatrix(cardPose, 0);
+            float cardSize = Math.max(augmentedImage.getExtentX(), augmentedImage.getExtentZ());
             //String text = String.format("Detected Image: %s", augmentedImage.getName());
             //messageSnackbarHelper.showMessage(this, text);
 
-            try {
-              if (augmentedImageTextures.get(augmentedImage.getIndex()) == "info") {
-                Bitmap textureBitmap =
-                        BitmapFactory.decodeStream(this.getAssets().open(String.format("models/textures/element_info/%s", augmentedImage.getName())));
-                augmentedImageRenderer.cardObject.setTextureOnGLThread(textureBitmap);
-              }
-              else if (augmentedImageTextures.get(augmentedImage.getIndex()) == "picture"){
-                Bitmap textureBitmap =
-                        BitmapFactory.decodeStream(this.getAssets().open(String.format("models/textures/element_pictures/%s", augmentedImage.getName())));
-                augmentedImageRenderer.cardObject.setTextureOnGLThread(textureBitmap);
-              }
-              else {
-                Bitmap textureBitmap =
-                        BitmapFactory.decodeStream(this.getAssets().open("models/textures/template.png"));
-                augmentedImageRenderer.cardObject.setTextureOnGLThread(textureBitmap);
-              }
+            CardContent content = augmentedImageTextures.get(imageIndex);
+            if (content == null) {
+              content = CardContent.TEMPLATE;
             }
-            catch (IOException e) {
-              Bitmap textureBitmap =
-                      BitmapFactory.decodeStream(this.getAssets().open("models/textures/template.png"));
-              augmentedImageRenderer.cardObject.setTextureOnGLThread(textureBitmap);
+            boolean hasVideo =
+                content == CardContent.PICTURE && cardVideoPlayers.hasVideo(imageIndex);
+            // Info cards with element data are drawn as text over the template.
+            SdfTextRenderer.TextRun infoText =
+                content == CardContent.INFO && cardTextLayouts != null
+                    ? cardTextLayouts.getRun(imageIndex)
+                    : null;
+            boolean hasVirtualTexture =
+                infoText == null
+                    && cardVirtualTextures != null
+                    && cardVirtualTextures.hasVirtualTexture(imageIndex, content);
+            float pixelsAcross =
+                hasVideo || hasVirtualTexture
+                    ? augmentedImageRenderer.findVisibleRegion(
+                        viewmtx,
+                        projmtx,
+                        viewHeight,
+                        cardPose,
+                        cardSize,
+                        visibleTexCoords)
+                    : 0f;
+
+            // Play the card's clip only while the card is in view; it is paused otherwise. The
+            // clip is drawn first, in front of the card, which is then hidden behind it.
+            CardVideoPlayers.Video video =
+                hasVideo && pixelsAcross > 0f ? cardVideoPlayers.update(imageIndex) : null;
+            if (video != null) {
+              cardVideoRenderer.draw(viewmtx, projmtx, cardPose, cardSize, video);
+            }
+
+            if (infoText != null) {
+              augmentedImageRenderer.draw(
+                  viewmtx,
+                  projmtx,
+                  cardPose,
+                  cardSize,
+                  imageIndex,
+                  colorCorrectionRgba,
+                  cardTextureCache.getTemplateTexture());
+              augmentedImageRenderer.drawText(
+                  viewmtx,
+                  projmtx,
+                  cardPose,
+                  cardSize,
+                  colorCorrectionRgba,
+                  sdfTextRenderer,
+                  infoText);
+              break;
             }
 
+            // Seen up close, draw the card from its high-resolution tiles once they are loaded.
+            if (hasVirtualTexture) {
+              int pageTable =
+                  pixelsAcross == 0f
+                      ? 0
+                      : cardVirtualTextures.update(
+                          imageIndex,
+                          content,
+                          visibleTexCoords,
+                          pixelsAcross,
+                          virtualTextureParameters);
+              if (pageTable != 0) {
+                augmentedImageRenderer.drawVirtual(
+                    viewmtx,
+                    projmtx,
+                    cardPose,
+                    cardSize,
+                    imageIndex,
+                    colorCorrectionRgba,
+                    cardVirtualTextures.getCacheTexture(),
+                    pageTable,
+                    virtualTextureParameters);
+                break;
+              }
+            }
+            Long tapTime = cardTapTimes.get(imageIndex);
+            boolean cached = cardTextureCache.isCached(imageIndex, content);
+            int textureId =
+                cardTextureCache.getTexture(
+                    imageIndex,
+                    imageNameOf(imageIndex, augmentedImage),
+                    content,
+                    tapTime == null ? 0 : tapTime,
+                    estimateScreenSize(cardPose, cardSize, viewmtx));
+
+            // Until the full-resolution texture is uploaded, show the card from its atlas page if
+            // that was prefetched, or else its thumbnail.
+            CardAtlas.Region region =
+                cached || cardAtlas == null ? null : cardAtlas.getRegion(imageIndex, content);
+            int pageTexture = region == null ? 0 : cardAtlas.getPageTexture(region.page);
+            if (pageTexture != 0) {
+              augmentedImageRenderer.draw(
+                  viewmtx,
+                  projmtx,
+                  cardPose,
+                  cardSize,
+                  imageIndex,
+                  colorCorrectionRgba,
+                  pageTexture,
+                  region.texCoordTransform);
+              break;
+            }
+            CardAtlas.Region thumbnail =
+                cached || cardThumbnails == null
+                    ? null
+                    : cardThumbnails.getRegion(imageIndex, content);
+            if (thumbnail != null) {
+              augmentedImageRenderer.draw(
+                  viewmtx,
+                  projmtx,
+                  cardPose,
+                  cardSize,
+                  imageIndex,
+                  colorCorrectionRgba,
+                  cardThumbnails.getTexture(),
+                  thumbnail.texCoordTransform);
+              break;
+            }
             augmentedImageRenderer.draw(
-                    viewmtx, projmtx, augmentedImage, centerAnchor, colorCorrectionRgba);
+                viewmtx,
+                projmtx,
+                cardPose,
+                cardSize,
+                imageIndex,
+                colorCorrectionRgba,
+                textureId);
           }
           break;
         default:
           break;
       }
     }
-  }
-
-  private boolean change_texture(AugmentedImage augmentedImage, String current_texture) throws IOException {
-    String texture;
-    String new_texture_name;
 
-    if (current_texture == "info") {
-      texture = String.format("models/textures/element_pictures/%s", augmentedImage.getName());
-      new_texture_name = "picture";
+    // Go back to the whole image database once the user has looked away from the table.
+    if (shardPolicy != null && shardPolicy.onFrame(anyFullTracking, nowMillis)) {
+      onImageShardChanged();
     }
-    else {
-      texture = String.format("models/textures/element_info/%s", augmentedImage.getName());
-      new_texture_name = "info";
+
+    // Start loading the neighbours of newly found cards, after the cards in view were requested.
+    if (cardPrefetcher != null) {
+      cardPrefetcher.prefetchPendingOnGlThread();
     }
 
-    try {
-      // Change the texture in realtime while drawing
-      Bitmap textureBitmap =
-              BitmapFactory.decodeStream(this.getAssets().open(texture));
-      augmentedImageRenderer.cardObject.setTextureOnGLThread(textureBitmap);
-      augmentedImageTextures.replace(augmentedImage.getIndex(), new_texture_name);
+    // Pause the clips of cards that are no longer in view.
+    cardVideoPlayers.endFrame();
+
+    // Evict the textures of cards that are no longer in view if over budget.
+    textureResidencyManager.endFrame();
+  }
+
+  /**
+   * Approximates the size of an image on screen by its largest extent over its distance. The
+   * distance is that of the card's center in view space, which needs no camera Pose.
+   */
+  private static float estimateScreenSize(float[] cardPose, float cardSize, float[] viewMatrix) {
+    float distanceSquared = 0f;
+    for (int k = 0; k < 3; k++) {
+      float viewCoordinate =
+          viewMatrix[k] * cardPose[12]
+              + viewMatrix[4 + k] * cardPose[13]
+              + viewMatrix[8 + k] * cardPose[14]
+              + viewMatrix[12 + k];
+      distanceSquared += viewCoordinate * viewCoordinate;
     }
-    catch (IOException e) {
-      Bitmap textureBitmap =
-              BitmapFactory.decodeStream(this.getAssets().open("models/textures/template.png"));
-      augmentedImageRenderer.cardObject.setTextureOnGLThread(textureBitmap);
-      augmentedImageTextures.replace(augmentedImage.getIndex(), "default");
+    float distance = (float) Math.sqrt(distanceSquared);
+    return distance > 0 ? cardSize / distance : Float.MAX_VALUE;
+  }
+
+  private boolean change_texture(
+      AugmentedImage augmentedImage, int imageIndex, CardContent current_texture) {
+    if (current_texture == null) {
+      return false;
     }
 
-    Log.i(TAG, "Texture changed to: " + texture);
+    // Only flip the content here. The GL thread picks up the texture for the new content from
+    // the cache, which decodes it in the background and keeps showing the previous content until
+    // it is ready. The tap time moves this card to the front of the decode queue.
+    CardContent new_texture = current_texture.toggle();
+    cardTapTimes.put(imageIndex, SystemClock.elapsedRealtimeNanos());
+    augmentedImageTextures.replace(imageIndex, new_texture);
+
+    Log.i(TAG, "Texture changed to: " + assetPathOf(imageIndex, new_texture, augmentedImage));
     return true;
   }
 
@@ -567,15 +1131,18 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
       }
 
       augmentedImageDatabase = new AugmentedImageDatabase(session);
-      augmentedImageDatabase.addImage("image_name", augmentedImageBitmap);
+      augmentedImageDatabase.addImage(
+          "image_name", augmentedImageBitmap, PRINTED_CELL_WIDTH_METERS);
     } else {
       // NewCellDatabase/Photoshopped/NewCellDatabase.imgdb
       // periodic_table_pictures/periodic_table_db.imgdb
-      try (InputStream is = getAssets().open("NewCellDatabase/Photoshopped/NewCellDatabase.imgdb")) {
-        augmentedImageDatabase = AugmentedImageDatabase.deserialize(session, is);
-      } catch (IOException e) {
-        Log.e(TAG, "IO exception loading augmented image database.", e);
-        return false;
+      // Deserialized in the background; until then the session runs without images, and is
+      // configured again once it is ready.
+      String shard = getActiveImageShard();
+      augmentedImageDatabase =
+          shard == null ? imageDatabaseLoader.getDatabase() : imageDatabaseLoader.getShard(shard);
+      if (augmentedImageDatabase == null) {
+        return true;
       }
     }
 
@@ -583,6 +1150,32 @@ public class AugmentedImageActivity extends AppCompatActivity implements GLSurfa
     return true;
   }
 
+  /** Hands the image database to the session once it is deserialized. */
+  private void onImageDatabaseReady(AugmentedImageDatabase database) {
+    Log.i(
+        TAG,
+        "Augmented image database ready "
+            + (SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime())
+            + " ms after process start");
+    // Card content is found by image index, so the pack must be built from this database.
+    if (cardContentPack != null && cardContentPack.getImageCount() != database.getNumImages()) {
+      Log.w(
+          TAG,
+          "Card content pack has "
+              + cardContentPack.getImageCount()
+              + " images but the database has "
+              + database.getNumImages());
+    }
+    findViewById(R.id.image_database_loading).setVisibility(View.GONE);
+    if (showingLoadingMessage) {
+      messageSnackbarHelper.hide(this);
+      showingLoadingMessage = false;
+    }
+    if (session != null) {
+      configureSession();
+    }
+  }
+
   private Bitmap loadAugmentedImageBitmap() {
     try (InputStream is = getAssets().open("default.jpg")) {
       return BitmapFactory.decodeStream(is);
@@ -0,0 +1,464 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage;
+
+import android.util.Log;
+import com.google.ar.core.AugmentedImage;
+import com.google.ar.core.TrackingState;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import periodictable.augmentedimage.rendering.ElementIndex;
+
+/**
+ * Measures how each element's card is detected, to tell which printed cells to redesign and how
+ * to shard the image database. For every image it counts sightings, detections, drops from full
+ * tracking to the last known pose, and stops, and keeps a histogram of the time to track: from
+ * the first update of an image, normally PAUSED, to its FULL_TRACKING.
+ *
+ * <p>Recording only updates preallocated arrays. {@link #flush()} appends what was recorded since
+ * the last flush to a compact append-only file, keyed by atomic number so the data outlives
+ * changes to the image list, and rewrites a text report with the p50 and p95 time to track of
+ * every element over all sessions, slowest first. The file is compacted once it grows large.
+ *
+ * <p>{@link #onUpdate} must be called on the OpenGL thread; other methods may be called on any
+ * thread. Files are written on a background thread.
+ */
+public class DetectionTelemetry {
+  private static final String TAG = DetectionTelemetry.class.getSimpleName();
+
+  private static final int RECORD_MAGIC = 0x44544c31; // "DTL1"
+  // Upper bounds of the time-to-track histogram buckets, in milliseconds. The last bucket holds
+  // everything slower.
+  private static final int[] BUCKET_BOUNDS_MILLIS = {
+    25, 50, 75, 100, 150, 200, 300, 400, 500, 750, 1000, 1500, 2000, 3000, 4000, 6000, 8000, 12000,
+    16000, 24000, 32000
+  };
+  private static final int BUCKET_COUNT = BUCKET_BOUNDS_MILLIS.length + 1;
+  // The appended records are merged into one once the file is larger than this.
+  private static final long COMPACT_BYTES = 256 * 1024;
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+  // Counters of each image, by kind.
+  private static final int SIGHTINGS = 0;
+  private static final int DETECTIONS = 1;
+  private static final int DROPS = 2;
+  private static final int STOPS = 3;
+  private static final int COUNTER_COUNT = 4;
+
+  // Where each image is in its current sighting.
+  private static final byte UNSEEN = 0;
+  private static final byte SIGHTED = 1;
+  private static final byte FULL_TRACKING = 2;
+  private static final byte LAST_KNOWN_POSE = 3;
+
+  private final File file;
+  private final File reportFile;
+  private final ElementIndex elementIndex;
+  private final ExecutorService executor =
+      Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, TAG));
+
+  // Used on the OpenGL thread only.
+  private final byte[] phases;
+  private final long[] sightingMillis;
+  // Recorded since the last flush, by image index. Guarded by this.
+  private final int[][] counters;
+  private final int[][] histograms;
+
+  /**
+   * @param file The append-only file the measurements of all sessions are kept in. The report is
+   *     written next to it, with a ".txt" extension.
+   */
+  public DetectionTelemetry(File file, ElementIndex elementIndex) {
+    this.file = file;
+    this.reportFile = new File(file.getPath() + ".txt");
+    this.elementIndex = elementIndex;
+    int imageCount = elementIndex.getImageCount();
+    phases = new byte[imageCount];
+    sightingMillis = new long[imageCount];
+    counters = new int[imageCount][COUNTER_COUNT];
+    histograms = new int[imageCount][BUCKET_COUNT];
+  }
+
+  /**
+   * Records the state of an image updated in a frame.
+   *
+   * @param imageIndex Index of the image in the whole database.
+   */
+  public void onUpdate(
+      int imageIndex,
+      TrackingState trackingState,
+      AugmentedImage.TrackingMethod trackingMethod,
+      long nowMillis) {
+    if (imageIndex < 0 || imageIndex >= phases.length) {
+      return;
+    }
+    byte phase = phases[imageIndex];
+    if (trackingState == TrackingState.STOPPED) {
+      if (phase != UNSEEN) {
+        phases[imageIndex] = UNSEEN;
+        count(imageIndex, STOPS, -1);
+      }
+      return;
+    }
+    if (phase == UNSEEN) {
+      phase = SIGHTED;
+      sightingMillis[imageIndex] = nowMillis;
+      count(imageIndex, SIGHTINGS, -1);
+    }
+    if (trackingState == TrackingState.TRACKING) {
+      if (trackingMethod == AugmentedImage.TrackingMethod.FULL_TRACKING) {
+        if (phase == SIGHTED) {
+          count(imageIndex, DETECTIONS, bucketOf(nowMillis - sightingMillis[imageIndex]));
+        }
+        phase = FULL_TRACKING;
+      } else if (trackingMethod == AugmentedImage.TrackingMethod.LAST_KNOWN_POSE
+          && phase == FULL_TRACKING) {
+        phase = LAST_KNOWN_POSE;
+        count(imageIndex, DROPS, -1);
+      }
+    }
+    phases[imageIndex] = phase;
+  }
+
+  /**
+   * Appends the measurements since the last flush to the file and rewrites the report, in the
+   * background. Call e.g. when the activity is paused.
+   */
+  public void flush() {
+    int[][] pendingCounters = new int[phases.length][];
+    int[][] pendingHistograms = new int[phases.length][];
+    boolean any = false;
+    synchronized (this) {
+      for (int i = 0; i < phases.length; i++) {
+        if (hasCounts(counters[i])) {
+          pendingCounters[i] = counters[i].clone();
+          pendingHistograms[i] = histograms[i].clone();
+          Arrays.fill(counters[i], 0);
+          Arrays.fill(histograms[i], 0);
+          any = true;
+        }
+      }
+    }
+    if (!any) {
+      return;
+    }
+    executor.execute(
+        () -> {
+          Totals pending = new Totals();
+          for (int i = 0; i < pendingCounters.length; i++) {
+            if (pendingCounters[i] != null) {
+              pending.add(
+                  elementIndex.getAtomicNumber(i), pendingCounters[i], pendingHistograms[i]);
+            }
+          }
+          try {
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+              throw new IOException("Cannot create " + directory);
+            }
+            Totals totals = read();
+            // Compacted before appending, so a record cut short is not followed by a new one.
+            if (totals.corrupt || file.length() > COMPACT_BYTES) {
+              compact(totals);
+            }
+            try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))) {
+              writeRecord(out, pending);
+            }
+            totals.addAll(pending);
+            writeReport(totals);
+          } catch (IOException e) {
+            Log.w(TAG, "Failed to save detection telemetry", e);
+          }
+        });
+  }
+
+  /** Flushes, and waits for the files to be written. */
+  public void shutdown() {
+    flush();
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        Log.w(TAG, "Detection telemetry still saving at shutdown");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private synchronized void count(int imageIndex, int counter, int bucket) {
+    counters[imageIndex][counter]++;
+    if (bucket >= 0) {
+      histograms[imageIndex][bucket]++;
+    }
+  }
+
+  private static boolean hasCounts(int[] counters) {
+    for (int count : counters) {
+      if (count != 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int bucketOf(long millis) {
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+      bucket++;
+    }
+    return bucket;
+  }
+
+  /** Measurements by atomic number. */
+  private static class Totals {
+    int[][] counters = new int[0][];
+    int[][] histograms = new int[0][];
+    // Whether the file ends in a record cut short, e.g. by a crash, or holds something else.
+    boolean corrupt;
+
+    void add(int atomicNumber, int[] counters, int[] histogram) {
+      if (atomicNumber >= this.counters.length) {
+        this.counters = Arrays.copyOf(this.counters, atomicNumber + 1);
+        histograms = Arrays.copyOf(histograms, atomicNumber + 1);
+      }
+      if (this.counters[atomicNumber] == null) {
+        this.counters[atomicNumber] = new int[COUNTER_COUNT];
+        histograms[atomicNumber] = new int[BUCKET_COUNT];
+      }
+      for (int i = 0; i < COUNTER_COUNT; i++) {
+        this.counters[atomicNumber][i] += counters[i];
+      }
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        histograms[atomicNumber][i] += histogram[i];
+      }
+    }
+
+    void addAll(Totals other) {
+      for (int atomicNumber = 0; atomicNumber < other.counters.length; atomicNumber++) {
+        if (other.counters[atomicNumber] != null) {
+          add(atomicNumber, other.counters[atomicNumber], other.histograms[atomicNumber]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes one record: the magic number, the entry count, and for each element with measurements
+   * its atomic number, counters, and the non-empty histogram buckets as (bucket, count) pairs.
+   */
+  private static void writeRecord(DataOutputStream out, Totals totals) throws IOException {
+    int entries = 0;
+    for (int[] entry : totals.counters) {
+      if (entry != null) {
+        entries++;
+      }
+    }
+    out.writeInt(RECORD_MAGIC);
+    out.writeShort(entries);
+    for (int atomicNumber = 0; atomicNumber < totals.counters.length; atomicNumber++) {
+      if (totals.counters[atomicNumber] == null) {
+        continue;
+      }
+      out.writeShort(atomicNumber);
+      for (int counter : totals.counters[atomicNumber]) {
+        out.writeInt(counter);
+      }
+      int[] histogram = totals.histograms[atomicNumber];
+      int buckets = 0;
+      for (int count : histogram) {
+        if (count != 0) {
+          buckets++;
+        }
+      }
+      out.writeByte(buckets);
+      for (int bucket = 0; bucket < histogram.length; bucket++) {
+        if (histogram[bucket] != 0) {
+          out.writeByte(bucket);
+          out.writeInt(histogram[bucket]);
+        }
+      }
+    }
+  }
+
+  /** Sums every complete record of the file. Anything after a corrupt record is dropped. */
+  private Totals read() throws IOException {
+    Totals totals = new Totals();
+    if (!file.exists()) {
+      return totals;
+    }
+    int[] counters = new int[COUNTER_COUNT];
+    int[] histogram = new int[BUCKET_COUNT];
+    try (DataInputStream in =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        int magic;
+        try {
+          magic = in.readInt();
+        } catch (EOFException e) {
+          // The end of the last complete record.
+          break;
+        }
+        if (magic != RECORD_MAGIC) {
+          Log.w(TAG, "Corrupt detection telemetry, dropping the rest of " + file);
+          totals.corrupt = true;
+          break;
+        }
+        Totals record = new Totals();
+        try {
+          int entries = in.readUnsignedShort();
+          for (int i = 0; i < entries; i++) {
+            int atomicNumber = in.readUnsignedShort();
+            for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+              counters[counter] = in.readInt();
+            }
+            Arrays.fill(histogram, 0);
+            int buckets = in.readUnsignedByte();
+            for (int j = 0; j < buckets; j++) {
+              int bucket = in.readUnsignedByte();
+              int count = in.readInt();
+              if (bucket < BUCKET_COUNT) {
+                histogram[bucket] = count;
+              }
+            }
+            record.add(atomicNumber, counters, histogram);
+          }
+        } catch (EOFException e) {
+          Log.w(TAG, "Detection telemetry ends in a partial record, dropping it");
+          totals.corrupt = true;
+          break;
+        }
+        totals.addAll(record);
+      }
+    }
+    return totals;
+  }
+
+  /** Replaces the file with a single record of the totals. */
+  private void compact(Totals totals) throws IOException {
+    File compacted = new File(file.getPath() + ".tmp");
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)))) {
+      writeRecord(out, totals);
+    }
+    if (!compacted.renameTo(file)) {
+      compacted.delete();
+      throw new IOException("Failed to compact " + file);
+    }
+    totals.corrupt = false;
+  }
+
+  /** Writes the p50 and p95 time to track and the counters of every element, slowest first. */
+  private void writeReport(Totals totals) throws IOException {
+    String[] names = new String[totals.counters.length];
+    for (int i = 0; i < phases.length; i++) {
+      int atomicNumber = elementIndex.getAtomicNumber(i);
+      if (atomicNumber < names.length) {
+        names[atomicNumber] = elementIndex.getImageName(i);
+      }
+    }
+    List<int[]> rows = new ArrayList<>();
+    for (int atomicNumber = 0; atomicNumber < totals.counters.length; atomicNumber++) {
+      int[] histogram = totals.histograms[atomicNumber];
+      if (histogram != null) {
+        rows.add(
+            new int[] {
+              atomicNumber, percentileMillis(histogram, 0.5f), percentileMillis(histogram, 0.95f)
+            });
+      }
+    }
+    // Elements never tracked are the slowest of all.
+    rows.sort(
+        (a, b) ->
+            sortKey(b[2]) != sortKey(a[2])
+                ? Integer.compare(sortKey(b[2]), sortKey(a[2]))
+                : Integer.compare(sortKey(b[1]), sortKey(a[1])));
+
+    try (PrintWriter out = new PrintWriter(reportFile, "UTF-8")) {
+      out.println("# Time from first sighting to full tracking, over all sessions, slowest first.");
+      out.println("# Times are bucket bounds in ms; -1 means never tracked.");
+      out.printf(
+          Locale.US,
+          "%-3s %-20s %6s %6s %9s %10s %6s %6s%n",
+          "Z",
+          "image",
+          "p50",
+          "p95",
+          "sightings",
+          "detections",
+          "drops",
+          "stops");
+      for (int[] row : rows) {
+        int[] counters = totals.counters[row[0]];
+        out.printf(
+            Locale.US,
+            "%-3d %-20s %6d %6d %9d %10d %6d %6d%n",
+            row[0],
+            names[row[0]] == null ? "-" : names[row[0]],
+            row[1],
+            row[2],
+            counters[SIGHTINGS],
+            counters[DETECTIONS],
+            counters[DROPS],
+            counters[STOPS]);
+      }
+    }
+  }
+
+  private static int sortKey(int millis) {
+    return millis < 0 ? Integer.MAX_VALUE : millis;
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding the given fraction of the samples, or -1 if
+   * there are none. The last bucket has no bound, and is reported as twice the one before.
+   */
+  private static int percentileMillis(int[] histogram, float fraction) {
+    long total = 0;
+    for (int count : histogram) {
+      total += count;
+    }
+    if (total == 0) {
+      return -1;
+    }
+    long rank = (long) Math.ceil(fraction * total);
+    long seen = 0;
+    for (int bucket = 0; bucket < histogram.length; bucket++) {
+      seen += histogram[bucket];
+      if (seen >= rank) {
+        return bucket < BUCKET_BOUNDS_MILLIS.length
+            ? BUCKET_BOUNDS_MILLIS[bucket]
+            : 2 * BUCKET_BOUNDS_MILLIS[BUCKET_BOUNDS_MILLIS.length - 1];
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.ar.core.AugmentedImageDatabase;
+import com.google.ar.core.Session;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import periodictable.common.helpers.MappedAssets;
+import periodictable.common.rendering.BitmapDecoder;
+
+/**
+ * Builds an augmented image database on the device from the images of a printed table: the images
+ * the shipped database was built from, or photos of a user's own table. Unlike the shipped
+ * database, every image is given its physical width, which lets ARCore estimate the card's pose
+ * from the first frame it is seen, and at the right scale.
+ *
+ * <p>Images are decoded and scaled down on a pool of background threads, while they are added to
+ * the database in order on the calling thread, since their order gives the image indices.
+ */
+public class ImageDatabaseBuilder {
+  private static final String TAG = ImageDatabaseBuilder.class.getSimpleName();
+
+  // Bumped when images are prepared differently, so databases built before are not reused.
+  private static final int VERSION = 1;
+  // ARCore needs no more than this many pixels across an image to find its features.
+  private static final int IMAGE_SIZE = 480;
+  private static final int MAX_DECODE_THREADS = 4;
+
+  /** Reads the encoded images, e.g. from the APK or from a directory of photos. */
+  public interface ImageSource {
+    /** Returns the encoded image, from its position to its limit. */
+    ByteBuffer read(String path) throws IOException;
+  }
+
+  /** An image to add to the database. */
+  public static class Image {
+    public final String name;
+    public final String path;
+    /** The width of the printed image, in meters. */
+    public final float widthMeters;
+
+    public Image(String name, String path, float widthMeters) {
+      this.name = name;
+      this.path = path;
+      this.widthMeters = widthMeters;
+    }
+  }
+
+  private final ImageSource source;
+  private final List<Image> images;
+  private volatile boolean cancelled;
+
+  public ImageDatabaseBuilder(ImageSource source, List<Image> images) {
+    this.source = source;
+    this.images = images;
+  }
+
+  /**
+   * Returns a builder for the images of an image list written by {@code arcoreimg}, read from the
+   * APK. Each line of the list is "&lt;name&gt;|&lt;asset path&gt;", optionally followed by
+   * "|&lt;width in meters&gt;".
+   *
+   * @param defaultWidthMeters The width of the images whose width is not listed.
+   */
+  public static ImageDatabaseBuilder fromImageList(
+      AssetManager assets, String imageListPath, float defaultWidthMeters) throws IOException {
+    List<Image> images = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(new InputStreamReader(assets.open(imageListPath), "UTF-8"))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        String[] fields = line.split("\\|");
+        if (fields.length < 2) {
+          continue;
+        }
+        float widthMeters;
+        try {
+          widthMeters = fields.length > 2 ? Float.parseFloat(fields[2]) : defaultWidthMeters;
+        } catch (NumberFormatException e) {
+          throw new IOException("Malformed image list line: " + line, e);
+        }
+        images.add(new Image(fields[0], fields[1].replace("//", "/"), widthMeters));
+      }
+    }
+    return new ImageDatabaseBuilder(path -> MappedAssets.map(assets, path), images);
+  }
+
+  /**
+   * Returns a builder for the JPEG and PNG images in a directory, e.g. photos of a user's own
+   * printed table, in the order of their names.
+   */
+  public static ImageDatabaseBuilder fromDirectory(File directory, float widthMeters)
+      throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Cannot list " + directory);
+    }
+    Arrays.sort(files);
+    List<Image> images = new ArrayList<>();
+    for (File file : files) {
+      String name = file.getName().toLowerCase();
+      if (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")) {
+        images.add(new Image(file.getName(), file.getPath(), widthMeters));
+      }
+    }
+    return new ImageDatabaseBuilder(
+        path -> {
+          try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+          }
+        },
+        images);
+  }
+
+  /**
+   * Returns a key that changes whenever the images, their widths, the way they are prepared or
+   * ARCore do, to tell whether a database built before can be reused.
+   *
+   * @param arcoreVersion The version of the installed ARCore, which may not read databases
+   *     serialized by another version.
+   */
+  public String getCacheKey(String arcoreVersion) {
+    StringBuilder key = new StringBuilder();
+    key.append(VERSION).append('|').append(arcoreVersion);
+    for (Image image : images) {
+      key.append('|').append(image.name);
+      key.append('|').append(image.path);
+      key.append('|').append(image.widthMeters);
+    }
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.toString().getBytes("UTF-8"));
+      StringBuilder cacheKey = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        cacheKey.append(Character.forDigit((b >> 4) & 0xF, 16));
+        cacheKey.append(Character.forDigit(b & 0xF, 16));
+      }
+      return cacheKey.toString();
+    } catch (NoSuchAlgorithmException | IOException e) {
+      // SHA-1 and UTF-8 are always available on Android.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Builds the database on the calling thread, which must not be the UI thread. Images ARCore
+   * cannot track, e.g. with too few features, are left out.
+   *
+   * @throws IOException If an image could not be read, or the build was cancelled.
+   */
+  public AugmentedImageDatabase build(Session session) throws IOException {
+    long startMillis = SystemClock.elapsedRealtime();
+    AtomicInteger threadCount = new AtomicInteger();
+    int threads = Math.min(MAX_DECODE_THREADS, Runtime.getRuntime().availableProcessors());
+    ExecutorService decoders =
+        Executors.newFixedThreadPool(
+            threads,
+            runnable ->
+                new Thread(
+                    () -> {
+                      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                      runnable.run();
+                    },
+                    TAG + "-" + threadCount.incrementAndGet()));
+    try {
+      // Decodes run a few images ahead of the one being added, bounding the bitmaps in memory.
+      List<Future<Bitmap>> decodes = new ArrayList<>(images.size());
+      int decodesAhead = 2 * threads;
+      for (int i = 0; i < images.size() && i < decodesAhead; i++) {
+        decodes.add(submitDecode(decoders, images.get(i)));
+      }
+
+      AugmentedImageDatabase database = new AugmentedImageDatabase(session);
+      for (int i = 0; i < images.size(); i++) {
+        if (cancelled) {
+          throw new IOException("Image database build cancelled");
+        }
+        if (i + decodesAhead < images.size()) {
+          decodes.add(submitDecode(decoders, images.get(i + decodesAhead)));
+        }
+        Image image = images.get(i);
+        Bitmap bitmap = getDecoded(decodes.set(i, null), image);
+        try {
+          database.addImage(image.name, bitmap, image.widthMeters);
+        } catch (Exception e) {
+          // E.g. ImageInsufficientQualityException. The other images are still worth tracking.
+          Log.w(TAG, "Left " + image.name + " out of the image database", e);
+        } finally {
+          bitmap.recycle();
+        }
+      }
+      Log.i(
+          TAG,
+          "Built an image database of "
+              + database.getNumImages()
+              + " images in "
+              + (SystemClock.elapsedRealtime() - startMillis)
+              + " ms");
+      return database;
+    } finally {
+      decoders.shutdownNow();
+    }
+  }
+
+  /** Stops a build in progress after the image being added. May be called on any thread. */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  private Future<Bitmap> submitDecode(ExecutorService decoders, Image image) {
+    // Decoded with alpha, to ARGB_8888, which ARCore reads directly.
+    return decoders.submit(
+        () ->
+            BitmapDecoder.decode(
+                source.read(image.path),
+                /*opaque=*/ false,
+                IMAGE_SIZE,
+                /*pool=*/ null,
+                new BitmapFactory.Options()));
+  }
+
+  private static Bitmap getDecoded(Future<Bitmap> decode, Image image) throws IOException {
+    try {
+      return decode.get();
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to decode " + image.path, e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted decoding " + image.path, e);
+    }
+  }
+}
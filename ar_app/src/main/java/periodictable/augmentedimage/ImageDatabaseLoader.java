@@ -0,0 +1,323 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage;
+
+import android.content.res.AssetManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+import com.google.ar.core.AugmentedImageDatabase;
+import com.google.ar.core.Session;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import periodictable.common.helpers.MappedAssets;
+
+/**
+ * Deserializes the pre-built augmented image database on a background thread, so the UI thread
+ * never waits for it, and keeps it for every later configuration of the same session. The
+ * database belongs to the session it was deserialized with, so a new session loads it again.
+ *
+ * <p>The whole database is loaded first. Then come its shards, if any were built by {@code
+ * periodictable.tools.ImageDatabaseSharder}: smaller databases each covering one block of the
+ * table, see {@link ImageDatabaseShardPolicy}.
+ *
+ * <p>Given an {@link ImageDatabaseBuilder}, the whole database is also built on the device, with
+ * the images' physical widths, and serialized to app storage. The shipped database is used until
+ * then, and the built one from the next launch on, until the builder's images change.
+ *
+ * <p>Methods must be called on the UI thread, where the listener is also called.
+ */
+public class ImageDatabaseLoader {
+  private static final String TAG = ImageDatabaseLoader.class.getSimpleName();
+
+  // Names the home shard of each image, as written by ImageDatabaseSharder.
+  private static final String BLOCKS_FILE = "blocks.txt";
+  private static final String SHARD_EXTENSION = ".imgdb";
+  // Longest shutdown waits for a load in progress.
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+
+  /** Receives the outcome of a load on the UI thread. */
+  public interface Listener {
+    /** Called when the database of the current session is ready. */
+    void onImageDatabaseLoaded(AugmentedImageDatabase database);
+
+    /** Called when the database of the current session could not be read. */
+    void onImageDatabaseFailed(IOException e);
+
+    /**
+     * Called after the whole database is ready, once every shard is too. Not called if there are
+     * no shards or they could not be read.
+     *
+     * @param homeShards The shard of each image name whose block the image belongs to.
+     */
+    void onImageDatabaseShardsLoaded(Map<String, String> homeShards);
+  }
+
+  private final AssetManager assets;
+  private final String assetPath;
+  private final String shardDirectory;
+  private final Listener listener;
+  private final ImageDatabaseBuilder builder;
+  private final String arcoreVersion;
+  private final File cacheDirectory;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final ExecutorService executor =
+      Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, TAG));
+  // The session the databases are loaded for, and the databases once loaded.
+  private Session session;
+  private AugmentedImageDatabase database;
+  private final Map<String, AugmentedImageDatabase> shards = new HashMap<>();
+
+  /**
+   * @param assetPath The database, stored uncompressed so ARCore reads it straight from the mapped
+   *     APK.
+   * @param shardDirectory Where the shards of the database are, stored the same way.
+   * @param builder Builds the whole database on the device, or null to only use the shipped one.
+   * @param arcoreVersion The version of the installed ARCore. A database built on the device by
+   *     another version is built again.
+   * @param cacheDirectory Where the database built on the device is kept, in app storage. Other
+   *     files there are deleted.
+   */
+  public ImageDatabaseLoader(
+      AssetManager assets,
+      String assetPath,
+      String shardDirectory,
+      ImageDatabaseBuilder builder,
+      String arcoreVersion,
+      File cacheDirectory,
+      Listener listener) {
+    this.assets = assets;
+    this.assetPath = assetPath;
+    this.shardDirectory = shardDirectory;
+    this.builder = builder;
+    this.arcoreVersion = arcoreVersion;
+    this.cacheDirectory = cacheDirectory;
+    this.listener = listener;
+  }
+
+  /** Starts loading the database for a session, unless it is already loaded or loading for it. */
+  public void load(Session session) {
+    if (session == this.session) {
+      return;
+    }
+    this.session = session;
+    database = null;
+    shards.clear();
+    executor.execute(
+        () -> {
+          long startMillis = SystemClock.elapsedRealtime();
+          File cacheFile =
+              builder == null
+                  ? null
+                  : new File(cacheDirectory, builder.getCacheKey(arcoreVersion) + SHARD_EXTENSION);
+          AugmentedImageDatabase loaded =
+              cacheFile == null ? null : deserializeCached(session, cacheFile);
+          boolean cached = loaded != null;
+          try {
+            if (loaded == null) {
+              loaded = deserialize(session, assetPath);
+            }
+          } catch (IOException e) {
+            mainHandler.post(
+                () -> {
+                  if (session == this.session) {
+                    listener.onImageDatabaseFailed(e);
+                  }
+                });
+            return;
+          }
+          Log.i(
+              TAG,
+              "Loaded "
+                  + (cached ? "built" : "shipped")
+                  + " augmented image database in "
+                  + (SystemClock.elapsedRealtime() - startMillis)
+                  + " ms");
+          AugmentedImageDatabase whole = loaded;
+          mainHandler.post(
+              () -> {
+                // Dropped if the session was replaced meanwhile; the new one loads its own.
+                if (session == this.session) {
+                  database = whole;
+                  listener.onImageDatabaseLoaded(whole);
+                }
+              });
+          loadShards(session);
+          if (cacheFile != null && !cached) {
+            buildAndCache(session, cacheFile);
+          }
+        });
+  }
+
+  /** Returns the whole database of the current session, or null while it is loading. */
+  public AugmentedImageDatabase getDatabase() {
+    return database;
+  }
+
+  /** Returns a shard of the current session's database, or null if it is not loaded. */
+  public AugmentedImageDatabase getShard(String shard) {
+    return shards.get(shard);
+  }
+
+  /** Loads every shard on the loading thread. The shards are optional, so failures are logged. */
+  private void loadShards(Session session) {
+    Map<String, String> homeShards = new HashMap<>();
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(assets.open(shardDirectory + "/" + BLOCKS_FILE), "UTF-8"))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        // Each line is "<image name>|<shard>".
+        int separator = line.indexOf('|');
+        if (separator > 0) {
+          homeShards.put(line.substring(0, separator), line.substring(separator + 1));
+        }
+      }
+    } catch (IOException e) {
+      Log.i(TAG, "No image database shards, using the whole database", e);
+      return;
+    }
+
+    long startMillis = SystemClock.elapsedRealtime();
+    Map<String, AugmentedImageDatabase> loaded = new HashMap<>();
+    try {
+      for (String shard : homeShards.values()) {
+        if (!loaded.containsKey(shard)) {
+          loaded.put(shard, deserialize(session, shardDirectory + "/" + shard + SHARD_EXTENSION));
+        }
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to load the image database shards, using the whole database", e);
+      return;
+    }
+    Log.i(
+        TAG,
+        "Loaded "
+            + loaded.size()
+            + " image database shards in "
+            + (SystemClock.elapsedRealtime() - startMillis)
+            + " ms");
+    mainHandler.post(
+        () -> {
+          if (session == this.session) {
+            shards.putAll(loaded);
+            listener.onImageDatabaseShardsLoaded(homeShards);
+          }
+        });
+  }
+
+  private AugmentedImageDatabase deserialize(Session session, String path) throws IOException {
+    try (InputStream is = MappedAssets.asInputStream(MappedAssets.map(assets, path))) {
+      return AugmentedImageDatabase.deserialize(session, is);
+    } catch (RuntimeException e) {
+      // ARCore reports unreadable databases with unchecked exceptions, which would otherwise end
+      // the loading thread and the app.
+      throw new IOException("Cannot read image database " + path, e);
+    }
+  }
+
+  /**
+   * Returns the database built on a previous launch, or null if there is none or it cannot be read.
+   * Such a database is deleted, so it is built again rather than failing on every launch.
+   */
+  private static AugmentedImageDatabase deserializeCached(Session session, File cacheFile) {
+    if (!cacheFile.isFile()) {
+      return null;
+    }
+    try (InputStream is = new BufferedInputStream(new FileInputStream(cacheFile))) {
+      return AugmentedImageDatabase.deserialize(session, is);
+    } catch (IOException | RuntimeException e) {
+      // E.g. DataInvalidFormatException for a corrupt file, or DataUnsupportedVersionException for
+      // one serialized by another ARCore, which are unchecked.
+      Log.w(TAG, "Discarding unreadable image database " + cacheFile, e);
+      cacheFile.delete();
+      return null;
+    }
+  }
+
+  /**
+   * Builds the whole database on the loading thread and serializes it for the next launches. The
+   * session keeps the shipped database meanwhile, as switching would restart detection.
+   */
+  private void buildAndCache(Session session, File cacheFile) {
+    AugmentedImageDatabase built;
+    try {
+      built = builder.build(session);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to build the image database, using the shipped one", e);
+      return;
+    }
+    if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs()) {
+      Log.w(TAG, "Cannot create " + cacheDirectory);
+      return;
+    }
+    // Databases of other images or versions are never read again.
+    File[] stale = cacheDirectory.listFiles();
+    if (stale != null) {
+      for (File file : stale) {
+        file.delete();
+      }
+    }
+    // Written aside and renamed, so an interrupted write is never read as a database.
+    File partial = new File(cacheDirectory, cacheFile.getName() + ".tmp");
+    try (OutputStream os = new FileOutputStream(partial)) {
+      built.serialize(os);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to save the built image database", e);
+      partial.delete();
+      return;
+    }
+    if (!partial.renameTo(cacheFile)) {
+      Log.w(TAG, "Failed to save the built image database to " + cacheFile);
+      partial.delete();
+    }
+  }
+
+  /**
+   * Stops the loading thread, dropping pending results. Waits for a load in progress, which uses
+   * the session, so the session can be closed afterwards. A build in progress is cancelled, and
+   * starts over on the next launch.
+   */
+  public void shutdown() {
+    if (builder != null) {
+      builder.cancel();
+    }
+    session = null;
+    database = null;
+    shards.clear();
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        Log.w(TAG, "Augmented image database still loading at shutdown");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
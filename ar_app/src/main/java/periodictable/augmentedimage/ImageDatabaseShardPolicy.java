@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage;
+
+import java.util.Map;
+
+/**
+ * Decides which shard of the image database the session should match against. ARCore's cost per
+ * frame and its false matches grow with the number of images, so once the user is looking at one
+ * block of the table only that block's shard is active.
+ *
+ * <p>The whole database is used until the first detection, and again once nothing has been
+ * tracked for a while, as the user may be pointing anywhere. Each detection switches to the
+ * detected image's home shard. Shards overlap at block edges, so the first card across an edge is
+ * detected by the active shard and moves the session on to the next one. To not thrash between
+ * shards, e.g. while a card on the edge is in view, a shard stays active for a minimum time.
+ *
+ * <p>Methods other than {@link #getActiveShard()} must be called on the OpenGL thread.
+ */
+public class ImageDatabaseShardPolicy {
+  // Shortest time a shard is active before switching to another.
+  private static final long MIN_DWELL_MILLIS = 3000;
+  // Time without any image in full tracking before going back to the whole database.
+  private static final long SEARCH_AFTER_MILLIS = 4000;
+
+  private final Map<String, String> homeShards;
+  // Null while the whole database is active. Read on the UI thread to configure the session.
+  private volatile String activeShard;
+  private long lastSwitchMillis;
+  private long lastTrackingMillis;
+
+  /** @param homeShards The shard of each image name whose block the image belongs to. */
+  public ImageDatabaseShardPolicy(Map<String, String> homeShards) {
+    this.homeShards = homeShards;
+  }
+
+  /** Returns the shard the session should use, or null for the whole database. Thread safe. */
+  public String getActiveShard() {
+    return activeShard;
+  }
+
+  /**
+   * Reports an image reaching full tracking.
+   *
+   * @return Whether the active shard changed, and the session must be configured again.
+   */
+  public boolean onFullTracking(String imageName, long nowMillis) {
+    lastTrackingMillis = nowMillis;
+    String home = homeShards.get(imageName);
+    if (home == null || home.equals(activeShard)) {
+      return false;
+    }
+    if (activeShard != null && nowMillis - lastSwitchMillis < MIN_DWELL_MILLIS) {
+      return false;
+    }
+    activeShard = home;
+    lastSwitchMillis = nowMillis;
+    return true;
+  }
+
+  /**
+   * Reports the end of a frame.
+   *
+   * @param tracking Whether any image was in full tracking in the frame.
+   * @return Whether the active shard changed, and the session must be configured again.
+   */
+  public boolean onFrame(boolean tracking, long nowMillis) {
+    if (tracking) {
+      lastTrackingMillis = nowMillis;
+      return false;
+    }
+    if (activeShard == null
+        || nowMillis - lastTrackingMillis < SEARCH_AFTER_MILLIS
+        || nowMillis - lastSwitchMillis < MIN_DWELL_MILLIS) {
+      return false;
+    }
+    activeShard = null;
+    lastSwitchMillis = nowMillis;
+    return true;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Measures the cost of the image database the session is configured with, to compare the whole
+ * database with its shards. For each configuration it logs the time to the first detection, the
+ * time spent in {@code Session.update()} per frame, and the CPU time of the whole process, which
+ * includes ARCore's own threads. Results are logged under this class's tag when the session is
+ * configured again and at a regular interval.
+ */
+public class ImageDatabaseStats {
+  private static final String TAG = ImageDatabaseStats.class.getSimpleName();
+
+  private static final long REPORT_INTERVAL_MILLIS = 10_000;
+
+  private String databaseName;
+  private int imageCount;
+  private long configuredMillis;
+  private long firstDetectionMillis;
+  private long windowStartMillis;
+  private long windowStartCpuMillis;
+  private int frameCount;
+  private long updateNanos;
+  private int detectionCount;
+
+  /**
+   * Starts measuring a new configuration, after reporting the previous one.
+   *
+   * @param databaseName The shard, or a name for the whole database.
+   */
+  public synchronized void onConfigured(String databaseName, int imageCount) {
+    report();
+    this.databaseName = databaseName;
+    this.imageCount = imageCount;
+    configuredMillis = SystemClock.elapsedRealtime();
+    firstDetectionMillis = 0;
+    startWindow();
+  }
+
+  /** Adds the time a frame spent in {@code Session.update()}. */
+  public synchronized void onFrame(long updateNanos) {
+    if (databaseName == null) {
+      return;
+    }
+    frameCount++;
+    this.updateNanos += updateNanos;
+    if (SystemClock.elapsedRealtime() - windowStartMillis >= REPORT_INTERVAL_MILLIS) {
+      report();
+      startWindow();
+    }
+  }
+
+  /** Counts an image reaching full tracking. */
+  public synchronized void onDetection() {
+    detectionCount++;
+    if (firstDetectionMillis == 0) {
+      firstDetectionMillis = SystemClock.elapsedRealtime();
+    }
+  }
+
+  private void startWindow() {
+    windowStartMillis = SystemClock.elapsedRealtime();
+    windowStartCpuMillis = Process.getElapsedCpuTime();
+    frameCount = 0;
+    updateNanos = 0;
+    detectionCount = 0;
+  }
+
+  private void report() {
+    if (databaseName == null || frameCount == 0) {
+      return;
+    }
+    long wallMillis = Math.max(1, SystemClock.elapsedRealtime() - windowStartMillis);
+    long cpuMillis = Process.getElapsedCpuTime() - windowStartCpuMillis;
+    Log.i(
+        TAG,
+        String.format(
+            "Database %s (%d images): %d frames, update %.2f ms/frame, CPU %.0f%% of a core,"
+                + " %d detections, first detection %s",
+            databaseName,
+            imageCount,
+            frameCount,
+            updateNanos / 1e6 / frameCount,
+            100.0 * cpuMillis / wallMillis,
+            detectionCount,
+            firstDetectionMillis == 0
+                ? "none yet"
+                : (firstDetectionMillis - configuredMillis) + " ms after configuring"));
+  }
+}
@@ -20,66 +20,338 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
+import android.opengl.Matrix;
 
-import com.google.ar.core.Anchor;
-import com.google.ar.core.AugmentedImage;
-import com.google.ar.core.Pose;
 import periodictable.common.rendering.ObjectRenderer;
 import periodictable.common.rendering.ObjectRenderer.BlendMode;
+import periodictable.common.rendering.SdfTextRenderer;
+import periodictable.common.rendering.SdfTextRenderer.TextRun;
 import java.io.IOException;
 
-/** Renders an augmented image. */
+/**
+ * Renders an augmented image.
+ *
+ * <p>A card is given by its center pose, as a matrix from {@link
+ * com.google.ar.core.Pose#toMatrix}, and its size: the larger extent of its image, in meters.
+ * ARCore allocates a new Pose every time an anchor's pose is read, so callers read it once per
+ * card and frame, and drawing allocates nothing else.
+ */
 public class AugmentedImageRenderer {
   private static final String TAG = "AugmentedImageRenderer";
 
+  // Samples the whole card texture.
+  private static final float[] FULL_TEXTURE = new float[] {0f, 0f, 1f, 1f};
+
+  // The card model maps the texture as a cube net; its face shows this square of the texture,
+  // from the top-left. The model spans -1 to 1 in x and z.
+  private static final float FACE_MIN_U = 0.375f;
+  private static final float FACE_MIN_V = 0.25f;
+  private static final float FACE_SIZE = 0.25f;
+  // Points sampled per side of the card to find the part of it on screen.
+  private static final int VISIBILITY_GRID_SIZE = 9;
+
+  // Maps the text layout plane, x right and y down the face, onto the card's x and z axes.
+  private static final float[] LAYOUT_TO_CARD = {
+    1f, 0f, 0f, 0f, 0f, 0f, 1f, 0f, 0f, 1f, 0f, 0f, 0f, 0f, 0f, 1f,
+  };
+  // Above the card face, which is 0.01 above the card model's center, to not fight its depth.
+  private static final float TEXT_LIFT = 0.02f;
+  private static final float[] TEXT_COLOR = {0.1f, 0.1f, 0.12f, 1f};
+
   private static final float TINT_INTENSITY = 0.1f;
   private static final float TINT_ALPHA = 1.0f;
   private static final int[] TINT_COLORS_HEX = {
     0x000000, 0xF44336, 0xE91E63, 0x9C27B0, 0x673AB7, 0x3F51B5, 0x2196F3, 0x03A9F4, 0x00BCD4,
     0x009688, 0x4CAF50, 0x8BC34A, 0xCDDC39, 0xFFEB3B, 0xFFC107, 0xFF9800,
   };
+  // TINT_COLORS_HEX as RGBA, converted once rather than for every card drawn.
+  private static final float[][] TINT_COLORS = new float[TINT_COLORS_HEX.length][];
 
-  public final ObjectRenderer cardObject = new ObjectRenderer();
+  static {
+    for (int i = 0; i < TINT_COLORS_HEX.length; i++) {
+      TINT_COLORS[i] = convertHexToColor(TINT_COLORS_HEX[i]);
+    }
+  }
 
-  public AugmentedImageRenderer() {}
+  private final ObjectRenderer cardObject = new ObjectRenderer();
 
-  public void createOnGlThread(Context context, String Texture) throws IOException {
+  // Temporary matrices and vectors for drawing and findVisibleRegion, so that drawing a frame does
+  // not allocate.
+  private final float[] anchorMatrix = new float[16];
+  private final float[] viewProjectionMatrix = new float[16];
+  private final float[] inverseViewProjectionMatrix = new float[16];
+  private final float[] clipPoint = new float[4];
+  private final float[] localPoint = new float[4];
+  private final float[] nearPoint = new float[4];
+  private final float[] farPoint = new float[4];
+  private final float[] screenCorner = new float[4];
+  // Temporary matrices for drawText.
+  private final float[] liftedCardMatrix = new float[16];
+  private final float[] textModelMatrix = new float[16];
 
-    cardObject.createOnGlThread(
-        context, "models/flat-pane/card.obj", Texture);
+  public AugmentedImageRenderer() {}
+
+  /**
+   * Cards are always drawn with the texture of their content, e.g. from {@link CardTextureCache},
+   * so the card model has no texture of its own.
+   *
+   * @param useVirtualTexture Whether to also build the program of {@link #drawVirtual}, which is
+   *     only needed when the build packed tile pyramids of the card art. It draws the same card
+   *     geometry.
+   */
+  public void createOnGlThread(Context context, boolean useVirtualTexture) throws IOException {
+    cardObject.createOnGlThread(context, "models/flat-pane/card.obj", /*diffuseTexture=*/ null);
     cardObject.setMaterialProperties(0.0f, 3.5f, 0.0f, 6.0f);
     cardObject.setBlendMode(BlendMode.AlphaBlending);
+    cardObject.setUseVirtualTexture(context, useVirtualTexture);
   }
 
+  /**
+   * Draws the card of an augmented image.
+   *
+   * @param imageIndex Index of the card's image, which picks its tint.
+   * @param textureId The card texture, e.g. from {@link CardTextureCache}. The card geometry is
+   *     shared by all images, only the texture differs.
+   */
   public void draw(
       float[] viewMatrix,
       float[] projectionMatrix,
-      AugmentedImage augmentedImage,
-      Anchor centerAnchor,
-      float[] colorCorrectionRgba) {
-    float[] tintColor =
-        convertHexToColor(TINT_COLORS_HEX[augmentedImage.getIndex() % TINT_COLORS_HEX.length]);
-    Pose[] localBoundaryPoses = {
-      Pose.makeTranslation(
-          0.0f * augmentedImage.getExtentX(),
-          0.0f,
-          0.0f * augmentedImage.getExtentZ())
-    };
-
-    Pose anchorPose = centerAnchor.getPose();
-    Pose[] worldBoundaryPoses = new Pose[localBoundaryPoses.length];
-    for (int i = 0; i < worldBoundaryPoses.length; ++i) {
-      worldBoundaryPoses[i] = anchorPose.compose(localBoundaryPoses[i]);
-    }
+      float[] cardPose,
+      float cardSize,
+      int imageIndex,
+      float[] colorCorrectionRgba,
+      int textureId) {
+    draw(
+        viewMatrix,
+        projectionMatrix,
+        cardPose,
+        cardSize,
+        imageIndex,
+        colorCorrectionRgba,
+        textureId,
+        FULL_TEXTURE);
+  }
 
-    final float maxImageEdgeSize = Math.max(augmentedImage.getExtentX(), augmentedImage.getExtentZ()); // Get largest detected image edge size
+  /**
+   * Draws the card of an augmented image from a region of a shared texture.
+   *
+   * @param textureId The texture holding the card, e.g. a {@link CardAtlas} page.
+   * @param texCoordTransform Offset and scale of the card region, e.g. {@link
+   *     CardAtlas.Region#texCoordTransform}.
+   */
+  public void draw(
+      float[] viewMatrix,
+      float[] projectionMatrix,
+      float[] cardPose,
+      float cardSize,
+      int imageIndex,
+      float[] colorCorrectionRgba,
+      int textureId,
+      float[] texCoordTransform) {
+    float[] tintColor = TINT_COLORS[imageIndex % TINT_COLORS.length];
     final float objectEdgeSize = 2f;
-    float scaleFactor = maxImageEdgeSize / objectEdgeSize;  // Sets the augmented image size to fill the element
-    float[] modelMatrix = new float[16];
+    // Sets the augmented image size to fill the element.
+    float scaleFactor = cardSize / objectEdgeSize;
+
+    cardObject.updateModelMatrix(cardPose, scaleFactor);
+    cardObject.draw(
+        viewMatrix, projectionMatrix, colorCorrectionRgba, tintColor, textureId, texCoordTransform);
+  }
+
+  /**
+   * Draws the card of an augmented image from a virtual texture.
+   *
+   * @param cacheTextureId The tile cache, see {@link CardVirtualTextures#getCacheTexture()}.
+   * @param pageTableTextureId The card's page table, from {@link CardVirtualTextures#update}.
+   * @param parameters The card's virtual texture parameters, from {@link
+   *     CardVirtualTextures#update}.
+   */
+  public void drawVirtual(
+      float[] viewMatrix,
+      float[] projectionMatrix,
+      float[] cardPose,
+      float cardSize,
+      int imageIndex,
+      float[] colorCorrectionRgba,
+      int cacheTextureId,
+      int pageTableTextureId,
+      float[] parameters) {
+    float[] tintColor = TINT_COLORS[imageIndex % TINT_COLORS.length];
+    cardObject.updateModelMatrix(cardPose, cardSize / 2f);
+    cardObject.drawVirtual(
+        viewMatrix,
+        projectionMatrix,
+        colorCorrectionRgba,
+        tintColor,
+        cacheTextureId,
+        pageTableTextureId,
+        parameters);
+  }
+
+  /**
+   * Draws text laid out on the face of a card, e.g. by {@link CardTextLayouts}, over the card. The
+   * card must be drawn first.
+   *
+   * @param run Text laid out in card coordinates: -1 to 1 across the face, with y pointing down it.
+   */
+  public void drawText(
+      float[] viewMatrix,
+      float[] projectionMatrix,
+      float[] cardPose,
+      float cardSize,
+      float[] colorCorrectionRgba,
+      SdfTextRenderer textRenderer,
+      TextRun run) {
+    float halfEdge = cardSize / 2f;
+    Matrix.translateM(liftedCardMatrix, 0, cardPose, 0, 0f, TEXT_LIFT * halfEdge, 0f);
+    Matrix.scaleM(liftedCardMatrix, 0, halfEdge, halfEdge, halfEdge);
+    Matrix.multiplyMM(textModelMatrix, 0, liftedCardMatrix, 0, LAYOUT_TO_CARD, 0);
+    textRenderer.draw(
+        textModelMatrix, viewMatrix, projectionMatrix, colorCorrectionRgba, TEXT_COLOR, run);
+  }
+
+  /**
+   * Finds the part of a card on screen, to stream in only the tiles of its virtual texture that
+   * are seen. Samples a grid of points on the card, and the points of the card behind the screen
+   * corners for when the camera is so close that no grid point is on screen.
+   *
+   * @param visibleTexCoords Receives the part of the card texture on screen: min u, min v, max u,
+   *     max v, with v from the top. Slightly larger than seen, since the card is only sampled.
+   * @return How many pixels the whole card texture would span on screen at the closest visible
+   *     point of the card, or 0 if the card is not on screen.
+   */
+  public float findVisibleRegion(
+      float[] viewMatrix,
+      float[] projectionMatrix,
+      int viewHeight,
+      float[] cardPose,
+      float cardSize,
+      float[] visibleTexCoords) {
+    float halfEdge = cardSize / 2f;
+    System.arraycopy(cardPose, 0, anchorMatrix, 0, anchorMatrix.length);
+    Matrix.multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+
+    float minX = Float.MAX_VALUE;
+    float minZ = Float.MAX_VALUE;
+    float maxX = -Float.MAX_VALUE;
+    float maxZ = -Float.MAX_VALUE;
+    float minDepth = Float.MAX_VALUE;
+    int last = VISIBILITY_GRID_SIZE - 1;
+    for (int i = 0; i <= last; i++) {
+      for (int j = 0; j <= last; j++) {
+        // Card coordinates, -1 to 1 as in the model.
+        float x = 2f * j / last - 1f;
+        float z = 2f * i / last - 1f;
+        localPoint[0] = x * halfEdge;
+        localPoint[1] = 0f;
+        localPoint[2] = z * halfEdge;
+        localPoint[3] = 1f;
+        Matrix.multiplyMV(nearPoint, 0, anchorMatrix, 0, localPoint, 0);
+        Matrix.multiplyMV(clipPoint, 0, viewProjectionMatrix, 0, nearPoint, 0);
+        float w = clipPoint[3];
+        if (w <= 0f || Math.abs(clipPoint[0]) > w || Math.abs(clipPoint[1]) > w) {
+          continue;
+        }
+        minX = Math.min(minX, x);
+        maxX = Math.max(maxX, x);
+        minZ = Math.min(minZ, z);
+        maxZ = Math.max(maxZ, z);
+        minDepth = Math.min(minDepth, w);
+      }
+    }
+    // Grid points just off screen still show the cell between them and the screen edge.
+    float cell = 2f / last;
+    minX -= cell;
+    maxX += cell;
+    minZ -= cell;
+    maxZ += cell;
+
+    // Where the rays through the screen corners hit the card plane.
+    Matrix.invertM(inverseViewProjectionMatrix, 0, viewProjectionMatrix, 0);
+    for (int corner = 0; corner < 4; corner++) {
+      float screenX = (corner & 1) == 0 ? -1f : 1f;
+      float screenY = (corner & 2) == 0 ? -1f : 1f;
+      if (!unprojectOntoCard(screenX, screenY, halfEdge)) {
+        continue;
+      }
+      minX = Math.min(minX, localPoint[0]);
+      maxX = Math.max(maxX, localPoint[0]);
+      minZ = Math.min(minZ, localPoint[2]);
+      maxZ = Math.max(maxZ, localPoint[2]);
+      minDepth = Math.min(minDepth, localPoint[3]);
+    }
+    if (minDepth == Float.MAX_VALUE) {
+      return 0f;
+    }
+
+    visibleTexCoords[0] = toTexCoord(FACE_MIN_U, minX);
+    visibleTexCoords[1] = toTexCoord(FACE_MIN_V, minZ);
+    visibleTexCoords[2] = toTexCoord(FACE_MIN_U, maxX);
+    visibleTexCoords[3] = toTexCoord(FACE_MIN_V, maxZ);
+    // The projection's y scale is the focal length in half screen heights.
+    float focalLengthPixels = projectionMatrix[5] * viewHeight / 2f;
+    return focalLengthPixels * 2f * halfEdge / minDepth / FACE_SIZE;
+  }
+
+  /**
+   * Casts the ray through a point of the screen, in normalized device coordinates, onto the card
+   * plane. If it hits the card, returns true with localPoint holding the card coordinates of the
+   * hit in x and z and its clip w, the view depth, in w. Needs {@link #anchorMatrix} and {@link
+   * #inverseViewProjectionMatrix}.
+   */
+  private boolean unprojectOntoCard(float screenX, float screenY, float halfEdge) {
+    unproject(screenX, screenY, -1f, nearPoint);
+    unproject(screenX, screenY, 1f, farPoint);
+    // The card plane goes through the anchor, with the anchor's y axis as its normal.
+    float rayDotNormal = 0f;
+    float originDotNormal = 0f;
+    for (int k = 0; k < 3; k++) {
+      rayDotNormal += (farPoint[k] - nearPoint[k]) * anchorMatrix[4 + k];
+      originDotNormal += (anchorMatrix[12 + k] - nearPoint[k]) * anchorMatrix[4 + k];
+    }
+    if (Math.abs(rayDotNormal) < 1e-6f) {
+      return false;
+    }
+    float t = originDotNormal / rayDotNormal;
+    if (t < 0f || t > 1f) {
+      return false;
+    }
+    float x = 0f;
+    float z = 0f;
+    for (int k = 0; k < 3; k++) {
+      float hit = nearPoint[k] + t * (farPoint[k] - nearPoint[k]);
+      screenCorner[k] = hit;
+      x += (hit - anchorMatrix[12 + k]) * anchorMatrix[k];
+      z += (hit - anchorMatrix[12 + k]) * anchorMatrix[8 + k];
+    }
+    x /= halfEdge;
+    z /= halfEdge;
+    if (Math.abs(x) > 1f || Math.abs(z) > 1f) {
+      return false;
+    }
+    screenCorner[3] = 1f;
+    Matrix.multiplyMV(clipPoint, 0, viewProjectionMatrix, 0, screenCorner, 0);
+    localPoint[0] = x;
+    localPoint[2] = z;
+    localPoint[3] = clipPoint[3];
+    return true;
+  }
+
+  private void unproject(float screenX, float screenY, float screenZ, float[] worldPoint) {
+    clipPoint[0] = screenX;
+    clipPoint[1] = screenY;
+    clipPoint[2] = screenZ;
+    clipPoint[3] = 1f;
+    Matrix.multiplyMV(worldPoint, 0, inverseViewProjectionMatrix, 0, clipPoint, 0);
+    for (int k = 0; k < 3; k++) {
+      worldPoint[k] /= worldPoint[3];
+    }
+  }
 
-    worldBoundaryPoses[0].toMatrix(modelMatrix, 0);
-    cardObject.updateModelMatrix(modelMatrix, scaleFactor);
-    cardObject.draw(viewMatrix, projectionMatrix, colorCorrectionRgba, tintColor);
+  /** Maps a card coordinate, -1 to 1, into the face of the card texture. */
+  private static float toTexCoord(float faceMin, float cardCoordinate) {
+    float clamped = Math.max(-1f, Math.min(1f, cardCoordinate));
+    return faceMin + (clamped + 1f) / 2f * FACE_SIZE;
   }
 
   private static float[] convertHexToColor(int colorHex) {
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import periodictable.common.helpers.MappedAssets;
+import periodictable.common.rendering.BitmapDecoder;
+import periodictable.common.rendering.GlWorkScheduler;
+import periodictable.common.rendering.KtxTexture;
+import periodictable.common.rendering.TextureResidencyManager;
+import periodictable.common.rendering.TextureUploadJob;
+
+/**
+ * The card textures packed into a few atlas pages at build time by {@code
+ * periodictable.tools.AtlasPacker}. The atlas stands in for a card until its own full-resolution
+ * texture is uploaded: a card is drawn by addressing its region of a page, so all cards on the same
+ * page share one texture and one bind.
+ *
+ * <p>Pages are only loaded ahead of time, through {@link #prefetchPage}, so a card in view never
+ * waits on a page as well as on its own texture. They are decoded with all of their mip levels on a
+ * background thread and uploaded over a few frames by a {@link GlWorkScheduler}. Page textures are
+ * registered with a {@link TextureResidencyManager}, and an evicted page is loaded again when it is
+ * next prefetched. Apart from {@link #load}, all methods must be called on the OpenGL thread.
+ */
+public class CardAtlas {
+  private static final String TAG = CardAtlas.class.getSimpleName();
+
+  public static final String ATLAS_DIRECTORY = "models/atlas/";
+  private static final String INDEX_FILE_NAME = "atlas.idx";
+  private static final String PAGE_FILE_FORMAT = "page_%d.jpg";
+  // Region keys are relative to this directory.
+  private static final String TEXTURES_DIRECTORY = "models/textures/";
+
+  /** 'ATLS' */
+  private static final int MAGIC = 0x41544C53;
+  private static final int VERSION = 1;
+
+  // Above the keys used by CardTextureCache, so both can share a TextureResidencyManager.
+  private static final long RESIDENCY_KEY_BASE = 1L << 32;
+  // How long the upload of a page needed in view may wait for frame budget.
+  private static final long UPLOAD_DEADLINE_NANOS = 200_000_000L;
+
+  /** Where a card texture is located in the atlas. */
+  public static class Region {
+    public final int page;
+    /**
+     * Offset and scale of the texture coordinates, as taken by {@link
+     * periodictable.common.rendering.ObjectRenderer#draw(float[], float[], float[], float[], int,
+     * float[])}.
+     */
+    public final float[] texCoordTransform;
+
+    Region(int page, float[] texCoordTransform) {
+      this.page = page;
+      this.texCoordTransform = texCoordTransform;
+    }
+  }
+
+  private final AssetManager assets;
+  private final TextureResidencyManager residencyManager;
+  private final GlWorkScheduler scheduler;
+  private final CardTextureDiskCache diskCache;
+  private final TextureResidencyManager.EvictionListener evictionListener = this::onEvicted;
+  // By card content ordinal and image index, null where a card is not packed.
+  private final Region[][] regions;
+  private final int[] pageTextures;
+  private final boolean[] pageRequested;
+  // Whether each requested page is not needed in view yet, so its upload can wait.
+  private final boolean[] pagePrefetched;
+  // The upload of each page that is queued but not done, to raise its priority by.
+  private final TextureUploadJob.Callback[] pageUploads;
+  // Pages loaded in the background and not yet uploaded, with all of their mip levels.
+  private final AtomicReferenceArray<KtxTexture> loadedPages;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final AtomicInteger decodingPageCount = new AtomicInteger();
+
+  private CardAtlas(
+      AssetManager assets,
+      TextureResidencyManager residencyManager,
+      GlWorkScheduler scheduler,
+      CardTextureDiskCache diskCache,
+      Region[][] regions,
+      int pageCount) {
+    this.assets = assets;
+    this.residencyManager = residencyManager;
+    this.scheduler = scheduler;
+    this.diskCache = diskCache;
+    this.regions = regions;
+    pageTextures = new int[pageCount];
+    pageRequested = new boolean[pageCount];
+    pagePrefetched = new boolean[pageCount];
+    pageUploads = new TextureUploadJob.Callback[pageCount];
+    loadedPages = new AtomicReferenceArray<>(pageCount);
+  }
+
+  /**
+   * Reads the atlas index from the assets, and finds the region of each card of the images in the
+   * element index. The pages are only shipped as JPEGs, which are decoded.
+   *
+   * @param residencyManager Tracks the memory of the uploaded pages.
+   * @param scheduler Runs the page uploads on the OpenGL thread.
+   * @param diskCache Where decoded pages are kept across launches, or null to always decode.
+   * @throws IOException If the atlas was not packed into this build, or its index is invalid.
+   */
+  public static CardAtlas load(
+      AssetManager assets,
+      TextureResidencyManager residencyManager,
+      GlWorkScheduler scheduler,
+      CardTextureDiskCache diskCache,
+      ElementIndex elementIndex)
+      throws IOException {
+    Index index = Index.read(assets, ATLAS_DIRECTORY);
+    return new CardAtlas(
+        assets,
+        residencyManager,
+        scheduler,
+        diskCache,
+        index.getRegionsByImage(elementIndex),
+        index.pageCount);
+  }
+
+  /** The regions and page count of an atlas packed by {@code periodictable.tools.AtlasPacker}. */
+  static class Index {
+    final Map<String, Region> regions;
+    final int pageCount;
+
+    private Index(Map<String, Region> regions, int pageCount) {
+      this.regions = regions;
+      this.pageCount = pageCount;
+    }
+
+    /**
+     * Reads the index of the atlas in the given asset directory.
+     *
+     * @throws IOException If the atlas was not packed into this build, or its index is invalid.
+     */
+    static Index read(AssetManager assets, String directory) throws IOException {
+      try (DataInputStream in =
+          new DataInputStream(new BufferedInputStream(assets.open(directory + INDEX_FILE_NAME)))) {
+        if (in.readInt() != MAGIC) {
+          throw new IOException("Not a card atlas index");
+        }
+        int version = in.readUnsignedShort();
+        if (version != VERSION) {
+          throw new IOException("Unsupported card atlas version " + version);
+        }
+        float pageWidth = in.readUnsignedShort();
+        float pageHeight = in.readUnsignedShort();
+        int pageCount = in.readUnsignedShort();
+        int regionCount = in.readUnsignedShort();
+
+        Map<String, Region> regions = new HashMap<>();
+        for (int i = 0; i < regionCount; i++) {
+          String key = in.readUTF();
+          int page = in.readUnsignedByte();
+          float u0 = in.readUnsignedShort() / pageWidth;
+          float v0 = in.readUnsignedShort() / pageHeight;
+          float u1 = u0 + in.readUnsignedShort() / pageWidth;
+          float v1 = v0 + in.readUnsignedShort() / pageHeight;
+          // The fragment shader flips v to address the texture from the top-left, so the offset
+          // is taken from the bottom edge of the region.
+          float[] texCoordTransform = {u0, 1f - v1, u1 - u0, v1 - v0};
+          regions.put(TEXTURES_DIRECTORY + key, new Region(page, texCoordTransform));
+        }
+        return new Index(regions, pageCount);
+      }
+    }
+
+    /**
+     * Returns the region of each card content of the images in the element index, by content
+     * ordinal and image index, or null where a card is not packed. Resolved once, so cards are
+     * looked up by index while drawing.
+     */
+    Region[][] getRegionsByImage(ElementIndex elementIndex) {
+      CardContent[] contents = CardContent.values();
+      Region[][] regionsByImage = new Region[contents.length][elementIndex.getImageCount()];
+      for (CardContent content : contents) {
+        for (int i = 0; i < elementIndex.getImageCount(); i++) {
+          regionsByImage[content.ordinal()][i] = regions.get(elementIndex.getAssetPath(i, content));
+        }
+      }
+      return regionsByImage;
+    }
+  }
+
+  /**
+   * Reads an atlas page with all of its mip levels, in the given format if it was converted for
+   * this build, or else decoded from the JPEG unless it is in the disk cache.
+   *
+   * @param directory The asset directory of the atlas.
+   * @param textureFormat The compressed format to read the page in, or null to decode the JPEG.
+   * @param diskCache Where the decoded page is kept across launches, or null.
+   * @throws IOException If the page could not be read.
+   */
+  static KtxTexture readPage(
+      AssetManager assets,
+      String directory,
+      int page,
+      CardTextureFormat textureFormat,
+      CardTextureDiskCache diskCache)
+      throws IOException {
+    String assetPath = directory + String.format(PAGE_FILE_FORMAT, page);
+    if (textureFormat != null) {
+      try {
+        return KtxTexture.parse(MappedAssets.map(assets, textureFormat.getAssetPath(assetPath)));
+      } catch (IOException e) {
+        Log.w(TAG, "No " + textureFormat + " version of " + assetPath + ", decoding it");
+      }
+    }
+    ByteBuffer data = MappedAssets.map(assets, assetPath);
+    CardTextureDiskCache.Entry cached =
+        diskCache == null ? null : diskCache.get(assetPath, data, BitmapDecoder.FULL_SIZE);
+    if (cached != null) {
+      return cached.texture;
+    }
+    // Pages are few and long-lived, so they are not pooled, but decoded to RGB_565 at full size.
+    Bitmap bitmap =
+        BitmapDecoder.decode(
+            data,
+            /*opaque=*/ true,
+            BitmapDecoder.FULL_SIZE,
+            /*pool=*/ null,
+            new BitmapFactory.Options());
+    KtxTexture texture = BitmapDecoder.buildMipChain(bitmap, /*pool=*/ null);
+    bitmap.recycle();
+    if (diskCache != null) {
+      diskCache.put(
+          assetPath, data, BitmapDecoder.FULL_SIZE, texture, CardBitmapLoader.FULL_RESOLUTION);
+    }
+    return texture;
+  }
+
+  /**
+   * Returns the region of a card content of the image with the given index in the whole database,
+   * or null if it is not packed.
+   */
+  public Region getRegion(int imageIndex, CardContent content) {
+    Region[] contentRegions = regions[content.ordinal()];
+    return imageIndex < 0 || imageIndex >= contentRegions.length
+        ? null
+        : contentRegions[imageIndex];
+  }
+
+  /**
+   * Returns the texture of an atlas page, or 0 unless it is resident. Does not start loading the
+   * page, but a page that is being prefetched is uploaded as urgently as one in view from then on.
+   */
+  public int getPageTexture(int page) {
+    if (pageTextures[page] != 0) {
+      residencyManager.touch(RESIDENCY_KEY_BASE + page);
+    } else if (pagePrefetched[page]) {
+      pagePrefetched[page] = false;
+      if (pageUploads[page] != null) {
+        scheduler.raiseUploadPriority(
+            pageUploads[page],
+            GlWorkScheduler.PRIORITY_NORMAL,
+            System.nanoTime() + UPLOAD_DEADLINE_NANOS);
+      }
+    }
+    return pageTextures[page];
+  }
+
+  /**
+   * Starts loading an atlas page ahead of time, unless it is loaded or loading already, or too many
+   * pages are being decoded.
+   *
+   * @param maxPending Number of pages being decoded above which nothing new is requested.
+   * @return Whether the page is loaded or being loaded.
+   */
+  public boolean prefetchPage(int page, int maxPending) {
+    if (pageTextures[page] != 0 || pageRequested[page]) {
+      return true;
+    }
+    if (decodingPageCount.get() >= maxPending) {
+      return false;
+    }
+    requestPage(page);
+    return true;
+  }
+
+  /**
+   * Schedules the upload of the pages decoded since the last call. Should be called once per
+   * frame.
+   */
+  public void uploadPendingOnGlThread() {
+    for (int page = 0; page < pageTextures.length; page++) {
+      KtxTexture texture = loadedPages.getAndSet(page, null);
+      if (texture == null) {
+        continue;
+      }
+      int uploadedPage = page;
+      int internalFormat = texture.getGlInternalFormat();
+      TextureUploadJob.Callback callback =
+          new TextureUploadJob.Callback() {
+            @Override
+            public void onUploaded(int textureId) {
+              pageUploads[uploadedPage] = null;
+              pageTextures[uploadedPage] = textureId;
+              residencyManager.add(
+                  RESIDENCY_KEY_BASE + uploadedPage,
+                  textureId,
+                  texture.getDataSize(),
+                  evictionListener);
+            }
+
+            @Override
+            public void onUploadFailed() {
+              // Loaded again the next time it is needed.
+              pageUploads[uploadedPage] = null;
+              pageRequested[uploadedPage] = false;
+            }
+          };
+      pageUploads[page] = callback;
+      if (pagePrefetched[page]) {
+        scheduler.submitUpload(
+            texture,
+            internalFormat,
+            GlWorkScheduler.PRIORITY_LOW,
+            GlWorkScheduler.NO_DEADLINE,
+            callback);
+      } else {
+        scheduler.submitUpload(
+            texture,
+            internalFormat,
+            GlWorkScheduler.PRIORITY_NORMAL,
+            System.nanoTime() + UPLOAD_DEADLINE_NANOS,
+            callback);
+      }
+    }
+  }
+
+  /** Stops the decode thread. Uploaded page textures are left to the EGL context. */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  private void onEvicted(long key) {
+    int page = (int) (key - RESIDENCY_KEY_BASE);
+    pageTextures[page] = 0;
+    pageRequested[page] = false;
+  }
+
+  private void requestPage(int page) {
+    pageRequested[page] = true;
+    pagePrefetched[page] = true;
+    decodingPageCount.incrementAndGet();
+    executor.execute(
+        () -> {
+          decodePage(page);
+          decodingPageCount.decrementAndGet();
+        });
+  }
+
+  private void decodePage(int page) {
+    try {
+      KtxTexture texture =
+          readPage(assets, ATLAS_DIRECTORY, page, /*textureFormat=*/ null, diskCache);
+      loadedPages.set(page, texture);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to decode atlas page " + page, e);
+    }
+  }
+}
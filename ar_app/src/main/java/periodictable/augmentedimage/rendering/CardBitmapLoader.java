@@ -0,0 +1,403 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import periodictable.common.rendering.BitmapDecoder;
+import periodictable.common.rendering.BitmapPool;
+import periodictable.common.rendering.KtxTexture;
+
+/**
+ * Decodes card bitmaps on a small background worker pool, so neither the UI thread nor the OpenGL
+ * thread waits on JPEG decoding. Cards packed as GPU-compressed KTX files are read as the set
+ * {@link CardTextureFormat} without decoding, and those packed as JPEGs are decoded no larger than
+ * needed for the card's size on screen, into bitmaps reused from a {@link BitmapPool}, and their
+ * mip chain is built here too. Both are read from the memory-mapped {@link CardContentPack} by
+ * image index, and decoded cards are kept in a {@link CardTextureDiskCache} for later launches.
+ * The shared template is loaded the same way, from the loose asset when it is not in the pack.
+ * Pending requests are ordered by how recently their card was tapped, then by how large the card
+ * is on screen. Loaded textures are handed back through {@link #poll()} for upload on the OpenGL
+ * thread.
+ *
+ * <p>{@link #request}, {@link #cancel} and {@link #poll} must all be called from the same thread,
+ * normally the OpenGL thread.
+ */
+public class CardBitmapLoader {
+  private static final String TAG = CardBitmapLoader.class.getSimpleName();
+
+  private static final int MAX_WORKER_THREADS = 2;
+  private static final long KEEP_ALIVE_SECONDS = 5;
+  private static final int CONTENT_COUNT = CardContent.values().length;
+  // Enough for a few full-size RGB_565 cards, or many smaller ones.
+  private static final long BITMAP_POOL_BYTES = 8L * 1024 * 1024;
+  // Cards are decoded at least this large, e.g. when prefetched before they are on screen.
+  private static final int MIN_TARGET_SIZE = 256;
+
+  /** The resolution of content that was not subsampled, so is as sharp as it gets. */
+  public static final int FULL_RESOLUTION = Integer.MAX_VALUE;
+
+  /** A pending or completed decode of one card content. */
+  public static class Request implements Runnable, Comparable<Request> {
+    public final int imageIndex;
+    public final String imageName;
+    public final CardContent content;
+    private final long tapTimeNanos;
+    private final float screenSize;
+    private final int targetSize;
+    private final CardBitmapLoader loader;
+
+    private volatile boolean cancelled;
+    // Written by the worker, read after the request is handed back through the completed queue.
+    private KtxTexture texture;
+    private CardTextureFormat textureFormat;
+    private int resolution;
+    // The JPEG the texture was decoded from, to key it in the disk cache.
+    private ByteBuffer source;
+
+    private Request(
+        CardBitmapLoader loader,
+        int imageIndex,
+        String imageName,
+        CardContent content,
+        long tapTimeNanos,
+        float screenSize) {
+      this.loader = loader;
+      this.imageIndex = imageIndex;
+      this.imageName = imageName;
+      this.content = content;
+      this.tapTimeNanos = tapTimeNanos;
+      this.screenSize = screenSize;
+      targetSize = loader.getTargetSize(screenSize);
+    }
+
+    /** Returns the texture with all of its mip levels, or null if the content could not be read. */
+    public KtxTexture getTexture() {
+      return texture;
+    }
+
+    /**
+     * Returns the format of a compressed {@link #getTexture()}, or null if the texture was decoded
+     * from the JPEG.
+     */
+    public CardTextureFormat getTextureFormat() {
+      return textureFormat;
+    }
+
+    /**
+     * Returns the smaller side of the texture, or {@link #FULL_RESOLUTION} if the content was not
+     * subsampled.
+     */
+    public int getResolution() {
+      return resolution;
+    }
+
+    /** Returns when the card was last tapped, or 0 if it never was. */
+    public long getTapTimeNanos() {
+      return tapTimeNanos;
+    }
+
+    /** Returns whether the content was requested ahead of time, before its card was in view. */
+    public boolean isPrefetch() {
+      return tapTimeNanos == 0 && screenSize == 0;
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public void run() {
+      if (cancelled) {
+        return;
+      }
+      long startNanos = System.nanoTime();
+      boolean decoded = load();
+      loader.recordLoadTime(System.nanoTime() - startNanos);
+      loader.completed.add(this);
+      if (decoded && loader.diskCache != null) {
+        // After handing the texture over, so the upload does not wait for the write.
+        loader.diskCache.put(
+            content.getAssetPath(imageName), source, targetSize, texture, resolution);
+      }
+    }
+
+    /** Loads the texture, and returns whether it was decoded from the JPEG. */
+    private boolean load() {
+      CardContentPack pack = loader.pack;
+      String assetPath = content.getAssetPath(imageName);
+      CardContentPack.Entry entry = pack == null ? null : pack.getEntry(imageIndex, content);
+      if (content == CardContent.TEMPLATE
+          && (entry == null || entry.compressed && loader.textureFormat == null)) {
+        // Without the pack, or a format to read its template in, cards can still show the
+        // template, which is also a loose asset.
+        loadAsset(assetPath);
+        return false;
+      }
+      if (entry == null) {
+        Log.e(TAG, "No card content for " + imageName);
+        return false;
+      }
+      if (entry.compressed) {
+        CardTextureFormat format = loader.textureFormat;
+        if (format == null) {
+          // Only GPUs without OpenGL ES 3.0, which ARCore does not run on, lack both formats.
+          Log.e(TAG, "The GPU cannot read the compressed texture of " + assetPath);
+          return false;
+        }
+        try {
+          // The levels are views of the mapped pack, so they are not copied until upload.
+          texture = KtxTexture.parse(entry.data);
+          textureFormat = format;
+          resolution = FULL_RESOLUTION;
+        } catch (IOException e) {
+          Log.e(TAG, "Corrupt " + format + " texture for " + assetPath, e);
+        }
+        return false;
+      }
+      source = entry.data;
+      CardTextureDiskCache.Entry cached =
+          loader.diskCache == null ? null : loader.diskCache.get(assetPath, source, targetSize);
+      if (cached != null) {
+        texture = cached.texture;
+        resolution = cached.resolution;
+        return false;
+      }
+      try {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        Bitmap bitmap =
+            BitmapDecoder.decode(source, entry.opaque, targetSize, loader.bitmapPool, options);
+        texture = BitmapDecoder.buildMipChain(bitmap, loader.bitmapPool);
+        resolution =
+            options.inSampleSize == 1
+                ? FULL_RESOLUTION
+                : Math.min(bitmap.getWidth(), bitmap.getHeight());
+        loader.bitmapPool.put(bitmap);
+        return true;
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to decode card content for " + imageName, e);
+        return false;
+      }
+    }
+
+    private void loadAsset(String assetPath) {
+      try {
+        Bitmap bitmap =
+            BitmapDecoder.decodeAsset(loader.assets, assetPath, targetSize, loader.bitmapPool);
+        texture = BitmapDecoder.buildMipChain(bitmap, loader.bitmapPool);
+        resolution = FULL_RESOLUTION;
+        loader.bitmapPool.put(bitmap);
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to decode " + assetPath, e);
+      }
+    }
+
+    @Override
+    public int compareTo(Request other) {
+      // Most recently tapped first, then largest on screen first.
+      if (tapTimeNanos != other.tapTimeNanos) {
+        return Long.compare(other.tapTimeNanos, tapTimeNanos);
+      }
+      return Float.compare(other.screenSize, screenSize);
+    }
+  }
+
+  private final AssetManager assets;
+  private final CardContentPack pack;
+  private final CardTextureDiskCache diskCache;
+  private final ThreadPoolExecutor executor;
+  private volatile CardTextureFormat textureFormat;
+  private volatile float pixelsPerScreenSize;
+  private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_BYTES);
+  private final ConcurrentLinkedQueue<Request> completed = new ConcurrentLinkedQueue<>();
+  // Requests handed to the executor and not yet polled, keyed by image index and content.
+  private final Map<Integer, Request> pending = new HashMap<>();
+  private final long createdNanos = System.nanoTime();
+  private final AtomicBoolean firstLoadLogged = new AtomicBoolean();
+
+  /**
+   * @param assets Where the loose template is read from when it is not in the pack.
+   * @param pack The content of all cards, or null if it could not be opened, in which case every
+   *     load but the template's fails and cards show the template.
+   * @param diskCache Where decoded cards are kept across launches, or null to always decode.
+   */
+  public CardBitmapLoader(
+      AssetManager assets, CardContentPack pack, CardTextureDiskCache diskCache) {
+    this.assets = assets;
+    this.pack = pack;
+    this.diskCache = diskCache;
+    final AtomicInteger threadCount = new AtomicInteger();
+    ThreadFactory threadFactory =
+        runnable ->
+            new Thread(
+                () -> {
+                  Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                  runnable.run();
+                },
+                TAG + "-" + threadCount.incrementAndGet());
+    int threads = Math.min(MAX_WORKER_THREADS, Runtime.getRuntime().availableProcessors());
+    executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new PriorityBlockingQueue<>(),
+            threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Sets the compressed format to read card content in, or null if the GPU supports none, in which
+   * case only content packed as a JPEG or PNG loads. Only affects requests that have not started
+   * yet.
+   */
+  public void setTextureFormat(CardTextureFormat textureFormat) {
+    this.textureFormat = textureFormat;
+  }
+
+  /** Returns the compressed format card content is read in, or null if there is none. */
+  public CardTextureFormat getTextureFormat() {
+    return textureFormat;
+  }
+
+  /**
+   * Sets how many pixels a card of screen size 1 covers, i.e. the focal length of the camera in
+   * pixels, so cards are decoded at the size they are shown. Cards are decoded at full size until
+   * this is set.
+   */
+  public void setPixelsPerScreenSize(float pixelsPerScreenSize) {
+    this.pixelsPerScreenSize = pixelsPerScreenSize;
+  }
+
+  /**
+   * Returns the smallest bitmap side a card of the given screen size needs, rounded up to a power
+   * of two so a card moving slightly closer does not need a new decode, or {@link
+   * BitmapDecoder#FULL_SIZE}.
+   */
+  public int getTargetSize(float screenSize) {
+    if (pixelsPerScreenSize <= 0) {
+      return BitmapDecoder.FULL_SIZE;
+    }
+    float pixels = Math.min(screenSize * pixelsPerScreenSize, 1 << 30);
+    int targetSize = Integer.highestOneBit(Math.max((int) Math.ceil(pixels) - 1, 1)) << 1;
+    return Math.max(targetSize, MIN_TARGET_SIZE);
+  }
+
+  /** Returns the pool decoded bitmaps are taken from, e.g. to clear it when trimming memory. */
+  public BitmapPool getBitmapPool() {
+    return bitmapPool;
+  }
+
+  /**
+   * Queues a decode of the given card content, unless one is already pending. A pending decode that
+   * has not started yet is requeued if the new request has a higher priority, e.g. when a
+   * prefetched card comes into view.
+   *
+   * @param tapTimeNanos When the card was last tapped, or 0 if it never was.
+   * @param screenSize Approximate size of the card on screen. Larger cards are decoded first.
+   */
+  public void request(
+      int imageIndex, String imageName, CardContent content, long tapTimeNanos, float screenSize) {
+    int key = key(imageIndex, content);
+    Request existing = pending.get(key);
+    if (existing != null
+        && (existing.tapTimeNanos >= tapTimeNanos && existing.screenSize >= screenSize
+            || !executor.remove(existing))) {
+      return;
+    }
+    Request request =
+        new Request(this, imageIndex, imageName, content, tapTimeNanos, screenSize);
+    pending.put(key, request);
+    executor.execute(request);
+  }
+
+  /** Cancels all pending decodes for the given image, e.g. when its card stops tracking. */
+  public void cancel(int imageIndex) {
+    Iterator<Request> it = pending.values().iterator();
+    while (it.hasNext()) {
+      Request request = it.next();
+      if (request.imageIndex == imageIndex) {
+        request.cancelled = true;
+        executor.remove(request);
+        it.remove();
+      }
+    }
+  }
+
+  /** Returns the number of decodes that are queued, running or not yet polled. */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Returns the next completed decode, or null if there is none. Cancelled requests are skipped.
+   */
+  public Request poll() {
+    Request request;
+    while ((request = completed.poll()) != null) {
+      if (!request.cancelled) {
+        pending.remove(key(request.imageIndex, request.content));
+        return request;
+      }
+    }
+    return null;
+  }
+
+  /** Stops the worker threads. Queued decodes are dropped. */
+  public void shutdown() {
+    executor.shutdownNow();
+    bitmapPool.clear();
+  }
+
+  /**
+   * Logs how long the first load took and how long after startup it finished, which bounds how
+   * soon the first card can appear. Later loads are logged when debug logging is enabled.
+   */
+  private void recordLoadTime(long loadNanos) {
+    if (firstLoadLogged.compareAndSet(false, true)) {
+      long sinceCreatedNanos = System.nanoTime() - createdNanos;
+      Log.i(
+          TAG,
+          "First card content loaded in "
+              + loadNanos / 1_000_000
+              + " ms, "
+              + sinceCreatedNanos / 1_000_000
+              + " ms after startup");
+    } else if (Log.isLoggable(TAG, Log.DEBUG)) {
+      Log.d(TAG, "Card content loaded in " + loadNanos / 1000 + " us");
+    }
+  }
+
+  private static int key(int imageIndex, CardContent content) {
+    return imageIndex * CONTENT_COUNT + content.ordinal();
+  }
+}
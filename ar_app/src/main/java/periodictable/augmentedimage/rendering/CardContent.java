@@ -0,0 +1,42 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+/** The content shown on an element card. Tapping a card toggles between info and picture. */
+public enum CardContent {
+  /** The element information sheet. */
+  INFO("models/textures/element_info/%s"),
+  /** A photograph of the element. */
+  PICTURE("models/textures/element_pictures/%s"),
+  /** The blank card shown when the element has no content. */
+  TEMPLATE("models/textures/template.png");
+
+  private final String assetPathFormat;
+
+  CardContent(String assetPathFormat) {
+    this.assetPathFormat = assetPathFormat;
+  }
+
+  /** Returns the asset path of this content for the augmented image with the given name. */
+  public String getAssetPath(String imageName) {
+    return String.format(assetPathFormat, imageName);
+  }
+
+  /** Returns the content shown after the card is tapped. */
+  public CardContent toggle() {
+    return this == INFO ? PICTURE : INFO;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.content.res.AssetManager;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import periodictable.common.helpers.MappedAssets;
+
+/**
+ * The content of all element cards, packed at build time into a single file by {@code
+ * periodictable.tools.ContentPacker}. The pack is mapped once, and the content of a card is a
+ * slice of it found through a fixed-size index by image index, so no file is opened or path
+ * formatted per card. Each card has one file: its ETC2 KTX file where it was converted, read as
+ * {@link CardTextureFormat#ETC2} or {@link CardTextureFormat#ETC1}, otherwise its source JPEG or
+ * PNG. Thread safe.
+ */
+public class CardContentPack {
+  public static final String PACK_PATH = "models/cards.pack";
+
+  /** 'CPAK' */
+  private static final int MAGIC = 0x4350414B;
+  private static final int VERSION = 3;
+  private static final int HEADER_BYTES = 16;
+  private static final int ENTRY_BYTES = 16;
+  // Entry formats.
+  private static final int FORMAT_JPEG = 1;
+  private static final int FORMAT_KTX = 3;
+  // INFO and PICTURE; the template has a single slot after those of all images.
+  private static final int CONTENTS_PER_IMAGE = 2;
+
+  /** Where a card's content is in the pack. */
+  public static class Entry {
+    /** The packed file, from position 0 to its limit. Shares the pack's mapped memory. */
+    public final ByteBuffer data;
+    public final int width;
+    public final int height;
+    /** Whether the data is a KTX file of GPU-compressed mip levels, rather than a JPEG or PNG. */
+    public final boolean compressed;
+    /** Whether the data is a JPEG or a KTX file, which have no alpha, rather than a PNG. */
+    public final boolean opaque;
+
+    Entry(ByteBuffer data, int width, int height, boolean compressed, boolean opaque) {
+      this.data = data;
+      this.width = width;
+      this.height = height;
+      this.compressed = compressed;
+      this.opaque = opaque;
+    }
+  }
+
+  private final ByteBuffer pack;
+  private final int imageCount;
+
+  private CardContentPack(ByteBuffer pack, int imageCount) {
+    this.pack = pack;
+    this.imageCount = imageCount;
+  }
+
+  /**
+   * Maps the pack and checks its header.
+   *
+   * @throws IOException If the pack is missing, of another version, or truncated.
+   */
+  public static CardContentPack open(AssetManager assets) throws IOException {
+    ByteBuffer pack = MappedAssets.map(assets, PACK_PATH);
+    if (pack.remaining() < HEADER_BYTES || pack.getInt(0) != MAGIC) {
+      throw new IOException("Not a card content pack");
+    }
+    int version = pack.getShort(4) & 0xFFFF;
+    if (version != VERSION) {
+      throw new IOException("Unsupported card content pack version " + version);
+    }
+    int imageCount = pack.getShort(6) & 0xFFFF;
+    int entryCount = pack.getInt(12);
+    if (pack.get(8) != CONTENTS_PER_IMAGE
+        || entryCount != imageCount * CONTENTS_PER_IMAGE + 1
+        || pack.remaining() < HEADER_BYTES + entryCount * ENTRY_BYTES) {
+      throw new IOException("Card content pack index does not match its header");
+    }
+    return new CardContentPack(pack, imageCount);
+  }
+
+  /** Returns the number of images the pack has content for. */
+  public int getImageCount() {
+    return imageCount;
+  }
+
+  /**
+   * Returns the file of a card's content, or null if the pack has none.
+   *
+   * @param imageIndex Index of the augmented image in the database. Ignored for the template.
+   */
+  public Entry getEntry(int imageIndex, CardContent content) {
+    int position = getEntryPosition(imageIndex, content);
+    if (position < 0) {
+      return null;
+    }
+    int offset = pack.getInt(position);
+    int length = pack.getInt(position + 4);
+    if (length == 0) {
+      return null;
+    }
+    if (offset < 0 || length < 0 || offset > pack.limit() - length) {
+      // Only a corrupt pack points outside of itself.
+      throw new IllegalStateException("Card content pack entry out of bounds");
+    }
+    ByteBuffer data = pack.duplicate();
+    data.limit(offset + length).position(offset);
+    int format = pack.get(position + 12);
+    return new Entry(
+        data.slice(),
+        pack.getShort(position + 8) & 0xFFFF,
+        pack.getShort(position + 10) & 0xFFFF,
+        format == FORMAT_KTX,
+        format == FORMAT_JPEG || format == FORMAT_KTX);
+  }
+
+  /**
+   * Returns the larger side of a card's content in pixels, without slicing its data, or 0 if the
+   * pack has none.
+   *
+   * @param imageIndex Index of the augmented image in the database. Ignored for the template.
+   */
+  public int getSize(int imageIndex, CardContent content) {
+    int position = getEntryPosition(imageIndex, content);
+    if (position < 0 || pack.getInt(position + 4) == 0) {
+      return 0;
+    }
+    return Math.max(pack.getShort(position + 8) & 0xFFFF, pack.getShort(position + 10) & 0xFFFF);
+  }
+
+  /** Returns the position of an entry in the index, or -1 if the image index is out of range. */
+  private int getEntryPosition(int imageIndex, CardContent content) {
+    int slot;
+    if (content == CardContent.TEMPLATE) {
+      slot = imageCount * CONTENTS_PER_IMAGE;
+    } else if (imageIndex >= 0 && imageIndex < imageCount) {
+      slot = imageIndex * CONTENTS_PER_IMAGE + content.ordinal();
+    } else {
+      return -1;
+    }
+    return HEADER_BYTES + slot * ENTRY_BYTES;
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Loads the cards next to a detected card ahead of time. Users sweep the phone across the table,
+ * so the cells in the same period and group as the last detected card are the likeliest to be
+ * detected next.
+ *
+ * <p>Neighbours of the most recent detections are loaded first, and only a few decodes are handed
+ * to the {@link CardTextureCache} at a time so prefetching never delays the cards in view. The
+ * {@link CardAtlas} page holding a neighbour is loaded too when there is room, to stand in for the
+ * card if it comes into view before its own texture. All methods must be called on the OpenGL
+ * thread.
+ */
+public class CardPrefetcher {
+  // Prefetches are only requested while fewer decodes than these are pending.
+  private static final int MAX_PENDING_DECODES = 2;
+  private static final int MAX_PENDING_PAGES = 1;
+  // Older neighbours are dropped beyond this, as the user has likely moved on.
+  private static final int MAX_QUEUED = 16;
+
+  private final PeriodicTableGrid grid;
+  private final ElementIndex elementIndex;
+  private final CardTextureCache textureCache;
+  private final CardAtlas atlas;
+  private final CardTextLayouts textLayouts;
+  private final Deque<Integer> queue = new ArrayDeque<>();
+
+  /**
+   * @param atlas The atlas shown while cards load, or null if there is none.
+   * @param textLayouts Lays out info cards as text, or null if they are drawn from their images.
+   */
+  public CardPrefetcher(
+      PeriodicTableGrid grid,
+      ElementIndex elementIndex,
+      CardTextureCache textureCache,
+      CardAtlas atlas,
+      CardTextLayouts textLayouts) {
+    this.grid = grid;
+    this.elementIndex = elementIndex;
+    this.textureCache = textureCache;
+    this.atlas = atlas;
+    this.textLayouts = textLayouts;
+  }
+
+  /** Queues the neighbours of an image that has just reached full tracking. */
+  public void onFullTracking(int imageIndex) {
+    for (int neighbour : grid.getNeighbours(imageIndex)) {
+      queue.remove(neighbour);
+      queue.addFirst(neighbour);
+    }
+    while (queue.size() > MAX_QUEUED) {
+      queue.removeLast();
+    }
+  }
+
+  /** Hands queued prefetches to the loaders while they have room. Call once per frame. */
+  public void prefetchPendingOnGlThread() {
+    while (!queue.isEmpty() && prefetch(queue.peekFirst())) {
+      queue.removeFirst();
+    }
+  }
+
+  private boolean prefetch(int imageIndex) {
+    // Cards first appear with their info side up.
+    if (textLayouts != null && textLayouts.hasText(imageIndex)) {
+      // Drawn as text over the template, there is no info image to load.
+      return true;
+    }
+    CardAtlas.Region region = atlas == null ? null : atlas.getRegion(imageIndex, CardContent.INFO);
+    if (region != null) {
+      // Only a stand-in, so it is skipped rather than waited for when pages are already decoding.
+      atlas.prefetchPage(region.page, MAX_PENDING_PAGES);
+    }
+    return textureCache.prefetch(
+        imageIndex, elementIndex.getImageName(imageIndex), CardContent.INFO, MAX_PENDING_DECODES);
+  }
+}
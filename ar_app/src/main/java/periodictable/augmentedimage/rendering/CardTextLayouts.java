@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import periodictable.common.rendering.SdfTextRenderer;
+import periodictable.common.rendering.SdfTextRenderer.TextRun;
+import periodictable.common.rendering.SdfTextRenderer.TextRunBuilder;
+
+/**
+ * Lays out the text of element info cards from {@link ElementData}, to draw over the blank card
+ * template instead of a pre-rendered info image. Each card is laid out the first time it is drawn
+ * and kept for the lifetime of the GL surface. Must be used on the OpenGL thread.
+ *
+ * <p>Text is laid out in card coordinates: -1 to 1 across the card face, with y pointing down the
+ * face, see {@link AugmentedImageRenderer#drawText}.
+ */
+public class CardTextLayouts {
+  /** The font the cards are drawn in, built by {@code periodictable.tools.SdfFontBuilder}. */
+  public static final String FONT_PATH = "models/text/card_font.sdf";
+
+  // Widest a line may be before it is shrunk to fit the face.
+  private static final float MAX_LINE_WIDTH = 1.7f;
+
+  private static final float NUMBER_SIZE = 0.22f;
+  private static final float NUMBER_X = -0.82f;
+  private static final float NUMBER_BASELINE = -0.62f;
+  private static final float SYMBOL_SIZE = 0.75f;
+  private static final float SYMBOL_BASELINE = 0.08f;
+  private static final float NAME_SIZE = 0.2f;
+  private static final float NAME_BASELINE = 0.38f;
+  private static final float WEIGHT_SIZE = 0.16f;
+  private static final float WEIGHT_BASELINE = 0.6f;
+  private static final float CONFIGURATION_SIZE = 0.13f;
+  private static final float CONFIGURATION_BASELINE = 0.82f;
+  // Electron counts are written as superscripts: smaller and raised.
+  private static final float SUPERSCRIPT_SCALE = 0.65f;
+  private static final float SUPERSCRIPT_RAISE = 0.4f;
+
+  private final SdfTextRenderer textRenderer;
+  // By image index: the element shown, or null without data, and its text once laid out.
+  private final ElementData.Element[] elements;
+  private final TextRun[] runs;
+
+  public CardTextLayouts(
+      ElementData elementData, ElementIndex elementIndex, SdfTextRenderer textRenderer) {
+    this.textRenderer = textRenderer;
+    elements = new ElementData.Element[elementIndex.getImageCount()];
+    for (int i = 0; i < elements.length; i++) {
+      elements[i] = elementData.getByAtomicNumber(elementIndex.getAtomicNumber(i));
+    }
+    runs = new TextRun[elements.length];
+  }
+
+  /** Returns whether the info card of an image is drawn as text, i.e. there is data for it. */
+  public boolean hasText(int imageIndex) {
+    return imageIndex < elements.length && elements[imageIndex] != null;
+  }
+
+  /**
+   * Returns the laid out text of an image's info card, laying it out on first use, or null if
+   * there is no data for the image.
+   *
+   * @param imageIndex Index of the augmented image in the database.
+   */
+  public TextRun getRun(int imageIndex) {
+    if (!hasText(imageIndex)) {
+      return null;
+    }
+    if (runs[imageIndex] == null) {
+      runs[imageIndex] = layOut(elements[imageIndex]);
+    }
+    return runs[imageIndex];
+  }
+
+  private TextRun layOut(ElementData.Element element) {
+    TextRunBuilder builder = textRenderer.newTextRun();
+    String number = Integer.toString(element.atomicNumber);
+    builder.add(number, NUMBER_X, NUMBER_BASELINE, fit(builder, number, NUMBER_SIZE));
+    addCentered(builder, element.symbol, SYMBOL_BASELINE, SYMBOL_SIZE);
+    addCentered(builder, element.name, NAME_BASELINE, NAME_SIZE);
+    addCentered(builder, element.atomicWeight, WEIGHT_BASELINE, WEIGHT_SIZE);
+    addConfiguration(builder, element.electronConfiguration);
+    return builder.buildOnGlThread();
+  }
+
+  private static void addCentered(TextRunBuilder builder, String text, float baseline, float size) {
+    size = fit(builder, text, size);
+    builder.add(text, -builder.measure(text, size) / 2f, baseline, size);
+  }
+
+  /** Adds an electron configuration, writing the count after each subshell as a superscript. */
+  private static void addConfiguration(TextRunBuilder builder, String configuration) {
+    float width = 0f;
+    for (int i = 0; i < configuration.length(); i++) {
+      float scale = isElectronCount(configuration, i) ? SUPERSCRIPT_SCALE : 1f;
+      width += scale * builder.measure(configuration.substring(i, i + 1), 1f);
+    }
+    float size = Math.min(CONFIGURATION_SIZE, MAX_LINE_WIDTH / Math.max(width, 1e-3f));
+    float x = -width * size / 2f;
+    for (int i = 0; i < configuration.length(); i++) {
+      String c = configuration.substring(i, i + 1);
+      if (isElectronCount(configuration, i)) {
+        x =
+            builder.add(
+                c,
+                x,
+                CONFIGURATION_BASELINE - SUPERSCRIPT_RAISE * size,
+                SUPERSCRIPT_SCALE * size);
+      } else {
+        x = builder.add(c, x, CONFIGURATION_BASELINE, size);
+      }
+    }
+  }
+
+  /** Returns whether a character is a digit following a subshell letter, e.g. the 2 of "3s2". */
+  private static boolean isElectronCount(String configuration, int index) {
+    if (!Character.isDigit(configuration.charAt(index))) {
+      return false;
+    }
+    for (int i = index - 1; i >= 0; i--) {
+      char c = configuration.charAt(i);
+      if (!Character.isDigit(c)) {
+        return c == 's' || c == 'p' || c == 'd' || c == 'f';
+      }
+    }
+    return false;
+  }
+
+  /** Returns a size no larger than the given one at which the text fits across the face. */
+  private static float fit(TextRunBuilder builder, String text, float size) {
+    float width = builder.measure(text, size);
+    return width > MAX_LINE_WIDTH ? size * MAX_LINE_WIDTH / width : size;
+  }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.util.Log;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import periodictable.common.rendering.GlWorkScheduler;
+import periodictable.common.rendering.KtxTexture;
+import periodictable.common.rendering.TextureResidencyManager;
+import periodictable.common.rendering.TextureUploadJob;
+import periodictable.common.rendering.TextureUtil;
+
+/**
+ * Caches the GL textures of the element cards, keyed by augmented image index and {@link
+ * CardContent}. Each texture is decoded once in the background by a {@link CardBitmapLoader},
+ * uploaded once over a few frames by a {@link GlWorkScheduler} and then handed out by id. Until a
+ * card's texture is ready the previously shown content of that card, or the template, is returned
+ * instead. Card textures are registered with a {@link TextureResidencyManager}; evicted ones are
+ * decoded again the next time they are drawn. A texture decoded smaller than its card is now shown
+ * is decoded again at the larger size. All methods must be called on the OpenGL thread.
+ */
+public class CardTextureCache {
+  private static final String TAG = CardTextureCache.class.getSimpleName();
+
+  private static final int NO_TEXTURE = 0;
+  // The template is shared by every image, so it is requested under an index no image has.
+  private static final int TEMPLATE_IMAGE_INDEX = -1;
+  private static final int CONTENT_COUNT = CardContent.values().length;
+  // How long an upload may wait for frame budget, by how soon the user expects to see it.
+  private static final long TAPPED_UPLOAD_DEADLINE_NANOS = 50_000_000L;
+  private static final long VISIBLE_UPLOAD_DEADLINE_NANOS = 200_000_000L;
+
+  private final CardContentPack pack;
+  private final CardBitmapLoader loader;
+  private final TextureResidencyManager residencyManager;
+  private final GlWorkScheduler scheduler;
+  private final TextureResidencyManager.EvictionListener evictionListener = this::onEvicted;
+
+  // Texture ids per image index, one slot per CardContent ordinal.
+  private final Map<Integer, int[]> textures = new HashMap<>();
+  // Resolution of each texture in textures, as given by CardBitmapLoader.Request#getResolution().
+  private final Map<Integer, int[]> resolutions = new HashMap<>();
+  // Highest resolution of the uploads in flight for each slot, or 0 if there are none. Decoded
+  // content leaves the loader's pending requests when its upload starts, and the upload takes
+  // frames, during which the card must not request the same decode again.
+  private final Map<Integer, int[]> uploadingResolutions = new HashMap<>();
+  private int templateTexture = NO_TEXTURE;
+  // Whether the template was uploaded or its decode requested, so it is loaded only once.
+  private boolean templateRequested;
+
+  private int hitCount;
+  private int missCount;
+  private int uploadCount;
+
+  /** @param pack The content of all cards, or null if it could not be opened. */
+  public CardTextureCache(
+      CardContentPack pack,
+      CardBitmapLoader loader,
+      TextureResidencyManager residencyManager,
+      GlWorkScheduler scheduler) {
+    this.pack = pack;
+    this.loader = loader;
+    this.residencyManager = residencyManager;
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * Returns the texture for the given card. On a miss, a background decode is requested and the
+   * texture of the content the card showed before, or the template, is returned until the new
+   * texture has been uploaded by {@link #uploadPendingOnGlThread()}.
+   *
+   * @param imageIndex Index of the augmented image in the database.
+   * @param imageName Name of the augmented image, used to resolve the asset path.
+   * @param content The content to show on the card.
+   * @param tapTimeNanos When the card was last tapped, or 0 if it never was.
+   * @param screenSize Approximate size of the card on screen, used to prioritize decoding.
+   * @return The texture object handle.
+   */
+  public int getTexture(
+      int imageIndex, String imageName, CardContent content, long tapTimeNanos, float screenSize) {
+    if (content == CardContent.TEMPLATE) {
+      return getTemplateTexture();
+    }
+
+    int[] slots = getSlots(imageIndex);
+    if (slots[content.ordinal()] != NO_TEXTURE) {
+      hitCount++;
+      residencyManager.touch(residencyKey(imageIndex, content.ordinal()));
+      int targetSize = loader.getTargetSize(screenSize);
+      if (resolutions.get(imageIndex)[content.ordinal()] < targetSize
+          && uploadingResolutions.get(imageIndex)[content.ordinal()] < targetSize) {
+        // Keep showing the smaller texture until the sharper one is uploaded.
+        loader.request(imageIndex, imageName, content, tapTimeNanos, screenSize);
+      }
+      return slots[content.ordinal()];
+    }
+
+    missCount++;
+    if (uploadingResolutions.get(imageIndex)[content.ordinal()] == 0) {
+      loader.request(imageIndex, imageName, content, tapTimeNanos, screenSize);
+    }
+    for (int i = 0; i < CONTENT_COUNT; i++) {
+      if (slots[i] != NO_TEXTURE) {
+        residencyManager.touch(residencyKey(imageIndex, i));
+        return slots[i];
+      }
+    }
+    return getTemplateTexture();
+  }
+
+  /**
+   * Decodes and uploads the given card content ahead of time at the lowest priority, unless it is
+   * already cached or too many decodes are pending.
+   *
+   * @param maxPending Number of pending decodes above which nothing new is requested.
+   * @return Whether the content is cached or being loaded.
+   */
+  public boolean prefetch(int imageIndex, String imageName, CardContent content, int maxPending) {
+    int[] slots = textures.get(imageIndex);
+    if (slots != null
+        && (slots[content.ordinal()] != NO_TEXTURE
+            || uploadingResolutions.get(imageIndex)[content.ordinal()] != 0)) {
+      return true;
+    }
+    if (loader.getPendingCount() >= maxPending) {
+      return false;
+    }
+    loader.request(imageIndex, imageName, content, /*tapTimeNanos=*/ 0, /*screenSize=*/ 0);
+    return true;
+  }
+
+  /**
+   * Returns whether the texture of the given card content is uploaded, so that {@link #getTexture}
+   * returns it rather than a stand-in, e.g. to draw a thumbnail until it is.
+   */
+  public boolean isCached(int imageIndex, CardContent content) {
+    if (content == CardContent.TEMPLATE) {
+      return true;
+    }
+    int[] slots = textures.get(imageIndex);
+    return slots != null && slots[content.ordinal()] != NO_TEXTURE;
+  }
+
+  /**
+   * Returns the shared template texture, or 0 until it is loaded. The template is packed as a KTX
+   * file with its mip chain built offline, so it is uploaded on first use. Otherwise, e.g. when
+   * the pack could not be opened, it is decoded and its mip chain built in the background like
+   * card content, and uploaded by {@link #uploadPendingOnGlThread()}.
+   */
+  public int getTemplateTexture() {
+    if (!templateRequested) {
+      templateRequested = true;
+      templateTexture = uploadPackedTemplate();
+      if (templateTexture != NO_TEXTURE) {
+        uploadCount++;
+      } else {
+        loader.request(
+            TEMPLATE_IMAGE_INDEX,
+            /*imageName=*/ null,
+            CardContent.TEMPLATE,
+            /*tapTimeNanos=*/ 0,
+            /*screenSize=*/ Float.MAX_VALUE);
+      }
+    }
+    return templateTexture;
+  }
+
+  /** Uploads the compressed template from the pack, or returns 0 if it cannot be read as is. */
+  private int uploadPackedTemplate() {
+    CardContentPack.Entry entry =
+        pack == null ? null : pack.getEntry(TEMPLATE_IMAGE_INDEX, CardContent.TEMPLATE);
+    CardTextureFormat format = loader.getTextureFormat();
+    if (entry == null || !entry.compressed || format == null) {
+      return NO_TEXTURE;
+    }
+    try {
+      return TextureUtil.createTexture(KtxTexture.parse(entry.data), format.getGlInternalFormat());
+    } catch (IOException e) {
+      Log.e(TAG, "Corrupt " + format + " template texture", e);
+      return NO_TEXTURE;
+    }
+  }
+
+  /** Uploads the textures loaded since the last call. Should be called once per frame. */
+  public void uploadPendingOnGlThread() {
+    CardBitmapLoader.Request request;
+    while ((request = loader.poll()) != null) {
+      if (request.content == CardContent.TEMPLATE) {
+        onTemplateLoaded(request);
+        continue;
+      }
+      int[] slots = getSlots(request.imageIndex);
+      int slot = request.content.ordinal();
+      KtxTexture texture = request.getTexture();
+      if (texture == null) {
+        if (slots[slot] == NO_TEXTURE) {
+          slots[slot] = getTemplateTexture();
+          resolutions.get(request.imageIndex)[slot] = CardBitmapLoader.FULL_RESOLUTION;
+        }
+        continue;
+      }
+      CardTextureFormat format = request.getTextureFormat();
+      int imageIndex = request.imageIndex;
+      int resolution = request.getResolution();
+      int internalFormat =
+          format == null ? texture.getGlInternalFormat() : format.getGlInternalFormat();
+      int[] uploading = uploadingResolutions.get(imageIndex);
+      uploading[slot] = Math.max(uploading[slot], resolution);
+      TextureUploadJob.Callback callback =
+          new TextureUploadJob.Callback() {
+            @Override
+            public void onUploaded(int textureId) {
+              CardTextureCache.this.onUploaded(imageIndex, slot, resolution, textureId, texture);
+            }
+
+            @Override
+            public void onUploadFailed() {
+              onUploadDone(imageIndex, slot, resolution);
+            }
+          };
+      long now = System.nanoTime();
+      if (request.getTapTimeNanos() != 0) {
+        scheduler.submitUpload(
+            texture,
+            internalFormat,
+            GlWorkScheduler.PRIORITY_HIGH,
+            now + TAPPED_UPLOAD_DEADLINE_NANOS,
+            callback);
+      } else if (request.isPrefetch()) {
+        scheduler.submitUpload(
+            texture,
+            internalFormat,
+            GlWorkScheduler.PRIORITY_LOW,
+            GlWorkScheduler.NO_DEADLINE,
+            callback);
+      } else {
+        scheduler.submitUpload(
+            texture,
+            internalFormat,
+            GlWorkScheduler.PRIORITY_NORMAL,
+            now + VISIBLE_UPLOAD_DEADLINE_NANOS,
+            callback);
+      }
+    }
+  }
+
+  /** Cancels the pending decodes of an image, e.g. when its card stops tracking. */
+  public void cancelPending(int imageIndex) {
+    loader.cancel(imageIndex);
+  }
+
+  /** Deletes all cached textures. */
+  public void clear() {
+    for (int imageIndex : textures.keySet()) {
+      for (int i = 0; i < CONTENT_COUNT; i++) {
+        deleteTexture(imageIndex, i);
+      }
+    }
+    textures.clear();
+    resolutions.clear();
+    uploadingResolutions.clear();
+    if (templateTexture != NO_TEXTURE) {
+      TextureUtil.deleteTexture(templateTexture);
+      templateTexture = NO_TEXTURE;
+    }
+    templateRequested = false;
+  }
+
+  private void onTemplateLoaded(CardBitmapLoader.Request request) {
+    KtxTexture texture = request.getTexture();
+    if (texture == null || !templateRequested || templateTexture != NO_TEXTURE) {
+      return;
+    }
+    // The template is a single texture shared by every card, so it is uploaded at once.
+    templateTexture = TextureUtil.createTexture(texture, texture.getGlInternalFormat());
+    uploadCount++;
+  }
+
+  private void onUploaded(
+      int imageIndex, int slot, int resolution, int textureId, KtxTexture texture) {
+    onUploadDone(imageIndex, slot, resolution);
+    int[] slots = getSlots(imageIndex);
+    int[] slotResolutions = resolutions.get(imageIndex);
+    if (slots[slot] != NO_TEXTURE
+        && slots[slot] != templateTexture
+        && slotResolutions[slot] >= resolution) {
+      // A sharper texture for this content was in flight at the same time, and finished first.
+      TextureUtil.deleteTexture(textureId);
+      return;
+    }
+    // Replaces a texture decoded at a lower resolution, if there is one.
+    deleteTexture(imageIndex, slot);
+    slots[slot] = textureId;
+    slotResolutions[slot] = resolution;
+    residencyManager.add(
+        residencyKey(imageIndex, slot), textureId, texture.getDataSize(), evictionListener);
+    uploadCount++;
+  }
+
+  /** Ends an upload in flight, whether it succeeded or not. */
+  private void onUploadDone(int imageIndex, int slot, int resolution) {
+    int[] uploading = uploadingResolutions.get(imageIndex);
+    // Only the sharpest upload is tracked; one started earlier at a lower resolution does not end
+    // it.
+    if (uploading != null && uploading[slot] == resolution) {
+      uploading[slot] = 0;
+    }
+  }
+
+  private int[] getSlots(int imageIndex) {
+    int[] slots = textures.get(imageIndex);
+    if (slots == null) {
+      slots = new int[CONTENT_COUNT];
+      textures.put(imageIndex, slots);
+      resolutions.put(imageIndex, new int[CONTENT_COUNT]);
+      uploadingResolutions.put(imageIndex, new int[CONTENT_COUNT]);
+    }
+    return slots;
+  }
+
+  private void deleteTexture(int imageIndex, int slot) {
+    int[] slots = textures.get(imageIndex);
+    if (slots[slot] != NO_TEXTURE && slots[slot] != templateTexture) {
+      residencyManager.remove(residencyKey(imageIndex, slot));
+      TextureUtil.deleteTexture(slots[slot]);
+    }
+    slots[slot] = NO_TEXTURE;
+  }
+
+  private void onEvicted(long key) {
+    int[] slots = textures.get((int) (key / CONTENT_COUNT));
+    if (slots != null) {
+      slots[(int) (key % CONTENT_COUNT)] = NO_TEXTURE;
+    }
+  }
+
+  private static long residencyKey(int imageIndex, int slot) {
+    return (long) imageIndex * CONTENT_COUNT + slot;
+  }
+
+  public int getHitCount() {
+    return hitCount;
+  }
+
+  public int getMissCount() {
+    return missCount;
+  }
+
+  public int getUploadCount() {
+    return uploadCount;
+  }
+}
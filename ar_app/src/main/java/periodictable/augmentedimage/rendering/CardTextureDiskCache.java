@@ -0,0 +1,249 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.os.Build;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import periodictable.common.rendering.BitmapDecoder;
+import periodictable.common.rendering.KtxTexture;
+
+/**
+ * Keeps the card textures decoded on this device, with all of their mip levels, as KTX files in
+ * the app's cache directory, so later launches read them back with a single mapped read instead
+ * of decoding the JPEGs again. Entries are keyed by the name of the texture, a checksum of the
+ * encoded image, the size it was decoded for and the device's build fingerprint, so entries of
+ * changed images or another system version are never read. Each file ends with a checksum of its
+ * content; a corrupt entry is deleted and the texture decoded again. Beyond the given size, the
+ * least recently used entries are deleted.
+ *
+ * <p>Only decoded textures are cached: GPU-compressed textures are mapped from the APK as they
+ * are. All methods are thread safe and do disk I/O, so should be called on a background thread,
+ * or on the OpenGL thread only while loading what the first frame needs.
+ */
+public class CardTextureDiskCache {
+  private static final String TAG = CardTextureDiskCache.class.getSimpleName();
+
+  // Bump when the layout of the cached textures changes, e.g. their pixel format.
+  private static final int VERSION = 1;
+  private static final String FILE_SUFFIX = ".ktx";
+  // Resolution, then the CRC32 of everything before it.
+  private static final int TRAILER_BYTES = 4 + 8;
+  // Cards are decoded for power-of-two target sizes up to this, or at full size.
+  private static final int MAX_TARGET_SIZE = 4096;
+
+  /** A cached texture and the resolution it was decoded at. */
+  public static class Entry {
+    public final KtxTexture texture;
+    /** As given by {@link CardBitmapLoader.Request#getResolution()}. */
+    public final int resolution;
+
+    Entry(KtxTexture texture, int resolution) {
+      this.texture = texture;
+      this.resolution = resolution;
+    }
+  }
+
+  private final File directory;
+  private final long maxBytes;
+  // Checksums of the encoded images by name, computed once per launch.
+  private final Map<String, Long> sourceChecksums = new ConcurrentHashMap<>();
+
+  /**
+   * @param directory Where to keep the cached textures, e.g. a directory below {@link
+   *     android.content.Context#getCacheDir()}. Created when the first texture is cached.
+   * @param maxBytes The most disk space to use.
+   */
+  public CardTextureDiskCache(File directory, long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cached texture of an image decoded for the given target size, or a larger one, or
+   * null if there is none.
+   *
+   * @param name Names the image, e.g. its asset path.
+   * @param source The encoded image, from its position to its limit. Not modified.
+   * @param targetSize As passed to {@link BitmapDecoder#decode}.
+   */
+  public Entry get(String name, ByteBuffer source, int targetSize) {
+    long checksum = getSourceChecksum(name, source);
+    // A texture decoded for a larger size is as good, and saves a decode.
+    if (targetSize != BitmapDecoder.FULL_SIZE) {
+      for (int size = targetSize; size <= MAX_TARGET_SIZE; size *= 2) {
+        Entry entry = read(getFile(name, checksum, size));
+        if (entry != null) {
+          return entry;
+        }
+      }
+    }
+    return read(getFile(name, checksum, BitmapDecoder.FULL_SIZE));
+  }
+
+  /**
+   * Caches a texture decoded from an image. Failures are logged and otherwise ignored.
+   *
+   * @param name Names the image, as passed to {@link #get}.
+   * @param source The encoded image the texture was decoded from. Not modified.
+   * @param targetSize The target size the texture was decoded for.
+   * @param resolution As given by {@link CardBitmapLoader.Request#getResolution()}.
+   */
+  public void put(
+      String name, ByteBuffer source, int targetSize, KtxTexture texture, int resolution) {
+    File tempFile = null;
+    try {
+      File file = getFile(name, getSourceChecksum(name, source), targetSize);
+      if (!directory.isDirectory() && !directory.mkdirs()) {
+        throw new IOException("Could not create " + directory);
+      }
+      // Written to a temporary file first, so a crash never leaves a partial entry behind.
+      tempFile = File.createTempFile("card", ".tmp", directory);
+      try (RandomAccessFile out = new RandomAccessFile(tempFile, "rw");
+          FileChannel channel = out.getChannel()) {
+        texture.write(channel);
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        trailer.putInt(resolution);
+        trailer.putLong(checksum(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())));
+        trailer.flip();
+        while (trailer.hasRemaining()) {
+          channel.write(trailer);
+        }
+      }
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("Could not rename to " + file);
+      }
+      tempFile = null;
+      trim();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to cache the texture of " + name, e);
+    } finally {
+      if (tempFile != null) {
+        tempFile.delete();
+      }
+    }
+  }
+
+  private Entry read(File file) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try (RandomAccessFile in = new RandomAccessFile(file, "r");
+        FileChannel channel = in.getChannel()) {
+      long size = channel.size();
+      if (size < TRAILER_BYTES) {
+        throw new IOException("Truncated");
+      }
+      ByteBuffer data =
+          channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+      int contentBytes = (int) size - TRAILER_BYTES;
+      int resolution = data.getInt(contentBytes);
+      long checksum = data.getLong(contentBytes + 4);
+      data.limit(contentBytes);
+      if (checksum(data) != checksum) {
+        throw new IOException("Checksum mismatch");
+      }
+      Entry entry = new Entry(KtxTexture.parse(data), resolution);
+      // Marks the entry as recently used.
+      file.setLastModified(System.currentTimeMillis());
+      return entry;
+    } catch (IOException e) {
+      Log.w(TAG, "Deleting corrupt cached texture " + file.getName(), e);
+      file.delete();
+      return null;
+    }
+  }
+
+  /** Deletes the least recently used entries until the cache fits in its size. */
+  private synchronized void trim() {
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+    if (files == null) {
+      return;
+    }
+    long totalBytes = 0;
+    for (File file : files) {
+      totalBytes += file.length();
+    }
+    if (totalBytes <= maxBytes) {
+      return;
+    }
+    long[] lastModified = new long[files.length];
+    Integer[] order = new Integer[files.length];
+    for (int i = 0; i < files.length; i++) {
+      lastModified[i] = files[i].lastModified();
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(lastModified[a], lastModified[b]));
+    for (int i = 0; i < order.length && totalBytes > maxBytes; i++) {
+      File file = files[order[i]];
+      long bytes = file.length();
+      if (file.delete()) {
+        totalBytes -= bytes;
+      }
+    }
+  }
+
+  private File getFile(String name, long sourceChecksum, int targetSize) {
+    String key =
+        VERSION + "|" + Build.FINGERPRINT + "|" + name + "|" + sourceChecksum + "|" + targetSize;
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+      StringBuilder fileName = new StringBuilder(digest.length * 2 + FILE_SUFFIX.length());
+      for (byte b : digest) {
+        fileName.append(Character.forDigit((b >> 4) & 0xF, 16));
+        fileName.append(Character.forDigit(b & 0xF, 16));
+      }
+      return new File(directory, fileName.append(FILE_SUFFIX).toString());
+    } catch (NoSuchAlgorithmException | IOException e) {
+      // SHA-1 and UTF-8 are always available on Android.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private long getSourceChecksum(String name, ByteBuffer source) {
+    Long checksum = sourceChecksums.get(name);
+    if (checksum == null) {
+      checksum = checksum(source);
+      sourceChecksums.put(name, checksum);
+    }
+    return checksum;
+  }
+
+  /** Returns the CRC32 of the remaining bytes of a buffer, which is not modified. */
+  private static long checksum(ByteBuffer buffer) {
+    // CRC32.update(ByteBuffer) needs API level 26, so the data goes through a small array.
+    ByteBuffer data = buffer.duplicate();
+    byte[] chunk = new byte[16 * 1024];
+    CRC32 crc = new CRC32();
+    while (data.hasRemaining()) {
+      int count = Math.min(chunk.length, data.remaining());
+      data.get(chunk, 0, count);
+      crc.update(chunk, 0, count);
+    }
+    return crc.getValue();
+  }
+}
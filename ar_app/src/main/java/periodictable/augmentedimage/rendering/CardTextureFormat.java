@@ -0,0 +1,76 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES30;
+import periodictable.common.rendering.TextureUtil;
+
+/**
+ * The GPU-compressed card texture formats, converted at build time by {@code
+ * periodictable.tools.TextureCompressor} with their mip chains. Cards fall back to decoding the
+ * JPEG into an uncompressed texture, with a mip chain built in the background, when the GPU
+ * supports none of them.
+ *
+ * <p>The cards are opaque, so ETC2 RGB8 at 4 bits per pixel is used wherever it is available,
+ * which is every OpenGL ES 3.0 GPU and so every device ARCore runs on. ASTC 4x4 would take twice
+ * the memory and bandwidth for quality the cards do not need.
+ */
+public enum CardTextureFormat {
+  ETC2("etc2", GLES30.GL_COMPRESSED_RGB8_ETC2),
+  /** The ETC2 files only use ETC1-compatible blocks, so ES 2.0 GPUs can read them as ETC1. */
+  ETC1("etc2", GLES11Ext.GL_ETC1_RGB8_OES);
+
+  private static final String COMPRESSED_DIRECTORY = "compressed/";
+  private static final String ETC1_EXTENSION = "GL_OES_compressed_ETC1_RGB8_texture";
+
+  private final String directory;
+  private final int glInternalFormat;
+
+  CardTextureFormat(String directory, int glInternalFormat) {
+    this.directory = directory;
+    this.glInternalFormat = glInternalFormat;
+  }
+
+  /** Returns the format to upload the compressed data as. */
+  public int getGlInternalFormat() {
+    return glInternalFormat;
+  }
+
+  /** Returns the path of the compressed version of a texture asset, e.g. a card JPEG. */
+  public String getAssetPath(String assetPath) {
+    int extension = assetPath.lastIndexOf('.');
+    return COMPRESSED_DIRECTORY
+        + directory
+        + "/"
+        + (extension < 0 ? assetPath : assetPath.substring(0, extension))
+        + ".ktx";
+  }
+
+  /**
+   * Returns the smallest format supported by the current context, or null if none is. Must be
+   * called on the OpenGL thread.
+   */
+  public static CardTextureFormat selectOnGlThread() {
+    if (TextureUtil.isGles3OrLater()) {
+      return ETC2;
+    }
+    if (TextureUtil.hasExtension(ETC1_EXTENSION)) {
+      return ETC1;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.content.res.AssetManager;
+import java.io.IOException;
+import periodictable.common.rendering.KtxTexture;
+import periodictable.common.rendering.TextureUtil;
+
+/**
+ * Small thumbnails of every card content, packed at build time into a single atlas page by {@code
+ * periodictable.tools.AtlasPacker}. The page is uploaded once when the surface is created and kept
+ * for the lifetime of the surface, so a newly detected card can show its content in the very first
+ * frame while the full-resolution texture loads. Must be used on the OpenGL thread.
+ */
+public class CardThumbnails {
+  public static final String THUMBNAIL_DIRECTORY = "models/thumbnails/";
+
+  // By card content ordinal and image index, null where a card has no thumbnail.
+  private final CardAtlas.Region[][] regions;
+  private final int texture;
+
+  private CardThumbnails(CardAtlas.Region[][] regions, int texture) {
+    this.regions = regions;
+    this.texture = texture;
+  }
+
+  /**
+   * Reads and uploads the thumbnail page, and finds the thumbnail of each card of the images in the
+   * element index. It is small enough to do synchronously.
+   *
+   * @param textureFormat The compressed format to read the page in, or null to decode the JPEG.
+   * @param diskCache Where the decoded page is kept across launches, or null.
+   * @throws IOException If the thumbnails were not packed into this build.
+   */
+  public static CardThumbnails loadOnGlThread(
+      AssetManager assets,
+      CardTextureFormat textureFormat,
+      CardTextureDiskCache diskCache,
+      ElementIndex elementIndex)
+      throws IOException {
+    CardAtlas.Index index = CardAtlas.Index.read(assets, THUMBNAIL_DIRECTORY);
+    if (index.pageCount != 1) {
+      throw new IOException("Thumbnails span " + index.pageCount + " pages instead of one");
+    }
+    KtxTexture page =
+        CardAtlas.readPage(assets, THUMBNAIL_DIRECTORY, /*page=*/ 0, textureFormat, diskCache);
+    int texture =
+        TextureUtil.createTexture(
+            page,
+            page.isCompressed()
+                ? textureFormat.getGlInternalFormat()
+                : page.getGlInternalFormat());
+    return new CardThumbnails(index.getRegionsByImage(elementIndex), texture);
+  }
+
+  /**
+   * Returns the region of the thumbnail of a card content of the image with the given index in the
+   * whole database, or null if it has none.
+   */
+  public CardAtlas.Region getRegion(int imageIndex, CardContent content) {
+    CardAtlas.Region[] contentRegions = regions[content.ordinal()];
+    return imageIndex < 0 || imageIndex >= contentRegions.length
+        ? null
+        : contentRegions[imageIndex];
+  }
+
+  /** Returns the texture holding all thumbnails. */
+  public int getTexture() {
+    return texture;
+  }
+}
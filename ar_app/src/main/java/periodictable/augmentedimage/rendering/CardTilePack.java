@@ -0,0 +1,168 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.content.res.AssetManager;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import periodictable.common.helpers.MappedAssets;
+
+/**
+ * The tile pyramids of high-resolution card art, cut at build time by {@code
+ * periodictable.tools.TilePyramidBuilder} and streamed by {@link CardVirtualTextures}. Level 0 of
+ * a pyramid is the finest and each level halves the one before, down to a single tile. Tiles are
+ * JPEGs of {@link #getTileSize()} pixels square, with a border of {@link #getBorder()} pixels
+ * copied from their neighbours. The pack is mapped once and a tile found by index. Thread safe.
+ */
+public class CardTilePack {
+  public static final String PACK_PATH = "models/cards.tiles";
+
+  /** 'CTIL' */
+  private static final int MAGIC = 0x4354494C;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 16;
+  private static final int CARD_BYTES = 8;
+  private static final int TILE_BYTES = 8;
+  // INFO and PICTURE; the template has no pyramid.
+  private static final int CONTENTS_PER_IMAGE = 2;
+
+  private final ByteBuffer pack;
+  private final int imageCount;
+  private final int tileSize;
+  private final int border;
+  private final int tileCount;
+  private final int tilesStart;
+
+  private CardTilePack(ByteBuffer pack, int imageCount, int tileSize, int border, int tileCount) {
+    this.pack = pack;
+    this.imageCount = imageCount;
+    this.tileSize = tileSize;
+    this.border = border;
+    this.tileCount = tileCount;
+    tilesStart = HEADER_BYTES + imageCount * CONTENTS_PER_IMAGE * CARD_BYTES;
+  }
+
+  /**
+   * Maps the pack and checks its header.
+   *
+   * @throws IOException If the pack is missing, of another version, or truncated.
+   */
+  public static CardTilePack open(AssetManager assets) throws IOException {
+    ByteBuffer pack = MappedAssets.map(assets, PACK_PATH);
+    if (pack.remaining() < HEADER_BYTES || pack.getInt(0) != MAGIC) {
+      throw new IOException("Not a card tile pack");
+    }
+    int version = pack.getShort(4) & 0xFFFF;
+    if (version != VERSION) {
+      throw new IOException("Unsupported card tile pack version " + version);
+    }
+    int imageCount = pack.getShort(6) & 0xFFFF;
+    int tileSize = pack.getShort(8) & 0xFFFF;
+    int border = pack.get(10);
+    int tileCount = pack.getInt(12);
+    if (pack.get(11) != CONTENTS_PER_IMAGE
+        || tileSize <= 2 * border
+        || tileCount < 0
+        || pack.remaining()
+            < HEADER_BYTES
+                + (long) imageCount * CONTENTS_PER_IMAGE * CARD_BYTES
+                + (long) tileCount * TILE_BYTES) {
+      throw new IOException("Card tile pack index does not match its header");
+    }
+    return new CardTilePack(pack, imageCount, tileSize, border, tileCount);
+  }
+
+  /**
+   * Returns whether any card has a pyramid. Without art in {@code src/main/cardart} the build packs
+   * none, and cards are drawn from their regular textures only.
+   */
+  public boolean hasPyramids() {
+    for (int imageIndex = 0; imageIndex < imageCount; imageIndex++) {
+      if (getLevelCount(imageIndex, CardContent.INFO) > 0
+          || getLevelCount(imageIndex, CardContent.PICTURE) > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Returns the size of the tiles, border included, in pixels. */
+  public int getTileSize() {
+    return tileSize;
+  }
+
+  /** Returns the size of the border around the content of each tile, in pixels. */
+  public int getBorder() {
+    return border;
+  }
+
+  /** Returns the size of the content of each tile, without its border, in pixels. */
+  public int getContentSize() {
+    return tileSize - 2 * border;
+  }
+
+  /**
+   * Returns the number of levels of a card's pyramid, or 0 if it has none and is drawn from its
+   * regular texture only.
+   *
+   * @param imageIndex Index of the augmented image in the database.
+   */
+  public int getLevelCount(int imageIndex, CardContent content) {
+    if (content == CardContent.TEMPLATE || imageIndex < 0 || imageIndex >= imageCount) {
+      return 0;
+    }
+    return pack.get(cardPosition(imageIndex, content) + 4);
+  }
+
+  /**
+   * Returns the JPEG of a tile, from position 0 to its limit, sharing the pack's mapped memory.
+   *
+   * @param level The level of the tile, 0 being the finest. See {@link #getLevelCount}.
+   * @param x The column of the tile, from the left.
+   * @param y The row of the tile, from the top.
+   */
+  public ByteBuffer getTile(int imageIndex, CardContent content, int level, int x, int y) {
+    int levelCount = getLevelCount(imageIndex, content);
+    int tilesPerSide = level < 0 || level >= levelCount ? 0 : 1 << (levelCount - 1 - level);
+    if (x < 0 || x >= tilesPerSide || y < 0 || y >= tilesPerSide) {
+      throw new IllegalArgumentException("No tile " + x + "," + y + " at level " + level);
+    }
+    int tile = pack.getInt(cardPosition(imageIndex, content));
+    // The levels before this one, each a quarter of the one before.
+    for (int i = 0; i < level; i++) {
+      int side = 1 << (levelCount - 1 - i);
+      tile += side * side;
+    }
+    tile += y * tilesPerSide + x;
+    if (tile < 0 || tile >= tileCount) {
+      throw new IllegalStateException("Card tile pack entry out of bounds");
+    }
+    int position = tilesStart + tile * TILE_BYTES;
+    int offset = pack.getInt(position);
+    int length = pack.getInt(position + 4);
+    if (offset < 0 || length <= 0 || offset > pack.limit() - length) {
+      // Only a corrupt pack points outside of itself.
+      throw new IllegalStateException("Card tile pack entry out of bounds");
+    }
+    ByteBuffer data = pack.duplicate();
+    data.limit(offset + length).position(offset);
+    return data.slice();
+  }
+
+  private static int cardPosition(int imageIndex, CardContent content) {
+    return HEADER_BYTES + (imageIndex * CONTENTS_PER_IMAGE + content.ordinal()) * CARD_BYTES;
+  }
+}
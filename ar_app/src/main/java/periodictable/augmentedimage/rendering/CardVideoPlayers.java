@@ -0,0 +1,323 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.graphics.SurfaceTexture;
+import android.media.MediaPlayer;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.util.Log;
+import android.view.Surface;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Plays the video clips of element cards into external OES textures, through a small pool of
+ * {@link MediaPlayer}s each decoding into a {@link SurfaceTexture}. At most a fixed number of
+ * clips decode at once. A clip is paused as soon as its card is not drawn in a frame, e.g. when
+ * it leaves the view, and its decoder released when the card stops tracking or has not been drawn
+ * for a while, so the player can serve another card.
+ *
+ * <p>Clips are optional MP4 assets in {@value #VIDEO_DIRECTORY}, named after the image, e.g.
+ * {@code sodium.mp4} for {@code sodium.jpg}. They are stored uncompressed in the APK so the
+ * players can read them from the asset file descriptor, and played muted and looped. Apart from
+ * {@link #pauseAll()} and {@link #shutdown()}, methods must be called on the OpenGL thread.
+ */
+public class CardVideoPlayers {
+  private static final String TAG = CardVideoPlayers.class.getSimpleName();
+
+  private static final String VIDEO_DIRECTORY = "models/videos";
+  private static final String VIDEO_EXTENSION = ".mp4";
+  private static final int NO_IMAGE = -1;
+  // Frames a paused clip keeps its decoder, so glancing away and back resumes it at once.
+  private static final long RELEASE_AFTER_FRAMES = 30;
+
+  /** A clip being played for a card, with the texture its frames are in. */
+  public static class Video {
+    private final int textureId;
+    private final SurfaceTexture surfaceTexture;
+    private final Surface surface;
+    private final MediaPlayer mediaPlayer = new MediaPlayer();
+    private final float[] textureTransform = new float[16];
+    private final AtomicBoolean frameAvailable = new AtomicBoolean();
+    // Set on the main thread when the clip can start.
+    private volatile boolean prepared;
+    private int imageIndex = NO_IMAGE;
+    private boolean playing;
+    private boolean hasFrame;
+    private long lastUsedFrame;
+
+    private Video(int textureId) {
+      this.textureId = textureId;
+      surfaceTexture = new SurfaceTexture(textureId);
+      surfaceTexture.setOnFrameAvailableListener(texture -> frameAvailable.set(true));
+      surface = new Surface(surfaceTexture);
+      mediaPlayer.setOnPreparedListener(player -> prepared = true);
+      mediaPlayer.setOnErrorListener(
+          (player, what, extra) -> {
+            Log.w(TAG, "Video of card " + imageIndex + " failed: " + what + ", " + extra);
+            // Stays unprepared, so the card is drawn without it until the player is reused.
+            return true;
+          });
+    }
+
+    /** Returns the external OES texture holding the latest frame. */
+    public int getTextureId() {
+      return textureId;
+    }
+
+    /**
+     * Returns the transform from quad texture coordinates to the texture coordinates of the latest
+     * frame, see {@link SurfaceTexture#getTransformMatrix(float[])}.
+     */
+    public float[] getTextureTransform() {
+      return textureTransform;
+    }
+
+    /** Returns the width over the height of the clip. */
+    public float getAspectRatio() {
+      int height = mediaPlayer.getVideoHeight();
+      return height == 0 ? 1f : (float) mediaPlayer.getVideoWidth() / height;
+    }
+
+    private void start(AssetManager assets, String path) throws IOException {
+      mediaPlayer.reset();
+      prepared = false;
+      playing = false;
+      hasFrame = false;
+      frameAvailable.set(false);
+      try (AssetFileDescriptor descriptor = assets.openFd(path)) {
+        mediaPlayer.setDataSource(
+            descriptor.getFileDescriptor(), descriptor.getStartOffset(), descriptor.getLength());
+      }
+      mediaPlayer.setSurface(surface);
+      mediaPlayer.setLooping(true);
+      mediaPlayer.setVolume(0f, 0f);
+      mediaPlayer.prepareAsync();
+    }
+
+    private void pause() {
+      if (playing) {
+        mediaPlayer.pause();
+        playing = false;
+      }
+    }
+
+    /** Stops decoding and frees the decoder, keeping the player for another card. */
+    private void stop() {
+      mediaPlayer.reset();
+      prepared = false;
+      playing = false;
+      hasFrame = false;
+      imageIndex = NO_IMAGE;
+    }
+
+    private void release() {
+      mediaPlayer.release();
+      surface.release();
+      surfaceTexture.release();
+    }
+  }
+
+  private final AssetManager assets;
+  // Asset path of each image's clip by image index, or null if the image has none.
+  private final String[] videoPaths;
+  private final Video[] videos;
+  private int videoCount;
+  private long frame;
+
+  /**
+   * @param elementIndex The images of the database, or null to play no clips.
+   * @param maxActive The most clips decoding at once.
+   */
+  public CardVideoPlayers(AssetManager assets, ElementIndex elementIndex, int maxActive) {
+    this.assets = assets;
+    videos = new Video[maxActive];
+    videoPaths = new String[elementIndex == null ? 0 : elementIndex.getImageCount()];
+    if (videoPaths.length == 0) {
+      return;
+    }
+    Set<String> videoNames = new HashSet<>();
+    try {
+      String[] files = assets.list(VIDEO_DIRECTORY);
+      for (String file : files == null ? new String[0] : files) {
+        if (file.endsWith(VIDEO_EXTENSION)) {
+          videoNames.add(file.substring(0, file.length() - VIDEO_EXTENSION.length()));
+        }
+      }
+    } catch (IOException e) {
+      Log.w(TAG, "Card videos not available", e);
+    }
+    for (int i = 0; i < videoPaths.length; i++) {
+      String videoName = stripExtension(elementIndex.getImageName(i));
+      if (videoNames.contains(videoName)) {
+        videoPaths[i] = VIDEO_DIRECTORY + "/" + videoName + VIDEO_EXTENSION;
+      }
+    }
+  }
+
+  /** Returns whether the image with the given index has a clip. */
+  public boolean hasVideo(int imageIndex) {
+    return imageIndex < videoPaths.length && videoPaths[imageIndex] != null;
+  }
+
+  /**
+   * Plays the clip of a card in view, starting it if needed, and returns its latest frame, or null
+   * if there is none to draw yet: the clip is preparing, or every player is busy with a card drawn
+   * in this frame. Call once per frame for each card whose clip is shown.
+   *
+   * @param imageIndex Index of the augmented image in the database, see {@link #hasVideo(int)}.
+   */
+  public synchronized Video update(int imageIndex) {
+    Video video = find(imageIndex);
+    if (video == null) {
+      video = acquire();
+      if (video == null) {
+        return null;
+      }
+      try {
+        video.start(assets, videoPaths[imageIndex]);
+      } catch (IOException | IllegalStateException e) {
+        Log.e(TAG, "Failed to start " + videoPaths[imageIndex], e);
+        video.stop();
+        videoPaths[imageIndex] = null;
+        return null;
+      }
+      video.imageIndex = imageIndex;
+    }
+    video.lastUsedFrame = frame;
+    if (video.prepared && !video.playing) {
+      video.mediaPlayer.start();
+      video.playing = true;
+    }
+    if (video.frameAvailable.getAndSet(false)) {
+      video.surfaceTexture.updateTexImage();
+      video.surfaceTexture.getTransformMatrix(video.textureTransform);
+      video.hasFrame = true;
+    }
+    return video.hasFrame ? video : null;
+  }
+
+  /**
+   * Pauses the clips of the cards not drawn in this frame, and frees the decoders of those not
+   * drawn for a while. Call once at the end of each frame.
+   */
+  public synchronized void endFrame() {
+    for (int i = 0; i < videoCount; i++) {
+      Video video = videos[i];
+      if (video.imageIndex == NO_IMAGE || video.lastUsedFrame == frame) {
+        continue;
+      }
+      video.pause();
+      if (frame - video.lastUsedFrame > RELEASE_AFTER_FRAMES) {
+        video.stop();
+      }
+    }
+    frame++;
+  }
+
+  /** Frees the decoder of an image's clip at once, e.g. when it stops tracking. */
+  public synchronized void release(int imageIndex) {
+    Video video = find(imageIndex);
+    if (video != null) {
+      video.stop();
+    }
+  }
+
+  /** Pauses every clip, e.g. when the activity is paused. May be called on any thread. */
+  public synchronized void pauseAll() {
+    for (int i = 0; i < videoCount; i++) {
+      videos[i].pause();
+    }
+  }
+
+  /**
+   * Releases every player, whose textures went away with the previous EGL context. Players are
+   * created again as cards need them. Call when the GL surface is created.
+   */
+  public synchronized void onSurfaceCreated() {
+    shutdown();
+  }
+
+  /** Releases every player. May be called on any thread. */
+  public synchronized void shutdown() {
+    for (int i = 0; i < videoCount; i++) {
+      videos[i].release();
+    }
+    Arrays.fill(videos, null);
+    videoCount = 0;
+  }
+
+  private Video find(int imageIndex) {
+    for (int i = 0; i < videoCount; i++) {
+      if (videos[i].imageIndex == imageIndex) {
+        return videos[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns an idle player, creating one while under the limit, or else stops the one least
+   * recently drawn before this frame. Returns null if every player was drawn in this frame.
+   */
+  private Video acquire() {
+    Video leastRecentlyUsed = null;
+    for (int i = 0; i < videoCount; i++) {
+      Video video = videos[i];
+      if (video.imageIndex == NO_IMAGE) {
+        return video;
+      }
+      if (video.lastUsedFrame != frame
+          && (leastRecentlyUsed == null
+              || video.lastUsedFrame < leastRecentlyUsed.lastUsedFrame)) {
+        leastRecentlyUsed = video;
+      }
+    }
+    if (videoCount < videos.length) {
+      Video video = new Video(createExternalTexture());
+      videos[videoCount++] = video;
+      return video;
+    }
+    if (leastRecentlyUsed != null) {
+      leastRecentlyUsed.stop();
+    }
+    return leastRecentlyUsed;
+  }
+
+  private static int createExternalTexture() {
+    int[] textures = new int[1];
+    GLES20.glGenTextures(1, textures, 0);
+    int textureTarget = GLES11Ext.GL_TEXTURE_EXTERNAL_OES;
+    GLES20.glBindTexture(textureTarget, textures[0]);
+    GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(textureTarget, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLES20.glBindTexture(textureTarget, 0);
+    return textures[0];
+  }
+
+  private static String stripExtension(String imageName) {
+    int dot = imageName.lastIndexOf('.');
+    return dot < 0 ? imageName : imageName.substring(0, dot);
+  }
+}
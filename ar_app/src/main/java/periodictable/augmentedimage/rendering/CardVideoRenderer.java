@@ -0,0 +1,152 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.content.Context;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import periodictable.common.rendering.ShaderUtil;
+
+/**
+ * Renders the video clip of a card, see {@link CardVideoPlayers}, as a quad lying just above the
+ * card face, centered and keeping the clip's aspect ratio.
+ */
+public class CardVideoRenderer {
+  private static final String TAG = CardVideoRenderer.class.getSimpleName();
+
+  // Shader names.
+  private static final String VERTEX_SHADER_NAME = "shaders/card_video.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/card_video.frag";
+
+  private static final int COORDS_PER_VERTEX = 3;
+  private static final int TEXCOORDS_PER_VERTEX = 2;
+  private static final int FLOAT_SIZE = 4;
+
+  // A unit quad in the card plane, -1 to 1 as in the card model, as a triangle strip. The card's
+  // z axis points down the image, while video texture coordinates start at the bottom.
+  private static final float[] QUAD_COORDS = {
+    -1f, 0f, -1f, -1f, 0f, 1f, 1f, 0f, -1f, 1f, 0f, 1f,
+  };
+  private static final float[] QUAD_TEXCOORDS = {
+    0f, 1f, 0f, 0f, 1f, 1f, 1f, 0f,
+  };
+
+  // The largest part of the card face the clip covers.
+  private static final float VIDEO_SIZE = 0.8f;
+  // Above the card face, which is 0.01 above the card model's center, to not fight its depth.
+  private static final float VIDEO_LIFT = 0.02f;
+
+  private FloatBuffer quadCoords;
+  private FloatBuffer quadTexCoords;
+
+  private int program;
+  private int positionAttribute;
+  private int texCoordAttribute;
+  private int modelViewProjectionUniform;
+  private int texTransformUniform;
+  private int textureUniform;
+
+  // Temporary matrices allocated here to reduce number of allocations for each frame.
+  private final float[] modelMatrix = new float[16];
+  private final float[] modelViewMatrix = new float[16];
+  private final float[] modelViewProjectionMatrix = new float[16];
+
+  /**
+   * Allocates and initializes OpenGL resources needed by the video renderer. Must be called on the
+   * OpenGL thread.
+   *
+   * @param context Needed to access shader source.
+   */
+  public void createOnGlThread(Context context) throws IOException {
+    quadCoords =
+        ByteBuffer.allocateDirect(QUAD_COORDS.length * FLOAT_SIZE)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    quadCoords.put(QUAD_COORDS).position(0);
+    quadTexCoords =
+        ByteBuffer.allocateDirect(QUAD_TEXCOORDS.length * FLOAT_SIZE)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+    quadTexCoords.put(QUAD_TEXCOORDS).position(0);
+
+    int vertexShader =
+        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+    int fragmentShader =
+        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+
+    program = GLES20.glCreateProgram();
+    GLES20.glAttachShader(program, vertexShader);
+    GLES20.glAttachShader(program, fragmentShader);
+    GLES20.glLinkProgram(program);
+    GLES20.glUseProgram(program);
+    ShaderUtil.checkGLError(TAG, "Program creation");
+
+    positionAttribute = GLES20.glGetAttribLocation(program, "a_Position");
+    texCoordAttribute = GLES20.glGetAttribLocation(program, "a_TexCoord");
+    modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
+    texTransformUniform = GLES20.glGetUniformLocation(program, "u_TexTransform");
+    textureUniform = GLES20.glGetUniformLocation(program, "u_Texture");
+    ShaderUtil.checkGLError(TAG, "Program parameters");
+  }
+
+  /**
+   * Draws the latest frame of a card's clip over the card.
+   *
+   * @param video The clip, from {@link CardVideoPlayers#update(int)}.
+   */
+  public void draw(
+      float[] viewMatrix,
+      float[] projectionMatrix,
+      float[] cardPose,
+      float cardSize,
+      CardVideoPlayers.Video video) {
+    float halfEdge = cardSize / 2f;
+    float aspectRatio = video.getAspectRatio();
+    float halfWidth = aspectRatio >= 1f ? VIDEO_SIZE : VIDEO_SIZE * aspectRatio;
+    float halfHeight = aspectRatio >= 1f ? VIDEO_SIZE / aspectRatio : VIDEO_SIZE;
+    Matrix.translateM(modelMatrix, 0, cardPose, 0, 0f, VIDEO_LIFT * halfEdge, 0f);
+    Matrix.scaleM(modelMatrix, 0, halfWidth * halfEdge, 1f, halfHeight * halfEdge);
+    Matrix.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, modelMatrix, 0);
+    Matrix.multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, modelViewMatrix, 0);
+
+    GLES20.glUseProgram(program);
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, video.getTextureId());
+    GLES20.glUniform1i(textureUniform, 0);
+    GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
+    GLES20.glUniformMatrix4fv(texTransformUniform, 1, false, video.getTextureTransform(), 0);
+
+    GLES20.glVertexAttribPointer(
+        positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadCoords);
+    GLES20.glVertexAttribPointer(
+        texCoordAttribute, TEXCOORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadTexCoords);
+    GLES20.glEnableVertexAttribArray(positionAttribute);
+    GLES20.glEnableVertexAttribArray(texCoordAttribute);
+
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+    GLES20.glDisableVertexAttribArray(positionAttribute);
+    GLES20.glDisableVertexAttribArray(texCoordAttribute);
+    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+
+    ShaderUtil.checkGLError(TAG, "Draw");
+  }
+}
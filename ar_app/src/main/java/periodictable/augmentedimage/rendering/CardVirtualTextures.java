@@ -0,0 +1,577 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.GLES20;
+import android.os.Process;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import periodictable.common.rendering.BitmapDecoder;
+import periodictable.common.rendering.BitmapPool;
+import periodictable.common.rendering.GlWorkScheduler;
+import periodictable.common.rendering.ShaderUtil;
+import periodictable.common.rendering.TextureResidencyManager;
+import periodictable.common.rendering.TextureUtil;
+
+/**
+ * Draws cards with high-resolution art as virtual textures, so a card seen from up close stays
+ * sharp without ever holding its full-resolution art in memory. The art is a pyramid of tiles in a
+ * {@link CardTilePack}. Only the tiles on screen, at the level matching their size on screen, are
+ * decoded in the background and uploaded into a fixed-size tile cache texture, the least recently
+ * drawn tiles making room for new ones. Each card has a small page table texture that tells the
+ * fragment shader which cache slot holds each part of the card; parts whose tile is not loaded
+ * yet point at the finest loaded tile of a coarser level, so a card sharpens as its tiles arrive.
+ *
+ * <p>Cards are only drawn this way when they need more pixels than their regular texture has;
+ * otherwise {@link #update} returns 0 and the card is drawn as before. The cache texture is
+ * registered with a {@link TextureResidencyManager} and reallocated if evicted. All methods must
+ * be called on the OpenGL thread.
+ */
+public class CardVirtualTextures {
+  private static final String TAG = CardVirtualTextures.class.getSimpleName();
+
+  // Above the keys used by CardTextureCache and CardAtlas, so all can share a residency manager.
+  private static final long RESIDENCY_KEY = 2L << 32;
+  private static final int CONTENT_COUNT = CardContent.values().length;
+  private static final int NO_SLOT = -1;
+  private static final int PENDING = -2;
+  // Tiles queued for decoding at most. More are requested in later frames, as decodes finish.
+  private static final int MAX_PENDING_TILES = 16;
+  // The share of the cache one card may fill in a frame before it is drawn a level coarser.
+  private static final float MAX_CACHE_SHARE = 0.75f;
+  private static final long TILE_UPLOAD_DEADLINE_NANOS = 100_000_000L;
+  private static final long KEEP_ALIVE_SECONDS = 5;
+  // A few tiles, reused across decodes.
+  private static final long BITMAP_POOL_BYTES = 512L * 1024;
+
+  /** The tiles of one card content in the cache, and the page table pointing at them. */
+  private static class VirtualCard {
+    final int imageIndex;
+    final CardContent content;
+    final int levelCount;
+    // Tiles per side at level 0, and texels per side of the page table.
+    final int tilesPerSide;
+    // The cache slot of each tile by level, then row by row, or NO_SLOT or PENDING.
+    final int[][] slots;
+    final ByteBuffer pageTableData;
+    int pageTableTexture;
+    boolean pageTableDirty = true;
+    int drawLevel = -1;
+
+    VirtualCard(int imageIndex, CardContent content, int levelCount) {
+      this.imageIndex = imageIndex;
+      this.content = content;
+      this.levelCount = levelCount;
+      tilesPerSide = 1 << (levelCount - 1);
+      slots = new int[levelCount][];
+      for (int level = 0; level < levelCount; level++) {
+        int side = tilesPerSide >> level;
+        slots[level] = new int[side * side];
+        Arrays.fill(slots[level], NO_SLOT);
+      }
+      pageTableData =
+          ByteBuffer.allocateDirect(tilesPerSide * tilesPerSide * 4)
+              .order(ByteOrder.nativeOrder());
+    }
+  }
+
+  /** A tile to decode, coarser levels first so every card has a stand-in soon. */
+  private class TileRequest implements Runnable, Comparable<TileRequest> {
+    final VirtualCard card;
+    final int level;
+    final int x;
+    final int y;
+    final long sequence;
+    // Written by the worker, read after the request is handed back through the decoded queue.
+    ByteBuffer pixels;
+
+    TileRequest(VirtualCard card, int level, int x, int y, long sequence) {
+      this.card = card;
+      this.level = level;
+      this.x = x;
+      this.y = y;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public void run() {
+      try {
+        pixels = decode(tilePack.getTile(card.imageIndex, card.content, level, x, y));
+      } catch (IOException | RuntimeException e) {
+        Log.e(TAG, "Failed to decode a tile of card " + card.imageIndex, e);
+      }
+      decoded.add(this);
+    }
+
+    @Override
+    public int compareTo(TileRequest other) {
+      // Coarsest first, then most recently requested first, since the view moves on.
+      if (level != other.level) {
+        return Integer.compare(other.level, level);
+      }
+      return Long.compare(other.sequence, sequence);
+    }
+  }
+
+  /** Copies a decoded tile into its cache slot. */
+  private class TileUploadJob implements GlWorkScheduler.Job {
+    final TileRequest tile;
+
+    TileUploadJob(TileRequest tile) {
+      this.tile = tile;
+    }
+
+    @Override
+    public boolean runStep() {
+      int index = (tile.y * (tile.card.tilesPerSide >> tile.level)) + tile.x;
+      int slot = cacheTexture == 0 ? NO_SLOT : allocateSlot();
+      if (slot == NO_SLOT) {
+        // Every slot is on screen; the tile is requested again once one is free.
+        cancel();
+        return true;
+      }
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, cacheTexture);
+      GLES20.glTexSubImage2D(
+          GLES20.GL_TEXTURE_2D,
+          /*level=*/ 0,
+          (slot % slotsPerSide) * tileSize,
+          (slot / slotsPerSide) * tileSize,
+          tileSize,
+          tileSize,
+          GLES20.GL_RGB,
+          GLES20.GL_UNSIGNED_SHORT_5_6_5,
+          tile.pixels);
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+      tile.card.slots[tile.level][index] = slot;
+      tile.card.pageTableDirty = true;
+      slotCards[slot] = tile.card;
+      slotLevels[slot] = tile.level;
+      slotIndices[slot] = index;
+      slotLastUsedFrames[slot] = frame;
+      pixelBuffers.add(tile.pixels);
+      uploadCount++;
+      return true;
+    }
+
+    @Override
+    public void cancel() {
+      int index = (tile.y * (tile.card.tilesPerSide >> tile.level)) + tile.x;
+      if (tile.card.slots[tile.level][index] == PENDING) {
+        tile.card.slots[tile.level][index] = NO_SLOT;
+      }
+      pixelBuffers.add(tile.pixels);
+    }
+  }
+
+  private final CardTilePack tilePack;
+  private final CardContentPack contentPack;
+  private final TextureResidencyManager residencyManager;
+  private final GlWorkScheduler scheduler;
+  private final TextureResidencyManager.EvictionListener evictionListener = key -> onEvicted();
+  private final int tileSize;
+  private final int cacheSize;
+  private final int slotsPerSide;
+  private final int slotCount;
+
+  // Owner of each cache slot, or null if the slot is free.
+  private final VirtualCard[] slotCards;
+  private final int[] slotLevels;
+  private final int[] slotIndices;
+  private final long[] slotLastUsedFrames;
+  private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+  private final Map<Integer, VirtualCard> cards = new HashMap<>();
+  private int cacheTexture;
+  private long frame;
+
+  private final ThreadPoolExecutor executor;
+  private final BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_BYTES);
+  private final ConcurrentLinkedQueue<TileRequest> decoded = new ConcurrentLinkedQueue<>();
+  // Pixel buffers of uploaded tiles, reused by later decodes.
+  private final ConcurrentLinkedQueue<ByteBuffer> pixelBuffers = new ConcurrentLinkedQueue<>();
+  private int pendingCount;
+  private long sequence;
+  private int uploadCount;
+
+  /**
+   * @param tilePack The tile pyramids of the cards that have high-resolution art.
+   * @param contentPack The regular card content, whose size decides when a card needs its virtual
+   *     texture, or null.
+   * @param cacheSize The width and height of the tile cache texture, a multiple of the tile size.
+   *     It holds 16 bits per pixel.
+   */
+  public CardVirtualTextures(
+      CardTilePack tilePack,
+      CardContentPack contentPack,
+      TextureResidencyManager residencyManager,
+      GlWorkScheduler scheduler,
+      int cacheSize) {
+    this.tilePack = tilePack;
+    this.contentPack = contentPack;
+    this.residencyManager = residencyManager;
+    this.scheduler = scheduler;
+    this.cacheSize = cacheSize;
+    tileSize = tilePack.getTileSize();
+    slotsPerSide = cacheSize / tileSize;
+    slotCount = slotsPerSide * slotsPerSide;
+    slotCards = new VirtualCard[slotCount];
+    slotLevels = new int[slotCount];
+    slotIndices = new int[slotCount];
+    slotLastUsedFrames = new long[slotCount];
+    for (int slot = 0; slot < slotCount; slot++) {
+      freeSlots.add(slot);
+    }
+    executor =
+        new ThreadPoolExecutor(
+            1,
+            1,
+            KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new PriorityBlockingQueue<>(),
+            runnable ->
+                new Thread(
+                    () -> {
+                      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                      runnable.run();
+                    },
+                    TAG));
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /** Returns whether the given card content has a tile pyramid to draw from. */
+  public boolean hasVirtualTexture(int imageIndex, CardContent content) {
+    return tilePack.getLevelCount(imageIndex, content) > 0;
+  }
+
+  /**
+   * Streams in the tiles of a card that are on screen, and returns its page table, or 0 if the
+   * card should be drawn from its regular texture: when it has no tile pyramid, is small enough on
+   * screen for its regular texture, or not even its coarsest tile is loaded yet. Call once per
+   * frame for each card drawn, before drawing it.
+   *
+   * @param imageIndex Index of the augmented image in the database.
+   * @param visibleTexCoords The part of the card texture on screen: min u, min v, max u, max v,
+   *     with v from the top, see {@link AugmentedImageRenderer#findVisibleRegion}.
+   * @param pixelsAcross How many pixels the whole card texture would span on screen, at the card's
+   *     closest visible point.
+   * @param parameters Receives the shader parameters of the card, see {@link
+   *     periodictable.common.rendering.ObjectRenderer#drawVirtual}.
+   * @return The page table texture, to draw with {@link #getCacheTexture()}.
+   */
+  public int update(
+      int imageIndex,
+      CardContent content,
+      float[] visibleTexCoords,
+      float pixelsAcross,
+      float[] parameters) {
+    int levelCount = tilePack.getLevelCount(imageIndex, content);
+    if (levelCount == 0) {
+      return 0;
+    }
+    int contentSize = tilePack.getContentSize();
+    int fullSize = contentSize << (levelCount - 1);
+    int regularSize = contentPack == null ? 0 : contentPack.getSize(imageIndex, content);
+    if (pixelsAcross <= regularSize || fullSize <= regularSize) {
+      return 0;
+    }
+    if (cacheTexture == 0) {
+      allocateCacheTexture();
+    }
+    residencyManager.touch(RESIDENCY_KEY);
+
+    int key = imageIndex * CONTENT_COUNT + content.ordinal();
+    VirtualCard card = cards.get(key);
+    if (card == null) {
+      card = new VirtualCard(imageIndex, content, levelCount);
+      cards.put(key, card);
+    }
+
+    // The level whose size is closest to the card's size on screen, made coarser until the tiles
+    // on screen fit the cache.
+    int level = 0;
+    while (level < levelCount - 1 && (fullSize >> level) > pixelsAcross * 1.5f) {
+      level++;
+    }
+    while (level < levelCount - 1
+        && countTiles(card, level, visibleTexCoords) > slotCount * MAX_CACHE_SHARE) {
+      level++;
+    }
+    if (level != card.drawLevel) {
+      card.drawLevel = level;
+      card.pageTableDirty = true;
+    }
+    // Coarsest first, so every part of the card has a stand-in before its sharp tile arrives.
+    for (int i = levelCount - 1; i >= level; i--) {
+      requestTiles(card, i, visibleTexCoords);
+    }
+
+    if (card.slots[levelCount - 1][0] < 0) {
+      return 0;
+    }
+    if (card.pageTableDirty) {
+      updatePageTable(card);
+    }
+    parameters[0] = card.tilesPerSide;
+    parameters[1] = (float) tileSize / cacheSize;
+    parameters[2] = (float) tilePack.getBorder() / cacheSize;
+    parameters[3] = (float) contentSize / cacheSize;
+    return card.pageTableTexture;
+  }
+
+  /** Returns the tile cache texture, which all page tables point into. */
+  public int getCacheTexture() {
+    return cacheTexture;
+  }
+
+  /**
+   * Uploads the tiles decoded since the last call within the frame budget of the {@link
+   * GlWorkScheduler}. Should be called once per frame, before the scheduler runs.
+   */
+  public void uploadPendingOnGlThread() {
+    frame++;
+    TileRequest tile;
+    while ((tile = decoded.poll()) != null) {
+      pendingCount--;
+      if (tile.pixels == null) {
+        // The tile could not be read; leave the card at the coarser level rather than retrying.
+        continue;
+      }
+      scheduler.submit(
+          new TileUploadJob(tile),
+          GlWorkScheduler.PRIORITY_NORMAL,
+          System.nanoTime() + TILE_UPLOAD_DEADLINE_NANOS);
+    }
+  }
+
+  /** Deletes the page tables of an image's cards, e.g. when it stops tracking. */
+  public void release(int imageIndex) {
+    for (int i = 0; i < CONTENT_COUNT; i++) {
+      VirtualCard card = cards.get(imageIndex * CONTENT_COUNT + i);
+      // Its tiles stay in the cache until other tiles need the room.
+      if (card != null && card.pageTableTexture != 0) {
+        TextureUtil.deleteTexture(card.pageTableTexture);
+        card.pageTableTexture = 0;
+        card.pageTableDirty = true;
+      }
+    }
+  }
+
+  /** Stops the decoding thread. Queued decodes are dropped. */
+  public void shutdown() {
+    executor.shutdownNow();
+    bitmapPool.clear();
+  }
+
+  /** Returns the number of tiles uploaded into the cache so far. */
+  public int getUploadCount() {
+    return uploadCount;
+  }
+
+  private void allocateCacheTexture() {
+    cacheTexture = TextureUtil.generateTexture(/*levelCount=*/ 1);
+    GLES20.glTexParameteri(
+        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(
+        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexImage2D(
+        GLES20.GL_TEXTURE_2D,
+        /*level=*/ 0,
+        GLES20.GL_RGB,
+        cacheSize,
+        cacheSize,
+        /*border=*/ 0,
+        GLES20.GL_RGB,
+        GLES20.GL_UNSIGNED_SHORT_5_6_5,
+        /*pixels=*/ null);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    ShaderUtil.checkGLError(TAG, "Tile cache allocation");
+    residencyManager.add(
+        RESIDENCY_KEY, cacheTexture, (long) cacheSize * cacheSize * 2, evictionListener);
+  }
+
+  /** Forgets every tile in the cache, whose texture was deleted. */
+  private void onEvicted() {
+    cacheTexture = 0;
+    freeSlots.clear();
+    for (int slot = 0; slot < slotCount; slot++) {
+      VirtualCard card = slotCards[slot];
+      if (card != null) {
+        card.slots[slotLevels[slot]][slotIndices[slot]] = NO_SLOT;
+        card.pageTableDirty = true;
+        slotCards[slot] = null;
+      }
+      freeSlots.add(slot);
+    }
+  }
+
+  /**
+   * Returns a free slot, or else the least recently drawn one, or {@link #NO_SLOT} if every slot
+   * was drawn in this or the previous frame.
+   */
+  private int allocateSlot() {
+    Integer free = freeSlots.poll();
+    if (free != null) {
+      return free;
+    }
+    int oldest = NO_SLOT;
+    for (int slot = 0; slot < slotCount; slot++) {
+      if (slotLastUsedFrames[slot] < frame - 1
+          && (oldest == NO_SLOT || slotLastUsedFrames[slot] < slotLastUsedFrames[oldest])) {
+        oldest = slot;
+      }
+    }
+    if (oldest != NO_SLOT) {
+      VirtualCard card = slotCards[oldest];
+      card.slots[slotLevels[oldest]][slotIndices[oldest]] = NO_SLOT;
+      card.pageTableDirty = true;
+      slotCards[oldest] = null;
+    }
+    return oldest;
+  }
+
+  private int countTiles(VirtualCard card, int level, float[] visibleTexCoords) {
+    int side = card.tilesPerSide >> level;
+    int columns = lastTile(visibleTexCoords[2], side) - firstTile(visibleTexCoords[0], side) + 1;
+    int rows = lastTile(visibleTexCoords[3], side) - firstTile(visibleTexCoords[1], side) + 1;
+    return columns * rows;
+  }
+
+  /** Marks the loaded tiles of a level on screen as drawn, and requests the missing ones. */
+  private void requestTiles(VirtualCard card, int level, float[] visibleTexCoords) {
+    int side = card.tilesPerSide >> level;
+    int lastX = lastTile(visibleTexCoords[2], side);
+    int lastY = lastTile(visibleTexCoords[3], side);
+    for (int y = firstTile(visibleTexCoords[1], side); y <= lastY; y++) {
+      for (int x = firstTile(visibleTexCoords[0], side); x <= lastX; x++) {
+        int slot = card.slots[level][y * side + x];
+        if (slot >= 0) {
+          slotLastUsedFrames[slot] = frame;
+        } else if (slot == NO_SLOT && pendingCount < MAX_PENDING_TILES) {
+          card.slots[level][y * side + x] = PENDING;
+          pendingCount++;
+          executor.execute(new TileRequest(card, level, x, y, sequence++));
+        }
+      }
+    }
+  }
+
+  /**
+   * Points each texel of a card's page table, one per level-0 tile, at the finest loaded tile
+   * covering it, no finer than the level the card is drawn at.
+   */
+  private void updatePageTable(VirtualCard card) {
+    ByteBuffer data = card.pageTableData;
+    data.clear();
+    for (int y = 0; y < card.tilesPerSide; y++) {
+      for (int x = 0; x < card.tilesPerSide; x++) {
+        int slot = NO_SLOT;
+        int level = card.drawLevel;
+        for (; level < card.levelCount; level++) {
+          slot = card.slots[level][(y >> level) * (card.tilesPerSide >> level) + (x >> level)];
+          if (slot >= 0) {
+            break;
+          }
+        }
+        // The coarsest tile is loaded, so every texel finds one.
+        data.put((byte) (slot % slotsPerSide));
+        data.put((byte) (slot / slotsPerSide));
+        data.put((byte) level);
+        data.put((byte) 0xFF);
+      }
+    }
+    data.flip();
+
+    if (card.pageTableTexture == 0) {
+      card.pageTableTexture = TextureUtil.generateTexture(/*levelCount=*/ 1);
+      // Each texel is an address, which must not be filtered.
+      GLES20.glTexParameteri(
+          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+      GLES20.glTexParameteri(
+          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+      GLES20.glTexParameteri(
+          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+      GLES20.glTexParameteri(
+          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+      GLES20.glTexImage2D(
+          GLES20.GL_TEXTURE_2D,
+          /*level=*/ 0,
+          GLES20.GL_RGBA,
+          card.tilesPerSide,
+          card.tilesPerSide,
+          /*border=*/ 0,
+          GLES20.GL_RGBA,
+          GLES20.GL_UNSIGNED_BYTE,
+          data);
+    } else {
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, card.pageTableTexture);
+      GLES20.glTexSubImage2D(
+          GLES20.GL_TEXTURE_2D,
+          /*level=*/ 0,
+          /*xoffset=*/ 0,
+          /*yoffset=*/ 0,
+          card.tilesPerSide,
+          card.tilesPerSide,
+          GLES20.GL_RGBA,
+          GLES20.GL_UNSIGNED_BYTE,
+          data);
+    }
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    card.pageTableDirty = false;
+  }
+
+  /** Decodes a tile to RGB_565 pixels, on the decoding thread. */
+  private ByteBuffer decode(ByteBuffer jpeg) throws IOException {
+    Bitmap bitmap =
+        BitmapDecoder.decode(
+            jpeg,
+            /*opaque=*/ true,
+            BitmapDecoder.FULL_SIZE,
+            bitmapPool,
+            new BitmapFactory.Options());
+    if (bitmap.getWidth() != tileSize || bitmap.getHeight() != tileSize) {
+      bitmapPool.put(bitmap);
+      throw new IOException("Tile is not " + tileSize + " pixels square");
+    }
+    ByteBuffer pixels = pixelBuffers.poll();
+    if (pixels == null) {
+      pixels = ByteBuffer.allocateDirect(tileSize * tileSize * 2).order(ByteOrder.nativeOrder());
+    }
+    pixels.clear();
+    bitmap.copyPixelsToBuffer(pixels);
+    pixels.rewind();
+    bitmapPool.put(bitmap);
+    return pixels;
+  }
+
+  private static int firstTile(float texCoord, int side) {
+    return Math.max(0, Math.min(side - 1, (int) Math.floor(texCoord * side)));
+  }
+
+  private static int lastTile(float texCoord, int side) {
+    return Math.max(0, Math.min(side - 1, (int) Math.ceil(texCoord * side) - 1));
+  }
+}
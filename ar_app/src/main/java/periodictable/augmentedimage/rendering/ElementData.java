@@ -0,0 +1,120 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.content.res.AssetManager;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The facts printed on each element's info card, read from a text asset so the cards can be laid
+ * out from data rather than shipped as pre-rendered images. Thread safe once loaded.
+ */
+public class ElementData {
+  public static final String DATA_PATH = "models/elements.txt";
+
+  /** The facts about one element. */
+  public static class Element {
+    public final int atomicNumber;
+    public final String symbol;
+    public final String name;
+    /** The standard atomic weight, or the mass number of the longest-lived isotope in brackets. */
+    public final String atomicWeight;
+    /** In noble gas notation, with the electron counts as plain digits, e.g. "[Ne] 3s2 3p1". */
+    public final String electronConfiguration;
+
+    Element(
+        int atomicNumber,
+        String symbol,
+        String name,
+        String atomicWeight,
+        String electronConfiguration) {
+      this.atomicNumber = atomicNumber;
+      this.symbol = symbol;
+      this.name = name;
+      this.atomicWeight = atomicWeight;
+      this.electronConfiguration = electronConfiguration;
+    }
+  }
+
+  // Keyed by image name without its extension.
+  private final Map<String, Element> elements;
+  // Indexed by atomic number, null where there is no data.
+  private final Element[] elementsByAtomicNumber;
+
+  private ElementData(Map<String, Element> elements) {
+    this.elements = elements;
+    int maxAtomicNumber = 0;
+    for (Element element : elements.values()) {
+      maxAtomicNumber = Math.max(maxAtomicNumber, element.atomicNumber);
+    }
+    elementsByAtomicNumber = new Element[maxAtomicNumber + 1];
+    for (Element element : elements.values()) {
+      elementsByAtomicNumber[element.atomicNumber] = element;
+    }
+  }
+
+  /**
+   * Reads the element data. Each line is "image name|atomic number|symbol|name|atomic
+   * weight|electron configuration"; lines starting with '#' are comments.
+   *
+   * @throws IOException If the data could not be read or a line is malformed.
+   */
+  public static ElementData load(AssetManager assets) throws IOException {
+    Map<String, Element> elements = new HashMap<>();
+    try (BufferedReader reader =
+        new BufferedReader(new InputStreamReader(assets.open(DATA_PATH), "UTF-8"))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\\|");
+        if (fields.length != 6) {
+          throw new IOException("Malformed element data: " + line);
+        }
+        try {
+          elements.put(
+              fields[0],
+              new Element(Integer.parseInt(fields[1]), fields[2], fields[3], fields[4], fields[5]));
+        } catch (NumberFormatException e) {
+          throw new IOException("Malformed element data: " + line, e);
+        }
+      }
+    }
+    return new ElementData(elements);
+  }
+
+  /**
+   * Returns the element shown by an augmented image, or null if there is no data for it.
+   *
+   * @param imageName Name of the augmented image, as reported by ARCore.
+   */
+  public Element get(String imageName) {
+    int dot = imageName.lastIndexOf('.');
+    return elements.get(dot < 0 ? imageName : imageName.substring(0, dot));
+  }
+
+  /** Returns the element with the given atomic number, or null if there is no data for it. */
+  public Element getByAtomicNumber(int atomicNumber) {
+    return atomicNumber > 0 && atomicNumber < elementsByAtomicNumber.length
+        ? elementsByAtomicNumber[atomicNumber]
+        : null;
+  }
+}
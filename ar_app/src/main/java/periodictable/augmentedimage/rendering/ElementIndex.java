@@ -0,0 +1,158 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.content.res.AssetManager;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The images of the augmented image database by index, as generated at build time by {@code
+ * periodictable.tools.ElementIndexBuilder}: each image's name, atomic number and card asset paths.
+ * Images are numbered in the order of the image list the database was built from, which is also
+ * the order of {@code AugmentedImage#getIndex()} for the whole database.
+ *
+ * <p>Everything is resolved when the index is loaded, so lookups while drawing are array reads.
+ * Names are looked up through a minimal perfect hash, without allocating. Thread safe once loaded.
+ */
+public class ElementIndex {
+  public static final String INDEX_PATH = "models/element_index.txt";
+  /** The image list the augmented image database and this index are built from. */
+  public static final String IMAGE_LIST_PATH =
+      "NewCellDatabase/Photoshopped/NewCellDatabase.imgdb-imglist.txt";
+
+  private final String[] imageNames;
+  private final int[] atomicNumbers;
+  // Asset path of each card content, by content ordinal and image index.
+  private final String[][] assetPaths;
+  private final int[] displacements;
+  private final int[] slots;
+
+  private ElementIndex(
+      String[] imageNames, int[] atomicNumbers, int[] displacements, int[] slots) {
+    this.imageNames = imageNames;
+    this.atomicNumbers = atomicNumbers;
+    this.displacements = displacements;
+    this.slots = slots;
+    CardContent[] contents = CardContent.values();
+    assetPaths = new String[contents.length][imageNames.length];
+    for (CardContent content : contents) {
+      for (int i = 0; i < imageNames.length; i++) {
+        assetPaths[content.ordinal()][i] = content.getAssetPath(imageNames[i]);
+      }
+    }
+  }
+
+  /**
+   * Reads the index generated at build time.
+   *
+   * @throws IOException If the index could not be read or is malformed.
+   */
+  public static ElementIndex load(AssetManager assets) throws IOException {
+    int[] displacements = null;
+    int[] slots = null;
+    List<String> imageNames = new ArrayList<>();
+    List<Integer> atomicNumbers = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(new InputStreamReader(assets.open(INDEX_PATH), "UTF-8"))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\\|");
+        if (fields.length != 2) {
+          throw new IOException("Malformed element index line: " + line);
+        }
+        try {
+          if (fields[0].equals("displacements")) {
+            displacements = parseInts(fields[1]);
+          } else if (fields[0].equals("slots")) {
+            slots = parseInts(fields[1]);
+          } else {
+            imageNames.add(fields[0]);
+            atomicNumbers.add(Integer.parseInt(fields[1]));
+          }
+        } catch (NumberFormatException e) {
+          throw new IOException("Malformed element index line: " + line, e);
+        }
+      }
+    }
+    if (displacements == null || slots == null || slots.length != imageNames.size()) {
+      throw new IOException(
+          "Element index has no perfect hash of its " + imageNames.size() + " images");
+    }
+    int[] numbers = new int[atomicNumbers.size()];
+    for (int i = 0; i < numbers.length; i++) {
+      numbers[i] = atomicNumbers.get(i);
+    }
+    return new ElementIndex(imageNames.toArray(new String[0]), numbers, displacements, slots);
+  }
+
+  /** Returns the number of images in the database. */
+  public int getImageCount() {
+    return imageNames.length;
+  }
+
+  /** Returns the name of the image with the given index, as reported by ARCore. */
+  public String getImageName(int imageIndex) {
+    return imageNames[imageIndex];
+  }
+
+  /** Returns the atomic number of the element shown by the image with the given index. */
+  public int getAtomicNumber(int imageIndex) {
+    return atomicNumbers[imageIndex];
+  }
+
+  /** Returns the asset path of a card content of the image with the given index. */
+  public String getAssetPath(int imageIndex, CardContent content) {
+    return assetPaths[content.ordinal()][imageIndex];
+  }
+
+  /**
+   * Returns the index of the image with the given name, or -1 if there is none. Images of other
+   * databases built from the same images, e.g. shards of it, are found by name this way.
+   */
+  public int getImageIndex(String imageName) {
+    int hashCode = imageName.hashCode();
+    int bucket = slot(hashCode, 0, displacements.length);
+    int imageIndex = slots[slot(hashCode, displacements[bucket], slots.length)];
+    return imageNames[imageIndex].equals(imageName) ? imageIndex : -1;
+  }
+
+  /** Hashes a name's hash code with a seed, exactly as {@code ElementIndexBuilder} does. */
+  private static int slot(int hashCode, int seed, int size) {
+    int h = hashCode ^ (seed * 0x9e3779b9);
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return (h & 0x7fffffff) % size;
+  }
+
+  private static int[] parseInts(String values) {
+    String[] fields = values.split(",");
+    int[] parsed = new int[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      parsed[i] = Integer.parseInt(fields[i]);
+    }
+    return parsed;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.augmentedimage.rendering;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where each augmented image sits on the printed periodic table, so the cells next to a detected
+ * card can be found. Images are numbered as in the {@link ElementIndex}.
+ */
+public class PeriodicTableGrid {
+  private static final String TAG = PeriodicTableGrid.class.getSimpleName();
+
+  // The element in each cell, row by row, with "-" for empty cells. The lanthanides and actinides
+  // are printed below the main table, separated from it by a blank row.
+  private static final String[] LAYOUT = {
+    "hydrogen - - - - - - - - - - - - - - - - helium",
+    "lithium beryllium - - - - - - - - - - boron carbon nitrogen oxygen fluorine neon",
+    "sodium magnesium - - - - - - - - - - aluminum silicon phosphorus sulfur chlorine argon",
+    "potassium calcium scandium titanium vanadium chromium manganese iron cobalt nickel copper zinc"
+        + " gallium germanium arsenic selenium bromine krypton",
+    "rubidium strontium yttrium zirconium niobium molybdenum technetium ruthenium rhodium"
+        + " palladium silver cadmium indium tin antimony tellurium iodine xenon",
+    "caesium barium - hafnium tantalum tungsten rhenium osmium iridium platinum gold mercury"
+        + " thallium lead bismuth polonium astatine radon",
+    "francium radium - rutherfordium dubnium seaborgium bohrium hassium meitnerium darmstadtium"
+        + " roentgenium copernicium nihonium flerovium moscovium livermorium tennessine oganesson",
+    "",
+    "- - lanthanum cerium praseodymium neodymium promethium samarium europium gadolinium terbium"
+        + " dysprosium holmium erbium thulium ytterbium lutetium -",
+    "- - actinium thorium protactinium uranium neptunium plutonium americium curium berkelium"
+        + " californium einsteinium fermium mendelevium nobelium lawrencium -",
+  };
+
+  // Row, column offsets of the cells in the same period and group.
+  private static final int[][] NEIGHBOUR_OFFSETS = {{0, -1}, {0, 1}, {-1, 0}, {1, 0}};
+
+  private final int[][] neighbours;
+
+  public PeriodicTableGrid(ElementIndex elementIndex) {
+    String[] imageNames = new String[elementIndex.getImageCount()];
+    Map<String, Integer> indexByElement = new HashMap<>();
+    for (int i = 0; i < imageNames.length; i++) {
+      imageNames[i] = elementIndex.getImageName(i);
+      indexByElement.put(elementName(imageNames[i]), i);
+    }
+    String[][] cells = new String[LAYOUT.length][];
+    Map<String, int[]> positions = new HashMap<>();
+    for (int row = 0; row < LAYOUT.length; row++) {
+      cells[row] = LAYOUT[row].isEmpty() ? new String[0] : LAYOUT[row].split(" ");
+      for (int column = 0; column < cells[row].length; column++) {
+        positions.put(cells[row][column], new int[] {row, column});
+      }
+    }
+
+    neighbours = new int[imageNames.length][];
+    for (int i = 0; i < imageNames.length; i++) {
+      int[] position = positions.get(elementName(imageNames[i]));
+      if (position == null) {
+        Log.w(TAG, "No periodic table cell for " + imageNames[i]);
+        neighbours[i] = new int[0];
+        continue;
+      }
+      List<Integer> found = new ArrayList<>();
+      for (int[] offset : NEIGHBOUR_OFFSETS) {
+        int row = position[0] + offset[0];
+        int column = position[1] + offset[1];
+        if (row < 0 || row >= cells.length || column < 0 || column >= cells[row].length) {
+          continue;
+        }
+        Integer index = indexByElement.get(cells[row][column]);
+        if (index != null) {
+          found.add(index);
+        }
+      }
+      neighbours[i] = new int[found.size()];
+      for (int j = 0; j < found.size(); j++) {
+        neighbours[i][j] = found.get(j);
+      }
+    }
+  }
+
+  /**
+   * Returns the indices of the images in the cells left, right, above and below the given one. Not
+   * to be modified.
+   */
+  public int[] getNeighbours(int imageIndex) {
+    if (imageIndex < 0 || imageIndex >= neighbours.length) {
+      return new int[0];
+    }
+    return neighbours[imageIndex];
+  }
+
+  private static String elementName(String imageName) {
+    int extension = imageName.lastIndexOf('.');
+    return extension < 0 ? imageName : imageName.substring(0, extension);
+  }
+}
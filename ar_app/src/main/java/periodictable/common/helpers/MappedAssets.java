@@ -0,0 +1,147 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.helpers;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads assets as {@link ByteBuffer}s. Assets stored uncompressed in the APK (see noCompress in
+ * build.gradle) are memory-mapped straight from it, so reading them copies nothing and their pages
+ * are shared with the page cache. Compressed assets are read into a direct buffer instead. Can be
+ * called from any thread.
+ */
+public final class MappedAssets {
+  private static final String TAG = MappedAssets.class.getSimpleName();
+
+  /**
+   * Maps an asset, or reads it if it is compressed in the APK.
+   *
+   * @return A read-only buffer of the whole asset. Slices of it stay valid for as long as they are
+   *     referenced.
+   * @throws IOException If the asset could not be read.
+   */
+  public static ByteBuffer map(AssetManager assets, String assetPath) throws IOException {
+    AssetFileDescriptor fd;
+    try {
+      fd = assets.openFd(assetPath);
+    } catch (FileNotFoundException e) {
+      // Compressed assets have no file range of their own. Missing ones fail again below.
+      return read(assets, assetPath);
+    }
+    try (FileInputStream is = fd.createInputStream();
+        FileChannel channel = is.getChannel()) {
+      // The mapping outlives the channel.
+      return channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength());
+    } finally {
+      fd.close();
+    }
+  }
+
+  /**
+   * Returns a stream over the remaining bytes of a buffer, for APIs that only take streams. The
+   * buffer itself is not modified.
+   */
+  public static InputStream asInputStream(ByteBuffer buffer) {
+    return new ByteBufferInputStream(buffer.duplicate());
+  }
+
+  private static ByteBuffer read(AssetManager assets, String assetPath) throws IOException {
+    try (InputStream is = assets.open(assetPath)) {
+      Log.w(TAG, assetPath + " is compressed in the APK, reading it instead of mapping it");
+      byte[] chunk = new byte[64 * 1024];
+      ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(is.available(), chunk.length));
+      int count;
+      while ((count = is.read(chunk)) != -1) {
+        if (buffer.remaining() < count) {
+          ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2 + count);
+          buffer.flip();
+          larger.put(buffer);
+          buffer = larger;
+        }
+        buffer.put(chunk, 0, count);
+      }
+      buffer.flip();
+      return buffer.asReadOnlyBuffer();
+    }
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+    private int markPosition = -1;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public long skip(long count) {
+      int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+      markPosition = buffer.position();
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+      if (markPosition < 0) {
+        throw new IOException("Stream not marked");
+      }
+      buffer.position(markPosition);
+    }
+  }
+
+  private MappedAssets() {}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.rendering;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.opengl.GLES20;
+import android.util.Log;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import periodictable.common.helpers.MappedAssets;
+
+/**
+ * Decodes image assets for upload as textures. Images are subsampled by the largest power of two
+ * that keeps them at least as large as they are needed, JPEGs are decoded to RGB_565 since they
+ * have no alpha, and bitmaps are decoded into pooled ones when a {@link BitmapPool} is given.
+ * Assets are read through {@link MappedAssets}, so uncompressed ones are decoded from the APK's
+ * mapped pages; images already in memory are decoded with {@link #decode}.
+ * Decoded bitmaps can be turned into a full mip chain with {@link #buildMipChain}, so the OpenGL
+ * thread uploads every level as is instead of calling glGenerateMipmap. Can be called from any
+ * thread.
+ */
+public final class BitmapDecoder {
+  private static final String TAG = BitmapDecoder.class.getSimpleName();
+
+  /** Passed as the target size to decode at full resolution. */
+  public static final int FULL_SIZE = 0;
+
+  // Bilinear filtering, which for a halving is the average of each 2x2 block.
+  private static final Paint MIP_PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+  /**
+   * Decodes an image asset.
+   *
+   * @param targetSize The smallest width and height to keep, or {@link #FULL_SIZE}.
+   * @param pool Where to take a bitmap to decode into and hand bitmaps back to, or null.
+   * @return The decoded bitmap, which is mutable when decoded with a pool.
+   * @throws IOException If the asset could not be read or decoded.
+   */
+  public static Bitmap decodeAsset(
+      AssetManager assets, String assetPath, int targetSize, BitmapPool pool) throws IOException {
+    return decodeAsset(assets, assetPath, targetSize, pool, new BitmapFactory.Options());
+  }
+
+  /**
+   * Decodes an image asset, like {@link #decodeAsset(AssetManager, String, int, BitmapPool)}.
+   *
+   * @param options Filled in with the size of the image and the sample size it was decoded at.
+   */
+  public static Bitmap decodeAsset(
+      AssetManager assets,
+      String assetPath,
+      int targetSize,
+      BitmapPool pool,
+      BitmapFactory.Options options)
+      throws IOException {
+    return decode(
+        MappedAssets.map(assets, assetPath), isOpaque(assetPath), targetSize, pool, options);
+  }
+
+  /**
+   * Decodes an image that is already in memory, e.g. a slice of a mapped content pack, like {@link
+   * #decodeAsset(AssetManager, String, int, BitmapPool, BitmapFactory.Options)}.
+   *
+   * @param data The encoded image, from its position to its limit. Not modified.
+   * @param opaque Whether the image has no alpha, e.g. is a JPEG, so is decoded to RGB_565.
+   */
+  public static Bitmap decode(
+      ByteBuffer data,
+      boolean opaque,
+      int targetSize,
+      BitmapPool pool,
+      BitmapFactory.Options options)
+      throws IOException {
+    // Read twice without copying: once for the bounds, once to decode.
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeStream(MappedAssets.asInputStream(data), null, options);
+    if (options.outWidth <= 0 || options.outHeight <= 0) {
+      throw new IOException("Not an image");
+    }
+
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight, targetSize);
+    options.inPreferredConfig = opaque ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+    if (pool != null) {
+      options.inMutable = true;
+      int width = ceilDiv(options.outWidth, options.inSampleSize);
+      int height = ceilDiv(options.outHeight, options.inSampleSize);
+      options.inBitmap = pool.get(width * height * bytesPerPixel(options.inPreferredConfig));
+    }
+
+    Bitmap bitmap;
+    try {
+      bitmap = BitmapFactory.decodeStream(MappedAssets.asInputStream(data), null, options);
+    } catch (IllegalArgumentException e) {
+      if (options.inBitmap == null) {
+        throw e;
+      }
+      // The pooled bitmap could not be reused after all, so decode into a new one.
+      Log.w(TAG, "Could not reuse a bitmap", e);
+      pool.put(options.inBitmap);
+      options.inBitmap = null;
+      bitmap = BitmapFactory.decodeStream(MappedAssets.asInputStream(data), null, options);
+    }
+    if (bitmap == null) {
+      throw new IOException("Failed to decode the image");
+    }
+    return bitmap;
+  }
+
+  /**
+   * Builds the full mip chain of a bitmap, down to 1x1, for upload with {@link
+   * TextureUtil#createTexture(KtxTexture, int)}. Each level is filtered down from the one before.
+   * RGB_565 bitmaps stay 16 bits per pixel, all others are converted to RGBA.
+   *
+   * @param bitmap The full-size level. Left to the caller, e.g. to hand back to a pool.
+   * @param pool Where to take the bitmaps of the smaller levels from and put them back, or null.
+   */
+  public static KtxTexture buildMipChain(Bitmap bitmap, BitmapPool pool) {
+    if (bitmap.getConfig() != Bitmap.Config.RGB_565
+        && bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+      Bitmap argb = bitmap.copy(Bitmap.Config.ARGB_8888, /*isMutable=*/ false);
+      KtxTexture texture = buildMipChain(argb, pool);
+      argb.recycle();
+      return texture;
+    }
+    boolean rgb565 = bitmap.getConfig() == Bitmap.Config.RGB_565;
+    int bytesPerPixel = bytesPerPixel(bitmap.getConfig());
+    List<ByteBuffer> levels = new ArrayList<>();
+    Bitmap level = bitmap;
+    while (true) {
+      levels.add(copyPixels(level, bytesPerPixel));
+      if (level.getWidth() == 1 && level.getHeight() == 1) {
+        break;
+      }
+      int width = Math.max(1, level.getWidth() / 2);
+      int height = Math.max(1, level.getHeight() / 2);
+      Bitmap next = obtain(width, height, level.getConfig(), pool);
+      new Canvas(next).drawBitmap(level, null, new Rect(0, 0, width, height), MIP_PAINT);
+      if (level != bitmap) {
+        release(level, pool);
+      }
+      level = next;
+    }
+    if (level != bitmap) {
+      release(level, pool);
+    }
+    return KtxTexture.create(
+        rgb565 ? GLES20.GL_UNSIGNED_SHORT_5_6_5 : GLES20.GL_UNSIGNED_BYTE,
+        rgb565 ? GLES20.GL_RGB : GLES20.GL_RGBA,
+        bitmap.getWidth(),
+        bitmap.getHeight(),
+        levels);
+  }
+
+  /**
+   * Returns the largest power of two to divide an image's size by, that keeps both sides at least
+   * the target size.
+   */
+  public static int calculateInSampleSize(int width, int height, int targetSize) {
+    int sampleSize = 1;
+    if (targetSize <= 0) {
+      return sampleSize;
+    }
+    while (width / (sampleSize * 2) >= targetSize && height / (sampleSize * 2) >= targetSize) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  /** Copies the pixels of a bitmap into a direct buffer, with rows padded to 4 bytes. */
+  private static ByteBuffer copyPixels(Bitmap bitmap, int bytesPerPixel) {
+    int width = bitmap.getWidth();
+    int height = bitmap.getHeight();
+    int rowBytes = width * bytesPerPixel;
+    int paddedRowBytes = (rowBytes + 3) & ~3;
+    ByteBuffer pixels = ByteBuffer.allocateDirect(rowBytes * height).order(ByteOrder.nativeOrder());
+    bitmap.copyPixelsToBuffer(pixels);
+    pixels.rewind();
+    if (paddedRowBytes == rowBytes) {
+      return pixels;
+    }
+    // Only the smallest levels have rows of an odd number of 16-bit pixels.
+    ByteBuffer padded =
+        ByteBuffer.allocateDirect(paddedRowBytes * height).order(ByteOrder.nativeOrder());
+    for (int y = 0; y < height; y++) {
+      pixels.limit((y + 1) * rowBytes).position(y * rowBytes);
+      padded.position(y * paddedRowBytes);
+      padded.put(pixels);
+    }
+    padded.rewind();
+    return padded;
+  }
+
+  private static Bitmap obtain(int width, int height, Bitmap.Config config, BitmapPool pool) {
+    Bitmap bitmap = pool == null ? null : pool.get(width * height * bytesPerPixel(config));
+    if (bitmap == null) {
+      return Bitmap.createBitmap(width, height, config);
+    }
+    bitmap.reconfigure(width, height, config);
+    return bitmap;
+  }
+
+  private static void release(Bitmap bitmap, BitmapPool pool) {
+    if (pool != null) {
+      pool.put(bitmap);
+    } else {
+      bitmap.recycle();
+    }
+  }
+
+  private static boolean isOpaque(String assetPath) {
+    String lowerCasePath = assetPath.toLowerCase();
+    return lowerCasePath.endsWith(".jpg") || lowerCasePath.endsWith(".jpeg");
+  }
+
+  private static int bytesPerPixel(Bitmap.Config config) {
+    return config == Bitmap.Config.RGB_565 ? 2 : 4;
+  }
+
+  private static int ceilDiv(int value, int divisor) {
+    return (value + divisor - 1) / divisor;
+  }
+
+  private BitmapDecoder() {}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.rendering;
+
+import android.graphics.Bitmap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps uploaded bitmaps around so later decodes can reuse their memory through {@link
+ * android.graphics.BitmapFactory.Options#inBitmap}, instead of allocating a new bitmap and leaving
+ * the old one to the garbage collector. Bitmaps are bucketed by allocation size rounded up to a
+ * power of two; the pool holds at most a given number of bytes and recycles bitmaps from the
+ * largest buckets beyond that.
+ *
+ * <p>All methods are thread safe.
+ */
+public class BitmapPool {
+  private final long maxBytes;
+  // Bitmaps by bucket, oldest first in each bucket.
+  private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+  private long pooledBytes;
+
+  /** @param maxBytes The most memory to hold on to. 0 disables pooling. */
+  public BitmapPool(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Takes a bitmap that can be decoded into, or returns null if none is pooled.
+   *
+   * @param byteCount The number of bytes the decoded bitmap needs.
+   */
+  public synchronized Bitmap get(int byteCount) {
+    // Only the matching bucket is searched, so a much larger bitmap is not tied up by a small one.
+    ArrayDeque<Bitmap> bucket = buckets.get(bucket(byteCount));
+    if (bucket == null) {
+      return null;
+    }
+    Iterator<Bitmap> it = bucket.descendingIterator();
+    while (it.hasNext()) {
+      Bitmap bitmap = it.next();
+      if (bitmap.getAllocationByteCount() >= byteCount) {
+        it.remove();
+        pooledBytes -= bitmap.getAllocationByteCount();
+        return bitmap;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Hands a bitmap back to the pool once it is no longer needed. Bitmaps that cannot be reused or
+   * do not fit are recycled.
+   */
+  public synchronized void put(Bitmap bitmap) {
+    if (bitmap.isRecycled()) {
+      return;
+    }
+    int bytes = bitmap.getAllocationByteCount();
+    if (!bitmap.isMutable() || bytes > maxBytes) {
+      bitmap.recycle();
+      return;
+    }
+    ArrayDeque<Bitmap> bucket = buckets.get(bucket(bytes));
+    if (bucket == null) {
+      bucket = new ArrayDeque<>();
+      buckets.put(bucket(bytes), bucket);
+    }
+    bucket.addLast(bitmap);
+    pooledBytes += bytes;
+    trimTo(maxBytes);
+  }
+
+  /** Recycles all pooled bitmaps, e.g. when the app is asked to trim memory. */
+  public synchronized void clear() {
+    trimTo(0);
+  }
+
+  private void trimTo(long bytes) {
+    // Largest buckets first, as they free the most memory per bitmap.
+    Iterator<Map.Entry<Integer, ArrayDeque<Bitmap>>> it =
+        buckets.descendingMap().entrySet().iterator();
+    while (pooledBytes > bytes && it.hasNext()) {
+      ArrayDeque<Bitmap> bucket = it.next().getValue();
+      while (pooledBytes > bytes && !bucket.isEmpty()) {
+        Bitmap bitmap = bucket.removeFirst();
+        pooledBytes -= bitmap.getAllocationByteCount();
+        bitmap.recycle();
+      }
+      if (bucket.isEmpty()) {
+        it.remove();
+      }
+    }
+  }
+
+  private static int bucket(int byteCount) {
+    return byteCount <= 1 ? 1 : Integer.highestOneBit(byteCount - 1) << 1;
+  }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.rendering;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Process;
+import android.util.Log;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * Uploads textures on a thread of its own, with an OpenGL ES 3 context that shares its objects with
+ * the render context, so the render thread spends no time in glTexImage2D. After each upload the
+ * thread waits on a fence sync until the GPU has the texture, and only then hands it to the render
+ * thread through {@link #publishCompletedOnGlThread()}, so a texture is never drawn half uploaded.
+ *
+ * <p>Created by {@link SharedEglContextFactory} along with the render context, and stopped before
+ * that context is destroyed. Where a shared context or fences are not available, there is no
+ * upload thread and uploads run on the render thread through {@link GlWorkScheduler}.
+ */
+public class GlUploadThread {
+  private static final String TAG = GlUploadThread.class.getSimpleName();
+
+  private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+  // Long enough for any texture; the wait only blocks this thread.
+  private static final long FENCE_TIMEOUT_NANOS = 1_000_000_000L;
+
+  /** A texture to upload, ordered by priority then submission order. */
+  private static class Upload implements Comparable<Upload> {
+    final KtxTexture texture;
+    final int internalFormat;
+    final int priority;
+    final long sequence;
+    final TextureUploadJob.Callback callback;
+    // 0 if the upload failed.
+    int textureId;
+
+    Upload(
+        KtxTexture texture,
+        int internalFormat,
+        int priority,
+        long sequence,
+        TextureUploadJob.Callback callback) {
+      this.texture = texture;
+      this.internalFormat = internalFormat;
+      this.priority = priority;
+      this.sequence = sequence;
+      this.callback = callback;
+    }
+
+    @Override
+    public int compareTo(Upload other) {
+      if (priority != other.priority) {
+        return Integer.compare(priority, other.priority);
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
+  // Ahead of all uploads, so quitting does not wait for the queue to drain.
+  private static final Upload QUIT =
+      new Upload(null, 0, Integer.MIN_VALUE, 0, /*callback=*/ null);
+
+  private final EGL10 egl;
+  private final EGLDisplay display;
+  private final EGLContext context;
+  private final EGLSurface surface;
+  private final Thread thread;
+  private final CountDownLatch started = new CountDownLatch(1);
+  private final PriorityBlockingQueue<Upload> queue = new PriorityBlockingQueue<>();
+  private final ConcurrentLinkedQueue<Upload> completed = new ConcurrentLinkedQueue<>();
+  private final AtomicLong sequence = new AtomicLong();
+  private volatile boolean current;
+
+  private GlUploadThread(EGL10 egl, EGLDisplay display, EGLContext context, EGLSurface surface) {
+    this.egl = egl;
+    this.display = display;
+    this.context = context;
+    this.surface = surface;
+    thread = new Thread(this::run, TAG);
+  }
+
+  /**
+   * Creates a context sharing objects with the render context and starts the thread on it.
+   *
+   * @param renderContext An OpenGL ES 3 context, which has fence syncs.
+   * @return The started thread, or null if a shared context could not be made current.
+   */
+  static GlUploadThread start(
+      EGL10 egl, EGLDisplay display, EGLConfig config, EGLContext renderContext) {
+    int[] contextAttributes = {EGL_CONTEXT_CLIENT_VERSION, 3, EGL10.EGL_NONE};
+    EGLContext context = egl.eglCreateContext(display, config, renderContext, contextAttributes);
+    if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+      Log.w(TAG, "Could not create a shared context, error " + egl.eglGetError());
+      return null;
+    }
+    // The thread never draws, so a 1x1 pbuffer is enough. Where the config has no pbuffer
+    // support, the context is made current without a surface, which most drivers allow.
+    int[] surfaceAttributes = {EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1, EGL10.EGL_NONE};
+    EGLSurface surface = egl.eglCreatePbufferSurface(display, config, surfaceAttributes);
+    if (surface == null) {
+      surface = EGL10.EGL_NO_SURFACE;
+    }
+
+    GlUploadThread uploadThread = new GlUploadThread(egl, display, context, surface);
+    uploadThread.thread.start();
+    try {
+      uploadThread.started.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!uploadThread.current) {
+      Log.w(TAG, "Could not make the shared context current, error " + egl.eglGetError());
+      uploadThread.quit();
+      return null;
+    }
+    return uploadThread;
+  }
+
+  /**
+   * Queues a texture for upload. Can be called from any thread.
+   *
+   * @param internalFormat The format to upload compressed data as, see {@link
+   *     TextureUtil#createTexture(KtxTexture, int)}.
+   * @param priority One of the {@link GlWorkScheduler} PRIORITY constants.
+   * @param callback Receives the texture on the render thread once it is uploaded.
+   */
+  public void submit(
+      KtxTexture texture, int internalFormat, int priority, TextureUploadJob.Callback callback) {
+    queue.add(
+        new Upload(texture, internalFormat, priority, sequence.incrementAndGet(), callback));
+  }
+
+  /**
+   * Moves a queued upload ahead of less urgent ones. Does nothing if the upload has started
+   * already, or is as urgent. Can be called from any thread.
+   *
+   * @param callback The callback the upload was submitted with.
+   * @param priority One of the {@link GlWorkScheduler} PRIORITY constants.
+   */
+  public void raisePriority(TextureUploadJob.Callback callback, int priority) {
+    for (Upload upload : queue) {
+      if (upload.callback == callback) {
+        // Only requeued if this thread has not taken it in the meantime.
+        if (upload.priority > priority && queue.remove(upload)) {
+          queue.add(
+              new Upload(
+                  upload.texture, upload.internalFormat, priority, upload.sequence, callback));
+        }
+        return;
+      }
+    }
+  }
+
+  /** Hands the textures uploaded since the last call, and failed uploads, to their callbacks. */
+  public void publishCompletedOnGlThread() {
+    Upload upload;
+    while ((upload = completed.poll()) != null) {
+      if (upload.textureId != 0) {
+        upload.callback.onUploaded(upload.textureId);
+      } else {
+        upload.callback.onUploadFailed();
+      }
+    }
+  }
+
+  /**
+   * Stops the thread and destroys its context, dropping queued uploads. Textures uploaded but not
+   * yet published are left to the render context, which is about to be destroyed with them.
+   */
+  void quit() {
+    queue.clear();
+    queue.add(QUIT);
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+    current = egl.eglMakeCurrent(display, surface, surface, context);
+    started.countDown();
+    try {
+      while (current) {
+        Upload upload = queue.take();
+        if (upload == QUIT) {
+          break;
+        }
+        try {
+          upload.textureId = TextureUtil.createTexture(upload.texture, upload.internalFormat);
+        } catch (RuntimeException e) {
+          // Drop the texture rather than the thread.
+          Log.e(TAG, "Texture upload failed", e);
+          upload.textureId = 0;
+          completed.add(upload);
+          continue;
+        }
+        waitForGpu();
+        completed.add(upload);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      egl.eglMakeCurrent(
+          display, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+      if (surface != EGL10.EGL_NO_SURFACE) {
+        egl.eglDestroySurface(display, surface);
+      }
+      egl.eglDestroyContext(display, context);
+    }
+  }
+
+  /** Blocks until the GPU has executed all commands issued so far on this context. */
+  private static void waitForGpu() {
+    long sync = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    if (sync == 0) {
+      GLES20.glFinish();
+      return;
+    }
+    // Flushes the commands so the fence can signal, then waits on this thread only.
+    int result =
+        GLES30.glClientWaitSync(sync, GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT_NANOS);
+    GLES30.glDeleteSync(sync);
+    if (result != GLES30.GL_ALREADY_SIGNALED && result != GLES30.GL_CONDITION_SATISFIED) {
+      Log.w(TAG, "Fence wait failed with " + result + ", finishing instead");
+      GLES20.glFinish();
+    }
+  }
+}
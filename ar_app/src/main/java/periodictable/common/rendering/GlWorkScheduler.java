@@ -0,0 +1,262 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.rendering;
+
+import android.util.Log;
+import java.util.PriorityQueue;
+
+/**
+ * Runs OpenGL work such as texture uploads within a time budget per frame, so loading content
+ * never makes a single frame take much longer than the others. Work is split into jobs that do
+ * one small step at a time; {@link #runPendingOnGlThread()} runs steps of the most urgent jobs
+ * until the frame's budget is used up. Jobs past their deadline keep running regardless of the
+ * budget, so urgent content is never starved.
+ *
+ * <p>Texture uploads go to a {@link GlUploadThread} instead when one is given, so they cost the
+ * render thread nothing.
+ *
+ * <p>The queue depth and how often and by how much frames overrun the budget are kept as metrics,
+ * and logged periodically when debug logging is enabled for this tag. All methods must be called
+ * on the OpenGL thread.
+ */
+public class GlWorkScheduler {
+  private static final String TAG = GlWorkScheduler.class.getSimpleName();
+
+  /** For content the user is waiting for, e.g. a card that was just tapped. */
+  public static final int PRIORITY_HIGH = 0;
+  /** For content in view. */
+  public static final int PRIORITY_NORMAL = 1;
+  /** For content loaded ahead of time. */
+  public static final int PRIORITY_LOW = 2;
+
+  /** Passed as the deadline of jobs that may wait indefinitely. */
+  public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  private static final int METRICS_LOG_INTERVAL_FRAMES = 300;
+
+  /** Work done on the OpenGL thread in small steps, possibly over several frames. */
+  public interface Job {
+    /**
+     * Does the next step of the job. A step should take well under a millisecond.
+     *
+     * @return Whether the job is finished.
+     */
+    boolean runStep();
+
+    /** Called instead of further steps when the job is dropped, e.g. to delete its texture. */
+    void cancel();
+  }
+
+  private static class Entry implements Comparable<Entry> {
+    final Job job;
+    final int priority;
+    final long deadlineNanos;
+    final long sequence;
+
+    Entry(Job job, int priority, long deadlineNanos, long sequence) {
+      this.job = job;
+      this.priority = priority;
+      this.deadlineNanos = deadlineNanos;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(Entry other) {
+      // Most urgent first, then earliest deadline first, then in submission order.
+      if (priority != other.priority) {
+        return Integer.compare(priority, other.priority);
+      }
+      if (deadlineNanos != other.deadlineNanos) {
+        return Long.compare(deadlineNanos, other.deadlineNanos);
+      }
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+
+  private final long budgetNanos;
+  private final GlUploadThread uploadThread;
+  private final PriorityQueue<Entry> queue = new PriorityQueue<>();
+  private long sequence;
+
+  private long frameCount;
+  private long overrunCount;
+  private long maxOverrunNanos;
+  private int maxQueueDepth;
+
+  /**
+   * @param budgetNanos Time to spend on jobs per frame.
+   * @param uploadThread Where {@link #submitUpload} uploads textures, or null to upload them in
+   *     steps on this thread.
+   */
+  public GlWorkScheduler(long budgetNanos, GlUploadThread uploadThread) {
+    this.budgetNanos = budgetNanos;
+    this.uploadThread = uploadThread;
+  }
+
+  /**
+   * Queues a job.
+   *
+   * @param priority One of the PRIORITY constants. Lower values run first.
+   * @param deadlineNanos The {@link System#nanoTime()} after which the job runs regardless of the
+   *     frame budget, or {@link #NO_DEADLINE}.
+   */
+  public void submit(Job job, int priority, long deadlineNanos) {
+    queue.add(new Entry(job, priority, deadlineNanos, sequence++));
+    maxQueueDepth = Math.max(maxQueueDepth, queue.size());
+  }
+
+  /**
+   * Uploads a texture with all of its mip levels, on the {@link GlUploadThread} if there is one,
+   * or else in steps by a {@link TextureUploadJob}.
+   *
+   * @param internalFormat The format to upload compressed data as, see {@link
+   *     TextureUtil#createTexture(KtxTexture, int)}.
+   * @param callback Receives the texture on this thread once it is uploaded.
+   */
+  public void submitUpload(
+      KtxTexture texture,
+      int internalFormat,
+      int priority,
+      long deadlineNanos,
+      TextureUploadJob.Callback callback) {
+    if (uploadThread != null) {
+      uploadThread.submit(texture, internalFormat, priority, callback);
+    } else {
+      submit(new TextureUploadJob(texture, internalFormat, callback), priority, deadlineNanos);
+    }
+  }
+
+  /**
+   * Makes a texture upload submitted by {@link #submitUpload} more urgent, e.g. once content that
+   * was loaded ahead of time comes into view. Does nothing if the upload is done, or is already
+   * as urgent.
+   *
+   * @param callback The callback the upload was submitted with.
+   * @param priority One of the PRIORITY constants.
+   * @param deadlineNanos The new deadline, see {@link #submit}.
+   */
+  public void raiseUploadPriority(
+      TextureUploadJob.Callback callback, int priority, long deadlineNanos) {
+    if (uploadThread != null) {
+      uploadThread.raisePriority(callback, priority);
+      return;
+    }
+    for (Entry entry : queue) {
+      if (entry.job instanceof TextureUploadJob
+          && ((TextureUploadJob) entry.job).getCallback() == callback) {
+        if (entry.priority > priority || entry.deadlineNanos > deadlineNanos) {
+          // Entries are ordered on insertion, so a changed one is queued again. A partly
+          // uploaded texture continues where it left off.
+          queue.remove(entry);
+          queue.add(
+              new Entry(
+                  entry.job,
+                  Math.min(entry.priority, priority),
+                  Math.min(entry.deadlineNanos, deadlineNanos),
+                  entry.sequence));
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * Hands over the textures finished by the upload thread, then runs queued jobs until this
+   * frame's budget is used up. Should be called once per frame.
+   */
+  public void runPendingOnGlThread() {
+    if (uploadThread != null) {
+      uploadThread.publishCompletedOnGlThread();
+    }
+    long start = System.nanoTime();
+    long now = start;
+    while (!queue.isEmpty()) {
+      Entry entry = queue.peek();
+      if (now - start >= budgetNanos && now < entry.deadlineNanos) {
+        break;
+      }
+      try {
+        if (entry.job.runStep()) {
+          queue.poll();
+        }
+      } catch (RuntimeException e) {
+        // Drop the job rather than failing on it again every frame.
+        Log.e(TAG, "Job failed", e);
+        queue.poll();
+        entry.job.cancel();
+      }
+      now = System.nanoTime();
+    }
+
+    frameCount++;
+    long overrunNanos = now - start - budgetNanos;
+    if (overrunNanos > 0) {
+      overrunCount++;
+      maxOverrunNanos = Math.max(maxOverrunNanos, overrunNanos);
+    }
+    if (frameCount % METRICS_LOG_INTERVAL_FRAMES == 0 && Log.isLoggable(TAG, Log.DEBUG)) {
+      Log.d(
+          TAG,
+          "Queue depth "
+              + queue.size()
+              + " (max "
+              + maxQueueDepth
+              + "), budget overruns "
+              + overrunCount
+              + "/"
+              + frameCount
+              + " frames (max "
+              + maxOverrunNanos / 1000
+              + " us)");
+    }
+  }
+
+  /**
+   * Cancels all queued jobs, e.g. when the content they load is no longer needed. When the EGL
+   * context is lost, drop the scheduler instead: cancelling deletes objects by id, which may have
+   * been reused by a new context.
+   */
+  public void clear() {
+    for (Entry entry : queue) {
+      entry.job.cancel();
+    }
+    queue.clear();
+  }
+
+  /** Returns the number of jobs that are queued or partly done. */
+  public int getQueueDepth() {
+    return queue.size();
+  }
+
+  /** Returns the largest number of jobs queued at once. */
+  public int getMaxQueueDepth() {
+    return maxQueueDepth;
+  }
+
+  /** Returns the number of frames whose jobs took longer than the budget. */
+  public long getOverrunCount() {
+    return overrunCount;
+  }
+
+  /** Returns by how much the jobs of a frame overran the budget at most. */
+  public long getMaxOverrunNanos() {
+    return maxOverrunNanos;
+  }
+
+  public long getFrameCount() {
+    return frameCount;
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.rendering;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A 2D texture read from a KTX 1.1 container
+ * (https://registry.khronos.org/KTX/specs/1.0/ktxspec_v1.html), with all of its mip levels.
+ *
+ * <p>This class only depends on java.nio, so it can be used off the OpenGL thread and outside of
+ * Android. Upload it with {@link TextureUtil#createTexture(KtxTexture, int)}. Mip chains built at
+ * runtime, e.g. by {@link BitmapDecoder#buildMipChain}, are held the same way through {@link
+ * #create}.
+ */
+public class KtxTexture {
+  private static final byte[] IDENTIFIER = {
+    (byte) 0xAB, 0x4B, 0x54, 0x58, 0x20, 0x31, 0x31, (byte) 0xBB, 0x0D, 0x0A, 0x1A, 0x0A
+  };
+  private static final int ENDIANNESS = 0x04030201;
+  // The only packed pixel type used, see BitmapDecoder#buildMipChain. GLES20 is not used here.
+  private static final int GL_UNSIGNED_SHORT_5_6_5 = 0x8363;
+
+  private final int glType;
+  private final int glFormat;
+  private final int glInternalFormat;
+  private final int width;
+  private final int height;
+  private final List<ByteBuffer> levels;
+
+  private KtxTexture(
+      int glType,
+      int glFormat,
+      int glInternalFormat,
+      int width,
+      int height,
+      List<ByteBuffer> levels) {
+    this.glType = glType;
+    this.glFormat = glFormat;
+    this.glInternalFormat = glInternalFormat;
+    this.width = width;
+    this.height = height;
+    this.levels = levels;
+  }
+
+  /**
+   * Creates an uncompressed texture from the image data of each of its mip levels. Rows must be
+   * padded to a multiple of 4 bytes, as in a KTX file.
+   *
+   * @param glType The pixel type, e.g. GL_UNSIGNED_SHORT_5_6_5.
+   * @param glFormat The pixel format, which is also the internal format, e.g. GL_RGB.
+   * @param levels The image data of each mip level, starting with the full-size image.
+   */
+  public static KtxTexture create(
+      int glType, int glFormat, int width, int height, List<ByteBuffer> levels) {
+    return new KtxTexture(glType, glFormat, glFormat, width, height, levels);
+  }
+
+  /** Reads a KTX file fully into a direct buffer and parses it. */
+  public static KtxTexture read(InputStream inputStream) throws IOException {
+    byte[] chunk = new byte[64 * 1024];
+    ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(inputStream.available(), chunk.length));
+    int count;
+    while ((count = inputStream.read(chunk)) != -1) {
+      if (buffer.remaining() < count) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2 + count);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+      }
+      buffer.put(chunk, 0, count);
+    }
+    buffer.flip();
+    return parse(buffer);
+  }
+
+  /**
+   * Parses a KTX file. The returned levels are views of {@code buffer}, so it must not be modified
+   * while the texture is in use.
+   *
+   * @throws IOException If the data is not a 2D KTX texture.
+   */
+  public static KtxTexture parse(ByteBuffer buffer) throws IOException {
+    ByteBuffer data = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      byte[] identifier = new byte[IDENTIFIER.length];
+      data.get(identifier);
+      if (!Arrays.equals(identifier, IDENTIFIER)) {
+        throw new IOException("Not a KTX file");
+      }
+      if (data.getInt() != ENDIANNESS) {
+        data.order(ByteOrder.BIG_ENDIAN);
+      }
+      int glType = data.getInt();
+      data.getInt(); // glTypeSize
+      int glFormat = data.getInt();
+      int glInternalFormat = data.getInt();
+      data.getInt(); // glBaseInternalFormat
+      int width = data.getInt();
+      int height = data.getInt();
+      int depth = data.getInt();
+      int arrayElements = data.getInt();
+      int faces = data.getInt();
+      int levelCount = Math.max(1, data.getInt());
+      int keyValueBytes = data.getInt();
+      if (depth != 0 || arrayElements != 0 || faces != 1) {
+        throw new IOException("Only 2D KTX textures are supported");
+      }
+      data.position(data.position() + keyValueBytes);
+
+      List<ByteBuffer> levels = new ArrayList<>(levelCount);
+      for (int level = 0; level < levelCount; level++) {
+        int imageSize = data.getInt();
+        ByteBuffer levelData = data.slice();
+        levelData.limit(imageSize);
+        levels.add(levelData);
+        data.position(data.position() + imageSize + 3 - ((imageSize + 3) % 4));
+      }
+      return new KtxTexture(glType, glFormat, glInternalFormat, width, height, levels);
+    } catch (RuntimeException e) {
+      // Buffer underflows and illegal positions mean the file is truncated.
+      throw new IOException("Truncated KTX file", e);
+    }
+  }
+
+  /**
+   * Writes the texture as a KTX file that {@link #parse} reads back, e.g. to cache a mip chain
+   * built at runtime.
+   */
+  public void write(WritableByteChannel channel) throws IOException {
+    ByteBuffer header =
+        ByteBuffer.allocate(IDENTIFIER.length + 13 * 4).order(ByteOrder.nativeOrder());
+    header.put(IDENTIFIER);
+    header.putInt(ENDIANNESS);
+    header.putInt(glType);
+    header.putInt(glType == GL_UNSIGNED_SHORT_5_6_5 ? 2 : 1); // glTypeSize
+    header.putInt(glFormat);
+    header.putInt(glInternalFormat);
+    header.putInt(glFormat != 0 ? glFormat : glInternalFormat); // glBaseInternalFormat
+    header.putInt(width);
+    header.putInt(height);
+    header.putInt(0); // pixelDepth
+    header.putInt(0); // numberOfArrayElements
+    header.putInt(1); // numberOfFaces
+    header.putInt(levels.size());
+    header.putInt(0); // bytesOfKeyValueData
+    header.flip();
+    writeFully(channel, header);
+
+    ByteBuffer imageSize = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+    ByteBuffer padding = ByteBuffer.allocate(3);
+    for (ByteBuffer level : levels) {
+      ByteBuffer data = level.duplicate();
+      data.rewind();
+      imageSize.clear();
+      imageSize.putInt(data.remaining()).flip();
+      writeFully(channel, imageSize);
+      int paddingBytes = 3 - ((data.remaining() + 3) % 4);
+      writeFully(channel, data);
+      padding.clear().limit(paddingBytes);
+      writeFully(channel, padding);
+    }
+  }
+
+  /** Returns whether the data is block-compressed, i.e. uploaded with glCompressedTexImage2D. */
+  public boolean isCompressed() {
+    return glType == 0;
+  }
+
+  public int getGlType() {
+    return glType;
+  }
+
+  public int getGlFormat() {
+    return glFormat;
+  }
+
+  public int getGlInternalFormat() {
+    return glInternalFormat;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getLevelCount() {
+    return levels.size();
+  }
+
+  /** Returns the width of a mip level. */
+  public int getLevelWidth(int level) {
+    return Math.max(1, width >> level);
+  }
+
+  /** Returns the height of a mip level. */
+  public int getLevelHeight(int level) {
+    return Math.max(1, height >> level);
+  }
+
+  /** Returns the image data of a mip level, positioned at its start. */
+  public ByteBuffer getLevelData(int level) {
+    return levels.get(level).duplicate();
+  }
+
+  /** Returns the total size of the image data of all levels, in bytes. */
+  public int getDataSize() {
+    int size = 0;
+    for (ByteBuffer level : levels) {
+      size += level.limit();
+    }
+    return size;
+  }
+
+  private static void writeFully(WritableByteChannel channel, ByteBuffer buffer)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+}
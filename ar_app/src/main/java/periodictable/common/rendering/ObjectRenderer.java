@@ -16,10 +16,7 @@
 package periodictable.common.rendering;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.opengl.Matrix;
 
 import de.javagl.obj.Obj;
@@ -62,6 +59,8 @@ public class ObjectRenderer {
 
   private static final int COORDS_PER_VERTEX = 3;
   private static final float[] DEFAULT_COLOR = new float[] {0f, 0f, 0f, 0f};
+  // Samples the whole texture. See #draw(float[], float[], float[], float[], int, float[]).
+  private static final float[] DEFAULT_TEX_COORD_TRANSFORM = new float[] {0f, 0f, 1f, 1f};
 
   // Note: the last component must be zero to avoid applying the translational part of the matrix.
   private static final float[] LIGHT_DIRECTION = new float[] {0.250f, 0.866f, 0.433f, 0.0f};
@@ -75,41 +74,95 @@ public class ObjectRenderer {
   private int indexBufferId;
   private int indexCount;
 
-  private int program;
   private final int[] textures = new int[1];
 
-  // Shader location: model view projection matrix.
-  private int modelViewUniform;
-  private int modelViewProjectionUniform;
+  /** A variant of the shader program, compiled with some of its flags set. */
+  private static class ShaderProgram {
+    final int program;
 
-  // Shader location: object attributes.
-  private int positionAttribute;
-  private int normalAttribute;
-  private int texCoordAttribute;
+    // Shader location: model view projection matrix.
+    final int modelViewUniform;
+    final int modelViewProjectionUniform;
 
-  // Shader location: texture sampler.
-  private int textureUniform;
+    // Shader location: object attributes.
+    final int positionAttribute;
+    final int normalAttribute;
+    final int texCoordAttribute;
 
-  // Shader location: environment properties.
-  private int lightingParametersUniform;
+    // Shader location: texture sampler.
+    final int textureUniform;
 
-  // Shader location: material properties.
-  private int materialParametersUniform;
+    // Shader location: texture coordinate offset and scale.
+    final int texCoordTransformUniform;
 
-  // Shader location: color correction property.
-  private int colorCorrectionParameterUniform;
+    // Shader location: environment properties.
+    final int lightingParametersUniform;
 
-  // Shader location: object color property (to change the primary color of the object).
-  private int colorUniform;
+    // Shader location: material properties.
+    final int materialParametersUniform;
 
-  // Shader location: depth texture.
-  private int depthTextureUniform;
+    // Shader location: color correction property.
+    final int colorCorrectionParameterUniform;
 
-  // Shader location: transform to depth uvs.
-  private int depthUvTransformUniform;
+    // Shader location: object color property (to change the primary color of the object).
+    final int colorUniform;
 
-  // Shader location: the aspect ratio of the depth texture.
-  private int depthAspectRatioUniform;
+    // Shader location: depth texture.
+    final int depthTextureUniform;
+
+    // Shader location: transform to depth uvs.
+    final int depthUvTransformUniform;
+
+    // Shader location: the aspect ratio of the depth texture.
+    final int depthAspectRatioUniform;
+
+    // Shader location: virtual texture page table and parameters.
+    final boolean useVirtualTexture;
+    final int pageTableUniform;
+    final int virtualTextureParametersUniform;
+
+    ShaderProgram(int program, boolean useDepthForOcclusion, boolean useVirtualTexture) {
+      this.program = program;
+      this.useVirtualTexture = useVirtualTexture;
+
+      modelViewUniform = GLES20.glGetUniformLocation(program, "u_ModelView");
+      modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
+
+      positionAttribute = GLES20.glGetAttribLocation(program, "a_Position");
+      normalAttribute = GLES20.glGetAttribLocation(program, "a_Normal");
+      texCoordAttribute = GLES20.glGetAttribLocation(program, "a_TexCoord");
+
+      textureUniform = GLES20.glGetUniformLocation(program, "u_Texture");
+      texCoordTransformUniform = GLES20.glGetUniformLocation(program, "u_TexCoordTransform");
+
+      lightingParametersUniform = GLES20.glGetUniformLocation(program, "u_LightingParameters");
+      materialParametersUniform = GLES20.glGetUniformLocation(program, "u_MaterialParameters");
+      colorCorrectionParameterUniform =
+          GLES20.glGetUniformLocation(program, "u_ColorCorrectionParameters");
+      colorUniform = GLES20.glGetUniformLocation(program, "u_ObjColor");
+
+      // Occlusion Uniforms.
+      depthTextureUniform =
+          useDepthForOcclusion ? GLES20.glGetUniformLocation(program, "u_DepthTexture") : -1;
+      depthUvTransformUniform =
+          useDepthForOcclusion ? GLES20.glGetUniformLocation(program, "u_DepthUvTransform") : -1;
+      depthAspectRatioUniform =
+          useDepthForOcclusion ? GLES20.glGetUniformLocation(program, "u_DepthAspectRatio") : -1;
+
+      // Virtual texture Uniforms.
+      pageTableUniform =
+          useVirtualTexture ? GLES20.glGetUniformLocation(program, "u_PageTable") : -1;
+      virtualTextureParametersUniform =
+          useVirtualTexture
+              ? GLES20.glGetUniformLocation(program, "u_VirtualTextureParameters")
+              : -1;
+    }
+  }
+
+  private ShaderProgram program;
+  // Samples the texture through a page table, over the same geometry buffers. Null unless enabled
+  // with setUseVirtualTexture.
+  private ShaderProgram virtualTextureProgram;
 
   private BlendMode blendMode = null;
 
@@ -117,6 +170,8 @@ public class ObjectRenderer {
   private final float[] modelMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
+  // Temporary matrix for updateModelMatrix, which is called for every object drawn.
+  private final float[] scaleMatrix = new float[16];
 
   // Set some default material properties to use for lighting.
   private float ambient = 0.3f;
@@ -131,50 +186,30 @@ public class ObjectRenderer {
   private float[] uvTransform = null;
   private int depthTextureId;
 
+  // Virtual texture parameters.
+  private static final String USE_VIRTUAL_TEXTURE_SHADER_FLAG = "USE_VIRTUAL_TEXTURE";
+  private boolean useVirtualTexture = false;
+
   /**
    * Creates and initializes OpenGL resources needed for rendering the model.
    *
-   * @param context Context for loading the shader and below-named model and texture assets.
+   * @param context Context for loading the shader and below-named model asset.
    * @param objAssetName Name of the OBJ file containing the model geometry.
-   * @param diffuseTextureAssetName Name of the PNG file containing the diffuse texture map.
+   * @param diffuseTexture The diffuse texture map with its mip chain, e.g. a KTX file or a chain
+   *     built off the OpenGL thread with {@link BitmapDecoder#buildMipChain}, or null if the model
+   *     is only drawn with textures passed to {@link #draw(float[], float[], float[], float[],
+   *     int)}.
    */
-  public void createOnGlThread(Context context, String objAssetName, String diffuseTextureAssetName)
+  public void createOnGlThread(Context context, String objAssetName, KtxTexture diffuseTexture)
       throws IOException {
     // Compiles and loads the shader based on the current configuration.
     compileAndLoadShaderProgram(context);
 
-    // Read the texture.
-    Bitmap textureBitmap =
-        BitmapFactory.decodeStream(context.getAssets().open(diffuseTextureAssetName));
-    // Create a textview texture
-    /**TextView textV = new TextView(context);
-    LinearLayout.LayoutParams layoutParams = new LinearLayout.LayoutParams(128, 128);
-    textV.setLayoutParams(layoutParams);
-    textV.setTextColor(Color.WHITE);
-    textV.setBackgroundColor(Color.BLUE);
-    textV.setGravity(Gravity.CENTER);
-    textV.setText("TEST");
-    Bitmap textviewBitmap = Bitmap.createBitmap( textV.getLayoutParams().width, textV.getLayoutParams().height, Bitmap.Config.ARGB_8888);
-    Canvas c = new Canvas(textviewBitmap);
-    textV.layout(0, 0, textV.getLayoutParams().width, textV.getLayoutParams().height);
-    textV.draw(c);
-    textV.setDrawingCacheEnabled(false);**/
-
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glGenTextures(textures.length, textures, 0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-
-    GLES20.glTexParameteri(
-        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
-    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-
-    textureBitmap.recycle();
-    //textviewBitmap.recycle();
-
-    ShaderUtil.checkGLError(TAG, "Texture loading");
+    if (diffuseTexture != null) {
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+      textures[0] =
+          TextureUtil.createTexture(diffuseTexture, diffuseTexture.getGlInternalFormat());
+    }
 
     // Read the obj file.
     InputStream objInputStream = context.getAssets().open(objAssetName);
@@ -273,10 +308,40 @@ public class ObjectRenderer {
     compileAndLoadShaderProgram(context);
   }
 
+  /**
+   * Specifies whether to also compile the program of {@link #drawVirtual}, which samples the tile
+   * cache of a virtual texture through a page table. It is a second program over the same geometry
+   * buffers, so the model is loaded once for both kinds of drawing.
+   *
+   * <p>This function is a no-op if the value provided is the same as what is already set.
+   *
+   * @param context Context for loading the shader.
+   * @param useVirtualTexture Specifies whether the model is also drawn from virtual textures.
+   */
+  public void setUseVirtualTexture(Context context, boolean useVirtualTexture)
+      throws IOException {
+    if (this.useVirtualTexture == useVirtualTexture) {
+      return; // No change, does nothing.
+    }
+
+    this.useVirtualTexture = useVirtualTexture;
+    virtualTextureProgram =
+        useVirtualTexture ? compileShaderProgram(context, /*useVirtualTexture=*/ true) : null;
+  }
+
   private void compileAndLoadShaderProgram(Context context) throws IOException {
-    // Compiles and loads the shader program based on the selected mode.
+    // Compiles and loads the shader programs based on the selected mode.
+    program = compileShaderProgram(context, /*useVirtualTexture=*/ false);
+    if (useVirtualTexture) {
+      virtualTextureProgram = compileShaderProgram(context, /*useVirtualTexture=*/ true);
+    }
+  }
+
+  private ShaderProgram compileShaderProgram(Context context, boolean useVirtualTexture)
+      throws IOException {
     Map<String, Integer> defineValuesMap = new TreeMap<>();
     defineValuesMap.put(USE_DEPTH_FOR_OCCLUSION_SHADER_FLAG, useDepthForOcclusion ? 1 : 0);
+    defineValuesMap.put(USE_VIRTUAL_TEXTURE_SHADER_FLAG, useVirtualTexture ? 1 : 0);
 
     final int vertexShader =
         ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
@@ -284,7 +349,7 @@ public class ObjectRenderer {
         ShaderUtil.loadGLShader(
             TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME, defineValuesMap);
 
-    program = GLES20.glCreateProgram();
+    int program = GLES20.glCreateProgram();
     GLES20.glAttachShader(program, vertexShader);
     GLES20.glAttachShader(program, fragmentShader);
     GLES20.glLinkProgram(program);
@@ -292,29 +357,11 @@ public class ObjectRenderer {
 
     ShaderUtil.checkGLError(TAG, "Program creation");
 
-    modelViewUniform = GLES20.glGetUniformLocation(program, "u_ModelView");
-    modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
-
-    positionAttribute = GLES20.glGetAttribLocation(program, "a_Position");
-    normalAttribute = GLES20.glGetAttribLocation(program, "a_Normal");
-    texCoordAttribute = GLES20.glGetAttribLocation(program, "a_TexCoord");
-
-    textureUniform = GLES20.glGetUniformLocation(program, "u_Texture");
-
-    lightingParametersUniform = GLES20.glGetUniformLocation(program, "u_LightingParameters");
-    materialParametersUniform = GLES20.glGetUniformLocation(program, "u_MaterialParameters");
-    colorCorrectionParameterUniform =
-        GLES20.glGetUniformLocation(program, "u_ColorCorrectionParameters");
-    colorUniform = GLES20.glGetUniformLocation(program, "u_ObjColor");
-
-    // Occlusion Uniforms.
-    if (useDepthForOcclusion) {
-      depthTextureUniform = GLES20.glGetUniformLocation(program, "u_DepthTexture");
-      depthUvTransformUniform = GLES20.glGetUniformLocation(program, "u_DepthUvTransform");
-      depthAspectRatioUniform = GLES20.glGetUniformLocation(program, "u_DepthAspectRatio");
-    }
+    ShaderProgram shaderProgram =
+        new ShaderProgram(program, useDepthForOcclusion, useVirtualTexture);
 
     ShaderUtil.checkGLError(TAG, "Program parameters");
+    return shaderProgram;
   }
 
   /**
@@ -325,7 +372,6 @@ public class ObjectRenderer {
    * @see android.opengl.Matrix
    */
   public void updateModelMatrix(float[] modelMatrix, float scaleFactor) {
-    float[] scaleMatrix = new float[16];
     Matrix.setIdentityM(scaleMatrix, 0);
     scaleMatrix[0] = scaleFactor;
     scaleMatrix[5] = scaleFactor;
@@ -371,6 +417,101 @@ public class ObjectRenderer {
       float[] cameraPerspective,
       float[] colorCorrectionRgba,
       float[] objColor) {
+    draw(cameraView, cameraPerspective, colorCorrectionRgba, objColor, textures[0]);
+  }
+
+  /**
+   * Draws the model with the given texture instead of the one passed to {@link
+   * #createOnGlThread(Context, String, KtxTexture)}. The geometry buffers are shared, so one
+   * renderer can draw many instances with different textures in the same frame.
+   *
+   * @param textureId The texture object handle, e.g. from {@link TextureUtil#createTexture}. The
+   *     texture stays owned by the caller.
+   * @see #draw(float[], float[], float[], float[])
+   */
+  public void draw(
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba,
+      float[] objColor,
+      int textureId) {
+    draw(
+        cameraView,
+        cameraPerspective,
+        colorCorrectionRgba,
+        objColor,
+        textureId,
+        DEFAULT_TEX_COORD_TRANSFORM);
+  }
+
+  /**
+   * Draws the model with a sub-rectangle of the given texture, e.g. one region of a texture atlas.
+   *
+   * @param texCoordTransform Offset (x, y) and scale (z, w) applied to the model's texture
+   *     coordinates before sampling. {0, 0, 1, 1} samples the whole texture.
+   * @see #draw(float[], float[], float[], float[], int)
+   */
+  public void draw(
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba,
+      float[] objColor,
+      int textureId,
+      float[] texCoordTransform) {
+    draw(
+        program,
+        cameraView,
+        cameraPerspective,
+        colorCorrectionRgba,
+        objColor,
+        textureId,
+        texCoordTransform,
+        /*pageTableTextureId=*/ 0,
+        /*virtualTextureParameters=*/ null);
+  }
+
+  /**
+   * Draws the model with a virtual texture, see {@code
+   * periodictable.augmentedimage.rendering.CardVirtualTextures}. Needs {@link
+   * #setUseVirtualTexture(Context, boolean)}.
+   *
+   * @param cacheTextureId The tile cache texture object handle.
+   * @param pageTableTextureId The page table texture object handle.
+   * @param virtualTextureParameters The tiles per side of the finest level, then the size of a
+   *     cache slot, of a tile's border and of a tile's content, in texture coordinates of the tile
+   *     cache.
+   * @see #draw(float[], float[], float[], float[], int)
+   */
+  public void drawVirtual(
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba,
+      float[] objColor,
+      int cacheTextureId,
+      int pageTableTextureId,
+      float[] virtualTextureParameters) {
+    draw(
+        virtualTextureProgram,
+        cameraView,
+        cameraPerspective,
+        colorCorrectionRgba,
+        objColor,
+        cacheTextureId,
+        DEFAULT_TEX_COORD_TRANSFORM,
+        pageTableTextureId,
+        virtualTextureParameters);
+  }
+
+  private void draw(
+      ShaderProgram program,
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba,
+      float[] objColor,
+      int textureId,
+      float[] texCoordTransform,
+      int pageTableTextureId,
+      float[] virtualTextureParameters) {
 
     ShaderUtil.checkGLError(TAG, "Before draw");
 
@@ -379,61 +520,81 @@ public class ObjectRenderer {
     Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
     Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
 
-    GLES20.glUseProgram(program);
+    GLES20.glUseProgram(program.program);
 
     // Set the lighting environment properties.
     Matrix.multiplyMV(viewLightDirection, 0, modelViewMatrix, 0, LIGHT_DIRECTION, 0);
     normalizeVec3(viewLightDirection);
     GLES20.glUniform4f(
-        lightingParametersUniform,
+        program.lightingParametersUniform,
         viewLightDirection[0],
         viewLightDirection[1],
         viewLightDirection[2],
         1.f);
-    GLES20.glUniform4fv(colorCorrectionParameterUniform, 1, colorCorrectionRgba, 0);
+    GLES20.glUniform4fv(program.colorCorrectionParameterUniform, 1, colorCorrectionRgba, 0);
 
     // Set the object color property.
-    GLES20.glUniform4fv(colorUniform, 1, objColor, 0);
+    GLES20.glUniform4fv(program.colorUniform, 1, objColor, 0);
 
     // Set the object material properties.
-    GLES20.glUniform4f(materialParametersUniform, ambient, diffuse, specular, specularPower);
+    GLES20.glUniform4f(
+        program.materialParametersUniform, ambient, diffuse, specular, specularPower);
 
     // Attach the object texture.
     GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-    GLES20.glUniform1i(textureUniform, 0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+    GLES20.glUniform1i(program.textureUniform, 0);
+    GLES20.glUniform4fv(program.texCoordTransformUniform, 1, texCoordTransform, 0);
 
     // Occlusion parameters.
     if (useDepthForOcclusion) {
       // Attach the depth texture.
       GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
       GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, depthTextureId);
-      GLES20.glUniform1i(depthTextureUniform, 1);
+      GLES20.glUniform1i(program.depthTextureUniform, 1);
 
       // Set the depth texture uv transform.
-      GLES20.glUniformMatrix3fv(depthUvTransformUniform, 1, false, uvTransform, 0);
-      GLES20.glUniform1f(depthAspectRatioUniform, depthAspectRatio);
+      GLES20.glUniformMatrix3fv(program.depthUvTransformUniform, 1, false, uvTransform, 0);
+      GLES20.glUniform1f(program.depthAspectRatioUniform, depthAspectRatio);
+    }
+
+    // Virtual texture parameters.
+    if (program.useVirtualTexture) {
+      // Attach the page table.
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE2);
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, pageTableTextureId);
+      GLES20.glUniform1i(program.pageTableUniform, 2);
+      GLES20.glUniform4fv(
+          program.virtualTextureParametersUniform, 1, virtualTextureParameters, 0);
+      GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
     }
 
     // Set the vertex attributes.
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
 
     GLES20.glVertexAttribPointer(
-        positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, verticesBaseAddress);
-    GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false, 0, normalsBaseAddress);
+        program.positionAttribute,
+        COORDS_PER_VERTEX,
+        GLES20.GL_FLOAT,
+        false,
+        0,
+        verticesBaseAddress);
+    GLES20.glVertexAttribPointer(
+        program.normalAttribute, 3, GLES20.GL_FLOAT, false, 0, normalsBaseAddress);
     GLES20.glVertexAttribPointer(
-        texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, texCoordsBaseAddress);
+        program.texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, texCoordsBaseAddress);
 
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
     // Set the ModelViewProjection matrix in the shader.
-    GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, modelViewMatrix, 0);
-    GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
+    GLES20.glUniformMatrix4fv(program.modelViewUniform, 1, false, modelViewMatrix, 0);
+    GLES20.glUniformMatrix4fv(
+        program.modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
 
     // Enable vertex arrays
-    GLES20.glEnableVertexAttribArray(positionAttribute);
-    GLES20.glEnableVertexAttribArray(normalAttribute);
-    GLES20.glEnableVertexAttribArray(texCoordAttribute);
+    GLES20.glEnableVertexAttribArray(program.positionAttribute);
+    GLES20.glEnableVertexAttribArray(program.normalAttribute);
+    GLES20.glEnableVertexAttribArray(program.texCoordAttribute);
 
     if (blendMode != null) {
       GLES20.glEnable(GLES20.GL_BLEND);
@@ -465,9 +626,9 @@ public class ObjectRenderer {
     }
 
     // Disable vertex arrays
-    GLES20.glDisableVertexAttribArray(positionAttribute);
-    GLES20.glDisableVertexAttribArray(normalAttribute);
-    GLES20.glDisableVertexAttribArray(texCoordAttribute);
+    GLES20.glDisableVertexAttribArray(program.positionAttribute);
+    GLES20.glDisableVertexAttribArray(program.normalAttribute);
+    GLES20.glDisableVertexAttribArray(program.texCoordAttribute);
 
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
 
@@ -492,7 +653,6 @@ public class ObjectRenderer {
 
   // Scale X, Y, Z coordinates unevenly
   public void updateModelMatrix(float[] modelMatrix, float scaleFactorX, float scaleFactorY, float scaleFactorZ) {
-    float[] scaleMatrix = new float[16];
     Matrix.setIdentityM(scaleMatrix, 0);
     scaleMatrix[0] = scaleFactorX;
     scaleMatrix[5] = scaleFactorY;
@@ -500,22 +660,16 @@ public class ObjectRenderer {
     Matrix.multiplyMM(this.modelMatrix, 0, modelMatrix, 0, scaleMatrix, 0);
   }
 
-  public void setTextureOnGLThread(Bitmap textureBitmap) {
-    // Bind the texture name already allocated.
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-    // Set the filtering for handling different sizes to render.
-    GLES20.glTexParameteri(
-            GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-
-    // Copy the bitmap contents into the texture buffer.
-    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
-
-    // Generate the mip map for the different sizes.
-    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
-
-    // Unbind the texture.
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+  /**
+   * Replaces the diffuse texture map with the given one.
+   *
+   * @param texture The texture with its mip chain, built off the OpenGL thread.
+   */
+  public void setTextureOnGLThread(KtxTexture texture) {
+    if (textures[0] != 0) {
+      TextureUtil.deleteTexture(textures[0]);
+    }
+    textures[0] = TextureUtil.createTexture(texture, texture.getGlInternalFormat());
   }
 
 }
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.rendering;
+
+import android.content.res.AssetManager;
+import android.opengl.GLES20;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import periodictable.common.helpers.MappedAssets;
+
+/**
+ * A signed distance field font built by {@code periodictable.tools.SdfFontBuilder}: the metrics of
+ * its glyphs, in ems, and an atlas holding the distance of each texel to the glyph outlines, from
+ * which {@link SdfTextRenderer} draws text sharp at any size.
+ */
+public class SdfFont {
+  private static final String TAG = SdfFont.class.getSimpleName();
+
+  /** 'SDFF' */
+  private static final int MAGIC = 0x53444646;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 28;
+  private static final int GLYPH_BYTES = 32;
+
+  /** Where a glyph is in the atlas and how it sits on the baseline. */
+  public static class Glyph {
+    /** How far the pen moves after the glyph, in ems. */
+    public final float advance;
+    /** Bounds of the glyph quad from the pen position, in ems, with y up. */
+    public final float left;
+    public final float bottom;
+    public final float right;
+    public final float top;
+    /** Bounds of the glyph in the atlas, in texture coordinates from the top-left. */
+    public final float u0;
+    public final float v0;
+    public final float u1;
+    public final float v1;
+
+    Glyph(
+        float advance,
+        float left,
+        float bottom,
+        float right,
+        float top,
+        float u0,
+        float v0,
+        float u1,
+        float v1) {
+      this.advance = advance;
+      this.left = left;
+      this.bottom = bottom;
+      this.right = right;
+      this.top = top;
+      this.u0 = u0;
+      this.v0 = v0;
+      this.u1 = u1;
+      this.v1 = v1;
+    }
+
+    /** Returns whether the glyph has nothing to draw, e.g. a space. */
+    public boolean isBlank() {
+      return right <= left;
+    }
+  }
+
+  private final Glyph[] glyphs;
+  private final char firstChar;
+  private final int atlasWidth;
+  private final int atlasHeight;
+  private final ByteBuffer atlas;
+  private final float ascent;
+  private final float lineHeight;
+  private int textureId;
+
+  private SdfFont(
+      Glyph[] glyphs,
+      char firstChar,
+      int atlasWidth,
+      int atlasHeight,
+      ByteBuffer atlas,
+      float ascent,
+      float lineHeight) {
+    this.glyphs = glyphs;
+    this.firstChar = firstChar;
+    this.atlasWidth = atlasWidth;
+    this.atlasHeight = atlasHeight;
+    this.atlas = atlas;
+    this.ascent = ascent;
+    this.lineHeight = lineHeight;
+  }
+
+  /**
+   * Reads a font. Its glyphs must cover a contiguous range of characters.
+   *
+   * @throws IOException If the font is missing, of another version, or truncated.
+   */
+  public static SdfFont load(AssetManager assets, String assetPath) throws IOException {
+    ByteBuffer data = MappedAssets.map(assets, assetPath);
+    if (data.remaining() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+      throw new IOException("Not a signed distance field font: " + assetPath);
+    }
+    int version = data.getShort(4) & 0xFFFF;
+    if (version != VERSION) {
+      throw new IOException("Unsupported font version " + version);
+    }
+    int glyphCount = data.getShort(6) & 0xFFFF;
+    int atlasWidth = data.getShort(8) & 0xFFFF;
+    int atlasHeight = data.getShort(10) & 0xFFFF;
+    int atlasStart = HEADER_BYTES + glyphCount * GLYPH_BYTES;
+    if (glyphCount == 0 || data.remaining() < atlasStart + atlasWidth * atlasHeight) {
+      throw new IOException("Font is truncated: " + assetPath);
+    }
+
+    Glyph[] glyphs = new Glyph[glyphCount];
+    char firstChar = data.getChar(HEADER_BYTES);
+    for (int i = 0; i < glyphCount; i++) {
+      int position = HEADER_BYTES + i * GLYPH_BYTES;
+      if (data.getChar(position) != firstChar + i) {
+        throw new IOException("Font glyphs are not contiguous: " + assetPath);
+      }
+      int x = data.getShort(position + 2);
+      int y = data.getShort(position + 4);
+      int width = data.getShort(position + 6);
+      int height = data.getShort(position + 8);
+      glyphs[i] =
+          new Glyph(
+              data.getFloat(position + 12),
+              data.getFloat(position + 16),
+              data.getFloat(position + 20),
+              data.getFloat(position + 24),
+              data.getFloat(position + 28),
+              (float) x / atlasWidth,
+              (float) y / atlasHeight,
+              (float) (x + width) / atlasWidth,
+              (float) (y + height) / atlasHeight);
+    }
+
+    ByteBuffer atlas = data.duplicate();
+    atlas.limit(atlasStart + atlasWidth * atlasHeight).position(atlasStart);
+    return new SdfFont(
+        glyphs,
+        firstChar,
+        atlasWidth,
+        atlasHeight,
+        atlas.slice(),
+        data.getFloat(16),
+        data.getFloat(24));
+  }
+
+  /** Returns the glyph of a character, or null if the font has none. */
+  public Glyph getGlyph(char c) {
+    int index = c - firstChar;
+    return index >= 0 && index < glyphs.length ? glyphs[index] : null;
+  }
+
+  /** Returns the height of the tallest glyphs above the baseline, in ems. */
+  public float getAscent() {
+    return ascent;
+  }
+
+  /** Returns the distance between baselines, in ems. */
+  public float getLineHeight() {
+    return lineHeight;
+  }
+
+  /**
+   * Returns the atlas texture, uploading it on first use. Must be called on the OpenGL thread.
+   * The texture belongs to the current EGL context.
+   */
+  public int getTextureOnGlThread() {
+    if (textureId == 0) {
+      textureId = TextureUtil.generateTexture(/*levelCount=*/ 1);
+      GLES20.glTexParameteri(
+          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+      GLES20.glTexParameteri(
+          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+      GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+      GLES20.glTexImage2D(
+          GLES20.GL_TEXTURE_2D,
+          /*level=*/ 0,
+          GLES20.GL_LUMINANCE,
+          atlasWidth,
+          atlasHeight,
+          /*border=*/ 0,
+          GLES20.GL_LUMINANCE,
+          GLES20.GL_UNSIGNED_BYTE,
+          atlas);
+      GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+      ShaderUtil.checkGLError(TAG, "Font atlas upload");
+    }
+    return textureId;
+  }
+
+  /** Forgets the atlas texture, which went away with the previous EGL context. */
+  public void onSurfaceCreated() {
+    textureId = 0;
+  }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.rendering;
+
+import android.content.Context;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Renders text with a {@link SdfFont}. Text is laid out once into a {@link TextRun}, a vertex
+ * buffer of glyph quads in a plane, which is then drawn with any model matrix at the cost of one
+ * draw call. The distance field keeps glyph edges sharp however close the camera gets.
+ */
+public class SdfTextRenderer {
+  private static final String TAG = SdfTextRenderer.class.getSimpleName();
+
+  // Shader names.
+  private static final String VERTEX_SHADER_NAME = "shaders/sdf_text.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/sdf_text.frag";
+
+  private static final int COORDS_PER_VERTEX = 2;
+  private static final int TEXCOORDS_PER_VERTEX = 2;
+  private static final int FLOATS_PER_VERTEX = COORDS_PER_VERTEX + TEXCOORDS_PER_VERTEX;
+  private static final int VERTICES_PER_GLYPH = 6;
+  private static final int FLOAT_SIZE = 4;
+  private static final int STRIDE = FLOATS_PER_VERTEX * FLOAT_SIZE;
+
+  /** Laid out text, ready to draw. */
+  public static class TextRun {
+    private int vertexBufferId;
+    private final int vertexCount;
+
+    private TextRun(int vertexBufferId, int vertexCount) {
+      this.vertexBufferId = vertexBufferId;
+      this.vertexCount = vertexCount;
+    }
+  }
+
+  /**
+   * Lays out text in a plane whose x axis points right and y axis points down, as on a page. Sizes
+   * are the font's em size in plane units.
+   */
+  public static class TextRunBuilder {
+    private final SdfFont font;
+    private float[] vertices = new float[64 * VERTICES_PER_GLYPH * FLOATS_PER_VERTEX];
+    private int floatCount;
+
+    private TextRunBuilder(SdfFont font) {
+      this.font = font;
+    }
+
+    /** Returns the width of text at a size. Characters the font lacks take no space. */
+    public float measure(String text, float size) {
+      float width = 0f;
+      for (int i = 0; i < text.length(); i++) {
+        SdfFont.Glyph glyph = font.getGlyph(text.charAt(i));
+        if (glyph != null) {
+          width += glyph.advance * size;
+        }
+      }
+      return width;
+    }
+
+    /**
+     * Adds text starting at a pen position.
+     *
+     * @param x Pen position at the start of the text.
+     * @param baseline Position of the baseline; glyphs extend up from it towards -y.
+     * @return The pen position after the text, to continue it at another size.
+     */
+    public float add(String text, float x, float baseline, float size) {
+      for (int i = 0; i < text.length(); i++) {
+        SdfFont.Glyph glyph = font.getGlyph(text.charAt(i));
+        if (glyph == null) {
+          continue;
+        }
+        if (!glyph.isBlank()) {
+          float left = x + glyph.left * size;
+          float right = x + glyph.right * size;
+          float top = baseline - glyph.top * size;
+          float bottom = baseline - glyph.bottom * size;
+          ensureCapacity(VERTICES_PER_GLYPH * FLOATS_PER_VERTEX);
+          putVertex(left, top, glyph.u0, glyph.v0);
+          putVertex(left, bottom, glyph.u0, glyph.v1);
+          putVertex(right, top, glyph.u1, glyph.v0);
+          putVertex(right, top, glyph.u1, glyph.v0);
+          putVertex(left, bottom, glyph.u0, glyph.v1);
+          putVertex(right, bottom, glyph.u1, glyph.v1);
+        }
+        x += glyph.advance * size;
+      }
+      return x;
+    }
+
+    /**
+     * Uploads the text laid out so far into a vertex buffer. Must be called on the OpenGL thread.
+     *
+     * @return The run, or null if there is nothing to draw.
+     */
+    public TextRun buildOnGlThread() {
+      if (floatCount == 0) {
+        return null;
+      }
+      FloatBuffer buffer =
+          ByteBuffer.allocateDirect(floatCount * FLOAT_SIZE)
+              .order(ByteOrder.nativeOrder())
+              .asFloatBuffer();
+      buffer.put(vertices, 0, floatCount).position(0);
+
+      int[] buffers = new int[1];
+      GLES20.glGenBuffers(1, buffers, 0);
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+      GLES20.glBufferData(
+          GLES20.GL_ARRAY_BUFFER, floatCount * FLOAT_SIZE, buffer, GLES20.GL_STATIC_DRAW);
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+      ShaderUtil.checkGLError(TAG, "Text run upload");
+      return new TextRun(buffers[0], floatCount / FLOATS_PER_VERTEX);
+    }
+
+    private void putVertex(float x, float y, float u, float v) {
+      vertices[floatCount++] = x;
+      vertices[floatCount++] = y;
+      vertices[floatCount++] = u;
+      vertices[floatCount++] = v;
+    }
+
+    private void ensureCapacity(int extraFloats) {
+      if (floatCount + extraFloats > vertices.length) {
+        vertices = Arrays.copyOf(vertices, Math.max(vertices.length * 2, floatCount + extraFloats));
+      }
+    }
+  }
+
+  private SdfFont font;
+
+  private int program;
+  private int positionAttribute;
+  private int texCoordAttribute;
+  private int modelViewProjectionUniform;
+  private int textureUniform;
+  private int colorUniform;
+  private int colorCorrectionParameterUniform;
+
+  // Temporary matrices allocated here to reduce number of allocations for each frame.
+  private final float[] modelViewMatrix = new float[16];
+  private final float[] modelViewProjectionMatrix = new float[16];
+
+  /**
+   * Allocates and initializes OpenGL resources needed by the text renderer. Must be called on the
+   * OpenGL thread.
+   *
+   * @param context Needed to access shader source.
+   * @param font The font of all text drawn.
+   */
+  public void createOnGlThread(Context context, SdfFont font) throws IOException {
+    this.font = font;
+    font.onSurfaceCreated();
+
+    int vertexShader =
+        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+    int fragmentShader =
+        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+
+    program = GLES20.glCreateProgram();
+    GLES20.glAttachShader(program, vertexShader);
+    GLES20.glAttachShader(program, fragmentShader);
+    GLES20.glLinkProgram(program);
+    GLES20.glUseProgram(program);
+    ShaderUtil.checkGLError(TAG, "Program creation");
+
+    positionAttribute = GLES20.glGetAttribLocation(program, "a_Position");
+    texCoordAttribute = GLES20.glGetAttribLocation(program, "a_TexCoord");
+    modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
+    textureUniform = GLES20.glGetUniformLocation(program, "u_Texture");
+    colorUniform = GLES20.glGetUniformLocation(program, "u_Color");
+    colorCorrectionParameterUniform =
+        GLES20.glGetUniformLocation(program, "u_ColorCorrectionParameters");
+    ShaderUtil.checkGLError(TAG, "Program parameters");
+  }
+
+  /** Returns a builder to lay out text in the font of this renderer. */
+  public TextRunBuilder newTextRun() {
+    return new TextRunBuilder(font);
+  }
+
+  /**
+   * Draws laid out text, blended over what is drawn already without writing depth.
+   *
+   * @param modelMatrix Transforms the text's plane, at z = 0, into world space.
+   * @param colorCorrectionRgba Illumination intensity of the environment, as in {@link
+   *     ObjectRenderer#draw}.
+   * @param colorRgba Color of the text, not premultiplied.
+   */
+  public void draw(
+      float[] modelMatrix,
+      float[] viewMatrix,
+      float[] projectionMatrix,
+      float[] colorCorrectionRgba,
+      float[] colorRgba,
+      TextRun run) {
+    Matrix.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, modelMatrix, 0);
+    Matrix.multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, modelViewMatrix, 0);
+
+    GLES20.glUseProgram(program);
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, font.getTextureOnGlThread());
+    GLES20.glUniform1i(textureUniform, 0);
+    GLES20.glUniform4fv(colorUniform, 1, colorRgba, 0);
+    GLES20.glUniform4fv(colorCorrectionParameterUniform, 1, colorCorrectionRgba, 0);
+    GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
+
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, run.vertexBufferId);
+    GLES20.glVertexAttribPointer(
+        positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, STRIDE, 0);
+    GLES20.glVertexAttribPointer(
+        texCoordAttribute,
+        TEXCOORDS_PER_VERTEX,
+        GLES20.GL_FLOAT,
+        false,
+        STRIDE,
+        COORDS_PER_VERTEX * FLOAT_SIZE);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    GLES20.glEnableVertexAttribArray(positionAttribute);
+    GLES20.glEnableVertexAttribArray(texCoordAttribute);
+
+    GLES20.glEnable(GLES20.GL_BLEND);
+    GLES20.glDepthMask(false);
+    GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, run.vertexCount);
+    GLES20.glDisable(GLES20.GL_BLEND);
+    GLES20.glDepthMask(true);
+
+    GLES20.glDisableVertexAttribArray(positionAttribute);
+    GLES20.glDisableVertexAttribArray(texCoordAttribute);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+    ShaderUtil.checkGLError(TAG, "Draw");
+  }
+
+  /** Frees the vertex buffer of a run. Must be called on the OpenGL thread. */
+  public static void deleteRun(TextRun run) {
+    if (run.vertexBufferId != 0) {
+      GLES20.glDeleteBuffers(1, new int[] {run.vertexBufferId}, 0);
+      run.vertexBufferId = 0;
+    }
+  }
+}
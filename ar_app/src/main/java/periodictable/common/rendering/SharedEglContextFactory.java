@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.rendering;
+
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+/**
+ * Creates the render context of a {@link GLSurfaceView} together with a {@link GlUploadThread}
+ * sharing its objects. An OpenGL ES 3 context is created where available, since the upload thread
+ * needs its fence syncs; otherwise an OpenGL ES 2 context is created without an upload thread.
+ *
+ * <p>Set with {@link GLSurfaceView#setEGLContextFactory} before the renderer.
+ */
+public class SharedEglContextFactory implements GLSurfaceView.EGLContextFactory {
+  private static final String TAG = SharedEglContextFactory.class.getSimpleName();
+
+  private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
+
+  private volatile GlUploadThread uploadThread;
+
+  @Override
+  public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+    EGLContext context = createContext(egl, display, config, /*version=*/ 3);
+    if (context != EGL10.EGL_NO_CONTEXT) {
+      uploadThread = GlUploadThread.start(egl, display, config, context);
+    } else {
+      Log.i(TAG, "OpenGL ES 3 not available, uploading textures on the render thread");
+      context = createContext(egl, display, config, /*version=*/ 2);
+    }
+    return context;
+  }
+
+  @Override
+  public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+    // The upload thread must let go of the shared objects before the render context does.
+    if (uploadThread != null) {
+      uploadThread.quit();
+      uploadThread = null;
+    }
+    if (!egl.eglDestroyContext(display, context)) {
+      Log.e(TAG, "eglDestroyContext failed, error " + egl.eglGetError());
+    }
+  }
+
+  /**
+   * Returns the upload thread of the current render context, or null if textures must be uploaded
+   * on the render thread. Call from {@link GLSurfaceView.Renderer#onSurfaceCreated}.
+   */
+  public GlUploadThread getUploadThread() {
+    return uploadThread;
+  }
+
+  private static EGLContext createContext(
+      EGL10 egl, EGLDisplay display, EGLConfig config, int version) {
+    int[] attributes = {EGL_CONTEXT_CLIENT_VERSION, version, EGL10.EGL_NONE};
+    EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, attributes);
+    return context == null ? EGL10.EGL_NO_CONTEXT : context;
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.rendering;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+import android.util.LongSparseArray;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps the GPU memory used by textures within a byte budget. Owners register each texture they
+ * upload and touch it whenever it is drawn. At the end of every frame the least recently drawn
+ * textures are deleted until the total fits the budget again; textures drawn in the current frame
+ * are never evicted. Owners are told about evictions so they can reload the texture when it is
+ * needed again.
+ *
+ * <p>Textures are looked up in a {@link LongSparseArray} and kept in least recently drawn order on
+ * a list linked through their entries, so touching textures and ending frames does not allocate.
+ *
+ * <p>{@link #onTrimMemory(int)} may be called from any thread and takes effect at the end of the
+ * next frame. All other methods must be called on the OpenGL thread.
+ */
+public class TextureResidencyManager {
+  private static final String TAG = TextureResidencyManager.class.getSimpleName();
+
+  /** Notified when a texture is deleted to stay within the budget. */
+  public interface EvictionListener {
+    /**
+     * Called after the texture has been deleted. Must not call back into the manager.
+     *
+     * @param key The key the texture was registered with.
+     */
+    void onEvicted(long key);
+  }
+
+  private static class Entry {
+    final long key;
+    final int textureId;
+    final long bytes;
+    final EvictionListener listener;
+    long lastUsedFrame;
+    // Neighbours in the usage list, towards the least and the most recently drawn texture.
+    Entry previous;
+    Entry next;
+
+    Entry(long key, int textureId, long bytes, EvictionListener listener) {
+      this.key = key;
+      this.textureId = textureId;
+      this.bytes = bytes;
+      this.listener = listener;
+    }
+  }
+
+  private final long budgetBytes;
+  private final LongSparseArray<Entry> entries = new LongSparseArray<>();
+  // Ends of the usage list: the least and the most recently drawn texture.
+  private Entry leastRecent;
+  private Entry mostRecent;
+  private final AtomicInteger pendingTrimLevel = new AtomicInteger();
+  private long residentBytes;
+  private long frame;
+  private int evictionCount;
+
+  public TextureResidencyManager(long budgetBytes) {
+    this.budgetBytes = budgetBytes;
+  }
+
+  /**
+   * Registers a texture. The texture counts as drawn in the current frame.
+   *
+   * @param key Identifies the texture. Must be unique across all owners.
+   * @param bytes The GPU memory used by the texture, including mip levels.
+   */
+  public void add(long key, int textureId, long bytes, EvictionListener listener) {
+    remove(key);
+    Entry entry = new Entry(key, textureId, bytes, listener);
+    entry.lastUsedFrame = frame;
+    entries.put(key, entry);
+    link(entry);
+    residentBytes += bytes;
+  }
+
+  /** Marks a texture as drawn in the current frame. */
+  public void touch(long key) {
+    Entry entry = entries.get(key);
+    if (entry != null && entry.lastUsedFrame != frame) {
+      entry.lastUsedFrame = frame;
+      unlink(entry);
+      link(entry);
+    }
+  }
+
+  /** Unregisters a texture without deleting it, e.g. when its owner deletes it. */
+  public void remove(long key) {
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      entries.remove(key);
+      unlink(entry);
+      residentBytes -= entry.bytes;
+    }
+  }
+
+  /** Evicts textures down to the budget, or less after a memory trim. Call once per frame. */
+  public void endFrame() {
+    long targetBytes = budgetBytes;
+    int trimLevel = pendingTrimLevel.getAndSet(0);
+    if (trimLevel != 0) {
+      targetBytes = trimmedBudget(trimLevel);
+      Log.i(TAG, "Trimming textures to " + targetBytes + " bytes for memory level " + trimLevel);
+    }
+
+    while (residentBytes > targetBytes && leastRecent != null) {
+      Entry entry = leastRecent;
+      if (entry.lastUsedFrame == frame) {
+        // Everything after this entry was drawn in this frame too.
+        break;
+      }
+      entries.remove(entry.key);
+      unlink(entry);
+      residentBytes -= entry.bytes;
+      evictionCount++;
+      TextureUtil.deleteTexture(entry.textureId);
+      entry.listener.onEvicted(entry.key);
+    }
+    frame++;
+  }
+
+  /**
+   * Requests eviction down to a smaller budget at the end of the next frame, following a {@link
+   * ComponentCallbacks2#onTrimMemory(int)} callback.
+   */
+  public void onTrimMemory(int level) {
+    pendingTrimLevel.accumulateAndGet(level, Math::max);
+  }
+
+  /**
+   * Forgets all textures without deleting them. Call when the EGL context, and with it every
+   * texture, was lost.
+   */
+  public void reset() {
+    entries.clear();
+    leastRecent = null;
+    mostRecent = null;
+    pendingTrimLevel.set(0);
+    residentBytes = 0;
+  }
+
+  public long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  public long getResidentBytes() {
+    return residentBytes;
+  }
+
+  public int getEvictionCount() {
+    return evictionCount;
+  }
+
+  /** Appends an entry to the usage list as the most recently drawn texture. */
+  private void link(Entry entry) {
+    entry.previous = mostRecent;
+    entry.next = null;
+    if (mostRecent != null) {
+      mostRecent.next = entry;
+    } else {
+      leastRecent = entry;
+    }
+    mostRecent = entry;
+  }
+
+  private void unlink(Entry entry) {
+    if (entry.previous != null) {
+      entry.previous.next = entry.next;
+    } else {
+      leastRecent = entry.next;
+    }
+    if (entry.next != null) {
+      entry.next.previous = entry.previous;
+    } else {
+      mostRecent = entry.previous;
+    }
+    entry.previous = null;
+    entry.next = null;
+  }
+
+  private long trimmedBudget(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+      // The app is in the background and drew nothing this frame, so this evicts everything.
+      return 0;
+    }
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      return budgetBytes / 2;
+    }
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      return budgetBytes / 4;
+    }
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      return budgetBytes / 2;
+    }
+    return budgetBytes * 3 / 4;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.rendering;
+
+import android.opengl.GLES20;
+
+/**
+ * Uploads a texture with all of its mip levels over as many {@link GlWorkScheduler} steps as
+ * needed. Levels are uploaded smallest first. Each step uploads one small level, or a band of rows
+ * of a large level: with glTexSubImage2D, or for compressed data with glCompressedTexSubImage2D
+ * into storage allocated up front with glTexStorage2D. Compressed data OpenGL ES 2.0 reads, i.e.
+ * ETC1, cannot be uploaded in bands, so it is uploaded a whole level per step. The texture is
+ * handed to the callback once it is complete, so it is never drawn half uploaded.
+ */
+public class TextureUploadJob implements GlWorkScheduler.Job {
+  private static final String TAG = TextureUploadJob.class.getSimpleName();
+
+  // About how much data to upload per step.
+  private static final int TILE_BYTES = 64 * 1024;
+
+  /** Receives the uploaded texture. */
+  public interface Callback {
+    /** Called on the OpenGL thread. The receiver owns the texture from then on. */
+    void onUploaded(int textureId);
+
+    /** Called on the OpenGL thread instead if the upload failed or was cancelled. */
+    default void onUploadFailed() {}
+  }
+
+  private final KtxTexture texture;
+  private final int internalFormat;
+  private final Callback callback;
+
+  private int textureId;
+  private int level;
+  // Next row of the current level, when it is uploaded in bands.
+  private int row;
+  // Whether the compressed levels are uploaded into storage allocated up front, so in bands.
+  private boolean compressedStorage;
+
+  /**
+   * @param internalFormat The format to upload compressed data as, see {@link
+   *     TextureUtil#createTexture(KtxTexture, int)}.
+   */
+  public TextureUploadJob(KtxTexture texture, int internalFormat, Callback callback) {
+    this.texture = texture;
+    this.internalFormat = internalFormat;
+    this.callback = callback;
+    level = texture.getLevelCount() - 1;
+  }
+
+  @Override
+  public boolean runStep() {
+    if (textureId == 0) {
+      textureId = TextureUtil.generateTexture(texture.getLevelCount());
+      if (texture.isCompressed() && TextureUtil.canUploadCompressedRows(internalFormat)) {
+        TextureUtil.allocateCompressedStorage(texture, internalFormat);
+        compressedStorage = true;
+      }
+    } else {
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+    }
+
+    int height = texture.getLevelHeight(level);
+    int levelBytes = texture.getLevelData(level).remaining();
+    if (compressedStorage) {
+      // Bands are whole rows of 4x4 blocks.
+      int blockRows = TextureUtil.blockRows(height);
+      int rowsPerTile = 4 * Math.max(1, TILE_BYTES / (levelBytes / blockRows));
+      int rowCount = Math.min(rowsPerTile, height - row);
+      TextureUtil.uploadCompressedLevelRows(texture, level, internalFormat, row, rowCount);
+      nextRows(rowCount, height);
+    } else if (texture.isCompressed() || levelBytes <= TILE_BYTES) {
+      TextureUtil.uploadLevel(texture, level, internalFormat);
+      level--;
+    } else {
+      int rowsPerTile = Math.max(1, TILE_BYTES / (levelBytes / height));
+      if (row == 0) {
+        TextureUtil.allocateLevel(texture, level);
+      }
+      int rowCount = Math.min(rowsPerTile, height - row);
+      TextureUtil.uploadLevelRows(texture, level, row, rowCount);
+      nextRows(rowCount, height);
+    }
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    ShaderUtil.checkGLError(TAG, "Texture upload step");
+
+    if (level >= 0) {
+      return false;
+    }
+    callback.onUploaded(textureId);
+    return true;
+  }
+
+  @Override
+  public void cancel() {
+    if (textureId != 0) {
+      TextureUtil.deleteTexture(textureId);
+      textureId = 0;
+    }
+    callback.onUploadFailed();
+  }
+
+  /** Advances past a band of rows, to the next level after the last band of a level. */
+  private void nextRows(int rowCount, int height) {
+    row += rowCount;
+    if (row == height) {
+      row = 0;
+      level--;
+    }
+  }
+
+  /** Returns the callback the texture is handed to, which identifies the upload. */
+  Callback getCallback() {
+    return callback;
+  }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.common.rendering;
+
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import java.nio.ByteBuffer;
+
+/** Texture helper functions. */
+public final class TextureUtil {
+  private static final String TAG = TextureUtil.class.getSimpleName();
+
+  /**
+   * Creates a texture from a KTX file or a mip chain built at runtime, uploading each of its mip
+   * levels as is. Must be called on the OpenGL thread.
+   *
+   * @param internalFormat The format to upload compressed data as. Usually {@link
+   *     KtxTexture#getGlInternalFormat()}, but data can be uploaded as a compatible format, e.g.
+   *     ETC1-compatible ETC2 data as ETC1.
+   * @return The texture object handle.
+   */
+  public static int createTexture(KtxTexture texture, int internalFormat) {
+    int textureId = generateTexture(texture.getLevelCount());
+    texImage2D(texture, internalFormat);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+    ShaderUtil.checkGLError(TAG, "Texture upload");
+    return textureId;
+  }
+
+  /**
+   * Creates an empty texture with trilinear filtering when it has mip levels, and leaves it bound
+   * to GL_TEXTURE_2D. Must be called on the OpenGL thread.
+   *
+   * @return The texture object handle.
+   */
+  public static int generateTexture(int levelCount) {
+    final int[] textures = new int[1];
+    GLES20.glGenTextures(1, textures, 0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+
+    GLES20.glTexParameteri(
+        GLES20.GL_TEXTURE_2D,
+        GLES20.GL_TEXTURE_MIN_FILTER,
+        levelCount > 1 ? GLES20.GL_LINEAR_MIPMAP_LINEAR : GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    return textures[0];
+  }
+
+  /**
+   * Uploads every mip level of a texture to the texture bound to GL_TEXTURE_2D, smallest first so
+   * the coarse levels are in place before the full-size one. Must be called on the OpenGL thread.
+   *
+   * @param internalFormat The format to upload compressed data as, see {@link
+   *     #createTexture(KtxTexture, int)}.
+   */
+  public static void texImage2D(KtxTexture texture, int internalFormat) {
+    for (int level = texture.getLevelCount() - 1; level >= 0; level--) {
+      uploadLevel(texture, level, internalFormat);
+    }
+  }
+
+  /**
+   * Uploads one mip level of a texture to the texture bound to GL_TEXTURE_2D. Must be called on
+   * the OpenGL thread.
+   */
+  public static void uploadLevel(KtxTexture texture, int level, int internalFormat) {
+    ByteBuffer data = texture.getLevelData(level);
+    if (texture.isCompressed()) {
+      GLES20.glCompressedTexImage2D(
+          GLES20.GL_TEXTURE_2D,
+          level,
+          internalFormat,
+          texture.getLevelWidth(level),
+          texture.getLevelHeight(level),
+          /*border=*/ 0,
+          data.remaining(),
+          data);
+    } else {
+      // OpenGL ES 2.0 requires the internal format to match the pixel format.
+      GLES20.glTexImage2D(
+          GLES20.GL_TEXTURE_2D,
+          level,
+          texture.getGlFormat(),
+          texture.getLevelWidth(level),
+          texture.getLevelHeight(level),
+          /*border=*/ 0,
+          texture.getGlFormat(),
+          texture.getGlType(),
+          data);
+    }
+  }
+
+  /**
+   * Uploads a band of rows of an uncompressed mip level to the texture bound to GL_TEXTURE_2D. The
+   * level must have been allocated before, e.g. with {@link #allocateLevel}. Must be called on the
+   * OpenGL thread.
+   */
+  public static void uploadLevelRows(KtxTexture texture, int level, int firstRow, int rowCount) {
+    ByteBuffer data = texture.getLevelData(level);
+    // Rows are padded to 4 bytes, which matches the default GL_UNPACK_ALIGNMENT.
+    int rowBytes = data.remaining() / texture.getLevelHeight(level);
+    data.position(firstRow * rowBytes);
+    GLES20.glTexSubImage2D(
+        GLES20.GL_TEXTURE_2D,
+        level,
+        /*xoffset=*/ 0,
+        firstRow,
+        texture.getLevelWidth(level),
+        rowCount,
+        texture.getGlFormat(),
+        texture.getGlType(),
+        data);
+  }
+
+  /**
+   * Allocates the storage of an uncompressed mip level without filling it, in the texture bound to
+   * GL_TEXTURE_2D. Must be called on the OpenGL thread.
+   */
+  public static void allocateLevel(KtxTexture texture, int level) {
+    GLES20.glTexImage2D(
+        GLES20.GL_TEXTURE_2D,
+        level,
+        texture.getGlFormat(),
+        texture.getLevelWidth(level),
+        texture.getLevelHeight(level),
+        /*border=*/ 0,
+        texture.getGlFormat(),
+        texture.getGlType(),
+        /*pixels=*/ null);
+  }
+
+  /**
+   * Returns whether the mip levels of compressed data in the given format can be uploaded in bands
+   * with {@link #uploadCompressedLevelRows}: OpenGL ES 2.0 does not allow sub-image uploads of
+   * ETC1 data, and ETC1 is not a sized format glTexStorage2D accepts. Must be called on the OpenGL
+   * thread.
+   */
+  public static boolean canUploadCompressedRows(int internalFormat) {
+    return internalFormat != GLES11Ext.GL_ETC1_RGB8_OES && isGles3OrLater();
+  }
+
+  /**
+   * Allocates immutable storage for every mip level of a compressed texture without filling it, in
+   * the texture bound to GL_TEXTURE_2D, so its levels can then be uploaded in bands. The levels can
+   * only be filled with {@link #uploadCompressedLevelRows} afterwards. Needs OpenGL ES 3.0, see
+   * {@link #canUploadCompressedRows}. Must be called on the OpenGL thread.
+   */
+  public static void allocateCompressedStorage(KtxTexture texture, int internalFormat) {
+    GLES30.glTexStorage2D(
+        GLES30.GL_TEXTURE_2D,
+        texture.getLevelCount(),
+        internalFormat,
+        texture.getLevelWidth(0),
+        texture.getLevelHeight(0));
+  }
+
+  /**
+   * Uploads a band of rows of a compressed mip level to the texture bound to GL_TEXTURE_2D, whose
+   * storage was allocated with {@link #allocateCompressedStorage}. Must be called on the OpenGL
+   * thread.
+   *
+   * @param firstRow The first row, a multiple of the 4-pixel block height.
+   * @param rowCount The number of rows, a multiple of the block height unless the band ends at the
+   *     bottom of the level.
+   */
+  public static void uploadCompressedLevelRows(
+      KtxTexture texture, int level, int internalFormat, int firstRow, int rowCount) {
+    ByteBuffer data = texture.getLevelData(level);
+    // Each row of 4x4 blocks takes the same number of bytes.
+    int blockRowBytes = data.remaining() / blockRows(texture.getLevelHeight(level));
+    data.position(blockRows(firstRow) * blockRowBytes);
+    GLES20.glCompressedTexSubImage2D(
+        GLES20.GL_TEXTURE_2D,
+        level,
+        /*xoffset=*/ 0,
+        firstRow,
+        texture.getLevelWidth(level),
+        rowCount,
+        internalFormat,
+        blockRows(rowCount) * blockRowBytes,
+        data);
+  }
+
+  /** Returns the number of rows of 4x4 blocks that cover the given number of pixel rows. */
+  static int blockRows(int rows) {
+    return (rows + 3) / 4;
+  }
+
+  /**
+   * Returns whether the current context supports an OpenGL ES extension. Must be called on the
+   * OpenGL thread.
+   */
+  public static boolean hasExtension(String extension) {
+    String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+    return extensions != null && (" " + extensions + " ").contains(" " + extension + " ");
+  }
+
+  /** Returns whether the current context is OpenGL ES 3.0 or later. */
+  public static boolean isGles3OrLater() {
+    String version = GLES20.glGetString(GLES20.GL_VERSION);
+    // The version string is "OpenGL ES <major>.<minor> <vendor-specific information>".
+    return version != null
+        && version.startsWith("OpenGL ES ")
+        && version.length() > 10
+        && version.charAt(10) >= '3';
+  }
+
+  /** Deletes a texture created by {@link #createTexture}. */
+  public static void deleteTexture(int textureId) {
+    final int[] textures = {textureId};
+    GLES20.glDeleteTextures(1, textures, 0);
+  }
+
+  private TextureUtil() {}
+}
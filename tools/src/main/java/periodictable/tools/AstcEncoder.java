@@ -0,0 +1,185 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+/**
+ * Encodes RGB images to ASTC 4x4 LDR blocks.
+ *
+ * <p>Every block uses a single partition with the LDR RGB direct endpoint mode (CEM 8), 8-bit
+ * endpoints and a full 4x4 grid of 3-bit weights. Those quantization levels need no trits or
+ * quints, which keeps the bit packing simple while staying well above ETC quality for card
+ * artwork. Endpoints are fitted along the principal axis of the block's colors.
+ */
+final class AstcEncoder {
+  static final int BLOCK_SIZE = 16;
+
+  // Block mode: 4x4 weight grid, weight range 0..7, single plane. See the "Block mode" table of
+  // the ASTC specification: width = B + 4 with B = 0, height = A + 2 with A = 2, R = 0b111, H = 0.
+  private static final int BLOCK_MODE = (2 << 5) | (1 << 4) | 0b11;
+  private static final int CEM_LDR_RGB_DIRECT = 8;
+  private static final int WEIGHT_BITS = 3;
+  private static final int WEIGHT_LEVELS = 1 << WEIGHT_BITS;
+  // Weights as unquantized by the decoder, on the 0..64 interpolation scale.
+  private static final int[] UNQUANTIZED_WEIGHTS = {0, 9, 18, 27, 37, 46, 55, 64};
+  private static final int POWER_ITERATIONS = 4;
+
+  /** Encodes an ARGB image, returning the blocks in row-major order. Alpha is ignored. */
+  static byte[] encode(int[] argb, int width, int height) {
+    int blocksX = (width + 3) / 4;
+    int blocksY = (height + 3) / 4;
+    byte[] out = new byte[blocksX * blocksY * BLOCK_SIZE];
+    int[] block = new int[16];
+    long[] bits = new long[2];
+    int offset = 0;
+    for (int by = 0; by < blocksY; by++) {
+      for (int bx = 0; bx < blocksX; bx++) {
+        Blocks.gather(argb, width, height, bx * 4, by * 4, block);
+        encodeBlock(block, bits);
+        // Blocks are little-endian 128-bit values.
+        for (int i = 0; i < 16; i++) {
+          out[offset++] = (byte) (bits[i / 8] >>> ((i % 8) * 8));
+        }
+      }
+    }
+    return out;
+  }
+
+  /** Encodes 16 ARGB pixels, indexed y * 4 + x, into {@code bits} (low word first). */
+  static void encodeBlock(int[] pixels, long[] bits) {
+    float[][] colors = new float[16][3];
+    float[] mean = new float[3];
+    for (int i = 0; i < 16; i++) {
+      colors[i][0] = (pixels[i] >> 16) & 0xFF;
+      colors[i][1] = (pixels[i] >> 8) & 0xFF;
+      colors[i][2] = pixels[i] & 0xFF;
+      for (int c = 0; c < 3; c++) {
+        mean[c] += colors[i][c] / 16f;
+      }
+    }
+    float[] axis = principalAxis(colors, mean);
+
+    // Endpoints at the extremes of the projections onto the axis.
+    float minT = Float.MAX_VALUE;
+    float maxT = -Float.MAX_VALUE;
+    for (float[] color : colors) {
+      float t = dot(color, mean, axis);
+      minT = Math.min(minT, t);
+      maxT = Math.max(maxT, t);
+    }
+    int[] endpoint0 = new int[3];
+    int[] endpoint1 = new int[3];
+    for (int c = 0; c < 3; c++) {
+      endpoint0[c] = clamp(Math.round(mean[c] + minT * axis[c]));
+      endpoint1[c] = clamp(Math.round(mean[c] + maxT * axis[c]));
+    }
+    // The decoder swaps endpoints and applies blue contraction when the second endpoint is the
+    // darker one, so order them by their sums.
+    if (endpoint1[0] + endpoint1[1] + endpoint1[2] < endpoint0[0] + endpoint0[1] + endpoint0[2]) {
+      int[] swap = endpoint0;
+      endpoint0 = endpoint1;
+      endpoint1 = swap;
+    }
+
+    bits[0] = 0;
+    bits[1] = 0;
+    setBits(bits, 0, 11, BLOCK_MODE);
+    setBits(bits, 11, 2, 0); // One partition.
+    setBits(bits, 13, 4, CEM_LDR_RGB_DIRECT);
+    for (int c = 0; c < 3; c++) {
+      setBits(bits, 17 + 16 * c, 8, endpoint0[c]);
+      setBits(bits, 25 + 16 * c, 8, endpoint1[c]);
+    }
+
+    // Weights are stored bit-reversed from the top of the block.
+    for (int i = 0; i < 16; i++) {
+      int weight = bestWeight(colors[i], endpoint0, endpoint1);
+      for (int b = 0; b < WEIGHT_BITS; b++) {
+        int streamBit = i * WEIGHT_BITS + b;
+        setBits(bits, 127 - streamBit, 1, (weight >> b) & 1);
+      }
+    }
+  }
+
+  private static int bestWeight(float[] color, int[] endpoint0, int[] endpoint1) {
+    int best = 0;
+    float bestError = Float.MAX_VALUE;
+    for (int weight = 0; weight < WEIGHT_LEVELS; weight++) {
+      float w = UNQUANTIZED_WEIGHTS[weight] / 64f;
+      float error = 0;
+      for (int c = 0; c < 3; c++) {
+        float value = endpoint0[c] + (endpoint1[c] - endpoint0[c]) * w;
+        error += (value - color[c]) * (value - color[c]);
+      }
+      if (error < bestError) {
+        bestError = error;
+        best = weight;
+      }
+    }
+    return best;
+  }
+
+  private static float[] principalAxis(float[][] colors, float[] mean) {
+    float[][] covariance = new float[3][3];
+    for (float[] color : colors) {
+      for (int i = 0; i < 3; i++) {
+        for (int j = 0; j < 3; j++) {
+          covariance[i][j] += (color[i] - mean[i]) * (color[j] - mean[j]);
+        }
+      }
+    }
+    float[] axis = {1f, 1f, 1f};
+    for (int iteration = 0; iteration < POWER_ITERATIONS; iteration++) {
+      float[] next = new float[3];
+      for (int i = 0; i < 3; i++) {
+        for (int j = 0; j < 3; j++) {
+          next[i] += covariance[i][j] * axis[j];
+        }
+      }
+      float length = (float) Math.sqrt(next[0] * next[0] + next[1] * next[1] + next[2] * next[2]);
+      if (length < 1e-6f) {
+        // Flat block, any axis works.
+        break;
+      }
+      for (int i = 0; i < 3; i++) {
+        axis[i] = next[i] / length;
+      }
+    }
+    float length = (float) Math.sqrt(axis[0] * axis[0] + axis[1] * axis[1] + axis[2] * axis[2]);
+    for (int i = 0; i < 3; i++) {
+      axis[i] /= length;
+    }
+    return axis;
+  }
+
+  private static float dot(float[] color, float[] mean, float[] axis) {
+    return (color[0] - mean[0]) * axis[0]
+        + (color[1] - mean[1]) * axis[1]
+        + (color[2] - mean[2]) * axis[2];
+  }
+
+  private static void setBits(long[] bits, int position, int count, int value) {
+    for (int i = 0; i < count; i++) {
+      int bit = position + i;
+      bits[bit / 64] |= (long) ((value >> i) & 1) << (bit % 64);
+    }
+  }
+
+  private static int clamp(int value) {
+    return Math.min(255, Math.max(0, value));
+  }
+
+  private AstcEncoder() {}
+}
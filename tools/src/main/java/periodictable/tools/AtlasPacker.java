@@ -0,0 +1,191 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.BufferedOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packs the element card textures into a few atlas pages.
+ *
+ * <p>Every {@code *.jpg} below the given content directories is scaled to a fixed cell size and
+ * placed on a grid of square pages. Each cell is surrounded by a border of its own edge pixels, so
+ * linear filtering and the first mip levels do not bleed into neighbouring cards. The output
+ * directory receives {@code page_<n>.jpg} and an {@code atlas.idx} index with the pixel rectangle
+ * of every card, keyed by its path relative to the textures directory, e.g. {@code
+ * element_info/carbon.jpg}. The index is read by {@code
+ * periodictable.augmentedimage.rendering.CardAtlas}. Content directories named by {@code
+ * --exclude}, e.g. {@code element_info} when the app draws info cards as text, are left out.
+ *
+ * <p>Usage: {@code AtlasPacker [--exclude=<contentDir>[,<contentDir>]...] <texturesDir>
+ * <outputDir> [pageSize] [cellSize]}
+ */
+public final class AtlasPacker {
+  /** 'ATLS' */
+  static final int MAGIC = 0x41544C53;
+  static final int VERSION = 1;
+  static final String INDEX_FILE_NAME = "atlas.idx";
+  static final String PAGE_FILE_FORMAT = "page_%d.jpg";
+  static final String EXCLUDE_OPTION = "--exclude=";
+
+  private static final String[] CONTENT_DIRECTORIES = {"element_info", "element_pictures"};
+  private static final int DEFAULT_PAGE_SIZE = 2048;
+  private static final int DEFAULT_CELL_SIZE = 504;
+  private static final int PADDING = 4;
+  private static final float JPEG_QUALITY = 0.9f;
+
+  private static class Region {
+    final String key;
+    final int page;
+    final int x;
+    final int y;
+
+    Region(String key, int page, int x, int y) {
+      this.key = key;
+      this.page = page;
+      this.x = x;
+      this.y = y;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    List<String> excluded = new ArrayList<>();
+    if (args.length > 0 && args[0].startsWith(EXCLUDE_OPTION)) {
+      excluded = Arrays.asList(args[0].substring(EXCLUDE_OPTION.length()).split(","));
+      args = Arrays.copyOfRange(args, 1, args.length);
+    }
+    if (args.length < 2) {
+      System.err.println(
+          "Usage: AtlasPacker [--exclude=<contentDir>[,<contentDir>]...] <texturesDir> "
+              + "<outputDir> [pageSize] [cellSize]");
+      System.exit(1);
+    }
+    File texturesDir = new File(args[0]);
+    File outputDir = new File(args[1]);
+    int pageSize = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PAGE_SIZE;
+    int cellSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_CELL_SIZE;
+
+    List<String> keys = new ArrayList<>();
+    for (String directory : CONTENT_DIRECTORIES) {
+      if (excluded.contains(directory)) {
+        continue;
+      }
+      String[] names = new File(texturesDir, directory).list((dir, name) -> name.endsWith(".jpg"));
+      if (names == null) {
+        throw new IOException("Missing content directory: " + new File(texturesDir, directory));
+      }
+      Arrays.sort(names);
+      for (String name : names) {
+        keys.add(directory + "/" + name);
+      }
+    }
+
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Could not create " + outputDir);
+    }
+    // Pages of an earlier, larger build would otherwise be shipped along.
+    File[] oldPages = outputDir.listFiles((dir, name) -> name.startsWith("page_"));
+    for (File oldPage : oldPages) {
+      if (!oldPage.delete()) {
+        throw new IOException("Could not delete " + oldPage);
+      }
+    }
+    pack(texturesDir, keys, outputDir, pageSize, cellSize);
+  }
+
+  private static void pack(
+      File texturesDir, List<String> keys, File outputDir, int pageSize, int cellSize)
+      throws IOException {
+    int stride = cellSize + 2 * PADDING;
+    int cellsPerRow = pageSize / stride;
+    int cellsPerPage = cellsPerRow * cellsPerRow;
+    if (cellsPerPage == 0) {
+      throw new IllegalArgumentException("Cell size " + cellSize + " exceeds page " + pageSize);
+    }
+
+    List<Region> regions = new ArrayList<>();
+    BufferedImage page = null;
+    int pageCount = 0;
+    for (int i = 0; i < keys.size(); i++) {
+      int cell = i % cellsPerPage;
+      if (cell == 0) {
+        if (page != null) {
+          writePage(page, outputDir, pageCount - 1);
+        }
+        page = new BufferedImage(pageSize, pageSize, BufferedImage.TYPE_INT_ARGB);
+        pageCount++;
+      }
+      int x = (cell % cellsPerRow) * stride + PADDING;
+      int y = (cell / cellsPerRow) * stride + PADDING;
+      BufferedImage card = ImageUtil.scale(ImageUtil.read(new File(texturesDir, keys.get(i))),
+          cellSize, cellSize);
+      blitWithBorder(card, page, x, y);
+      regions.add(new Region(keys.get(i), pageCount - 1, x, y));
+    }
+    if (page != null) {
+      writePage(page, outputDir, pageCount - 1);
+    }
+
+    try (DataOutputStream out =
+        new DataOutputStream(
+            new BufferedOutputStream(
+                new FileOutputStream(new File(outputDir, INDEX_FILE_NAME))))) {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      out.writeShort(pageSize);
+      out.writeShort(pageSize);
+      out.writeShort(pageCount);
+      out.writeShort(regions.size());
+      for (Region region : regions) {
+        out.writeUTF(region.key);
+        out.writeByte(region.page);
+        out.writeShort(region.x);
+        out.writeShort(region.y);
+        out.writeShort(cellSize);
+        out.writeShort(cellSize);
+      }
+    }
+    System.out.printf(
+        "Packed %d textures into %d pages of %dx%d%n", regions.size(), pageCount, pageSize, pageSize);
+  }
+
+  /** Copies the card to the page and extends its edge pixels into the surrounding padding. */
+  private static void blitWithBorder(BufferedImage card, BufferedImage page, int x, int y) {
+    int width = card.getWidth();
+    int height = card.getHeight();
+    for (int dy = -PADDING; dy < height + PADDING; dy++) {
+      int sy = Math.min(Math.max(dy, 0), height - 1);
+      for (int dx = -PADDING; dx < width + PADDING; dx++) {
+        int sx = Math.min(Math.max(dx, 0), width - 1);
+        page.setRGB(x + dx, y + dy, card.getRGB(sx, sy));
+      }
+    }
+  }
+
+  private static void writePage(BufferedImage page, File outputDir, int index) throws IOException {
+    ImageUtil.writeJpeg(page, new File(outputDir, String.format(PAGE_FILE_FORMAT, index)),
+        JPEG_QUALITY);
+  }
+
+  private AtlasPacker() {}
+}
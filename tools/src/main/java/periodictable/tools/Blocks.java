@@ -0,0 +1,35 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+/** Helpers for block-compressed texture encoders. */
+final class Blocks {
+  /**
+   * Copies the 4x4 block at (x, y) of an ARGB image into {@code block}, indexed y * 4 + x. Pixels
+   * beyond the image edge repeat the last row or column.
+   */
+  static void gather(int[] argb, int width, int height, int x, int y, int[] block) {
+    for (int dy = 0; dy < 4; dy++) {
+      int sy = Math.min(y + dy, height - 1);
+      for (int dx = 0; dx < 4; dx++) {
+        int sx = Math.min(x + dx, width - 1);
+        block[dy * 4 + dx] = argb[sy * width + sx];
+      }
+    }
+  }
+
+  private Blocks() {}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Packs the content of every element card into a single file, so the app opens one asset and
+ * finds a card by index instead of opening hundreds of files by name.
+ *
+ * <p>The pack starts with a header and a fixed-size index, followed by the files themselves, each
+ * aligned to 16 bytes. The index has one slot per element and content, in the order of the
+ * augmented image database's image list, followed by one slot for the shared card template. Each
+ * slot has a single entry: the ETC2 KTX file from {@link TextureCompressor} where there is one,
+ * otherwise the source JPEG or PNG, which is never packed next to its compressed version. Missing
+ * content, and content directories named by {@code --exclude}, e.g. {@code element_info} when the
+ * app draws info cards as text, have a length of 0. All values are big-endian:
+ *
+ * <pre>
+ * header: int magic 'CPAK', short version, short imageCount, byte contentsPerImage,
+ *         3 bytes reserved, int entryCount
+ * entry:  int offset, int length, short width, short height, byte format, 3 bytes reserved
+ * </pre>
+ *
+ * The pack is read by {@code periodictable.augmentedimage.rendering.CardContentPack}.
+ *
+ * <p>Usage: {@code ContentPacker [--exclude=<contentDir>[,<contentDir>]...] <imageList>
+ * <texturesDir> <compressedDir> <outputFile>}
+ */
+public final class ContentPacker {
+  /** 'CPAK' */
+  static final int MAGIC = 0x4350414B;
+  static final int VERSION = 3;
+  static final String EXCLUDE_OPTION = "--exclude=";
+
+  // Content directories of each element, in the order of CardContent.
+  private static final String[] CONTENT_DIRECTORIES = {"element_info", "element_pictures"};
+  private static final String TEMPLATE_FILE_NAME = "template.png";
+  // Directory of the compressed versions below the compressed directory.
+  private static final String COMPRESSED_FORMAT = "etc2";
+  private static final String TEXTURES_PATH = "models/textures/";
+
+  static final int FORMAT_JPEG = 1;
+  static final int FORMAT_PNG = 2;
+  static final int FORMAT_KTX = 3;
+
+  static final int HEADER_BYTES = 16;
+  static final int ENTRY_BYTES = 16;
+  private static final int ALIGNMENT = 16;
+
+  private static class Entry {
+    final File file;
+    final int width;
+    final int height;
+    final int format;
+
+    Entry(File file, int width, int height, int format) {
+      this.file = file;
+      this.width = width;
+      this.height = height;
+      this.format = format;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    List<String> excluded = new ArrayList<>();
+    if (args.length > 0 && args[0].startsWith(EXCLUDE_OPTION)) {
+      excluded = Arrays.asList(args[0].substring(EXCLUDE_OPTION.length()).split(","));
+      args = Arrays.copyOfRange(args, 1, args.length);
+    }
+    if (args.length != 4) {
+      System.err.println(
+          "Usage: ContentPacker [--exclude=<contentDir>[,<contentDir>]...] <imageList> "
+              + "<texturesDir> <compressedDir> <outputFile>");
+      System.exit(1);
+    }
+    List<String> imageNames = readImageNames(new File(args[0]));
+    File texturesDir = new File(args[1]);
+    File compressedDir = new File(args[2]);
+    File outputFile = new File(args[3]);
+
+    List<Entry> entries = new ArrayList<>();
+    for (String imageName : imageNames) {
+      for (String directory : CONTENT_DIRECTORIES) {
+        entries.add(
+            excluded.contains(directory)
+                ? null
+                : findEntry(texturesDir, compressedDir, directory + "/" + imageName));
+      }
+    }
+    entries.add(findEntry(texturesDir, compressedDir, TEMPLATE_FILE_NAME));
+
+    File parent = outputFile.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create " + parent);
+    }
+    write(entries, imageNames.size(), outputFile);
+  }
+
+  /** Reads the image names, in database order, from an augmented image database image list. */
+  private static List<String> readImageNames(File imageList) throws IOException {
+    List<String> imageNames = new ArrayList<>();
+    for (String line : Files.readAllLines(imageList.toPath(), StandardCharsets.UTF_8)) {
+      // Each line is "<image name>|<image path>".
+      int separator = line.indexOf('|');
+      String imageName = separator < 0 ? line.trim() : line.substring(0, separator);
+      if (!imageName.isEmpty()) {
+        imageNames.add(imageName);
+      }
+    }
+    return imageNames;
+  }
+
+  /** Returns the compressed or else the source entry of a texture, or null if it has none. */
+  private static Entry findEntry(File texturesDir, File compressedDir, String relativePath)
+      throws IOException {
+    File source = new File(texturesDir, relativePath);
+    if (!source.isFile()) {
+      System.out.println("No content for " + relativePath);
+      return null;
+    }
+    BufferedImage image = ImageUtil.read(source);
+    int width = image.getWidth();
+    int height = image.getHeight();
+    String ktxPath =
+        TEXTURES_PATH + relativePath.substring(0, relativePath.lastIndexOf('.')) + ".ktx";
+    File ktx = new File(new File(compressedDir, COMPRESSED_FORMAT), ktxPath);
+    if (ktx.isFile()) {
+      return new Entry(ktx, width, height, FORMAT_KTX);
+    }
+    return new Entry(
+        source, width, height, relativePath.endsWith(".png") ? FORMAT_PNG : FORMAT_JPEG);
+  }
+
+  private static void write(List<Entry> entries, int imageCount, File outputFile)
+      throws IOException {
+    // Lay out the files after the index first, so the index can be written in one pass.
+    int[] offsets = new int[entries.size()];
+    long offset = align(HEADER_BYTES + (long) entries.size() * ENTRY_BYTES);
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      if (entry != null) {
+        offsets[i] = (int) offset;
+        offset = align(offset + entry.file.length());
+      }
+    }
+    if (offset > Integer.MAX_VALUE) {
+      throw new IOException("Content pack exceeds 2 GB");
+    }
+
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      out.writeShort(imageCount);
+      out.writeByte(CONTENT_DIRECTORIES.length);
+      out.write(new byte[3]);
+      out.writeInt(entries.size());
+      for (int i = 0; i < entries.size(); i++) {
+        Entry entry = entries.get(i);
+        out.writeInt(entry == null ? 0 : offsets[i]);
+        out.writeInt(entry == null ? 0 : (int) entry.file.length());
+        out.writeShort(entry == null ? 0 : entry.width);
+        out.writeShort(entry == null ? 0 : entry.height);
+        out.writeByte(entry == null ? 0 : entry.format);
+        out.write(new byte[3]);
+      }
+      for (int i = 0; i < entries.size(); i++) {
+        Entry entry = entries.get(i);
+        if (entry == null) {
+          continue;
+        }
+        out.write(new byte[offsets[i] - out.size()]);
+        out.write(Files.readAllBytes(entry.file.toPath()));
+      }
+    }
+    System.out.printf(
+        "Packed %d entries for %d images into %s (%d KB)%n",
+        entries.size(), imageCount, outputFile, outputFile.length() / 1024);
+  }
+
+  private static long align(long offset) {
+    return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+  }
+
+  private ContentPacker() {}
+}
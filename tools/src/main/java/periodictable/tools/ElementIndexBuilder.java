@@ -0,0 +1,198 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the element index the app resolves augmented images with: the name and atomic number of
+ * every image of the database, by image index, and a minimal perfect hash of the image names, so
+ * the app finds an image's index from its name without a hash map.
+ *
+ * <p>The hash is "hash and displace": a first hash of a name picks one of {@code n / 2} buckets,
+ * and a second hash seeded with the bucket's displacement picks one of {@code n} slots. The
+ * displacements are searched for here, largest bucket first, so every name lands in a slot of its
+ * own. The app must compute {@link #slot} exactly as here, see {@code
+ * periodictable.augmentedimage.rendering.ElementIndex}.
+ *
+ * <p>The index is a text file:
+ *
+ * <pre>
+ * displacements|&lt;displacement of each bucket, comma separated&gt;
+ * slots|&lt;image index in each slot, comma separated&gt;
+ * &lt;image name&gt;|&lt;atomic number&gt;   one line per image, in image index order
+ * </pre>
+ *
+ * <p>Usage: {@code ElementIndexBuilder <elementsFile> <imageList> <outputFile>}
+ */
+public final class ElementIndexBuilder {
+  // Displacements tried per bucket before giving up; a few hundred images need a handful each.
+  private static final int MAX_DISPLACEMENT = 1 << 20;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3) {
+      System.err.println("Usage: ElementIndexBuilder <elementsFile> <imageList> <outputFile>");
+      System.exit(1);
+    }
+    Map<String, Integer> atomicNumbers = readAtomicNumbers(new File(args[0]));
+    List<String> imageNames = readImageNames(new File(args[1]));
+    if (imageNames.isEmpty()) {
+      throw new IOException("No images in " + args[1]);
+    }
+
+    StringBuilder index = new StringBuilder();
+    index.append("# Generated by periodictable.tools.ElementIndexBuilder from ");
+    index.append(new File(args[1]).getName()).append(". Do not edit.\n");
+    int[][] hash = buildPerfectHash(imageNames);
+    index.append("displacements|").append(join(hash[0])).append('\n');
+    index.append("slots|").append(join(hash[1])).append('\n');
+    for (String imageName : imageNames) {
+      Integer atomicNumber = atomicNumbers.get(stripExtension(imageName));
+      if (atomicNumber == null) {
+        throw new IOException("No element data for " + imageName);
+      }
+      index.append(imageName).append('|').append(atomicNumber).append('\n');
+    }
+
+    File outputFile = new File(args[2]);
+    File outputDir = outputFile.getAbsoluteFile().getParentFile();
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Cannot create " + outputDir);
+    }
+    Files.write(outputFile.toPath(), index.toString().getBytes(StandardCharsets.UTF_8));
+    System.out.println("Indexed " + imageNames.size() + " images");
+  }
+
+  /**
+   * Returns the displacement of each bucket and the image index in each slot, such that {@code
+   * slot(name, displacements[slot(name, 0, buckets)], n)} is the slot of each name.
+   */
+  private static int[][] buildPerfectHash(List<String> imageNames) throws IOException {
+    int slotCount = imageNames.size();
+    int bucketCount = Math.max(1, slotCount / 2);
+    List<List<Integer>> buckets = new ArrayList<>();
+    for (int i = 0; i < bucketCount; i++) {
+      buckets.add(new ArrayList<>());
+    }
+    for (int i = 0; i < imageNames.size(); i++) {
+      buckets.get(slot(imageNames.get(i).hashCode(), 0, bucketCount)).add(i);
+    }
+    Integer[] order = new Integer[bucketCount];
+    for (int i = 0; i < bucketCount; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+
+    int[] displacements = new int[bucketCount];
+    int[] slots = new int[slotCount];
+    Arrays.fill(slots, -1);
+    int[] candidate = new int[slotCount];
+    for (int bucket : order) {
+      List<Integer> members = buckets.get(bucket);
+      if (members.isEmpty()) {
+        continue;
+      }
+      boolean placed = false;
+      for (int displacement = 1; displacement < MAX_DISPLACEMENT && !placed; displacement++) {
+        placed = true;
+        for (int i = 0; i < members.size() && placed; i++) {
+          candidate[i] = slot(imageNames.get(members.get(i)).hashCode(), displacement, slotCount);
+          if (slots[candidate[i]] >= 0) {
+            placed = false;
+          }
+          for (int j = 0; j < i && placed; j++) {
+            placed = candidate[j] != candidate[i];
+          }
+        }
+        if (placed) {
+          displacements[bucket] = displacement;
+          for (int i = 0; i < members.size(); i++) {
+            slots[candidate[i]] = members.get(i);
+          }
+        }
+      }
+      if (!placed) {
+        throw new IOException("No perfect hash found; are image names duplicated?");
+      }
+    }
+    return new int[][] {displacements, slots};
+  }
+
+  /** Hashes a name's hash code with a seed into {@code [0, size)}. Must match the app's. */
+  static int slot(int hashCode, int seed, int size) {
+    int h = hashCode ^ (seed * 0x9e3779b9);
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return (h & 0x7fffffff) % size;
+  }
+
+  /** Returns the atomic number by image name without extension, from the element data. */
+  private static Map<String, Integer> readAtomicNumbers(File elementsFile) throws IOException {
+    Map<String, Integer> atomicNumbers = new HashMap<>();
+    for (String line : Files.readAllLines(elementsFile.toPath(), StandardCharsets.UTF_8)) {
+      // Each line is "<image name without extension>|<atomic number>|...".
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\\|");
+      atomicNumbers.put(fields[0], Integer.parseInt(fields[1]));
+    }
+    return atomicNumbers;
+  }
+
+  /** Returns the image names of the database, in image index order. */
+  private static List<String> readImageNames(File imageList) throws IOException {
+    List<String> imageNames = new ArrayList<>();
+    for (String line : Files.readAllLines(imageList.toPath(), StandardCharsets.UTF_8)) {
+      // Each line is "<image name>|<image path>".
+      int separator = line.indexOf('|');
+      String imageName = separator < 0 ? line.trim() : line.substring(0, separator);
+      if (!imageName.isEmpty()) {
+        imageNames.add(imageName);
+      }
+    }
+    return imageNames;
+  }
+
+  private static String stripExtension(String imageName) {
+    int extension = imageName.lastIndexOf('.');
+    return extension < 0 ? imageName : imageName.substring(0, extension);
+  }
+
+  private static String join(int[] values) {
+    StringBuilder joined = new StringBuilder();
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        joined.append(',');
+      }
+      joined.append(values[i]);
+    }
+    return joined.toString();
+  }
+
+  private ElementIndexBuilder() {}
+}
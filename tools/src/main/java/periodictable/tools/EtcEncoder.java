@@ -0,0 +1,215 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+/**
+ * Encodes RGB images to ETC2 RGB8 blocks.
+ *
+ * <p>Only the individual and differential block modes are used, and differential base colors
+ * never overflow, so the output is also valid ETC1. The app uploads the same data as ETC1 on
+ * OpenGL ES 2.0 devices without ETC2 support.
+ */
+final class EtcEncoder {
+  static final int BLOCK_SIZE = 8;
+
+  // Intensity modifier tables. The pixel index selects +small, +large, -small or -large.
+  private static final int[][] MODIFIER_TABLES = {
+    {2, 8}, {5, 17}, {9, 29}, {13, 42}, {18, 60}, {24, 80}, {33, 106}, {47, 183}
+  };
+
+  /** Encodes an ARGB image, returning the blocks in row-major order. Alpha is ignored. */
+  static byte[] encode(int[] argb, int width, int height) {
+    int blocksX = (width + 3) / 4;
+    int blocksY = (height + 3) / 4;
+    byte[] out = new byte[blocksX * blocksY * BLOCK_SIZE];
+    int[] block = new int[16];
+    int offset = 0;
+    for (int by = 0; by < blocksY; by++) {
+      for (int bx = 0; bx < blocksX; bx++) {
+        Blocks.gather(argb, width, height, bx * 4, by * 4, block);
+        long bits = encodeBlock(block);
+        for (int i = 7; i >= 0; i--) {
+          out[offset++] = (byte) (bits >>> (i * 8));
+        }
+      }
+    }
+    return out;
+  }
+
+  /** Encodes 16 ARGB pixels, indexed y * 4 + x. */
+  static long encodeBlock(int[] pixels) {
+    long best = 0;
+    long bestError = Long.MAX_VALUE;
+    for (int flip = 0; flip <= 1; flip++) {
+      float[] average0 = average(pixels, flip, 0);
+      float[] average1 = average(pixels, flip, 1);
+
+      // Differential mode: 5-bit base colors with a 3-bit signed delta.
+      int[] base0 = quantize(average0, 31);
+      int[] base1 = quantize(average1, 31);
+      boolean deltaFits = true;
+      for (int c = 0; c < 3; c++) {
+        int delta = base1[c] - base0[c];
+        deltaFits &= delta >= -4 && delta <= 3;
+      }
+      if (deltaFits) {
+        long[] result = encodeWithBaseColors(pixels, flip, expand5(base0), expand5(base1));
+        if (result[1] < bestError) {
+          bestError = result[1];
+          best =
+              pack5(base0, 59)
+                  | (((long) (base1[0] - base0[0]) & 7) << 56)
+                  | (((long) (base1[1] - base0[1]) & 7) << 48)
+                  | (((long) (base1[2] - base0[2]) & 7) << 40)
+                  | (1L << 33)
+                  | result[0]
+                  | ((long) flip << 32);
+        }
+      }
+
+      // Individual mode: two independent 4-bit base colors.
+      base0 = quantize(average0, 15);
+      base1 = quantize(average1, 15);
+      long[] result = encodeWithBaseColors(pixels, flip, expand4(base0), expand4(base1));
+      if (result[1] < bestError) {
+        bestError = result[1];
+        best =
+            ((long) base0[0] << 60)
+                | ((long) base1[0] << 56)
+                | ((long) base0[1] << 52)
+                | ((long) base1[1] << 48)
+                | ((long) base0[2] << 44)
+                | ((long) base1[2] << 40)
+                | result[0]
+                | ((long) flip << 32);
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Chooses the modifier tables and pixel indices for the given base colors. Returns the table and
+   * index bits, and the squared error.
+   */
+  private static long[] encodeWithBaseColors(int[] pixels, int flip, int[] color0, int[] color1) {
+    long bits = 0;
+    long error = 0;
+    for (int subBlock = 0; subBlock <= 1; subBlock++) {
+      int[] base = subBlock == 0 ? color0 : color1;
+      long bestBits = 0;
+      long bestError = Long.MAX_VALUE;
+      for (int table = 0; table < MODIFIER_TABLES.length; table++) {
+        long tableBits = (long) table << (subBlock == 0 ? 37 : 34);
+        long tableError = 0;
+        for (int y = 0; y < 4; y++) {
+          for (int x = 0; x < 4; x++) {
+            if (subBlockOf(x, y, flip) != subBlock) {
+              continue;
+            }
+            int pixel = pixels[y * 4 + x];
+            int bestIndex = 0;
+            int bestPixelError = Integer.MAX_VALUE;
+            for (int index = 0; index < 4; index++) {
+              int modifier = modifier(table, index);
+              int pixelError =
+                  square(clamp(base[0] + modifier) - ((pixel >> 16) & 0xFF))
+                      + square(clamp(base[1] + modifier) - ((pixel >> 8) & 0xFF))
+                      + square(clamp(base[2] + modifier) - (pixel & 0xFF));
+              if (pixelError < bestPixelError) {
+                bestPixelError = pixelError;
+                bestIndex = index;
+              }
+            }
+            tableError += bestPixelError;
+            // Pixel indices are stored column-major, most significant bits in the upper half.
+            int position = x * 4 + y;
+            tableBits |= (long) (bestIndex >> 1) << (16 + position);
+            tableBits |= (long) (bestIndex & 1) << position;
+          }
+        }
+        if (tableError < bestError) {
+          bestError = tableError;
+          bestBits = tableBits;
+        }
+      }
+      bits |= bestBits;
+      error += bestError;
+    }
+    return new long[] {bits, error};
+  }
+
+  private static int modifier(int table, int index) {
+    int magnitude = MODIFIER_TABLES[table][index & 1];
+    return index < 2 ? magnitude : -magnitude;
+  }
+
+  private static int subBlockOf(int x, int y, int flip) {
+    return flip == 0 ? x / 2 : y / 2;
+  }
+
+  private static float[] average(int[] pixels, int flip, int subBlock) {
+    float[] sum = new float[3];
+    for (int y = 0; y < 4; y++) {
+      for (int x = 0; x < 4; x++) {
+        if (subBlockOf(x, y, flip) == subBlock) {
+          int pixel = pixels[y * 4 + x];
+          sum[0] += (pixel >> 16) & 0xFF;
+          sum[1] += (pixel >> 8) & 0xFF;
+          sum[2] += pixel & 0xFF;
+        }
+      }
+    }
+    for (int c = 0; c < 3; c++) {
+      sum[c] /= 8;
+    }
+    return sum;
+  }
+
+  private static int[] quantize(float[] color, int max) {
+    int[] result = new int[3];
+    for (int c = 0; c < 3; c++) {
+      result[c] = Math.min(max, Math.max(0, Math.round(color[c] * max / 255f)));
+    }
+    return result;
+  }
+
+  private static int[] expand4(int[] color) {
+    return new int[] {color[0] << 4 | color[0], color[1] << 4 | color[1], color[2] << 4 | color[2]};
+  }
+
+  private static int[] expand5(int[] color) {
+    int[] result = new int[3];
+    for (int c = 0; c < 3; c++) {
+      result[c] = color[c] << 3 | color[c] >> 2;
+    }
+    return result;
+  }
+
+  private static long pack5(int[] color, int shift) {
+    return ((long) color[0] << shift) | ((long) color[1] << (shift - 8))
+        | ((long) color[2] << (shift - 16));
+  }
+
+  private static int clamp(int value) {
+    return Math.min(255, Math.max(0, value));
+  }
+
+  private static int square(int value) {
+    return value * value;
+  }
+
+  private EtcEncoder() {}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the augmented image database into one smaller database per block of the periodic table,
+ * so the app only has to match the camera image against the part of the table being looked at.
+ *
+ * <p>Each shard holds the elements of its block plus those of the neighbouring blocks' cells
+ * bordering it, so the first card across a block edge is still detected and the app can switch
+ * to the next shard. The lanthanides and actinides are printed apart from the main table, and
+ * their shard has no border.
+ *
+ * <p>The databases are built with ARCore's {@code arcoreimg} tool, which also writes each shard's
+ * image list. Alongside them, {@value #BLOCKS_FILE} names the home shard of every image, as
+ * "&lt;image name&gt;|&lt;shard&gt;" lines. Without {@code arcoreimg} no shards are written, and
+ * the app uses the whole database.
+ *
+ * <p>Usage: {@code ImageDatabaseSharder <elementsFile> <imageList> <imageDir> <outputDir>
+ * [arcoreimg]}
+ */
+public final class ImageDatabaseSharder {
+  static final String BLOCKS_FILE = "blocks.txt";
+  static final String DATABASE_EXTENSION = ".imgdb";
+
+  // Atomic numbers of the elements in each block, as inclusive ranges. Helium is an s-block
+  // element printed above the noble gases, so it borders the p block.
+  private static final Map<String, int[][]> BLOCKS = new LinkedHashMap<>();
+  // Atomic numbers of the cells bordering each block, in the columns next to it.
+  private static final Map<String, int[]> BORDERS = new HashMap<>();
+
+  static {
+    BLOCKS.put("s", new int[][] {{1, 4}, {11, 12}, {19, 20}, {37, 38}, {55, 56}, {87, 88}});
+    BLOCKS.put("d", new int[][] {{21, 30}, {39, 48}, {72, 80}, {104, 112}});
+    BLOCKS.put("p", new int[][] {{5, 10}, {13, 18}, {31, 36}, {49, 54}, {81, 86}, {113, 118}});
+    BLOCKS.put("f", new int[][] {{57, 71}, {89, 103}});
+    // Scandium, yttrium, hafnium and rutherfordium.
+    BORDERS.put("s", new int[] {21, 39, 72, 104});
+    // Group 2: calcium to radium; group 13: gallium to nihonium.
+    BORDERS.put("d", new int[] {20, 38, 56, 88, 31, 49, 81, 113});
+    // Group 12: zinc to copernicium; helium.
+    BORDERS.put("p", new int[] {30, 48, 80, 112, 2});
+    BORDERS.put("f", new int[0]);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    if (args.length != 4 && args.length != 5) {
+      System.err.println(
+          "Usage: ImageDatabaseSharder <elementsFile> <imageList> <imageDir> <outputDir>"
+              + " [arcoreimg]");
+      System.exit(1);
+    }
+    Map<Integer, String> imageByAtomicNumber = readImageNames(new File(args[0]), new File(args[1]));
+    File imageDir = new File(args[2]);
+    File outputDir = new File(args[3]);
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Cannot create " + outputDir);
+    }
+    for (File stale : outputDir.listFiles()) {
+      Files.delete(stale.toPath());
+    }
+    if (args.length < 5 || args[4].isEmpty()) {
+      System.out.println("No arcoreimg given, the app will use the whole image database");
+      return;
+    }
+    String arcoreimg = args[4];
+
+    StringBuilder blocks = new StringBuilder();
+    for (Map.Entry<String, int[][]> block : BLOCKS.entrySet()) {
+      String shard = block.getKey();
+      List<String> members = new ArrayList<>();
+      for (int[] range : block.getValue()) {
+        for (int atomicNumber = range[0]; atomicNumber <= range[1]; atomicNumber++) {
+          String imageName = imageByAtomicNumber.get(atomicNumber);
+          if (imageName != null) {
+            members.add(imageName);
+            blocks.append(imageName).append('|').append(shard).append('\n');
+          }
+        }
+      }
+      for (int atomicNumber : BORDERS.get(shard)) {
+        String imageName = imageByAtomicNumber.get(atomicNumber);
+        if (imageName != null) {
+          members.add(imageName);
+        }
+      }
+      buildDatabase(arcoreimg, members, imageDir, new File(outputDir, shard + DATABASE_EXTENSION));
+      System.out.println("Built shard " + shard + " of " + members.size() + " images");
+    }
+    Files.write(
+        new File(outputDir, BLOCKS_FILE).toPath(),
+        blocks.toString().getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Returns the image names of the database by atomic number, from the element data. */
+  private static Map<Integer, String> readImageNames(File elementsFile, File imageList)
+      throws IOException {
+    Map<String, Integer> atomicNumbers = new HashMap<>();
+    for (String line : Files.readAllLines(elementsFile.toPath(), StandardCharsets.UTF_8)) {
+      // Each line is "<image name without extension>|<atomic number>|...".
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split("\\|");
+      atomicNumbers.put(fields[0], Integer.parseInt(fields[1]));
+    }
+    Map<Integer, String> imageByAtomicNumber = new HashMap<>();
+    for (String line : Files.readAllLines(imageList.toPath(), StandardCharsets.UTF_8)) {
+      // Each line is "<image name>|<image path>".
+      int separator = line.indexOf('|');
+      String imageName = separator < 0 ? line.trim() : line.substring(0, separator);
+      if (imageName.isEmpty()) {
+        continue;
+      }
+      int extension = imageName.lastIndexOf('.');
+      Integer atomicNumber =
+          atomicNumbers.get(extension < 0 ? imageName : imageName.substring(0, extension));
+      if (atomicNumber == null) {
+        throw new IOException("No element data for " + imageName);
+      }
+      imageByAtomicNumber.put(atomicNumber, imageName);
+    }
+    return imageByAtomicNumber;
+  }
+
+  /** Runs arcoreimg on the given images, which also writes the database's image list. */
+  private static void buildDatabase(
+      String arcoreimg, List<String> imageNames, File imageDir, File database)
+      throws IOException, InterruptedException {
+    File inputList = File.createTempFile("shard", ".txt");
+    try {
+      StringBuilder lines = new StringBuilder();
+      for (String imageName : imageNames) {
+        lines
+            .append(imageName)
+            .append('|')
+            .append(new File(imageDir, imageName).getAbsolutePath())
+            .append('\n');
+      }
+      Files.write(inputList.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8));
+      Process process =
+          new ProcessBuilder(
+                  arcoreimg,
+                  "build-db",
+                  "--input_image_list_path=" + inputList.getAbsolutePath(),
+                  "--output_db_path=" + database.getAbsolutePath())
+              .inheritIO()
+              .start();
+      if (process.waitFor() != 0) {
+        throw new IOException("arcoreimg failed to build " + database);
+      }
+    } finally {
+      Files.delete(inputList.toPath());
+    }
+  }
+
+  private ImageDatabaseSharder() {}
+}
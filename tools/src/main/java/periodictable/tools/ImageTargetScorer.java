@@ -0,0 +1,410 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Scores how well each image of the augmented image database lends itself to detection, to find
+ * the cells worth redesigning without testing every one on a phone.
+ *
+ * <p>ARCore matches corner-like features of the camera image against those of the database
+ * images. An image is quick to detect when it has many such features, spread over the whole
+ * image, and when they are unlike those of the other images, so a partial view of the cell is not
+ * mistaken for another. Each image is scaled to the resolution ARCore works at, and scored on:
+ *
+ * <ul>
+ *   <li>its FAST corners, as a fraction of {@value #TARGET_CORNERS};
+ *   <li>the fraction of the tiles of a {@value #GRID}x{@value #GRID} grid holding at least {@value
+ *       #MIN_TILE_CORNERS} corners;
+ *   <li>one minus its similarity to the most similar other image: the fraction of its corners
+ *       whose BRIEF descriptor has a close match in that image. Cells printed on a common template
+ *       share the template's corners, and only the rest tells them apart.
+ * </ul>
+ *
+ * <p>The score is the product of the three, out of 100, so any one weakness drags it down. Images
+ * are analysed and compared on all cores. The report ranks them from the lowest score up.
+ *
+ * <p>Usage: {@code ImageTargetScorer <imageList> <imageDir> [reportFile]}
+ */
+public final class ImageTargetScorer {
+  // Shorter side of the images as analysed, the same as the app builds its database at.
+  private static final int IMAGE_SIZE = 480;
+  // Brightness difference from the center that makes a circle pixel brighter or darker.
+  private static final int FAST_THRESHOLD = 20;
+  // Contiguous brighter or darker circle pixels that make a corner, of 16: FAST-9.
+  private static final int FAST_ARC = 9;
+  // Corners at which an image counts as fully textured.
+  private static final int TARGET_CORNERS = 300;
+  private static final int GRID = 8;
+  private static final int MIN_TILE_CORNERS = 2;
+  // Strongest corners described and compared with the other images.
+  private static final int MAX_DESCRIBED_CORNERS = 200;
+  // BRIEF descriptors: 256 intensity comparisons between point pairs in a 31x31 patch.
+  private static final int DESCRIPTOR_BITS = 256;
+  private static final int PATCH_RADIUS = 15;
+  // Hamming distance under which two descriptors are taken to match.
+  private static final int MATCH_DISTANCE = 40;
+
+  // The 16 pixels of a circle of radius 3 around the center, in order.
+  private static final int[] CIRCLE_X = {0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3, -3, -3, -2, -1};
+  private static final int[] CIRCLE_Y = {-3, -3, -2, -1, 0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3};
+  // Offsets of the BRIEF point pairs, as x1, y1, x2, y2, drawn once from a fixed seed.
+  private static final int[] BRIEF_PAIRS = new int[4 * DESCRIPTOR_BITS];
+
+  static {
+    Random random = new Random(0x5eed);
+    for (int i = 0; i < BRIEF_PAIRS.length; i++) {
+      // Isotropic Gaussian around the center, as in the BRIEF paper, clamped to the patch.
+      double offset = random.nextGaussian() * PATCH_RADIUS / 2.0;
+      BRIEF_PAIRS[i] = (int) Math.max(-PATCH_RADIUS, Math.min(PATCH_RADIUS, Math.round(offset)));
+    }
+  }
+
+  /** The features of one image and, once compared, its scores. */
+  private static class Target {
+    final String name;
+    int width;
+    int height;
+    int cornerCount;
+    float coverage;
+    long[][] descriptors;
+    float maxSimilarity;
+    String mostSimilar = "-";
+    float score;
+
+    Target(String name) {
+      this.name = name;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2 && args.length != 3) {
+      System.err.println("Usage: ImageTargetScorer <imageList> <imageDir> [reportFile]");
+      System.exit(1);
+    }
+    List<String> names = readImageNames(new File(args[0]));
+    File imageDir = new File(args[1]);
+
+    long start = System.nanoTime();
+    List<Target> targets;
+    try {
+      targets =
+          names.parallelStream()
+              .map(name -> analyse(name, new File(imageDir, name)))
+              .collect(Collectors.toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    compare(targets);
+    for (Target target : targets) {
+      target.score =
+          100f
+              * Math.min(1f, (float) target.cornerCount / TARGET_CORNERS)
+              * target.coverage
+              * (1f - target.maxSimilarity);
+    }
+    targets.sort(Comparator.comparingDouble((Target target) -> target.score));
+
+    if (args.length == 3) {
+      File reportFile = new File(args[2]);
+      File reportDir = reportFile.getAbsoluteFile().getParentFile();
+      if (!reportDir.isDirectory() && !reportDir.mkdirs()) {
+        throw new IOException("Cannot create " + reportDir);
+      }
+      try (PrintStream out = new PrintStream(reportFile, StandardCharsets.UTF_8.name())) {
+        writeReport(targets, out);
+      }
+      System.out.println("Wrote " + reportFile);
+    } else {
+      writeReport(targets, System.out);
+    }
+    System.out.printf(
+        "Scored %d images in %d ms%n", targets.size(), (System.nanoTime() - start) / 1000000);
+  }
+
+  /** Returns the image names of the database, in order. */
+  private static List<String> readImageNames(File imageList) throws IOException {
+    List<String> names = new ArrayList<>();
+    for (String line : Files.readAllLines(imageList.toPath(), StandardCharsets.UTF_8)) {
+      // Each line is "<image name>|<image path>".
+      int separator = line.indexOf('|');
+      String name = separator < 0 ? line.trim() : line.substring(0, separator);
+      if (!name.isEmpty()) {
+        names.add(name);
+      }
+    }
+    return names;
+  }
+
+  /** Finds the corners of an image, their coverage of the image, and their descriptors. */
+  private static Target analyse(String name, File file) {
+    BufferedImage image;
+    try {
+      image = ImageUtil.read(file);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    float scale = (float) IMAGE_SIZE / Math.min(image.getWidth(), image.getHeight());
+    if (scale < 1) {
+      image =
+          ImageUtil.scale(
+              image,
+              Math.round(image.getWidth() * scale),
+              Math.round(image.getHeight() * scale));
+    }
+    Target target = new Target(name);
+    target.width = image.getWidth();
+    target.height = image.getHeight();
+    int[] luma = luma(ImageUtil.argbPixels(image));
+
+    List<int[]> corners = detectCorners(luma, target.width, target.height);
+    target.cornerCount = corners.size();
+    int[] tileCorners = new int[GRID * GRID];
+    for (int[] corner : corners) {
+      int tileX = corner[0] * GRID / target.width;
+      int tileY = corner[1] * GRID / target.height;
+      tileCorners[tileY * GRID + tileX]++;
+    }
+    int coveredTiles = 0;
+    for (int count : tileCorners) {
+      if (count >= MIN_TILE_CORNERS) {
+        coveredTiles++;
+      }
+    }
+    target.coverage = (float) coveredTiles / tileCorners.length;
+
+    // Descriptors compare smoothed intensities, which makes them robust to noise and blur.
+    int[] smoothed = boxBlur(luma, target.width, target.height);
+    corners.sort(Comparator.comparingInt((int[] corner) -> -corner[2]));
+    List<long[]> descriptors = new ArrayList<>();
+    for (int[] corner : corners) {
+      if (descriptors.size() == MAX_DESCRIBED_CORNERS) {
+        break;
+      }
+      int x = corner[0];
+      int y = corner[1];
+      if (x >= PATCH_RADIUS
+          && y >= PATCH_RADIUS
+          && x < target.width - PATCH_RADIUS
+          && y < target.height - PATCH_RADIUS) {
+        descriptors.add(describe(smoothed, target.width, x, y));
+      }
+    }
+    target.descriptors = descriptors.toArray(new long[0][]);
+    return target;
+  }
+
+  private static int[] luma(int[] argb) {
+    int[] luma = new int[argb.length];
+    for (int i = 0; i < argb.length; i++) {
+      int r = (argb[i] >> 16) & 0xff;
+      int g = (argb[i] >> 8) & 0xff;
+      int b = argb[i] & 0xff;
+      luma[i] = (77 * r + 150 * g + 29 * b) >> 8;
+    }
+    return luma;
+  }
+
+  /**
+   * Returns the FAST-9 corners of an image as {x, y, strength}, keeping only those stronger than
+   * their 8 neighbours.
+   */
+  private static List<int[]> detectCorners(int[] luma, int width, int height) {
+    int[] strength = new int[width * height];
+    int[] offsets = new int[CIRCLE_X.length];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = CIRCLE_Y[i] * width + CIRCLE_X[i];
+    }
+    for (int y = 3; y < height - 3; y++) {
+      for (int x = 3; x < width - 3; x++) {
+        int center = y * width + x;
+        int value = luma[center];
+        int brighter = 0;
+        int darker = 0;
+        int brighterSum = 0;
+        int darkerSum = 0;
+        for (int i = 0; i < offsets.length; i++) {
+          int difference = luma[center + offsets[i]] - value;
+          if (difference > FAST_THRESHOLD) {
+            brighter |= 1 << i;
+            brighterSum += difference - FAST_THRESHOLD;
+          } else if (difference < -FAST_THRESHOLD) {
+            darker |= 1 << i;
+            darkerSum -= difference + FAST_THRESHOLD;
+          }
+        }
+        if (hasArc(brighter)) {
+          strength[center] = brighterSum;
+        } else if (hasArc(darker)) {
+          strength[center] = darkerSum;
+        }
+      }
+    }
+
+    List<int[]> corners = new ArrayList<>();
+    for (int y = 4; y < height - 4; y++) {
+      for (int x = 4; x < width - 4; x++) {
+        int center = y * width + x;
+        int value = strength[center];
+        if (value == 0) {
+          continue;
+        }
+        boolean maximum = true;
+        for (int dy = -1; dy <= 1 && maximum; dy++) {
+          for (int dx = -1; dx <= 1; dx++) {
+            int neighbour = strength[center + dy * width + dx];
+            // Ties go to the first in scan order, so a plateau keeps one corner.
+            if (neighbour > value || neighbour == value && dy * width + dx < 0) {
+              maximum = false;
+              break;
+            }
+          }
+        }
+        if (maximum) {
+          corners.add(new int[] {x, y, value});
+        }
+      }
+    }
+    return corners;
+  }
+
+  /** Returns whether a 16-bit circle mask has {@value #FAST_ARC} contiguous set bits. */
+  private static boolean hasArc(int mask) {
+    // The circle wraps around, so the mask is repeated to find arcs across its start.
+    int wrapped = mask | mask << 16;
+    int run = wrapped;
+    for (int i = 1; i < FAST_ARC; i++) {
+      run &= wrapped >>> i;
+    }
+    return run != 0;
+  }
+
+  /** Returns the image averaged over 5x5 pixels, clamping at the edges. */
+  private static int[] boxBlur(int[] luma, int width, int height) {
+    int[] rows = new int[luma.length];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int sum = 0;
+        for (int dx = -2; dx <= 2; dx++) {
+          sum += luma[y * width + Math.max(0, Math.min(width - 1, x + dx))];
+        }
+        rows[y * width + x] = sum;
+      }
+    }
+    int[] blurred = new int[luma.length];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int sum = 0;
+        for (int dy = -2; dy <= 2; dy++) {
+          sum += rows[Math.max(0, Math.min(height - 1, y + dy)) * width + x];
+        }
+        blurred[y * width + x] = sum / 25;
+      }
+    }
+    return blurred;
+  }
+
+  private static long[] describe(int[] smoothed, int width, int x, int y) {
+    long[] descriptor = new long[DESCRIPTOR_BITS / 64];
+    for (int bit = 0; bit < DESCRIPTOR_BITS; bit++) {
+      int first = (y + BRIEF_PAIRS[4 * bit + 1]) * width + x + BRIEF_PAIRS[4 * bit];
+      int second = (y + BRIEF_PAIRS[4 * bit + 3]) * width + x + BRIEF_PAIRS[4 * bit + 2];
+      if (smoothed[first] < smoothed[second]) {
+        descriptor[bit / 64] |= 1L << (bit % 64);
+      }
+    }
+    return descriptor;
+  }
+
+  /** Finds, for every image, the most similar other image, comparing all pairs on all cores. */
+  private static void compare(List<Target> targets) {
+    IntStream.range(0, targets.size())
+        .parallel()
+        .forEach(
+            i -> {
+              Target target = targets.get(i);
+              for (int j = 0; j < targets.size(); j++) {
+                if (j == i) {
+                  continue;
+                }
+                float similarity = similarity(target, targets.get(j));
+                if (similarity > target.maxSimilarity) {
+                  target.maxSimilarity = similarity;
+                  target.mostSimilar = targets.get(j).name;
+                }
+              }
+            });
+  }
+
+  /** Returns the fraction of the descriptors of {@code a} with a match in {@code b}. */
+  private static float similarity(Target a, Target b) {
+    if (a.descriptors.length == 0) {
+      return 0;
+    }
+    int matches = 0;
+    for (long[] descriptor : a.descriptors) {
+      for (long[] other : b.descriptors) {
+        int distance = 0;
+        for (int k = 0; k < descriptor.length; k++) {
+          distance += Long.bitCount(descriptor[k] ^ other[k]);
+        }
+        if (distance <= MATCH_DISTANCE) {
+          matches++;
+          break;
+        }
+      }
+    }
+    return (float) matches / a.descriptors.length;
+  }
+
+  private static void writeReport(List<Target> targets, PrintStream out) {
+    out.println("# Image targets by detectability, lowest first. Redesign from the top.");
+    out.printf(
+        "# Corners: FAST-%d at %d px; coverage: %dx%d tiles with %d+ corners;"
+            + " similarity: corners matched in the most similar image.%n",
+        FAST_ARC, IMAGE_SIZE, GRID, GRID, MIN_TILE_CORNERS);
+    out.printf(
+        "%-4s %-24s %5s %7s %8s %10s  %s%n",
+        "rank", "image", "score", "corners", "coverage", "similarity", "most similar");
+    for (int i = 0; i < targets.size(); i++) {
+      Target target = targets.get(i);
+      out.printf(
+          "%-4d %-24s %5.1f %7d %7.0f%% %9.0f%%  %s%n",
+          i + 1,
+          target.name,
+          target.score,
+          target.cornerCount,
+          100 * target.coverage,
+          100 * target.maxSimilarity,
+          target.mostSimilar);
+    }
+  }
+
+  private ImageTargetScorer() {}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/** Image helper functions shared by the asset tools. */
+final class ImageUtil {
+  private static final float[] SRGB_TO_LINEAR = new float[256];
+
+  static {
+    for (int i = 0; i < SRGB_TO_LINEAR.length; i++) {
+      double srgb = i / 255.0;
+      SRGB_TO_LINEAR[i] =
+          (float) (srgb <= 0.04045 ? srgb / 12.92 : Math.pow((srgb + 0.055) / 1.055, 2.4));
+    }
+  }
+
+  /** Reads an image as 8-bit RGBA. */
+  static BufferedImage read(File file) throws IOException {
+    BufferedImage image = ImageIO.read(file);
+    if (image == null) {
+      throw new IOException("Unsupported image format: " + file);
+    }
+    return toArgb(image);
+  }
+
+  /** Returns the image in {@link BufferedImage#TYPE_INT_ARGB}, converting it if needed. */
+  static BufferedImage toArgb(BufferedImage image) {
+    if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+      return image;
+    }
+    BufferedImage argb =
+        new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = argb.createGraphics();
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+    return argb;
+  }
+
+  /**
+   * Scales an image to the given size. Large reductions are done in repeated halving steps, which
+   * avoids the aliasing of a single bilinear step.
+   */
+  static BufferedImage scale(BufferedImage image, int width, int height) {
+    BufferedImage current = toArgb(image);
+    while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+      current = draw(current, current.getWidth() / 2, current.getHeight() / 2);
+    }
+    if (current.getWidth() != width || current.getHeight() != height) {
+      current = draw(current, width, height);
+    }
+    return current;
+  }
+
+  /** Returns whether an image file has an alpha channel. */
+  static boolean hasAlpha(File file) throws IOException {
+    BufferedImage image = ImageIO.read(file);
+    if (image == null) {
+      throw new IOException("Unsupported image format: " + file);
+    }
+    return image.getColorModel().hasAlpha();
+  }
+
+  /**
+   * Returns the full mip chain of an image, from the image itself down to 1x1. Each level halves
+   * the previous one, rounding down, with {@link #halve}.
+   */
+  static List<BufferedImage> mipChain(BufferedImage image) {
+    List<BufferedImage> levels = new ArrayList<>();
+    BufferedImage level = toArgb(image);
+    levels.add(level);
+    while (level.getWidth() > 1 || level.getHeight() > 1) {
+      level = halve(level);
+      levels.add(level);
+    }
+    return levels;
+  }
+
+  /**
+   * Halves an image, rounding down, by averaging each 2x2 block of pixels. Colors are averaged in
+   * linear light, so fine detail such as text does not darken in the smaller levels. With an odd
+   * size the last row or column of pixels is folded into the block before it.
+   */
+  static BufferedImage halve(BufferedImage image) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    int halfWidth = Math.max(1, width / 2);
+    int halfHeight = Math.max(1, height / 2);
+    int[] pixels = argbPixels(image);
+    int[] half = new int[halfWidth * halfHeight];
+    for (int y = 0; y < halfHeight; y++) {
+      int y0 = Math.min(2 * y, height - 1);
+      int y1 = y == halfHeight - 1 ? height - 1 : y0 + 1;
+      for (int x = 0; x < halfWidth; x++) {
+        int x0 = Math.min(2 * x, width - 1);
+        int x1 = x == halfWidth - 1 ? width - 1 : x0 + 1;
+        float a = 0;
+        float r = 0;
+        float g = 0;
+        float b = 0;
+        int count = 0;
+        for (int sy = y0; sy <= y1; sy++) {
+          for (int sx = x0; sx <= x1; sx++) {
+            int argb = pixels[sy * width + sx];
+            a += argb >>> 24;
+            r += SRGB_TO_LINEAR[(argb >> 16) & 0xFF];
+            g += SRGB_TO_LINEAR[(argb >> 8) & 0xFF];
+            b += SRGB_TO_LINEAR[argb & 0xFF];
+            count++;
+          }
+        }
+        half[y * halfWidth + x] =
+            Math.round(a / count) << 24
+                | linearToSrgb(r / count) << 16
+                | linearToSrgb(g / count) << 8
+                | linearToSrgb(b / count);
+      }
+    }
+    BufferedImage result = new BufferedImage(halfWidth, halfHeight, BufferedImage.TYPE_INT_ARGB);
+    result.setRGB(0, 0, halfWidth, halfHeight, half, 0, halfWidth);
+    return result;
+  }
+
+  /** Returns the pixels of an image as ARGB, row by row. */
+  static int[] argbPixels(BufferedImage image) {
+    return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+  }
+
+  /** Writes an opaque image as a JPEG with the given quality between 0 and 1. */
+  static void writeJpeg(BufferedImage image, File file, float quality) throws IOException {
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+      writeJpeg(image, out, quality);
+    }
+  }
+
+  /** Returns an opaque image encoded as a JPEG with the given quality between 0 and 1. */
+  static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ImageOutputStream out = ImageIO.createImageOutputStream(bytes)) {
+      writeJpeg(image, out, quality);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeJpeg(BufferedImage image, ImageOutputStream out, float quality)
+      throws IOException {
+    BufferedImage rgb =
+        new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = rgb.createGraphics();
+    g.drawImage(image, 0, 0, null);
+    g.dispose();
+
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+    ImageWriter writer = writers.next();
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(quality);
+    try {
+      writer.setOutput(out);
+      writer.write(null, new IIOImage(rgb, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  private static int linearToSrgb(float linear) {
+    double srgb =
+        linear <= 0.0031308f ? linear * 12.92 : 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+    return Math.max(0, Math.min(255, (int) Math.round(srgb * 255)));
+  }
+
+  private static BufferedImage draw(BufferedImage image, int width, int height) {
+    BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D g = scaled.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+    g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+    g.drawImage(image, 0, 0, width, height, null);
+    g.dispose();
+    return scaled;
+  }
+
+  private ImageUtil() {}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes 2D textures in the KTX 1.1 container format
+ * (https://registry.khronos.org/KTX/specs/1.0/ktxspec_v1.html), little-endian, one face and no
+ * array elements.
+ */
+final class KtxWriter {
+  private static final byte[] IDENTIFIER = {
+    (byte) 0xAB, 0x4B, 0x54, 0x58, 0x20, 0x31, 0x31, (byte) 0xBB, 0x0D, 0x0A, 0x1A, 0x0A
+  };
+  private static final int ENDIANNESS = 0x04030201;
+  private static final int HEADER_SIZE = 64;
+
+  // OpenGL enums used in the header.
+  static final int GL_UNSIGNED_BYTE = 0x1401;
+  static final int GL_RGB = 0x1907;
+  static final int GL_RGBA = 0x1908;
+  static final int GL_COMPRESSED_RGB8_ETC2 = 0x9274;
+  static final int GL_COMPRESSED_RGBA_ASTC_4x4_KHR = 0x93B0;
+
+  /**
+   * Writes a texture.
+   *
+   * @param glType The pixel type, or 0 for compressed formats.
+   * @param glFormat The pixel format, or 0 for compressed formats.
+   * @param glInternalFormat The sized or compressed internal format.
+   * @param glBaseInternalFormat The base internal format, e.g. {@link #GL_RGB}.
+   * @param levels The image data of each mip level, starting with the full-size image.
+   * @param keyValues Metadata stored in the header, in iteration order.
+   */
+  static void write(
+      File file,
+      int glType,
+      int glFormat,
+      int glInternalFormat,
+      int glBaseInternalFormat,
+      int width,
+      int height,
+      List<byte[]> levels,
+      Map<String, String> keyValues)
+      throws IOException {
+    byte[] keyValueData = encodeKeyValues(keyValues);
+
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(IDENTIFIER);
+    header.putInt(ENDIANNESS);
+    header.putInt(glType);
+    header.putInt(1); // glTypeSize: 1 for byte and compressed data.
+    header.putInt(glFormat);
+    header.putInt(glInternalFormat);
+    header.putInt(glBaseInternalFormat);
+    header.putInt(width);
+    header.putInt(height);
+    header.putInt(0); // pixelDepth
+    header.putInt(0); // numberOfArrayElements
+    header.putInt(1); // numberOfFaces
+    header.putInt(levels.size());
+    header.putInt(keyValueData.length);
+
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+      out.write(header.array());
+      out.write(keyValueData);
+      ByteBuffer imageSize = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      for (byte[] level : levels) {
+        imageSize.clear();
+        imageSize.putInt(level.length);
+        out.write(imageSize.array());
+        out.write(level);
+        out.write(new byte[padding(level.length)]);
+      }
+    }
+  }
+
+  private static byte[] encodeKeyValues(Map<String, String> keyValues) {
+    ByteBuffer data = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+    for (Map.Entry<String, String> entry : keyValues.entrySet()) {
+      byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+      int size = key.length + 1 + value.length + 1;
+      data.putInt(size);
+      data.put(key).put((byte) 0).put(value).put((byte) 0);
+      data.put(new byte[padding(size)]);
+    }
+    byte[] result = new byte[data.position()];
+    data.flip();
+    data.get(result);
+    return result;
+  }
+
+  private static int padding(int size) {
+    return 3 - ((size + 3) % 4);
+  }
+
+  private KtxWriter() {}
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import java.awt.Font;
+import java.awt.FontFormatException;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.font.LineMetrics;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Renders the printable ASCII glyphs of a font into a signed distance field atlas, so the app can
+ * draw card text sharp at any size from a single small texture.
+ *
+ * <p>Each glyph is rendered {@value #UPSCALE} times larger than its atlas size, and the exact
+ * Euclidean distance of every pixel to the glyph outline computed there. Each atlas pixel stores
+ * the distance at its center, scaled so that 0.5 is the outline and 0 and 1 are {@value #SPREAD}
+ * atlas pixels outside and inside of it. Glyphs are packed on shelves, each with a border of
+ * {@value #SPREAD} pixels for the distance to fall off in.
+ *
+ * <p>The file has a header, the glyph metrics in ems and the atlas, one byte per pixel, row by
+ * row from the top. All values are big-endian:
+ *
+ * <pre>
+ * header: int magic 'SDFF', short version, short glyphCount, short atlasWidth, short atlasHeight,
+ *         short emSize, short spread, float ascent, float descent, float lineHeight
+ * glyph:  short codePoint, short x, short y, short width, short height, short reserved,
+ *         float advance, float left, float bottom, float right, float top
+ * </pre>
+ *
+ * Glyph bounds are relative to the pen position on the baseline, with y up. The font is read by
+ * {@code periodictable.common.rendering.SdfFont}.
+ *
+ * <p>Usage: {@code SdfFontBuilder <outputFile> [fontFile]}, with the bold sans-serif font of the
+ * build machine if no TrueType font file is given.
+ */
+public final class SdfFontBuilder {
+  /** 'SDFF' */
+  static final int MAGIC = 0x53444646;
+  static final int VERSION = 1;
+
+  // Pixels per em in the atlas.
+  static final int EM_SIZE = 48;
+  // Distance in atlas pixels from the outline to where the field saturates.
+  static final int SPREAD = 6;
+  private static final int UPSCALE = 8;
+  private static final int ATLAS_WIDTH = 512;
+  private static final char FIRST_CHAR = ' ';
+  private static final char LAST_CHAR = '~';
+  private static final float INFINITY = 1e20f;
+
+  private static class Glyph {
+    final char codePoint;
+    final float advance;
+    // Bounds in ems, y up; empty for blanks.
+    float left;
+    float bottom;
+    float right;
+    float top;
+    byte[] field;
+    int width;
+    int height;
+    int x;
+    int y;
+
+    Glyph(char codePoint, float advance) {
+      this.codePoint = codePoint;
+      this.advance = advance;
+    }
+  }
+
+  public static void main(String[] args) throws IOException, FontFormatException {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: SdfFontBuilder <outputFile> [fontFile]");
+      System.exit(1);
+    }
+    File outputFile = new File(args[0]);
+    float renderSize = EM_SIZE * UPSCALE;
+    Font font =
+        args.length == 2
+            ? Font.createFont(Font.TRUETYPE_FONT, new File(args[1])).deriveFont(renderSize)
+            : new Font(Font.SANS_SERIF, Font.BOLD, 1).deriveFont(renderSize);
+    FontRenderContext context = new FontRenderContext(new AffineTransform(), true, true);
+
+    Glyph[] glyphs = new Glyph[LAST_CHAR - FIRST_CHAR + 1];
+    for (char c = FIRST_CHAR; c <= LAST_CHAR; c++) {
+      glyphs[c - FIRST_CHAR] = renderGlyph(font, context, c, renderSize);
+    }
+    int atlasHeight = pack(glyphs);
+    LineMetrics metrics = font.getLineMetrics("Hg", context);
+
+    File parent = outputFile.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create " + parent);
+    }
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      out.writeShort(glyphs.length);
+      out.writeShort(ATLAS_WIDTH);
+      out.writeShort(atlasHeight);
+      out.writeShort(EM_SIZE);
+      out.writeShort(SPREAD);
+      out.writeFloat(metrics.getAscent() / renderSize);
+      out.writeFloat(metrics.getDescent() / renderSize);
+      out.writeFloat(metrics.getHeight() / renderSize);
+      for (Glyph glyph : glyphs) {
+        out.writeShort(glyph.codePoint);
+        out.writeShort(glyph.x);
+        out.writeShort(glyph.y);
+        out.writeShort(glyph.width);
+        out.writeShort(glyph.height);
+        out.writeShort(0);
+        out.writeFloat(glyph.advance);
+        out.writeFloat(glyph.left);
+        out.writeFloat(glyph.bottom);
+        out.writeFloat(glyph.right);
+        out.writeFloat(glyph.top);
+      }
+      byte[] atlas = new byte[ATLAS_WIDTH * atlasHeight];
+      for (Glyph glyph : glyphs) {
+        for (int row = 0; row < glyph.height; row++) {
+          System.arraycopy(
+              glyph.field,
+              row * glyph.width,
+              atlas,
+              (glyph.y + row) * ATLAS_WIDTH + glyph.x,
+              glyph.width);
+        }
+      }
+      out.write(atlas);
+    }
+    System.out.printf(
+        "Built %d glyphs of %s into %s (%dx%d)%n",
+        glyphs.length, font.getFontName(), outputFile, ATLAS_WIDTH, atlasHeight);
+  }
+
+  /** Renders a glyph large and samples its distance field down to the atlas size. */
+  private static Glyph renderGlyph(
+      Font font, FontRenderContext context, char c, float renderSize) {
+    GlyphVector vector = font.createGlyphVector(context, new char[] {c});
+    Glyph glyph = new Glyph(c, vector.getGlyphMetrics(0).getAdvanceX() / renderSize);
+    Shape outline = vector.getGlyphOutline(0);
+    Rectangle2D bounds = outline.getBounds2D();
+    if (bounds.isEmpty()) {
+      glyph.field = new byte[0];
+      return glyph;
+    }
+
+    // The glyph bounds in atlas pixels, grown by the spread, aligned to the upscaled grid.
+    int left = (int) Math.floor(bounds.getMinX() / UPSCALE) - SPREAD;
+    int top = (int) Math.floor(bounds.getMinY() / UPSCALE) - SPREAD;
+    int right = (int) Math.ceil(bounds.getMaxX() / UPSCALE) + SPREAD;
+    int bottom = (int) Math.ceil(bounds.getMaxY() / UPSCALE) + SPREAD;
+    glyph.width = right - left;
+    glyph.height = bottom - top;
+    // AWT has y down from the baseline.
+    glyph.left = (float) left / EM_SIZE;
+    glyph.right = (float) right / EM_SIZE;
+    glyph.top = (float) -top / EM_SIZE;
+    glyph.bottom = (float) -bottom / EM_SIZE;
+
+    int width = glyph.width * UPSCALE;
+    int height = glyph.height * UPSCALE;
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+    Graphics2D g = image.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+    g.translate(-left * UPSCALE, -top * UPSCALE);
+    g.fill(outline);
+    g.dispose();
+
+    boolean[] inside = new boolean[width * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        inside[y * width + x] = (image.getRaster().getSample(x, y, 0) & 0x80) != 0;
+      }
+    }
+    float[] outsideDistance = distanceTransform(inside, width, height, true);
+    float[] insideDistance = distanceTransform(inside, width, height, false);
+
+    glyph.field = new byte[glyph.width * glyph.height];
+    for (int y = 0; y < glyph.height; y++) {
+      for (int x = 0; x < glyph.width; x++) {
+        int i = (y * UPSCALE + UPSCALE / 2) * width + x * UPSCALE + UPSCALE / 2;
+        // Distances are to the nearest pixel of the other side; half a pixel puts the edge
+        // between the two.
+        float distance =
+            inside[i]
+                ? (float) Math.sqrt(insideDistance[i]) - 0.5f
+                : 0.5f - (float) Math.sqrt(outsideDistance[i]);
+        float value = 0.5f + distance / UPSCALE / (2f * SPREAD);
+        glyph.field[y * glyph.width + x] =
+            (byte) Math.round(Math.max(0f, Math.min(1f, value)) * 255f);
+      }
+    }
+    return glyph;
+  }
+
+  /**
+   * Returns the squared distance of every pixel to the nearest pixel inside of the glyph if
+   * {@code toInside}, or else outside of it, by the separable algorithm of Felzenszwalb and
+   * Huttenlocher.
+   */
+  private static float[] distanceTransform(
+      boolean[] inside, int width, int height, boolean toInside) {
+    float[] grid = new float[width * height];
+    for (int i = 0; i < grid.length; i++) {
+      grid[i] = inside[i] == toInside ? 0f : INFINITY;
+    }
+    int size = Math.max(width, height);
+    float[] f = new float[size];
+    float[] d = new float[size];
+    int[] v = new int[size];
+    float[] z = new float[size + 1];
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        f[y] = grid[y * width + x];
+      }
+      transform1d(f, height, d, v, z);
+      for (int y = 0; y < height; y++) {
+        grid[y * width + x] = d[y];
+      }
+    }
+    for (int y = 0; y < height; y++) {
+      System.arraycopy(grid, y * width, f, 0, width);
+      transform1d(f, width, d, v, z);
+      System.arraycopy(d, 0, grid, y * width, width);
+    }
+    return grid;
+  }
+
+  /** The squared distance transform of a sampled function, as its lower envelope of parabolas. */
+  private static void transform1d(float[] f, int n, float[] d, int[] v, float[] z) {
+    int k = 0;
+    v[0] = 0;
+    z[0] = -INFINITY;
+    z[1] = INFINITY;
+    for (int q = 1; q < n; q++) {
+      // z[0] is minus infinity, so k never goes below 0.
+      float s = intersection(f, q, v[k]);
+      while (s <= z[k]) {
+        k--;
+        s = intersection(f, q, v[k]);
+      }
+      k++;
+      v[k] = q;
+      z[k] = s;
+      z[k + 1] = INFINITY;
+    }
+    k = 0;
+    for (int q = 0; q < n; q++) {
+      while (z[k + 1] < q) {
+        k++;
+      }
+      int p = v[k];
+      d[q] = (q - p) * (q - p) + f[p];
+    }
+  }
+
+  /** Where the parabolas rooted at q and p intersect. */
+  private static float intersection(float[] f, int q, int p) {
+    return ((f[q] + q * q) - (f[p] + p * p)) / (2f * (q - p));
+  }
+
+  /** Places the glyphs on shelves, tallest first, and returns the atlas height. */
+  private static int pack(Glyph[] glyphs) {
+    Glyph[] byHeight = glyphs.clone();
+    Arrays.sort(byHeight, (a, b) -> Integer.compare(b.height, a.height));
+    int x = 0;
+    int y = 0;
+    int shelfHeight = 0;
+    for (Glyph glyph : byHeight) {
+      if (glyph.width == 0) {
+        continue;
+      }
+      if (x + glyph.width > ATLAS_WIDTH) {
+        x = 0;
+        y += shelfHeight;
+        shelfHeight = 0;
+      }
+      glyph.x = x;
+      glyph.y = y;
+      x += glyph.width;
+      shelfHeight = Math.max(shelfHeight, glyph.height);
+    }
+    int height = 1;
+    while (height < y + shelfHeight) {
+      height *= 2;
+    }
+    return height;
+  }
+
+  private SdfFontBuilder() {}
+}
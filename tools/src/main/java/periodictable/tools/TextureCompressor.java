@@ -0,0 +1,202 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts the card textures to GPU-compressed KTX files with full mip chains, so the app uploads
+ * every mip level as is instead of generating them at runtime.
+ *
+ * <p>Every {@code .jpg} and opaque {@code .png} below the given asset directories, e.g. the card
+ * template, is written in each requested format to {@code
+ * <outputDir>/compressed/<format>/<relativeDir>/<name>.ktx}. The formats are {@code etc2}, ETC2
+ * RGB8, which the app reads, see {@code periodictable.augmentedimage.rendering.CardTextureFormat},
+ * and {@code astc}, ASTC 4x4. Only ETC2 is written by default. Directories named by {@code
+ * --exclude}, e.g. {@code element_info} when the app draws info cards as text, are skipped, as are
+ * files newer than their source.
+ *
+ * <p>Usage: {@code TextureCompressor [--formats=<format>[,<format>]...]
+ * [--exclude=<dirName>[,<dirName>]...] <outputDir> <assetsRoot> <relativeDir> [<assetsRoot>
+ * <relativeDir>]...}
+ */
+public final class TextureCompressor {
+  static final String COMPRESSED_DIRECTORY = "compressed";
+  private static final String FORMATS_OPTION = "--formats=";
+  private static final String EXCLUDE_OPTION = "--exclude=";
+  private static final String USAGE =
+      "Usage: TextureCompressor [--formats=<format>[,<format>]...] "
+          + "[--exclude=<dirName>[,<dirName>]...] <outputDir> <assetsRoot> <relativeDir> "
+          + "[<assetsRoot> <relativeDir>]...";
+
+  /** A compressed format and how to encode a mip level to it. */
+  private enum Format {
+    ETC2("etc2", KtxWriter.GL_COMPRESSED_RGB8_ETC2, KtxWriter.GL_RGB) {
+      @Override
+      byte[] encode(int[] argb, int width, int height) {
+        return EtcEncoder.encode(argb, width, height);
+      }
+    },
+    ASTC("astc", KtxWriter.GL_COMPRESSED_RGBA_ASTC_4x4_KHR, KtxWriter.GL_RGBA) {
+      @Override
+      byte[] encode(int[] argb, int width, int height) {
+        return AstcEncoder.encode(argb, width, height);
+      }
+    };
+
+    final String directory;
+    final int glInternalFormat;
+    final int glBaseInternalFormat;
+
+    Format(String directory, int glInternalFormat, int glBaseInternalFormat) {
+      this.directory = directory;
+      this.glInternalFormat = glInternalFormat;
+      this.glBaseInternalFormat = glBaseInternalFormat;
+    }
+
+    abstract byte[] encode(int[] argb, int width, int height);
+
+    static Format forDirectory(String directory) {
+      for (Format format : values()) {
+        if (format.directory.equals(directory)) {
+          return format;
+        }
+      }
+      throw new IllegalArgumentException("Unknown texture format: " + directory);
+    }
+  }
+
+  /** A source texture and the asset path of its KTX files, relative to the format directory. */
+  private static class Job {
+    final File source;
+    final String ktxPath;
+
+    Job(File source, String ktxPath) {
+      this.source = source;
+      this.ktxPath = ktxPath;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    List<Format> formats = new ArrayList<>();
+    List<String> excluded = new ArrayList<>();
+    int first = 0;
+    for (; first < args.length && args[first].startsWith("--"); first++) {
+      if (args[first].startsWith(FORMATS_OPTION)) {
+        for (String directory : args[first].substring(FORMATS_OPTION.length()).split(",")) {
+          formats.add(Format.forDirectory(directory));
+        }
+      } else if (args[first].startsWith(EXCLUDE_OPTION)) {
+        excluded.addAll(Arrays.asList(args[first].substring(EXCLUDE_OPTION.length()).split(",")));
+      } else {
+        System.err.println(USAGE);
+        System.exit(1);
+      }
+    }
+    if (formats.isEmpty()) {
+      formats.add(Format.ETC2);
+    }
+    if (args.length - first < 3 || (args.length - first) % 2 == 0) {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+    File outputDir = new File(args[first], COMPRESSED_DIRECTORY);
+
+    List<Job> jobs = new ArrayList<>();
+    for (int i = first + 1; i < args.length; i += 2) {
+      collect(new File(args[i], args[i + 1]), args[i + 1], excluded, jobs);
+    }
+
+    long start = System.nanoTime();
+    try {
+      jobs.parallelStream().forEach(job -> convert(job, formats, outputDir));
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    System.out.printf(
+        "Compressed %d textures in %d ms%n", jobs.size(), (System.nanoTime() - start) / 1000000);
+  }
+
+  /** Adds a job for every JPEG and opaque PNG below {@code dir}, outside excluded directories. */
+  private static void collect(File dir, String relativePath, List<String> excluded, List<Job> jobs)
+      throws IOException {
+    File[] files = dir.listFiles();
+    if (files == null) {
+      throw new IOException("Missing directory: " + dir);
+    }
+    for (File file : files) {
+      String childPath = relativePath + "/" + file.getName();
+      if (file.isDirectory()) {
+        if (!excluded.contains(file.getName())) {
+          collect(file, childPath, excluded, jobs);
+        }
+      } else if (file.getName().endsWith(".jpg")
+          || file.getName().endsWith(".png") && !ImageUtil.hasAlpha(file)) {
+        // ETC2 RGB8 has no alpha, so PNGs with transparency are left to the app to decode.
+        String ktxPath = childPath.substring(0, childPath.lastIndexOf('.')) + ".ktx";
+        jobs.add(new Job(file, ktxPath));
+      }
+    }
+  }
+
+  private static void convert(Job job, List<Format> formats, File outputDir) {
+    try {
+      List<BufferedImage> levels = null;
+      for (Format format : formats) {
+        File file = new File(new File(outputDir, format.directory), job.ktxPath);
+        if (file.lastModified() > job.source.lastModified()) {
+          continue;
+        }
+        if (levels == null) {
+          levels = ImageUtil.mipChain(ImageUtil.read(job.source));
+        }
+        List<byte[]> data = new ArrayList<>();
+        for (BufferedImage level : levels) {
+          data.add(
+              format.encode(ImageUtil.argbPixels(level), level.getWidth(), level.getHeight()));
+        }
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+          throw new IOException("Could not create " + parent);
+        }
+        Map<String, String> keyValues = new LinkedHashMap<>();
+        keyValues.put("KTXorientation", "S=r,T=d");
+        KtxWriter.write(
+            file,
+            /*glType=*/ 0,
+            /*glFormat=*/ 0,
+            format.glInternalFormat,
+            format.glBaseInternalFormat,
+            levels.get(0).getWidth(),
+            levels.get(0).getHeight(),
+            data,
+            keyValues);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(job.source.getPath(), e);
+    }
+  }
+
+  private TextureCompressor() {}
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts high-resolution card art into tile pyramids for virtual texturing, so the app can show a
+ * card far sharper than a single texture allows by streaming in only the tiles on screen.
+ *
+ * <p>Each card's art is scaled to a square of {@code contentSize * 2^k} pixels, the smallest at
+ * least as large as the art, which is level 0 of its pyramid. Each further level halves the one
+ * before, down to a single tile. Tiles are {@value #TILE_SIZE} pixels square: their content
+ * plus a border of {@value #BORDER} pixels copied from the neighbouring tiles, so bilinear
+ * filtering never reads past a tile's edge. Tiles are stored as JPEGs.
+ *
+ * <p>Only cards with art in the source directory get a pyramid; the others are drawn from their
+ * regular texture. The index has one card slot per element and content, in the order of the
+ * augmented image database's image list. All values are big-endian:
+ *
+ * <pre>
+ * header: int magic 'CTIL', short version, short imageCount, short tileSize, byte border,
+ *         byte contentsPerImage, int tileCount
+ * card:   int firstTile, byte levelCount (0 without a pyramid), 3 bytes reserved
+ * tile:   int offset, int length
+ * </pre>
+ *
+ * The tiles of a card are ordered by level from the finest, then row by row. The pack is read by
+ * {@code periodictable.augmentedimage.rendering.CardTilePack}.
+ *
+ * <p>Usage: {@code TilePyramidBuilder <imageList> <sourceDir> <outputFile>}
+ */
+public final class TilePyramidBuilder {
+  /** 'CTIL' */
+  static final int MAGIC = 0x4354494C;
+  static final int VERSION = 1;
+
+  static final int TILE_SIZE = 128;
+  static final int BORDER = 2;
+  static final int CONTENT_SIZE = TILE_SIZE - 2 * BORDER;
+  // Level 0 of the largest pyramid is 32 tiles across, 3968 pixels.
+  private static final int MAX_LEVEL_COUNT = 6;
+  private static final float JPEG_QUALITY = 0.9f;
+
+  // Content directories of each element, in the order of CardContent.
+  private static final String[] CONTENT_DIRECTORIES = {"element_info", "element_pictures"};
+
+  private static final int HEADER_BYTES = 16;
+  private static final int CARD_BYTES = 8;
+  private static final int TILE_BYTES = 8;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 3) {
+      System.err.println("Usage: TilePyramidBuilder <imageList> <sourceDir> <outputFile>");
+      System.exit(1);
+    }
+    List<String> imageNames = readImageNames(new File(args[0]));
+    File sourceDir = new File(args[1]);
+    File outputFile = new File(args[2]);
+
+    List<byte[]> tiles = new ArrayList<>();
+    int cardCount = imageNames.size() * CONTENT_DIRECTORIES.length;
+    int[] firstTiles = new int[cardCount];
+    int[] levelCounts = new int[cardCount];
+    int pyramidCount = 0;
+    for (int i = 0; i < imageNames.size(); i++) {
+      for (int j = 0; j < CONTENT_DIRECTORIES.length; j++) {
+        File source = new File(new File(sourceDir, CONTENT_DIRECTORIES[j]), imageNames.get(i));
+        if (!source.isFile()) {
+          continue;
+        }
+        int card = i * CONTENT_DIRECTORIES.length + j;
+        firstTiles[card] = tiles.size();
+        levelCounts[card] = addPyramid(ImageUtil.read(source), tiles);
+        pyramidCount++;
+      }
+    }
+
+    File parent = outputFile.getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Could not create " + parent);
+    }
+    write(imageNames.size(), firstTiles, levelCounts, tiles, outputFile);
+    System.out.printf(
+        "Built %d tile pyramids with %d tiles into %s (%d KB)%n",
+        pyramidCount, tiles.size(), outputFile, outputFile.length() / 1024);
+  }
+
+  /** Reads the image names, in database order, from an augmented image database image list. */
+  private static List<String> readImageNames(File imageList) throws IOException {
+    List<String> imageNames = new ArrayList<>();
+    for (String line : Files.readAllLines(imageList.toPath(), StandardCharsets.UTF_8)) {
+      // Each line is "<image name>|<image path>".
+      int separator = line.indexOf('|');
+      String imageName = separator < 0 ? line.trim() : line.substring(0, separator);
+      if (!imageName.isEmpty()) {
+        imageNames.add(imageName);
+      }
+    }
+    return imageNames;
+  }
+
+  /** Adds the tiles of every level of an image's pyramid, and returns the number of levels. */
+  private static int addPyramid(BufferedImage image, List<byte[]> tiles) throws IOException {
+    int levelCount = 1;
+    int sourceSize = Math.max(image.getWidth(), image.getHeight());
+    while (levelCount < MAX_LEVEL_COUNT && CONTENT_SIZE << (levelCount - 1) < sourceSize) {
+      levelCount++;
+    }
+    int size = CONTENT_SIZE << (levelCount - 1);
+    BufferedImage level = ImageUtil.scale(image, size, size);
+    for (int i = 0; i < levelCount; i++) {
+      if (i > 0) {
+        level = ImageUtil.halve(level);
+      }
+      int tilesPerSide = level.getWidth() / CONTENT_SIZE;
+      for (int y = 0; y < tilesPerSide; y++) {
+        for (int x = 0; x < tilesPerSide; x++) {
+          tiles.add(ImageUtil.encodeJpeg(cutTile(level, x, y), JPEG_QUALITY));
+        }
+      }
+    }
+    return levelCount;
+  }
+
+  /** Cuts a tile with its border, repeating the image's edge pixels where the border is outside. */
+  private static BufferedImage cutTile(BufferedImage level, int tileX, int tileY) {
+    BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+    int size = level.getWidth();
+    for (int y = 0; y < TILE_SIZE; y++) {
+      int sourceY = clamp(tileY * CONTENT_SIZE - BORDER + y, size);
+      for (int x = 0; x < TILE_SIZE; x++) {
+        int sourceX = clamp(tileX * CONTENT_SIZE - BORDER + x, size);
+        tile.setRGB(x, y, level.getRGB(sourceX, sourceY));
+      }
+    }
+    return tile;
+  }
+
+  private static int clamp(int value, int size) {
+    return Math.max(0, Math.min(size - 1, value));
+  }
+
+  private static void write(
+      int imageCount, int[] firstTiles, int[] levelCounts, List<byte[]> tiles, File outputFile)
+      throws IOException {
+    long offset =
+        HEADER_BYTES + (long) firstTiles.length * CARD_BYTES + (long) tiles.size() * TILE_BYTES;
+    for (byte[] tile : tiles) {
+      offset += tile.length;
+    }
+    if (offset > Integer.MAX_VALUE) {
+      throw new IOException("Tile pack exceeds 2 GB");
+    }
+
+    try (DataOutputStream out =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(outputFile)))) {
+      out.writeInt(MAGIC);
+      out.writeShort(VERSION);
+      out.writeShort(imageCount);
+      out.writeShort(TILE_SIZE);
+      out.writeByte(BORDER);
+      out.writeByte(CONTENT_DIRECTORIES.length);
+      out.writeInt(tiles.size());
+      for (int i = 0; i < firstTiles.length; i++) {
+        out.writeInt(firstTiles[i]);
+        out.writeByte(levelCounts[i]);
+        out.write(new byte[3]);
+      }
+      int tileOffset = HEADER_BYTES + firstTiles.length * CARD_BYTES + tiles.size() * TILE_BYTES;
+      for (byte[] tile : tiles) {
+        out.writeInt(tileOffset);
+        out.writeInt(tile.length);
+        tileOffset += tile.length;
+      }
+      for (byte[] tile : tiles) {
+        out.write(tile);
+      }
+    }
+  }
+
+  private TilePyramidBuilder() {}
+}
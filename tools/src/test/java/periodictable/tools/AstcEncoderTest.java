@@ -0,0 +1,145 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import org.junit.Test;
+
+/**
+ * Decodes the blocks written by {@link AstcEncoder} as the GPU does, following the ASTC
+ * specification for the one block mode the encoder writes, and checks how close they are to the
+ * source.
+ */
+public class AstcEncoderTest {
+  // Measured at 37.9 dB when the threshold was set, which leaves a margin for encoder changes.
+  private static final double MIN_PSNR = 36;
+
+  // 4x4 grid of weights in the range 0..7 on a single plane.
+  private static final int BLOCK_MODE_4X4_RANGE_7 = 0b000_0101_0011;
+  private static final int CEM_LDR_RGB_DIRECT = 8;
+
+  @Test
+  public void encodesCardArtAbovePsnrThreshold() {
+    BufferedImage image = TestImages.card(128, 128);
+    int[] pixels = ImageUtil.argbPixels(image);
+
+    byte[] blocks = AstcEncoder.encode(pixels, 128, 128);
+
+    double psnr = TestImages.psnr(pixels, decode(blocks, 128, 128));
+    assertTrue("PSNR " + psnr + " dB", psnr >= MIN_PSNR);
+  }
+
+  @Test
+  public void encodesCardArtBetterThanEtc() {
+    int[] pixels = ImageUtil.argbPixels(TestImages.card(128, 128));
+
+    double astcPsnr =
+        TestImages.psnr(pixels, decode(AstcEncoder.encode(pixels, 128, 128), 128, 128));
+    double etcPsnr =
+        TestImages.psnr(
+            pixels, EtcEncoderTest.decode(EtcEncoder.encode(pixels, 128, 128), 128, 128));
+
+    assertTrue("ASTC " + astcPsnr + " dB, ETC " + etcPsnr + " dB", astcPsnr > etcPsnr);
+  }
+
+  @Test
+  public void coversPartialBlocksAtTheEdges() {
+    // The last column and row of blocks are half outside the image.
+    int[] pixels = ImageUtil.argbPixels(TestImages.card(126, 122));
+
+    byte[] blocks = AstcEncoder.encode(pixels, 126, 122);
+
+    assertEquals(32 * 31 * AstcEncoder.BLOCK_SIZE, blocks.length);
+    // Measured at 37.0 dB; the smaller image has its detail closer together.
+    double psnr = TestImages.psnr(pixels, decode(blocks, 126, 122));
+    assertTrue("PSNR " + psnr + " dB", psnr >= MIN_PSNR - 3);
+  }
+
+  /**
+   * Decodes ASTC 4x4 LDR blocks with a single partition, LDR RGB direct endpoints and a 4x4 grid
+   * of 3-bit weights into ARGB pixels.
+   */
+  static int[] decode(byte[] blocks, int width, int height) {
+    int[] pixels = new int[width * height];
+    int blocksX = (width + 3) / 4;
+    for (int block = 0; block < blocks.length / AstcEncoder.BLOCK_SIZE; block++) {
+      long[] bits = new long[2];
+      for (int i = 0; i < AstcEncoder.BLOCK_SIZE; i++) {
+        bits[i / 8] |= (long) (blocks[block * AstcEncoder.BLOCK_SIZE + i] & 0xFF) << (i % 8 * 8);
+      }
+      assertEquals("Block mode", BLOCK_MODE_4X4_RANGE_7, bits(bits, 0, 11));
+      assertEquals("Partitions - 1", 0, bits(bits, 11, 2));
+      assertEquals("Endpoint mode", CEM_LDR_RGB_DIRECT, bits(bits, 13, 4));
+
+      // v0..v5 are r0, r1, g0, g1, b0, b1 at 8 bits each.
+      int[] v = new int[6];
+      for (int i = 0; i < 6; i++) {
+        v[i] = bits(bits, 17 + 8 * i, 8);
+      }
+      int[] endpoint0;
+      int[] endpoint1;
+      if (v[1] + v[3] + v[5] >= v[0] + v[2] + v[4]) {
+        endpoint0 = new int[] {v[0], v[2], v[4]};
+        endpoint1 = new int[] {v[1], v[3], v[5]};
+      } else {
+        endpoint0 = blueContract(v[1], v[3], v[5]);
+        endpoint1 = blueContract(v[0], v[2], v[4]);
+      }
+
+      for (int texel = 0; texel < 16; texel++) {
+        int px = block % blocksX * 4 + texel % 4;
+        int py = block / blocksX * 4 + texel / 4;
+        if (px >= width || py >= height) {
+          continue;
+        }
+        // The weights are read from the top of the block down, each with its bits reversed.
+        int quantized = 0;
+        for (int b = 0; b < 3; b++) {
+          quantized |= bits(bits, 127 - (texel * 3 + b), 1) << b;
+        }
+        int weight = quantized << 3 | quantized;
+        if (weight > 32) {
+          weight++;
+        }
+        int argb = 0xFF000000;
+        for (int c = 0; c < 3; c++) {
+          int c0 = endpoint0[c] << 8 | endpoint0[c];
+          int c1 = endpoint1[c] << 8 | endpoint1[c];
+          int value = (c0 * (64 - weight) + c1 * weight + 32) >> 6;
+          argb |= (value >> 8) << (16 - 8 * c);
+        }
+        pixels[py * width + px] = argb;
+      }
+    }
+    return pixels;
+  }
+
+  private static int[] blueContract(int r, int g, int b) {
+    return new int[] {(r + b) >> 1, (g + b) >> 1, b};
+  }
+
+  private static int bits(long[] bits, int position, int count) {
+    int value = 0;
+    for (int i = 0; i < count; i++) {
+      int bit = position + i;
+      value |= (int) ((bits[bit / 64] >>> (bit % 64)) & 1) << i;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Packs card content with {@link ContentPacker} and reads the pack back, as {@code
+ * periodictable.augmentedimage.rendering.CardContentPack} does.
+ */
+public class ContentPackerTest {
+  private static final String[] IMAGE_NAMES = {"boron.jpg", "argon.jpg", "xenon.jpg"};
+  // Slots of each image's content, in the order of CardContent.
+  private static final int INFO = 0;
+  private static final int PICTURE = 1;
+  private static final int CONTENTS_PER_IMAGE = 2;
+  private static final int TEMPLATE_SLOT = IMAGE_NAMES.length * CONTENTS_PER_IMAGE;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private File textures;
+  private File compressed;
+
+  @Test
+  public void packsEveryImageInImageListOrder() throws IOException {
+    writeContent();
+
+    ByteBuffer pack = pack();
+
+    assertEquals(ContentPacker.MAGIC, pack.getInt(0));
+    assertEquals(ContentPacker.VERSION, pack.getShort(4));
+    assertEquals(IMAGE_NAMES.length, pack.getShort(6));
+    assertEquals(CONTENTS_PER_IMAGE, pack.get(8));
+    assertEquals(IMAGE_NAMES.length * CONTENTS_PER_IMAGE + 1, pack.getInt(12));
+
+    assertEntry(pack, slot(0, INFO), "element_info/boron.jpg", 40, 24, ContentPacker.FORMAT_JPEG);
+    assertEntry(
+        pack, slot(0, PICTURE), "element_pictures/boron.jpg", 32, 48, ContentPacker.FORMAT_JPEG);
+    assertEntry(pack, slot(1, INFO), "element_info/argon.jpg", 36, 20, ContentPacker.FORMAT_JPEG);
+    assertEntry(pack, TEMPLATE_SLOT, "template.png", 64, 64, ContentPacker.FORMAT_PNG);
+  }
+
+  @Test
+  public void packsCompressedContentInsteadOfItsSource() throws IOException {
+    writeContent();
+    byte[] ktx = "KTX argon picture".getBytes(StandardCharsets.US_ASCII);
+    File ktxFile = new File(compressed, "etc2/models/textures/element_pictures/argon.ktx");
+    assertTrue(ktxFile.getParentFile().mkdirs());
+    Files.write(ktxFile.toPath(), ktx);
+
+    ByteBuffer pack = pack();
+
+    int entry = entryPosition(slot(1, PICTURE));
+    // The size is the source's, which the app lays cards out with before they are read.
+    assertEquals(30, pack.getShort(entry + 8));
+    assertEquals(50, pack.getShort(entry + 10));
+    assertEquals(ContentPacker.FORMAT_KTX, pack.get(entry + 12));
+    assertEquals(ktx.length, pack.getInt(entry + 4));
+    assertTrue(Arrays.equals(ktx, data(pack, entry)));
+  }
+
+  @Test
+  public void leavesMissingAndExcludedContentEmpty() throws IOException {
+    writeContent();
+
+    ByteBuffer pack = pack("--exclude=element_info");
+
+    for (int imageIndex = 0; imageIndex < IMAGE_NAMES.length; imageIndex++) {
+      assertEmpty(pack, slot(imageIndex, INFO));
+    }
+    // Xenon has no picture.
+    assertEmpty(pack, slot(2, PICTURE));
+    assertEntry(
+        pack, slot(0, PICTURE), "element_pictures/boron.jpg", 32, 48, ContentPacker.FORMAT_JPEG);
+    assertEntry(pack, TEMPLATE_SLOT, "template.png", 64, 64, ContentPacker.FORMAT_PNG);
+  }
+
+  @Test
+  public void alignsEntriesAfterTheIndexWithoutOverlap() throws IOException {
+    writeContent();
+
+    ByteBuffer pack = pack();
+
+    int entryCount = pack.getInt(12);
+    long end = ContentPacker.HEADER_BYTES + (long) entryCount * ContentPacker.ENTRY_BYTES;
+    for (int slot = 0; slot < entryCount; slot++) {
+      int entry = entryPosition(slot);
+      int offset = pack.getInt(entry);
+      int length = pack.getInt(entry + 4);
+      if (length == 0) {
+        continue;
+      }
+      // Entries are written in slot order.
+      assertEquals(0, offset % 16);
+      assertTrue("Entry " + slot + " overlaps the one before", offset >= end);
+      end = offset + length;
+    }
+    assertEquals(end, pack.limit());
+  }
+
+  /**
+   * Writes the info card and picture of every image, but the picture of xenon, and the template,
+   * each a different size.
+   */
+  private void writeContent() throws IOException {
+    textures = temporaryFolder.newFolder("textures");
+    compressed = temporaryFolder.newFolder("compressed");
+    writeImage("element_info/boron.jpg", 40, 24);
+    writeImage("element_pictures/boron.jpg", 32, 48);
+    writeImage("element_info/argon.jpg", 36, 20);
+    writeImage("element_pictures/argon.jpg", 30, 50);
+    writeImage("element_info/xenon.jpg", 28, 16);
+    writeImage("template.png", 64, 64);
+  }
+
+  private void writeImage(String path, int width, int height) throws IOException {
+    File file = new File(textures, path);
+    File parent = file.getParentFile();
+    assertTrue(parent.isDirectory() || parent.mkdirs());
+    String format = path.endsWith(".png") ? "png" : "jpg";
+    assertTrue(ImageIO.write(TestImages.card(width, height), format, file));
+  }
+
+  /** Packs the content written before, and returns the whole pack. */
+  private ByteBuffer pack(String... options) throws IOException {
+    File imageList = temporaryFolder.newFile("imglist.txt");
+    StringBuilder lines = new StringBuilder();
+    for (String imageName : IMAGE_NAMES) {
+      lines.append(imageName).append("|NewCellDatabase/Photoshopped//").append(imageName);
+      lines.append('\n');
+    }
+    Files.write(imageList.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8));
+    File output = new File(temporaryFolder.newFolder("output"), "cards.pack");
+
+    String[] args = Arrays.copyOf(options, options.length + 4);
+    args[options.length] = imageList.getPath();
+    args[options.length + 1] = textures.getPath();
+    args[options.length + 2] = compressed.getPath();
+    args[options.length + 3] = output.getPath();
+    ContentPacker.main(args);
+
+    // Big-endian, the default.
+    return ByteBuffer.wrap(Files.readAllBytes(output.toPath()));
+  }
+
+  private static int slot(int imageIndex, int content) {
+    return imageIndex * CONTENTS_PER_IMAGE + content;
+  }
+
+  private static int entryPosition(int slot) {
+    return ContentPacker.HEADER_BYTES + slot * ContentPacker.ENTRY_BYTES;
+  }
+
+  private void assertEntry(
+      ByteBuffer pack, int slot, String path, int width, int height, int format)
+      throws IOException {
+    int entry = entryPosition(slot);
+    assertEquals(width, pack.getShort(entry + 8));
+    assertEquals(height, pack.getShort(entry + 10));
+    assertEquals(format, pack.get(entry + 12));
+    assertTrue(
+        "Entry " + slot + " is not " + path,
+        Arrays.equals(Files.readAllBytes(new File(textures, path).toPath()), data(pack, entry)));
+  }
+
+  private static void assertEmpty(ByteBuffer pack, int slot) {
+    int entry = entryPosition(slot);
+    for (int i = 0; i < ContentPacker.ENTRY_BYTES; i++) {
+      assertEquals(0, pack.get(entry + i));
+    }
+  }
+
+  private static byte[] data(ByteBuffer pack, int entry) {
+    int offset = pack.getInt(entry);
+    int length = pack.getInt(entry + 4);
+    return Arrays.copyOfRange(pack.array(), offset, offset + length);
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Builds element indexes with {@link ElementIndexBuilder} and reads them back, looking names up
+ * through the perfect hash as {@code periodictable.augmentedimage.rendering.ElementIndex} does.
+ */
+public class ElementIndexBuilderTest {
+  // More images than the database has, so most buckets hold several names.
+  private static final int IMAGE_COUNT = 300;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void everyNameHashesToItsOwnIndex() throws IOException {
+    List<String> imageNames = imageNames(IMAGE_COUNT);
+    Index index = build(imageNames);
+
+    for (int i = 0; i < imageNames.size(); i++) {
+      assertEquals(imageNames.get(i), i, index.getImageIndex(imageNames.get(i)));
+    }
+  }
+
+  @Test
+  public void unknownNamesAreNotFound() throws IOException {
+    Index index = build(imageNames(IMAGE_COUNT));
+
+    assertEquals(-1, index.getImageIndex("unobtainium.jpg"));
+    assertEquals(-1, index.getImageIndex("element0"));
+    assertEquals(-1, index.getImageIndex("ELEMENT0.JPG"));
+    assertEquals(-1, index.getImageIndex(""));
+  }
+
+  @Test
+  public void writesEveryImageInImageListOrder() throws IOException {
+    List<String> imageNames = imageNames(IMAGE_COUNT);
+    Index index = build(imageNames);
+
+    assertEquals(imageNames, index.imageNames);
+    for (int i = 0; i < imageNames.size(); i++) {
+      assertEquals(atomicNumber(i), (long) index.atomicNumbers.get(i));
+    }
+    assertEquals(Math.max(1, IMAGE_COUNT / 2), index.displacements.length);
+    // The slots are a permutation of the image indexes: the hash is minimal.
+    boolean[] found = new boolean[IMAGE_COUNT];
+    assertEquals(IMAGE_COUNT, index.slots.length);
+    for (int imageIndex : index.slots) {
+      assertFalse(found[imageIndex]);
+      found[imageIndex] = true;
+    }
+  }
+
+  @Test
+  public void indexesASingleImage() throws IOException {
+    List<String> imageNames = imageNames(1);
+    Index index = build(imageNames);
+
+    assertEquals(0, index.getImageIndex(imageNames.get(0)));
+    assertEquals(-1, index.getImageIndex("unobtainium.jpg"));
+  }
+
+  /** Returns image names as in the database's image list, not in alphabetical order. */
+  private static List<String> imageNames(int count) {
+    List<String> imageNames = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      imageNames.add("element" + (i * 7919 % count) + ".jpg");
+    }
+    return imageNames;
+  }
+
+  /** Returns an atomic number unlike the image index, so the two are not confused. */
+  private static int atomicNumber(int imageIndex) {
+    return 1000 - imageIndex;
+  }
+
+  /** Writes the element data and image list of the given images, and builds their index. */
+  private Index build(List<String> imageNames) throws IOException {
+    List<String> elements = new ArrayList<>();
+    elements.add("# image name|atomic number|symbol|name|standard atomic weight|configuration");
+    // In another order than the image list, so images are matched to their data by name.
+    for (int i = imageNames.size() - 1; i >= 0; i--) {
+      String name = imageNames.get(i);
+      elements.add(name.substring(0, name.lastIndexOf('.')) + "|" + atomicNumber(i) + "|X|X|1|1s1");
+    }
+    List<String> imageList = new ArrayList<>();
+    for (String name : imageNames) {
+      imageList.add(name + "|NewCellDatabase/Photoshopped//" + name);
+    }
+    File elementsFile = temporaryFolder.newFile("elements.txt");
+    File imageListFile = temporaryFolder.newFile("imglist.txt");
+    Files.write(elementsFile.toPath(), elements, StandardCharsets.UTF_8);
+    Files.write(imageListFile.toPath(), imageList, StandardCharsets.UTF_8);
+    File indexFile = new File(temporaryFolder.newFolder("models"), "element_index.txt");
+
+    ElementIndexBuilder.main(
+        new String[] {elementsFile.getPath(), imageListFile.getPath(), indexFile.getPath()});
+
+    return Index.read(indexFile);
+  }
+
+  /** An element index read back from its file. */
+  private static class Index {
+    int[] displacements;
+    int[] slots;
+    final List<String> imageNames = new ArrayList<>();
+    final List<Integer> atomicNumbers = new ArrayList<>();
+
+    static Index read(File file) throws IOException {
+      Index index = new Index();
+      for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+        if (line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\\|");
+        assertEquals(line, 2, fields.length);
+        if (fields[0].equals("displacements")) {
+          index.displacements = parseInts(fields[1]);
+        } else if (fields[0].equals("slots")) {
+          index.slots = parseInts(fields[1]);
+        } else {
+          index.imageNames.add(fields[0]);
+          index.atomicNumbers.add(Integer.parseInt(fields[1]));
+        }
+      }
+      return index;
+    }
+
+    /** Looks a name up as the app does, or returns -1 if there is no image of that name. */
+    int getImageIndex(String imageName) {
+      int hashCode = imageName.hashCode();
+      int bucket = ElementIndexBuilder.slot(hashCode, 0, displacements.length);
+      int imageIndex =
+          slots[ElementIndexBuilder.slot(hashCode, displacements[bucket], slots.length)];
+      return imageNames.get(imageIndex).equals(imageName) ? imageIndex : -1;
+    }
+
+    private static int[] parseInts(String values) {
+      String[] fields = values.split(",");
+      int[] parsed = new int[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+        parsed[i] = Integer.parseInt(fields[i]);
+      }
+      return parsed;
+    }
+  }
+}
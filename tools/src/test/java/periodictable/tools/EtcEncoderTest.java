@@ -0,0 +1,138 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import org.junit.Test;
+
+/**
+ * Decodes the blocks written by {@link EtcEncoder} as the GPU does, following the ETC2
+ * specification rather than the encoder, and checks how close they are to the source.
+ */
+public class EtcEncoderTest {
+  // Measured at 28.8 dB when the threshold was set, which leaves a margin for encoder changes.
+  private static final double MIN_PSNR = 27;
+
+  private static final int[][] MODIFIER_TABLES = {
+    {2, 8}, {5, 17}, {9, 29}, {13, 42}, {18, 60}, {24, 80}, {33, 106}, {47, 183}
+  };
+
+  @Test
+  public void encodesCardArtAbovePsnrThreshold() {
+    BufferedImage image = TestImages.card(128, 128);
+    int[] pixels = ImageUtil.argbPixels(image);
+
+    byte[] blocks = EtcEncoder.encode(pixels, 128, 128);
+
+    double psnr = TestImages.psnr(pixels, decode(blocks, 128, 128));
+    assertTrue("PSNR " + psnr + " dB", psnr >= MIN_PSNR);
+  }
+
+  @Test
+  public void encodesFlatColorsAlmostExactly() {
+    int[] pixels = new int[8 * 4];
+    for (int i = 0; i < pixels.length; i++) {
+      pixels[i] = i % 8 < 4 ? 0xFF336699 : 0xFFE0C040;
+    }
+
+    int[] decoded = decode(EtcEncoder.encode(pixels, 8, 4), 8, 4);
+
+    for (int i = 0; i < pixels.length; i++) {
+      for (int shift = 0; shift <= 16; shift += 8) {
+        int difference = ((pixels[i] >> shift) & 0xFF) - ((decoded[i] >> shift) & 0xFF);
+        assertTrue("Pixel " + i + " off by " + difference, Math.abs(difference) <= 4);
+      }
+    }
+  }
+
+  @Test
+  public void coversPartialBlocksAtTheEdges() {
+    // The last column and row of blocks are half outside the image.
+    int[] pixels = ImageUtil.argbPixels(TestImages.card(126, 122));
+
+    byte[] blocks = EtcEncoder.encode(pixels, 126, 122);
+
+    assertEquals(32 * 31 * EtcEncoder.BLOCK_SIZE, blocks.length);
+    // Measured at 25.2 dB; the smaller image has its detail closer together.
+    double psnr = TestImages.psnr(pixels, decode(blocks, 126, 122));
+    assertTrue("PSNR " + psnr + " dB", psnr >= MIN_PSNR - 3);
+  }
+
+  /**
+   * Decodes ETC2 RGB8 blocks in the individual and differential modes into ARGB pixels. The other
+   * ETC2 modes fail the test: the encoder promises ETC1-compatible output.
+   */
+  static int[] decode(byte[] blocks, int width, int height) {
+    int[] pixels = new int[width * height];
+    int blocksX = (width + 3) / 4;
+    for (int block = 0; block < blocks.length / EtcEncoder.BLOCK_SIZE; block++) {
+      long bits = 0;
+      for (int i = 0; i < EtcEncoder.BLOCK_SIZE; i++) {
+        bits = bits << 8 | (blocks[block * EtcEncoder.BLOCK_SIZE + i] & 0xFF);
+      }
+      int[][] baseColors = new int[2][3];
+      if (bit(bits, 33, 1) == 0) {
+        for (int c = 0; c < 3; c++) {
+          baseColors[0][c] = bit(bits, 60 - 8 * c, 4) * 0x11;
+          baseColors[1][c] = bit(bits, 56 - 8 * c, 4) * 0x11;
+        }
+      } else {
+        for (int c = 0; c < 3; c++) {
+          int base = bit(bits, 59 - 8 * c, 5);
+          int delta = bit(bits, 56 - 8 * c, 3);
+          int second = base + (delta >= 4 ? delta - 8 : delta);
+          if (second < 0 || second > 31) {
+            fail("Block " + block + " uses an ETC2-only mode");
+          }
+          baseColors[0][c] = base << 3 | base >> 2;
+          baseColors[1][c] = second << 3 | second >> 2;
+        }
+      }
+      int flip = bit(bits, 32, 1);
+      int[] tables = {bit(bits, 37, 3), bit(bits, 34, 3)};
+
+      for (int y = 0; y < 4; y++) {
+        for (int x = 0; x < 4; x++) {
+          int px = block % blocksX * 4 + x;
+          int py = block / blocksX * 4 + y;
+          if (px >= width || py >= height) {
+            continue;
+          }
+          int subBlock = flip == 0 ? x / 2 : y / 2;
+          int position = x * 4 + y;
+          int index = bit(bits, 16 + position, 1) << 1 | bit(bits, position, 1);
+          int magnitude = MODIFIER_TABLES[tables[subBlock]][index & 1];
+          int modifier = index < 2 ? magnitude : -magnitude;
+          int argb = 0xFF000000;
+          for (int c = 0; c < 3; c++) {
+            int value = Math.min(255, Math.max(0, baseColors[subBlock][c] + modifier));
+            argb |= value << (16 - 8 * c);
+          }
+          pixels[py * width + px] = argb;
+        }
+      }
+    }
+    return pixels;
+  }
+
+  private static int bit(long bits, int position, int count) {
+    return (int) ((bits >>> position) & ((1L << count) - 1));
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Scores made-up image targets with {@link ImageTargetScorer} and reads its report back. */
+public class ImageTargetScorerTest {
+  private static final int IMAGE_SIZE = 240;
+  // Side of the squares of the textured images, which make corners where they meet.
+  private static final int SQUARE_SIZE = 6;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void scoresAFlatImageBelowATexturedOne() throws IOException {
+    Map<String, BufferedImage> images = new HashMap<>();
+    images.put("flat.png", flat());
+    images.put("textured.png", textured(1));
+
+    Map<String, Row> rows = byName(score(images));
+
+    Row flat = rows.get("flat.png");
+    Row textured = rows.get("textured.png");
+    assertEquals(0, flat.corners);
+    assertTrue(textured.corners > 0);
+    assertTrue(textured.coverage > flat.coverage);
+    assertTrue(
+        "Flat " + flat.score + ", textured " + textured.score, flat.score < textured.score);
+  }
+
+  @Test
+  public void scoresSimilarImagesBelowDistinctOnes() throws IOException {
+    Map<String, BufferedImage> images = new HashMap<>();
+    images.put("original.png", textured(1));
+    images.put("copy.png", textured(1));
+    images.put("distinct.png", textured(2));
+
+    Map<String, Row> rows = byName(score(images));
+
+    Row original = rows.get("original.png");
+    Row distinct = rows.get("distinct.png");
+    assertEquals("copy.png", original.mostSimilar);
+    assertTrue(original.similarity > distinct.similarity);
+    assertTrue(
+        "Original " + original.score + ", distinct " + distinct.score,
+        original.score < distinct.score);
+  }
+
+  @Test
+  public void ranksImagesFromTheLowestScoreUp() throws IOException {
+    Map<String, BufferedImage> images = new HashMap<>();
+    images.put("flat.png", flat());
+    for (int seed = 1; seed <= 4; seed++) {
+      images.put("textured" + seed + ".png", textured(seed));
+    }
+
+    List<Row> rows = score(images);
+
+    assertEquals(images.size(), rows.size());
+    assertEquals(images.size(), byName(rows).size());
+    for (int i = 0; i < rows.size(); i++) {
+      assertEquals(i + 1, rows.get(i).rank);
+      if (i > 0) {
+        assertTrue(
+            "Rank " + (i + 1) + " scores below the one before",
+            rows.get(i).score >= rows.get(i - 1).score);
+      }
+    }
+    assertEquals("flat.png", rows.get(0).name);
+  }
+
+  private static BufferedImage flat() {
+    BufferedImage image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < IMAGE_SIZE; y++) {
+      for (int x = 0; x < IMAGE_SIZE; x++) {
+        image.setRGB(x, y, 0x808080);
+      }
+    }
+    return image;
+  }
+
+  /** Returns squares of random grays, the same for the same seed. */
+  private static BufferedImage textured(long seed) {
+    Random random = new Random(seed);
+    BufferedImage image = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_RGB);
+    for (int top = 0; top < IMAGE_SIZE; top += SQUARE_SIZE) {
+      for (int left = 0; left < IMAGE_SIZE; left += SQUARE_SIZE) {
+        int gray = random.nextInt(256);
+        for (int y = top; y < top + SQUARE_SIZE; y++) {
+          for (int x = left; x < left + SQUARE_SIZE; x++) {
+            image.setRGB(x, y, gray * 0x010101);
+          }
+        }
+      }
+    }
+    return image;
+  }
+
+  /** Writes the images and their image list, scores them, and returns the report's rows. */
+  private List<Row> score(Map<String, BufferedImage> images) throws IOException {
+    File imageDir = temporaryFolder.newFolder("images");
+    List<String> imageList = new ArrayList<>();
+    for (Map.Entry<String, BufferedImage> image : images.entrySet()) {
+      assertTrue(ImageIO.write(image.getValue(), "png", new File(imageDir, image.getKey())));
+      imageList.add(image.getKey() + "|NewCellDatabase/Photoshopped//" + image.getKey());
+    }
+    File imageListFile = temporaryFolder.newFile("imglist.txt");
+    Files.write(imageListFile.toPath(), imageList, StandardCharsets.UTF_8);
+    File report = new File(temporaryFolder.newFolder("reports"), "image_targets.txt");
+
+    ImageTargetScorer.main(
+        new String[] {imageListFile.getPath(), imageDir.getPath(), report.getPath()});
+
+    List<Row> rows = new ArrayList<>();
+    for (String line : Files.readAllLines(report.toPath(), StandardCharsets.UTF_8)) {
+      if (!line.startsWith("#") && !line.startsWith("rank")) {
+        rows.add(new Row(line));
+      }
+    }
+    return rows;
+  }
+
+  private static Map<String, Row> byName(List<Row> rows) {
+    Map<String, Row> byName = new HashMap<>();
+    for (Row row : rows) {
+      byName.put(row.name, row);
+    }
+    return byName;
+  }
+
+  /** A line of the report. */
+  private static class Row {
+    final int rank;
+    final String name;
+    final float score;
+    final int corners;
+    final float coverage;
+    final float similarity;
+    final String mostSimilar;
+
+    Row(String line) {
+      String[] fields = line.trim().split("\\s+");
+      assertEquals(line, 7, fields.length);
+      rank = Integer.parseInt(fields[0]);
+      name = fields[1];
+      score = parseFloat(fields[2]);
+      corners = Integer.parseInt(fields[3]);
+      coverage = parseFloat(fields[4]);
+      similarity = parseFloat(fields[5]);
+      mostSimilar = fields[6];
+    }
+
+    /** Parses a number as printed in the default locale, maybe with a percent sign. */
+    private static float parseFloat(String field) {
+      return Float.parseFloat(field.replace('%', ' ').replace(',', '.').trim());
+    }
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import periodictable.common.rendering.KtxTexture;
+
+/**
+ * Writes KTX files with {@link KtxWriter} and reads them back with the app's {@link KtxTexture}.
+ */
+public class KtxWriterTest {
+  private static final int HEADER_SIZE = 64;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void compressedMipLevelsRoundTrip() throws IOException {
+    // 12x8 ETC2 down to 1x1: 3x2, 2x1, then single blocks.
+    List<byte[]> levels =
+        Arrays.asList(bytes(6 * 8, 1), bytes(2 * 8, 2), bytes(8, 3), bytes(8, 4));
+    Map<String, String> keyValues = new LinkedHashMap<>();
+    keyValues.put("KTXorientation", "S=r,T=d");
+    File file = temporaryFolder.newFile("etc2.ktx");
+
+    KtxWriter.write(
+        file,
+        /*glType=*/ 0,
+        /*glFormat=*/ 0,
+        KtxWriter.GL_COMPRESSED_RGB8_ETC2,
+        KtxWriter.GL_RGB,
+        12,
+        8,
+        levels,
+        keyValues);
+    KtxTexture texture = read(file);
+
+    assertTrue(texture.isCompressed());
+    assertEquals(KtxWriter.GL_COMPRESSED_RGB8_ETC2, texture.getGlInternalFormat());
+    assertEquals(12, texture.getWidth());
+    assertEquals(8, texture.getHeight());
+    assertEquals(levels.size(), texture.getLevelCount());
+    for (int level = 0; level < levels.size(); level++) {
+      assertEquals(ByteBuffer.wrap(levels.get(level)), texture.getLevelData(level));
+    }
+    assertEquals(1, texture.getLevelWidth(3));
+    assertEquals(1, texture.getLevelHeight(3));
+  }
+
+  @Test
+  public void uncompressedRowsKeepTheirPadding() throws IOException {
+    // 5x3 RGB: rows of 15 bytes padded to 16. Then 2x1, 6 bytes padded to 8, and 1x1, 3 to 4.
+    byte[] level0 = rgbLevel(5, 3, 16);
+    byte[] level1 = rgbLevel(2, 1, 8);
+    byte[] level2 = rgbLevel(1, 1, 4);
+    File file = temporaryFolder.newFile("rgb.ktx");
+
+    KtxWriter.write(
+        file,
+        KtxWriter.GL_UNSIGNED_BYTE,
+        KtxWriter.GL_RGB,
+        KtxWriter.GL_RGB,
+        KtxWriter.GL_RGB,
+        5,
+        3,
+        Arrays.asList(level0, level1, level2),
+        Collections.emptyMap());
+    KtxTexture texture = read(file);
+
+    assertFalse(texture.isCompressed());
+    assertEquals(KtxWriter.GL_UNSIGNED_BYTE, texture.getGlType());
+    assertEquals(KtxWriter.GL_RGB, texture.getGlFormat());
+    assertEquals(3, texture.getLevelCount());
+    assertEquals(ByteBuffer.wrap(level0), texture.getLevelData(0));
+    assertEquals(ByteBuffer.wrap(level1), texture.getLevelData(1));
+    assertEquals(ByteBuffer.wrap(level2), texture.getLevelData(2));
+    // The last pixel of the first level is where a reader honoring the 4-byte row alignment
+    // looks for it.
+    ByteBuffer data = texture.getLevelData(0);
+    assertEquals(pixelValue(4, 2, 0), data.get(2 * 16 + 4 * 3));
+    assertEquals(2, texture.getLevelWidth(1));
+    assertEquals(1, texture.getLevelHeight(1));
+  }
+
+  @Test
+  public void padsKeyValuesAndLevelsToFourBytes() throws IOException {
+    // 14 + 1 + 7 + 1 = 23 bytes of key and value, padded to 24 after the 4-byte size.
+    Map<String, String> keyValues = new LinkedHashMap<>();
+    keyValues.put("KTXorientation", "S=r,T=d");
+    // Sizes that are not multiples of 4, each padded after its data.
+    List<byte[]> levels = Arrays.asList(bytes(6, 1), bytes(3, 2));
+    File file = temporaryFolder.newFile("padded.ktx");
+
+    KtxWriter.write(
+        file,
+        KtxWriter.GL_UNSIGNED_BYTE,
+        KtxWriter.GL_RGB,
+        KtxWriter.GL_RGB,
+        KtxWriter.GL_RGB,
+        2,
+        1,
+        levels,
+        keyValues);
+    KtxTexture texture = read(file);
+
+    assertEquals(HEADER_SIZE + (4 + 24) + (4 + 8) + (4 + 4), file.length());
+    assertEquals(ByteBuffer.wrap(levels.get(0)), texture.getLevelData(0));
+    assertEquals(ByteBuffer.wrap(levels.get(1)), texture.getLevelData(1));
+  }
+
+  private static KtxTexture read(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return KtxTexture.read(in);
+    }
+  }
+
+  /** Returns bytes counting up from the given seed, so levels differ from each other. */
+  private static byte[] bytes(int size, int seed) {
+    byte[] data = new byte[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = (byte) (seed * 31 + i);
+    }
+    return data;
+  }
+
+  /** Returns an RGB level with rows padded to {@code stride} bytes, the padding left zero. */
+  private static byte[] rgbLevel(int width, int height, int stride) {
+    byte[] data = new byte[stride * height];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        for (int c = 0; c < 3; c++) {
+          data[y * stride + x * 3 + c] = pixelValue(x, y, c);
+        }
+      }
+    }
+    return data;
+  }
+
+  private static byte pixelValue(int x, int y, int channel) {
+    return (byte) (1 + x * 40 + y * 7 + channel);
+  }
+}
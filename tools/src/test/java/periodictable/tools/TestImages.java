@@ -0,0 +1,70 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+
+/** Images to encode in tests, and how far their encoded versions are from them. */
+final class TestImages {
+  /**
+   * Draws an opaque image like the card art: a soft gradient background, flat panels with hard
+   * edges, and thin antialiased strokes like those of text. Text itself is not drawn, as the build
+   * machine may have no fonts.
+   */
+  static BufferedImage card(int width, int height) {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g.setPaint(new GradientPaint(0, 0, new Color(0x1B4F72), width, height, new Color(0x85C1E9)));
+    g.fillRect(0, 0, width, height);
+    g.setColor(new Color(0xF4D03F));
+    g.fillRect(width / 8, height / 8, width * 3 / 4, height / 3);
+    g.setColor(new Color(0xC0392B));
+    g.fillOval(width / 4, height / 2, width / 2, height / 3);
+    g.setColor(Color.WHITE);
+    g.setStroke(new BasicStroke(Math.max(1f, width / 64f)));
+    g.drawLine(0, height - 1, width - 1, 0);
+    g.setColor(new Color(0x17202A));
+    g.setStroke(new BasicStroke(1f));
+    for (int x = width / 6; x < width * 3 / 4; x += Math.max(3, width / 16)) {
+      g.drawLine(x, height / 6, x + width / 32, height * 3 / 8);
+    }
+    g.dispose();
+    return image;
+  }
+
+  /** Returns the peak signal-to-noise ratio of the RGB channels of two images, in dB. */
+  static double psnr(int[] expected, int[] actual) {
+    double squaredError = 0;
+    for (int i = 0; i < expected.length; i++) {
+      for (int shift = 0; shift <= 16; shift += 8) {
+        int difference = ((expected[i] >> shift) & 0xFF) - ((actual[i] >> shift) & 0xFF);
+        squaredError += difference * difference;
+      }
+    }
+    double meanSquaredError = squaredError / (expected.length * 3);
+    return meanSquaredError == 0
+        ? Double.POSITIVE_INFINITY
+        : 10 * Math.log10(255 * 255 / meanSquaredError);
+  }
+
+  private TestImages() {}
+}
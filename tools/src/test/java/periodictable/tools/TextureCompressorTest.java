@@ -0,0 +1,161 @@
+/*
+ * Copyright 2022 The Periodic Table AR Application Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package periodictable.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import javax.imageio.ImageIO;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import periodictable.common.rendering.KtxTexture;
+
+/**
+ * Runs {@link TextureCompressor} over a directory of card textures and reads the KTX files back
+ * as the app does.
+ */
+public class TextureCompressorTest {
+  // Measured at 24.9 and 33.0 dB. The image is smaller than the encoder tests' one, so its detail
+  // is closer together.
+  private static final double MIN_ETC2_PSNR = 23;
+  private static final double MIN_ASTC_PSNR = 31;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void writesFullMipChainsInEveryRequestedFormat() throws IOException {
+    File assets = temporaryFolder.newFolder("assets");
+    File textures = new File(assets, "models/textures");
+    assertTrue(textures.mkdirs());
+    BufferedImage card = TestImages.card(102, 58);
+    ImageIO.write(card, "png", new File(textures, "card.png"));
+    File output = temporaryFolder.newFolder("output");
+
+    TextureCompressor.main(
+        new String[] {
+          "--formats=etc2,astc", output.getPath(), assets.getPath(), "models/textures"
+        });
+
+    File compressed = new File(output, TextureCompressor.COMPRESSED_DIRECTORY);
+    KtxTexture etc2 = read(new File(compressed, "etc2/models/textures/card.ktx"));
+    KtxTexture astc = read(new File(compressed, "astc/models/textures/card.ktx"));
+    assertEquals(KtxWriter.GL_COMPRESSED_RGB8_ETC2, etc2.getGlInternalFormat());
+    assertEquals(KtxWriter.GL_COMPRESSED_RGBA_ASTC_4x4_KHR, astc.getGlInternalFormat());
+
+    // 102x58, 51x29, 25x14, 12x7, 6x3, 3x1, 1x1.
+    List<BufferedImage> mipChain = ImageUtil.mipChain(card);
+    assertEquals(7, mipChain.size());
+    for (KtxTexture texture : new KtxTexture[] {etc2, astc}) {
+      assertTrue(texture.isCompressed());
+      assertEquals(102, texture.getWidth());
+      assertEquals(58, texture.getHeight());
+      assertEquals(mipChain.size(), texture.getLevelCount());
+      int blockSize = texture == etc2 ? EtcEncoder.BLOCK_SIZE : AstcEncoder.BLOCK_SIZE;
+      for (int level = 0; level < texture.getLevelCount(); level++) {
+        BufferedImage image = mipChain.get(level);
+        assertEquals(image.getWidth(), texture.getLevelWidth(level));
+        assertEquals(image.getHeight(), texture.getLevelHeight(level));
+        int blocks = ((image.getWidth() + 3) / 4) * ((image.getHeight() + 3) / 4);
+        assertEquals(blocks * blockSize, texture.getLevelData(level).remaining());
+      }
+    }
+
+    int[] pixels = ImageUtil.argbPixels(card);
+    double etc2Psnr = TestImages.psnr(pixels, EtcEncoderTest.decode(levelData(etc2), 102, 58));
+    double astcPsnr = TestImages.psnr(pixels, AstcEncoderTest.decode(levelData(astc), 102, 58));
+    assertTrue("ETC2 PSNR " + etc2Psnr + " dB", etc2Psnr >= MIN_ETC2_PSNR);
+    assertTrue("ASTC PSNR " + astcPsnr + " dB", astcPsnr >= MIN_ASTC_PSNR);
+  }
+
+  @Test
+  public void writesOnlyEtc2ByDefault() throws IOException {
+    File assets = temporaryFolder.newFolder("assets");
+    File textures = new File(assets, "models/textures");
+    assertTrue(textures.mkdirs());
+    ImageIO.write(TestImages.card(16, 16), "png", new File(textures, "card.png"));
+    File output = temporaryFolder.newFolder("output");
+
+    TextureCompressor.main(new String[] {output.getPath(), assets.getPath(), "models/textures"});
+
+    File compressed = new File(output, TextureCompressor.COMPRESSED_DIRECTORY);
+    assertTrue(new File(compressed, "etc2/models/textures/card.ktx").isFile());
+    assertFalse(new File(compressed, "astc").exists());
+  }
+
+  @Test
+  public void skipsExcludedDirectories() throws IOException {
+    File assets = temporaryFolder.newFolder("assets");
+    File info = new File(assets, "models/textures/element_info");
+    File pictures = new File(assets, "models/textures/element_pictures");
+    assertTrue(info.mkdirs());
+    assertTrue(pictures.mkdirs());
+    ImageIO.write(TestImages.card(16, 16), "jpg", new File(info, "carbon.jpg"));
+    ImageIO.write(TestImages.card(16, 16), "jpg", new File(pictures, "carbon.jpg"));
+    File output = temporaryFolder.newFolder("output");
+
+    TextureCompressor.main(
+        new String[] {
+          "--exclude=element_info", output.getPath(), assets.getPath(), "models/textures"
+        });
+
+    File etc2 = new File(output, TextureCompressor.COMPRESSED_DIRECTORY + "/etc2/models/textures");
+    assertTrue(new File(etc2, "element_pictures/carbon.ktx").isFile());
+    assertFalse(new File(etc2, "element_info").exists());
+  }
+
+  @Test
+  public void leavesTranslucentPngsToTheApp() throws IOException {
+    File assets = temporaryFolder.newFolder("assets");
+    File textures = new File(assets, "models/textures");
+    assertTrue(textures.mkdirs());
+    BufferedImage translucent = new BufferedImage(8, 8, BufferedImage.TYPE_INT_ARGB);
+    translucent.setRGB(0, 0, 0x80FFFFFF);
+    ImageIO.write(translucent, "png", new File(textures, "overlay.png"));
+    File output = temporaryFolder.newFolder("output");
+
+    TextureCompressor.main(
+        new String[] {
+          "--formats=etc2,astc", output.getPath(), assets.getPath(), "models/textures"
+        });
+
+    File compressed = new File(output, TextureCompressor.COMPRESSED_DIRECTORY);
+    assertFalse(new File(compressed, "etc2/models/textures/overlay.ktx").exists());
+    assertFalse(new File(compressed, "astc/models/textures/overlay.ktx").exists());
+  }
+
+  private static KtxTexture read(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return KtxTexture.read(in);
+    }
+  }
+
+  /** Returns the data of the full-size level. */
+  private static byte[] levelData(KtxTexture texture) {
+    ByteBuffer data = texture.getLevelData(0);
+    byte[] bytes = new byte[data.remaining()];
+    data.get(bytes);
+    return bytes;
+  }
+}